@@ -0,0 +1,88 @@
+package trafficdriver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a Manhattan grid: street by street with buildStreetTo, and
+ * in bulk with NetworkBuilder and NetworkGenerator for comparison.
+ * 
+ * The intersections are placed afresh before every call, so each call
+ * builds every street of the grid once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildBenchmark {
+
+  /** Intersections per side of the grid */
+  @Param({ "10", "100", "300" })
+  public int side;
+
+  private NetworkGenerator generator;
+  /** The grid, for the positions and the ends of its streets */
+  private RoadGraph grid;
+  private SimpleMap roadMap;
+  private Intersection[] intersections;
+
+  @Setup(Level.Trial)
+  public void generate () {
+    generator = new NetworkGenerator(side,side,4);
+    grid = generator.generate();
+  }
+
+  @Setup(Level.Invocation)
+  public void place () {
+    roadMap = new SimpleMap(generator.getxDim(),generator.getyDim());
+    intersections = new Intersection[grid.getNodeCount()];
+    for (int i = 0 ; i < intersections.length ; i++) {
+      intersections[i] =
+              new Intersection(grid.getXPos(i),grid.getYPos(i),roadMap);
+    }
+  }
+
+  @Benchmark
+  public int buildStreetTo () {
+    int built = 0;
+    for (int e = 0 ; e < grid.getEdgeCount() ; e++) {
+      Intersection from = intersections[grid.getEdgeNode(e,0)];
+      Intersection to = intersections[grid.getEdgeNode(e,1)];
+      if (from.buildStreetTo(to,roadMap)) built++;
+    }
+    return (built);
+  }
+
+  @Benchmark
+  public Intersection[] networkBuilder () {
+    NetworkBuilder builder = new NetworkBuilder();
+    generator.addTo(builder);
+    return (builder.buildMap(
+            new SimpleMap(generator.getxDim(),generator.getyDim())));
+  }
+
+  @Benchmark
+  public RoadGraph roadGraph () {
+    NetworkBuilder builder = new NetworkBuilder();
+    generator.addTo(builder);
+    return (builder.build());
+  }
+
+  @Benchmark
+  public RoadGraph networkGenerator () {
+    return (generator.generate());
+  }
+}
@@ -0,0 +1,58 @@
+package trafficdriver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Growing the SimpleMap registry from empty, one object at a time
+ * with addToMap and in one batch with addAllToMap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RegistryBenchmark {
+
+  /** Number of objects registered */
+  @Param({ "1000", "100000", "1000000" })
+  public int count;
+
+  private RoadInterface[] objects;
+
+  @Setup
+  public void create () {
+    objects = new RoadInterface[count];
+    for (int i = 0 ; i < count ; i++) {
+      objects[i] = (i % 3 == 0 ? new Intersection(i % 1000,i / 1000) :
+                    new Street());
+    }
+  }
+
+  @Benchmark
+  public SimpleMap addToMap () {
+    SimpleMap roadMap = new SimpleMap();
+    for (int i = 0 ; i < count ; i++) {
+      roadMap.addToMap(objects[i]);
+    }
+    return (roadMap);
+  }
+
+  @Benchmark
+  public SimpleMap addAllToMap () {
+    SimpleMap roadMap = new SimpleMap();
+    roadMap.addAllToMap(objects,0,count);
+    return (roadMap);
+  }
+}
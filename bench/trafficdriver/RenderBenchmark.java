@@ -0,0 +1,63 @@
+package trafficdriver;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a large Manhattan grid with SimpleMap.toString, on one
+ * thread and in row bands on the common pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+  /** Intersections per side of the grid */
+  @Param({ "100", "300", "700" })
+  public int side;
+
+  private SimpleMap plain;
+  private SimpleMap banded;
+
+  @Setup
+  public void build () {
+    plain = grid(side);
+    banded = grid(side);
+    banded.setRenderPool(ForkJoinPool.commonPool());
+  }
+
+  /** Return a map holding a Manhattan grid and nothing else */
+  private static SimpleMap grid (int side) {
+    NetworkGenerator generator = new NetworkGenerator(side,side,3);
+    SimpleMap roadMap =
+            new SimpleMap(generator.getxDim(),generator.getyDim());
+    NetworkBuilder builder = new NetworkBuilder();
+    generator.addTo(builder);
+    builder.buildMap(roadMap);
+    return (roadMap);
+  }
+
+  @Benchmark
+  public String render () {
+    return (plain.toString());
+  }
+
+  @Benchmark
+  public String renderBands () {
+    return (banded.toString());
+  }
+}
@@ -0,0 +1,83 @@
+package trafficdriver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Walking a Manhattan grid through getConnectedRoad, and the same walk
+ * over a RoadGraph of the grid for comparison.
+ * 
+ * The walk snakes through every intersection: east along even rows,
+ * west along odd ones, and one block south between rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TraversalBenchmark {
+
+  /** Intersections per side of the grid */
+  @Param({ "100", "1000" })
+  public int side;
+
+  private Intersection corner;
+  private RoadGraph graph;
+
+  @Setup
+  public void build () {
+    NetworkGenerator generator = new NetworkGenerator(side,side,4);
+    NetworkBuilder builder = new NetworkBuilder();
+    generator.addTo(builder);
+    corner = builder.buildMap(new SimpleMap())[0];
+    graph = generator.generate();
+  }
+
+  @Benchmark
+  public long objects () {
+    long sum = 0;
+    Intersection here = corner;
+    for (int row = 0 ; row < side ; row++) {
+      Direction dir = (row % 2 == 0 ? Direction.east : Direction.west);
+      for (int step = 1 ; step < side ; step++) {
+        here = (Intersection) here.getConnectedRoad(dir).getConnectedRoad(dir);
+        sum += here.getXPos();
+      }
+      if (row + 1 < side) {
+        here = (Intersection) here.getConnectedRoad(Direction.south)
+                .getConnectedRoad(Direction.south);
+        sum += here.getYPos();
+      }
+    }
+    return (sum);
+  }
+
+  @Benchmark
+  public long roadGraph () {
+    long sum = 0;
+    int here = 0;
+    for (int row = 0 ; row < side ; row++) {
+      Direction dir = (row % 2 == 0 ? Direction.east : Direction.west);
+      for (int step = 1 ; step < side ; step++) {
+        here = graph.getNeighbor(here,dir);
+        sum += graph.getXPos(here);
+      }
+      if (row + 1 < side) {
+        here = graph.getNeighbor(here,Direction.south);
+        sum += graph.getYPos(here);
+      }
+    }
+    return (sum);
+  }
+}
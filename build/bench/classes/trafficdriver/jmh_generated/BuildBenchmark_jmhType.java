@@ -0,0 +1,4 @@
+package trafficdriver.jmh_generated;
+public class BuildBenchmark_jmhType extends BuildBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package trafficdriver.jmh_generated;
+public class RegistryBenchmark_jmhType extends RegistryBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package trafficdriver.jmh_generated;
+public class RenderBenchmark_jmhType extends RenderBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package trafficdriver.jmh_generated;
+public class TraversalBenchmark_jmhType extends TraversalBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,612 @@
+package trafficdriver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to the network of a map, so
+ * the network can be recovered after a restart.
+ * 
+ * The log does not hook the edits themselves. The map is edited as
+ * usual, with new Intersection, buildStreetTo, setName and so on, and
+ * commit publishes a snapshot of the map and appends a batch with the
+ * records of every object that changed since the last commit. Chunks
+ * of the snapshot that were not touched are skipped whole, so a commit
+ * after a small edit costs little more than the publish.
+ * 
+ * Every so often the log is compacted: the whole network is written
+ * to a snapshot file, which is then swapped in atomically, and so is a
+ * new log holding only its header. Neither file is ever cut short in
+ * place. Recovery reads the snapshot and the
+ * batches after it, folds them into one record per object, and only
+ * then builds the objects and registers them in one step, so it costs
+ * a load of the snapshot plus a pass over the tail of the log.
+ * 
+ * A log lives in a directory of its own, as two files of
+ * little-endian values:
+ * 
+ * <pre>
+ *   changes     header: magic "TDCL", version, xDim, yDim
+ *               batches: body length, CRC-32 of the body, body
+ *   snapshot    header: magic "TDCS", version, xDim, yDim
+ *               one batch holding every object
+ * 
+ *   body        batch number (long), objects in the map afterwards,
+ *               number of records, records
+ *   records     1, place, x, y                    an intersection
+ *               2, place, one, two, directions    a street
+ *               3, place, byte count, UTF-8 name  a name, padded to
+ *                                                 four bytes
+ * </pre>
+ * 
+ * Places are those of the map's registry, and a street gives the
+ * places of its intersections, or -1 for an end that is open, and the
+ * direction ordinals to enter them in bits 0-1 and 2-3. A batch whose
+ * length or checksum does not hold, as after a crash during an append,
+ * ends the log; it is cut off when the log is opened. Batches no newer
+ * than the snapshot are skipped, so a crash during compaction loses
+ * nothing, and a log that is missing or shorter than its header, as
+ * after a crash while the log was created, is started over as long as
+ * the snapshot is whole.
+ * 
+ * Only intersections and streets can be logged, and a null name is
+ * logged as an empty one. The recovered map is a plain map with every
+ * object at the place it had.
+ */
+public class ChangeLog implements Closeable {
+
+  /** Tags at the start of the files, "TDCL" and "TDCS" */
+  private static final int LOG_MAGIC = 0x4c434454;
+  private static final int SNAPSHOT_MAGIC = 0x53434454;
+  /** Version of the format */
+  private static final int VERSION = 1;
+  /** Size of a file header in bytes */
+  private static final int HEADER_SIZE = 16;
+  /** Size of the length and checksum ahead of a batch body */
+  private static final int BATCH_HEADER = 8;
+  /** Size of the fixed part of a batch body */
+  private static final int BODY_HEADER = 16;
+
+  /** Kinds of record */
+  private static final int NODE = 1;
+  private static final int STREET = 2;
+  private static final int NAME = 3;
+
+  /** Names of the files in the directory */
+  private static final String LOG_FILE = "changes";
+  private static final String SNAPSHOT_FILE = "snapshot";
+  private static final String TEMP_FILE = "snapshot.tmp";
+  private static final String LOG_TEMP_FILE = "changes.tmp";
+
+  /** Log size at which a commit compacts, by default */
+  public static final long DEFAULT_COMPACT_SIZE = 16L << 20;
+
+  /** The map logged */
+  private final SimpleMap roadMap;
+  /** Directory holding the files */
+  private final Path dir;
+  /** The log, open for appending; replaced whenever it is compacted */
+  private FileChannel channel;
+  /** The snapshot as of the last commit */
+  private NetworkSnapshot logged;
+  /** Number of the last batch */
+  private long batch;
+  /** Log size at which a commit compacts */
+  private long compactSize = DEFAULT_COMPACT_SIZE;
+  /** True if every commit waits for the log to reach the disk */
+  private boolean sync = true;
+  /** Buffer a batch is put together in, reused between commits */
+  private ByteBuffer out =
+          ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+  private ChangeLog (SimpleMap roadMap, Path dir, FileChannel channel,
+                     NetworkSnapshot logged, long batch) {
+    this.roadMap = roadMap;
+    this.dir = dir;
+    this.channel = channel;
+    this.logged = logged;
+    this.batch = batch;
+  }
+
+  /**
+   * Start a log of a map in a new directory. The network as it stands
+   * is written as the first snapshot.
+   * 
+   * @param roadMap the map to log
+   * @param dir the directory, which must not hold a log already
+   * @return the log
+   * @throws IOException if the files cannot be written
+   */
+  public static ChangeLog create (SimpleMap roadMap, Path dir)
+    throws IOException {
+    Files.createDirectories(dir);
+    for (String name : new String[] {LOG_FILE, SNAPSHOT_FILE}) {
+      if (Files.exists(dir.resolve(name))) {
+        throw new FileAlreadyExistsException(dir.resolve(name).toString());
+      }
+    }
+    ChangeLog log = new ChangeLog(roadMap,dir,null,roadMap.publish(),0);
+    log.compact();
+    return (log);
+  }
+
+  /**
+   * Recover the map of a log and open the log to carry on.
+   * 
+   * @param dir the directory of the log
+   * @return the log; its map is the recovered one
+   * @throws IOException if the files cannot be read or are damaged
+   *           other than at the end of the log
+   */
+  public static ChangeLog open (Path dir) throws IOException {
+    Path file = dir.resolve(LOG_FILE);
+    Fold fold = new Fold();
+    readFile(dir.resolve(SNAPSHOT_FILE),SNAPSHOT_MAGIC,fold,true);
+    // A log the snapshot was written for but never got a header holds
+    // nothing newer than the snapshot.
+    boolean started = Files.exists(file) && Files.size(file) >= HEADER_SIZE;
+    long end = started ? readFile(file,LOG_MAGIC,fold,false) : 0;
+    SimpleMap roadMap = fold.build();
+    ChangeLog log =
+            new ChangeLog(roadMap,dir,null,roadMap.publish(),fold.batch);
+    if (!started) {
+      log.startLog(fold.xDim,fold.yDim);
+      return (log);
+    }
+    log.channel = FileChannel.open(file,StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+    // Cut off a batch torn by a crash, and carry on after the rest.
+    log.channel.truncate(end);
+    log.channel.position(end);
+    return (log);
+  }
+
+  /** Return the map logged */
+  public SimpleMap getMap () {
+    return (roadMap);
+  }
+
+  /** Return the number of the last batch committed */
+  public long getBatch () {
+    return (batch);
+  }
+
+  /** Return the size of the log, without the snapshot */
+  public long getLogSize () throws IOException {
+    return (channel.size());
+  }
+
+  /**
+   * Set the log size at which a commit compacts the log.
+   * 
+   * @param bytes the size, or Long.MAX_VALUE to only compact when asked
+   */
+  public void setCompactSize (long bytes) {
+    compactSize = bytes;
+  }
+
+  /**
+   * Choose whether every commit waits until the log is on the disk.
+   * Without it a crash can lose the last few commits, though never
+   * leave the log damaged.
+   */
+  public void setSync (boolean sync) {
+    this.sync = sync;
+  }
+
+  /**
+   * Append the changes made to the map since the last commit as one
+   * batch, and compact the log if it has grown large enough. The map
+   * is published on the way, so the edits must be finished, as for
+   * SimpleMap.publish.
+   * 
+   * @return the number of records written, 0 if nothing changed
+   * @throws IOException if the log cannot be written
+   * @throws IllegalStateException if the map holds an object that is
+   *           neither an intersection nor a street
+   */
+  public synchronized int commit () throws IOException {
+    int records = append();
+    if (channel.size() >= compactSize) compact();
+    return (records);
+  }
+
+  /**
+   * Write the whole network as the snapshot and start the log over
+   * with only its header. Changes not committed yet are committed
+   * first.
+   * 
+   * @throws IOException if the files cannot be written
+   */
+  public synchronized void compact () throws IOException {
+    if (channel != null) append();
+    NetworkSnapshot now = logged;
+    out.clear();
+    putHeader(SNAPSHOT_MAGIC,now.getxDim(),now.getyDim());
+    int start = beginBatch();
+    int records = 0;
+    for (int p = 0 ; p < now.getObjectCount() ; p++) {
+      records += putRecords(now,p,null);
+    }
+    endBatch(start,batch,now.getObjectCount(),records);
+    swapIn(writeTemp(TEMP_FILE),SNAPSHOT_FILE);
+    // Every batch is in the snapshot now; start the log over.
+    startLog(now.getxDim(),now.getyDim());
+  }
+
+  /** Close the log; the map stays usable */
+  public synchronized void close () throws IOException {
+    if (channel != null) channel.close();
+  }
+
+  /**
+   * Swap in a log holding only its header, and open it for appending.
+   * Until the swap the old log stays whole; all of its batches must be
+   * in the snapshot.
+   */
+  private void startLog (int xDim, int yDim) throws IOException {
+    out.clear();
+    putHeader(LOG_MAGIC,xDim,yDim);
+    Path temp = writeTemp(LOG_TEMP_FILE);
+    if (channel != null) channel.close();
+    channel = null;
+    swapIn(temp,LOG_FILE);
+    channel = FileChannel.open(dir.resolve(LOG_FILE),StandardOpenOption.READ,
+                               StandardOpenOption.WRITE);
+    channel.position(channel.size());
+  }
+
+  /**
+   * Write what the batch buffer holds to a temporary file and force it
+   * to the disk.
+   * 
+   * @return the file
+   */
+  private Path writeTemp (String tempName) throws IOException {
+    out.flip();
+    Path temp = dir.resolve(tempName);
+    try (FileChannel file = FileChannel.open(temp,StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (out.hasRemaining()) {
+        file.write(out);
+      }
+      file.force(true);
+    }
+    return (temp);
+  }
+
+  /** Move a temporary file over a file of the log in one step */
+  private void swapIn (Path temp, String name) throws IOException {
+    Files.move(temp,dir.resolve(name),StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Publish the map and append the changes since the last commit as
+   * one batch.
+   * 
+   * @return the number of records written
+   */
+  private int append () throws IOException {
+    NetworkSnapshot now = roadMap.publish();
+    if (now == logged) return (0);
+    if (channel == null) throw new IOException("the log is not open");
+    out.clear();
+    int start = beginBatch();
+    int records = 0;
+    int total = now.getObjectCount();
+    for (int p = now.nextChanged(logged,0) ; p < total ;
+         p = now.nextChanged(logged,p + 1)) {
+      records += putRecords(now,p,p < logged.getObjectCount() ? logged : null);
+    }
+    if (records > 0) {
+      batch++;
+      endBatch(start,batch,total,records);
+      out.flip();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      if (sync) channel.force(false);
+    }
+    logged = now;
+    return (records);
+  }
+
+  /**
+   * Put the records of the object at a place that differ from an
+   * older snapshot.
+   * 
+   * @param now the snapshot holding the object
+   * @param p the place
+   * @param old the older snapshot, or null to put every record
+   * @return the number of records put
+   */
+  private int putRecords (NetworkSnapshot now, int p, NetworkSnapshot old) {
+    int records = 0;
+    if (now.isIntersection(p)) {
+      if (old == null || !old.isIntersection(p) ||
+              old.getXPos(p) != now.getXPos(p) ||
+              old.getYPos(p) != now.getYPos(p)) {
+        reserve(16);
+        out.putInt(NODE).putInt(p).putInt(now.getXPos(p))
+                .putInt(now.getYPos(p));
+        records++;
+      }
+    } else if (now.isStreet(p)) {
+      int dirs = directions(now,p);
+      if (old == null || !old.isStreet(p) ||
+              old.getStart(p) != now.getStart(p) ||
+              old.getEnd(p) != now.getEnd(p) || directions(old,p) != dirs) {
+        reserve(20);
+        out.putInt(STREET).putInt(p).putInt(now.getStart(p))
+                .putInt(now.getEnd(p)).putInt(dirs);
+        records++;
+      }
+    } else {
+      throw new IllegalStateException("cannot log a " +
+              now.getObject(p).getClass().getName() + " at place " + p);
+    }
+    String name = nameOf(now,p);
+    if (!name.equals(old == null ? "" : nameOf(old,p))) {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      reserve(12 + bytes.length + 3);
+      out.putInt(NAME).putInt(p).putInt(bytes.length).put(bytes);
+      while ((out.position() & 3) != 0) {
+        out.put((byte) 0);
+      }
+      records++;
+    }
+    return (records);
+  }
+
+  /** Return the direction ordinals of a street, packed as in a record */
+  private static int directions (NetworkSnapshot snapshot, int street) {
+    return (snapshot.getStartDirection(street).ordinal() |
+            snapshot.getEndDirection(street).ordinal() << 2);
+  }
+
+  /** Return the name at a place, with null as empty */
+  private static String nameOf (NetworkSnapshot snapshot, int place) {
+    String name = snapshot.getName(place);
+    return (name == null ? "" : name);
+  }
+
+  /** Put a file header */
+  private void putHeader (int magic, int xDim, int yDim) {
+    reserve(HEADER_SIZE);
+    out.putInt(magic).putInt(VERSION).putInt(xDim).putInt(yDim);
+  }
+
+  /**
+   * Start a batch, leaving room for its headers.
+   * 
+   * @return the position of the batch
+   */
+  private int beginBatch () {
+    int start = out.position();
+    reserve(BATCH_HEADER + BODY_HEADER);
+    out.position(start + BATCH_HEADER + BODY_HEADER);
+    return (start);
+  }
+
+  /**
+   * Fill in the headers of the batch begun at a position, which ends
+   * where the buffer stands.
+   */
+  private void endBatch (int start, long number, int objects, int records) {
+    int end = out.position();
+    out.putLong(start + BATCH_HEADER,number);
+    out.putInt(start + BATCH_HEADER + 8,objects);
+    out.putInt(start + BATCH_HEADER + 12,records);
+    CRC32 crc = new CRC32();
+    crc.update(slice(out,start + BATCH_HEADER,end - start - BATCH_HEADER));
+    out.putInt(start,end - start - BATCH_HEADER);
+    out.putInt(start + 4,(int) crc.getValue());
+  }
+
+  /** Make room for some more bytes in the batch buffer */
+  private void reserve (int bytes) {
+    if (out.remaining() >= bytes) return;
+    ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * out.capacity(),
+            out.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+    out.flip();
+    larger.put(out);
+    out = larger;
+  }
+
+  /** Return a little-endian view of part of a buffer */
+  private static ByteBuffer slice (ByteBuffer data, int from, int length) {
+    ByteBuffer part = data.duplicate();
+    part.limit(from + length).position(from);
+    return (part.slice().order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Read a file of a log and fold its batches in.
+   * 
+   * @param file the file
+   * @param magic the tag the file must start with
+   * @param fold receives the batches
+   * @param whole true if the file must hold nothing but good batches
+   * @return the length of the part of the file holding good batches
+   * @throws IOException if the file cannot be read or is damaged
+   */
+  private static long readFile (Path file, int magic, Fold fold,
+                                boolean whole) throws IOException {
+    ByteBuffer data;
+    try (FileChannel channel = FileChannel.open(file,StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large");
+      }
+      data = ByteBuffer.allocate((int) channel.size())
+              .order(ByteOrder.LITTLE_ENDIAN);
+      while (data.hasRemaining() && channel.read(data) >= 0) {}
+      data.flip();
+    }
+    int size = data.limit();
+    if (size < HEADER_SIZE || data.getInt(0) != magic ||
+            data.getInt(4) != VERSION) {
+      throw new IOException(file + " is not part of a change log");
+    }
+    fold.setDimensions(data.getInt(8),data.getInt(12),file);
+    int pos = HEADER_SIZE;
+    while (size - pos >= BATCH_HEADER) {
+      int length = data.getInt(pos);
+      if (length < BODY_HEADER || length > size - pos - BATCH_HEADER) break;
+      ByteBuffer body = slice(data,pos + BATCH_HEADER,length);
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != data.getInt(pos + 4)) break;
+      fold.apply(body,file);
+      pos += BATCH_HEADER + length;
+    }
+    if (whole && pos != size) throw new IOException(file + " is damaged");
+    return (pos);
+  }
+
+  /**
+   * The state of every place of the map as the batches read so far
+   * leave it, kept as columns until the objects are built.
+   */
+  private static class Fold {
+
+    /** Number of the last batch folded in, -1 for none */
+    long batch = -1;
+    /** Dimensions of the map, -1 until a file is read */
+    int xDim = -1;
+    int yDim = -1;
+    /** Number of places */
+    int count = 0;
+    /** Kind of record at each place, 0 if none yet */
+    byte[] kind = new byte[0];
+    /** x and y of an intersection, or intersection one and two of a street */
+    int[] first = new int[0];
+    int[] second = new int[0];
+    /** Packed direction ordinals of a street */
+    int[] dirs = new int[0];
+    /** Name at each place, null if never named */
+    String[] name = new String[0];
+
+    /** Check that every file is of the same map */
+    void setDimensions (int x, int y, Path file) throws IOException {
+      if (xDim == -1) {
+        xDim = x;
+        yDim = y;
+      } else if (x != xDim || y != yDim) {
+        throw new IOException(file + " is of a map of another size");
+      }
+    }
+
+    /** Fold in a batch, unless it is older than what was read */
+    void apply (ByteBuffer body, Path file) throws IOException {
+      long number = body.getLong(0);
+      if (number <= batch) return;
+      batch = number;
+      int objects = body.getInt(8);
+      int records = body.getInt(12);
+      if (objects > kind.length) {
+        int size = Math.max(objects,2 * kind.length);
+        kind = Arrays.copyOf(kind,size);
+        first = Arrays.copyOf(first,size);
+        second = Arrays.copyOf(second,size);
+        dirs = Arrays.copyOf(dirs,size);
+        name = Arrays.copyOf(name,size);
+      }
+      count = Math.max(count,objects);
+      int at = BODY_HEADER;
+      for (int r = 0 ; r < records ; r++) {
+        int type = body.getInt(at);
+        int place = body.getInt(at + 4);
+        if (place < 0 || place >= count) {
+          throw new IOException(file + " has a record for place " + place);
+        }
+        switch (type) {
+        case NODE:
+          kind[place] = NODE;
+          first[place] = body.getInt(at + 8);
+          second[place] = body.getInt(at + 12);
+          at += 16;
+          break;
+        case STREET:
+          kind[place] = STREET;
+          first[place] = body.getInt(at + 8);
+          second[place] = body.getInt(at + 12);
+          dirs[place] = body.getInt(at + 16);
+          at += 20;
+          break;
+        case NAME:
+          byte[] bytes = new byte[body.getInt(at + 8)];
+          body.position(at + 12);
+          body.get(bytes);
+          name[place] = new String(bytes,StandardCharsets.UTF_8);
+          at += 12 + ((bytes.length + 3) & ~3);
+          break;
+        default:
+          throw new IOException(file + " has a record of kind " + type);
+        }
+      }
+    }
+
+    /**
+     * Build the objects of every place, link them and register them
+     * with a new map in one step.
+     */
+    SimpleMap build () throws IOException {
+      RoadInterface[] objects = new RoadInterface[count];
+      for (int p = 0 ; p < count ; p++) {
+        if (kind[p] == NODE) {
+          Intersection inter = new Intersection(first[p],second[p]);
+          if (name[p] != null) inter.setName(name[p]);
+          objects[p] = inter;
+        } else if (kind[p] == STREET) {
+          Street street = new Street();
+          if (name[p] != null) street.setName(name[p]);
+          objects[p] = street;
+        } else {
+          throw new IOException("the log has no record for place " + p);
+        }
+      }
+      for (int p = 0 ; p < count ; p++) {
+        if (kind[p] != STREET) continue;
+        Street street = (Street) objects[p];
+        Intersection start = node(objects,first[p]);
+        Intersection end = node(objects,second[p]);
+        Direction startDir = DirectionCode.toDirection(dirs[p] & 3);
+        Direction endDir = DirectionCode.toDirection((dirs[p] >> 2) & 3);
+        if (start != null && end != null) {
+          street.attachEnds(start,startDir,end,endDir);
+          start.setStreet(street,startDir.opposite());
+          end.setStreet(street,endDir.opposite());
+        } else if (start != null) {
+          street.connectTo(start,startDir);
+        } else if (end != null) {
+          street.connectTo(end,endDir);
+        }
+      }
+      SimpleMap roadMap = new SimpleMap(xDim,yDim);
+      roadMap.addAllToMap(objects,0,count);
+      return (roadMap);
+    }
+
+    /** Return the intersection at a place, or null for NONE */
+    private Intersection node (RoadInterface[] objects, int place)
+      throws IOException {
+      if (place == NetworkSnapshot.NONE) return (null);
+      if (place < 0 || place >= count || kind[place] != NODE) {
+        throw new IOException("a street of the log ends at place " + place);
+      }
+      return ((Intersection) objects[place]);
+    }
+  }
+}
@@ -0,0 +1,417 @@
+package trafficdriver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The connected components of a road network, for checking that an
+ * imported network hangs together.
+ * 
+ * Components are found with a union-find over the streets that are
+ * attached at both ends. Streets are merged in parallel: each link is
+ * one compare-and-set that hangs the root with the larger index under
+ * the one with the smaller, and finds halve their paths as they go, so
+ * no thread ever waits for another. Once every street is merged, the
+ * root of a component is its smallest intersection.
+ * 
+ * The analysis can run over a RoadGraph, which must not change, or
+ * over the objects registered with a SimpleMap. A map analysis is
+ * incremental: every query first folds in the intersections and
+ * streets registered since the last one, for instance by
+ * buildStreetTo, and if there are any looks again at the streets that
+ * were still open. A query with nothing new registered costs nothing.
+ * A street attached later without registering anything, as by
+ * connectTo, is only seen after an explicit update. Streets are only
+ * ever added to a component, never taken away.
+ * 
+ * In a map, intersections are numbered in registration order, like
+ * RoadGraph.fromMap numbers them, and streets likewise, open ones
+ * included.
+ */
+public class Components {
+
+  /** Marker for an unknown intersection */
+  public static final int NONE = RoadGraph.NONE;
+
+  /** Pool that merges the streets */
+  private final ForkJoinPool pool;
+  /** The graph analysed, or null for a map */
+  private final RoadGraph graph;
+  /** The map analysed, or null for a graph */
+  private final SimpleMap roadMap;
+
+  /**
+   * Parent of each intersection, with room to grow; a root is its own
+   * parent
+   */
+  private AtomicIntegerArray parent = new AtomicIntegerArray(0);
+  /** Number of intersections */
+  private int numNodes = 0;
+  /** Number of components */
+  private final AtomicInteger numComponents = new AtomicInteger();
+  /**
+   * Streets not merged because an end is open or, in a map, not
+   * registered
+   */
+  private int[] pending = new int[0];
+  private int numPending = 0;
+
+  /** Intersections of a map, by number */
+  private final ArrayList<Intersection> nodes = new ArrayList<Intersection>();
+  /** Number of each intersection of a map */
+  private final IdentityHashMap<Intersection,Integer> nodeIds =
+          new IdentityHashMap<Intersection,Integer>();
+  /** Streets of a map, by number */
+  private final ArrayList<Street> streets = new ArrayList<Street>();
+  /** Registry places of the map already looked at */
+  private int seen = 0;
+
+  /**
+   * Size of the component of each root as of the last change, or null
+   * if not counted yet
+   */
+  private int[] rootSize = null;
+
+  /**
+   * Find the components of a graph, using the common pool.
+   * 
+   * @param graph the graph, which must not change afterwards
+   */
+  public Components (RoadGraph graph) {
+    this(graph,ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Find the components of a graph.
+   * 
+   * @param graph the graph, which must not change afterwards
+   * @param pool the pool that merges the streets
+   */
+  public Components (RoadGraph graph, ForkJoinPool pool) {
+    this.pool = pool;
+    this.graph = graph;
+    this.roadMap = null;
+    addNodes(graph.getNodeCount());
+    final int edges = graph.getEdgeCount();
+    int[] open = new int[edges];
+    for (int e = 0 ; e < edges ; e++) {
+      if (graph.isOpen(e)) open[numPending++] = e;
+    }
+    pending = Arrays.copyOf(open,numPending);
+    ParallelRange.run(pool,0,edges,ParallelRange.grainFor(pool,edges),
+      (from, to) -> {
+        int merged = 0;
+        for (int e = from ; e < to ; e++) {
+          if (!graph.isOpen(e) &&
+                  union(graph.getEdgeNode(e,0),graph.getEdgeNode(e,1))) {
+            merged++;
+          }
+        }
+        numComponents.addAndGet(-merged);
+      });
+  }
+
+  /**
+   * Find the components of the network registered with a map, using
+   * the common pool.
+   * 
+   * @param roadMap the map
+   */
+  public Components (SimpleMap roadMap) {
+    this(roadMap,ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Find the components of the network registered with a map.
+   * 
+   * @param roadMap the map
+   * @param pool the pool that merges the streets
+   */
+  public Components (SimpleMap roadMap, ForkJoinPool pool) {
+    this.pool = pool;
+    this.graph = null;
+    this.roadMap = roadMap;
+    update();
+  }
+
+  /**
+   * Fold in what was registered with the map since the last call, and
+   * merge the streets that have been attached at both ends since. It
+   * does nothing for a graph.
+   */
+  public void update () {
+    refresh(true);
+  }
+
+  /**
+   * Fold in what was registered with the map since the last call, and
+   * merge the waiting streets that are attached at both ends now.
+   * 
+   * @param retry if false, return at once when nothing was registered
+   */
+  private void refresh (boolean retry) {
+    if (roadMap == null) return;
+    roadMap.settle();
+    int total = roadMap.numObjects;
+    RoadInterface[] objects = roadMap.roadObjects;
+    if (total == seen && (numPending == 0 || !retry)) return;
+    int firstNode = numNodes;
+    for (int i = seen ; i < total ; i++) {
+      if (objects[i] instanceof Intersection &&
+              !nodeIds.containsKey(objects[i])) {
+        nodeIds.put((Intersection) objects[i],nodes.size());
+        nodes.add((Intersection) objects[i]);
+      }
+    }
+    addNodes(nodes.size() - firstNode);
+    for (int i = seen ; i < total ; i++) {
+      if (objects[i] instanceof Street) {
+        if (numPending == pending.length) {
+          pending = Arrays.copyOf(pending,2 * numPending + 16);
+        }
+        pending[numPending++] = streets.size();
+        streets.add((Street) objects[i]);
+      }
+    }
+    seen = total;
+    // Merge the waiting streets, and keep the ones that still wait.
+    final int[] work = Arrays.copyOf(pending,numPending);
+    final boolean[] done = new boolean[work.length];
+    ParallelRange.run(pool,0,work.length,
+                      ParallelRange.grainFor(pool,work.length),
+      (from, to) -> {
+        int merged = 0;
+        for (int k = from ; k < to ; k++) {
+          Street street = streets.get(work[k]);
+          Integer start = nodeIds.get(street.getStart());
+          Integer end = nodeIds.get(street.getEnd());
+          if (start == null || end == null) continue;
+          if (union(start,end)) merged++;
+          done[k] = true;
+        }
+        numComponents.addAndGet(-merged);
+      });
+    numPending = 0;
+    for (int k = 0 ; k < work.length ; k++) {
+      if (!done[k]) pending[numPending++] = work[k];
+    }
+    rootSize = null;
+  }
+
+  /** Add more intersections, each its own component */
+  private void addNodes (int count) {
+    if (count == 0) return;
+    if (numNodes + count > parent.length()) {
+      AtomicIntegerArray larger = new AtomicIntegerArray(
+              Math.max(numNodes + count,2 * parent.length()));
+      for (int n = 0 ; n < numNodes ; n++) {
+        larger.set(n,parent.get(n));
+      }
+      parent = larger;
+    }
+    for (int n = numNodes ; n < numNodes + count ; n++) {
+      parent.set(n,n);
+    }
+    numNodes += count;
+    numComponents.addAndGet(count);
+    rootSize = null;
+  }
+
+  /** Return the root of an intersection, halving the path on the way */
+  private int find (int node) {
+    while (true) {
+      int up = parent.get(node);
+      if (up == node) return (node);
+      int upper = parent.get(up);
+      if (upper != up) parent.compareAndSet(node,up,upper);
+      node = upper;
+    }
+  }
+
+  /**
+   * Merge the components of two intersections.
+   * 
+   * @return true if they were different components
+   */
+  private boolean union (int a, int b) {
+    while (true) {
+      a = find(a);
+      b = find(b);
+      if (a == b) return (false);
+      int low = Math.min(a,b);
+      int high = Math.max(a,b);
+      if (parent.compareAndSet(high,high,low)) return (true);
+    }
+  }
+
+  /** Return the number of intersections */
+  public int getNodeCount () {
+    refresh(false);
+    return (numNodes);
+  }
+
+  /** Return the number of components */
+  public int getComponentCount () {
+    refresh(false);
+    return (numComponents.get());
+  }
+
+  /** Check if every intersection can reach every other */
+  public boolean isConnected () {
+    return (getComponentCount() <= 1);
+  }
+
+  /**
+   * Return the component of an intersection, named by its smallest
+   * intersection.
+   * 
+   * @param node the intersection
+   */
+  public int getComponent (int node) {
+    refresh(false);
+    return (find(node));
+  }
+
+  /** Check if two intersections are in the same component */
+  public boolean isConnected (int from, int to) {
+    refresh(false);
+    return (find(from) == find(to));
+  }
+
+  /** Return the number of intersections in the component of one */
+  public int getComponentSize (int node) {
+    refresh(false);
+    return (sizes()[find(node)]);
+  }
+
+  /** Return the size of every component, largest first */
+  public int[] getComponentSizes () {
+    refresh(false);
+    int[] size = sizes();
+    int[] result = new int[numComponents.get()];
+    int count = 0;
+    for (int n = 0 ; n < numNodes ; n++) {
+      if (size[n] > 0) result[count++] = -size[n];
+    }
+    Arrays.sort(result);
+    for (int c = 0 ; c < count ; c++) {
+      result[c] = -result[c];
+    }
+    return (result);
+  }
+
+  /**
+   * Return the intersections that no street joins to another, in
+   * increasing order.
+   */
+  public int[] getOrphans () {
+    refresh(false);
+    int[] size = sizes();
+    int count = 0;
+    for (int n = 0 ; n < numNodes ; n++) {
+      if (size[n] == 1) count++;
+    }
+    int[] result = new int[count];
+    count = 0;
+    for (int n = 0 ; n < numNodes ; n++) {
+      if (size[n] == 1) result[count++] = n;
+    }
+    return (result);
+  }
+
+  /**
+   * Return the streets that are not attached at both ends, in
+   * increasing order.
+   */
+  public int[] getOpenStreets () {
+    refresh(false);
+    int[] result = new int[numPending];
+    int count = 0;
+    for (int k = 0 ; k < numPending ; k++) {
+      if (graph != null) {
+        result[count++] = pending[k];
+      } else {
+        Street street = streets.get(pending[k]);
+        if (street.getStart() == null || street.getEnd() == null) {
+          result[count++] = pending[k];
+        }
+      }
+    }
+    result = Arrays.copyOf(result,count);
+    Arrays.sort(result);
+    return (result);
+  }
+
+  /**
+   * Return an intersection of the map by number.
+   * 
+   * @throws IllegalStateException if the analysis is of a graph
+   */
+  public Intersection getIntersection (int node) {
+    checkMap();
+    refresh(false);
+    return (nodes.get(node));
+  }
+
+  /**
+   * Return the number of an intersection of the map.
+   * 
+   * @return the number, or NONE if it is not registered
+   * @throws IllegalStateException if the analysis is of a graph
+   */
+  public int getNode (Intersection inter) {
+    checkMap();
+    refresh(false);
+    Integer node = nodeIds.get(inter);
+    return (node == null ? NONE : node);
+  }
+
+  /**
+   * Return a street of the map by number.
+   * 
+   * @throws IllegalStateException if the analysis is of a graph
+   */
+  public Street getStreet (int street) {
+    checkMap();
+    refresh(false);
+    return (streets.get(street));
+  }
+
+  /** Fail unless the analysis is of a map */
+  private void checkMap () {
+    if (roadMap == null) {
+      throw new IllegalStateException("not the analysis of a map");
+    }
+  }
+
+  /**
+   * Return the component size of each root, and 0 for every other
+   * intersection, counting them again if anything changed.
+   */
+  private int[] sizes () {
+    if (rootSize == null) {
+      int[] size = new int[numNodes];
+      for (int n = 0 ; n < numNodes ; n++) {
+        size[find(n)]++;
+      }
+      rootSize = size;
+    }
+    return (rootSize);
+  }
+
+  /**
+   * Summarize the analysis: intersections, components, the largest
+   * component, orphans and open streets.
+   */
+  public String toString () {
+    int[] sizes = getComponentSizes();
+    return (numNodes + " intersections in " + sizes.length +
+            " components, largest " + (sizes.length == 0 ? 0 : sizes[0]) +
+            ", " + getOrphans().length + " orphans, " +
+            getOpenStreets().length + " open streets");
+  }
+}
@@ -0,0 +1,914 @@
+package trafficdriver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A contraction hierarchy for fast point-to-point queries on a
+ * static RoadGraph.
+ * 
+ * Preprocessing ranks the intersections and contracts them from the
+ * lowest rank up. Contracting a node removes it from the remaining
+ * graph and adds a shortcut arc between two of its neighbors wherever
+ * the path through it was the only shortest one. A query then runs
+ * Dijkstra upward in rank from both ends and meets at the top; shortcut
+ * arcs are unpacked into the streets they stand for.
+ * 
+ * Arcs are directed and weighted the same way as in Router: arc 2 * e
+ * + end is street e left from its start (end 0) or its end (end 1).
+ * 
+ * Nodes are contracted in rounds, each an independent set of nodes
+ * whose priority is lower than that of their neighbors. The priority
+ * of a node comes from simulating its contraction with witness
+ * searches. The witness searches of a round, and the new priorities of
+ * the neighbors of the contracted nodes after it, run in parallel on
+ * the pool; they are nearly all of the preprocessing time. The
+ * finished hierarchy no longer needs
+ * the graph, and can be written to a stream and read back instead of
+ * being rebuilt.
+ */
+public class ContractionHierarchy {
+
+  /** Distance returned when there is no route */
+  public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  /** Tag at the start of a serialized hierarchy, "TDCH" */
+  private static final int MAGIC = 0x54444348;
+  /** Version of the serialized form */
+  private static final int VERSION = 1;
+
+  /** Most nodes a witness search may settle when contracting */
+  private static final int WITNESS_LIMIT = 500;
+  /** Most nodes a witness search may settle when estimating priority */
+  private static final int ESTIMATE_LIMIT = 20;
+
+  /** number of nodes */
+  private int numNodes = 0;
+  /** Rank of each node; contracted first means lowest */
+  private int[] rank = null;
+
+  /**
+   * The arcs of the hierarchy. An original arc has orig set to its
+   * graph arc number and no children; a shortcut has orig -1 and
+   * stands for the arc child1 followed by the arc child2.
+   */
+  private int numArcs = 0;
+  private int[] arcFrom = null;
+  private int[] arcTo = null;
+  private int[] arcWeight = null;
+  private int[] arcChild1 = null;
+  private int[] arcChild2 = null;
+  private int[] arcOrig = null;
+
+  /** Arcs leaving each node toward a higher rank, CSR form */
+  private int[] upOutStart = null;
+  private int[] upOut = null;
+  /** Arcs entering each node from a higher rank, CSR form */
+  private int[] upInStart = null;
+  private int[] upIn = null;
+
+  /** Query state of each thread */
+  private final ThreadLocal<QueryState> states =
+          new ThreadLocal<QueryState>();
+
+  /** Instances come from build or readFrom */
+  private ContractionHierarchy () {}
+
+  /**
+   * Build a hierarchy weighted by street length, using the common
+   * pool.
+   * 
+   * @param graph the graph; it must not change while this runs
+   * @return the hierarchy
+   */
+  public static ContractionHierarchy build (RoadGraph graph) {
+    return (build(graph,null,ForkJoinPool.commonPool()));
+  }
+
+  /**
+   * Build a hierarchy.
+   * 
+   * @param graph the graph; it must not change while this runs
+   * @param weights non-negative weight of each arc, indexed 2 * street
+   *          + end, or null to use street lengths
+   * @param pool the pool that runs the witness searches
+   * @return the hierarchy
+   */
+  public static ContractionHierarchy build (RoadGraph graph, int[] weights,
+                                            ForkJoinPool pool) {
+    Builder builder = new Builder(graph,weights,pool);
+    builder.contractAll();
+    ContractionHierarchy result = new ContractionHierarchy();
+    result.numNodes = graph.getNodeCount();
+    result.rank = builder.rank;
+    result.numArcs = builder.numArcs;
+    result.arcFrom = Arrays.copyOf(builder.arcFrom,builder.numArcs);
+    result.arcTo = Arrays.copyOf(builder.arcTo,builder.numArcs);
+    result.arcWeight = Arrays.copyOf(builder.arcWeight,builder.numArcs);
+    result.arcChild1 = Arrays.copyOf(builder.arcChild1,builder.numArcs);
+    result.arcChild2 = Arrays.copyOf(builder.arcChild2,builder.numArcs);
+    result.arcOrig = Arrays.copyOf(builder.arcOrig,builder.numArcs);
+    result.index();
+    return (result);
+  }
+
+  /** Return the number of nodes */
+  public int getNodeCount () {
+    return (numNodes);
+  }
+
+  /** Return the number of shortcut arcs added by preprocessing */
+  public int getShortcutCount () {
+    int count = 0;
+    for (int a = 0 ; a < numArcs ; a++) {
+      if (arcOrig[a] < 0) count++;
+    }
+    return (count);
+  }
+
+  /** Return the rank of a node in the contraction order */
+  public int getRank (int node) {
+    return (rank[node]);
+  }
+
+  /**
+   * Find the shortest distance between two intersections.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the distance, or UNREACHABLE if there is no route
+   */
+  public int distance (int from, int to) {
+    QueryState state = getState();
+    search(state,from,to);
+    return (state.best);
+  }
+
+  /**
+   * Find a shortest route between two intersections.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the route, or null if there is none
+   */
+  public Route route (int from, int to) {
+    QueryState state = getState();
+    search(state,from,to);
+    if (state.best == UNREACHABLE) return (null);
+    /*
+     * Collect the hierarchy arcs from the meeting node back to the
+     * start, then forward to the destination, and unpack them in
+     * travel order.
+     */
+    int[] path = new int[16];
+    int count = 0;
+    for (int node = state.meet ; node != from ; ) {
+      int arc = state.fwd.parent[node];
+      path = push(path,count++,arc);
+      node = arcFrom[arc];
+    }
+    for (int i = 0 , j = count - 1 ; i < j ; i++ , j--) {
+      int swap = path[i];
+      path[i] = path[j];
+      path[j] = swap;
+    }
+    for (int node = state.meet ; node != to ; ) {
+      int arc = state.bwd.parent[node];
+      path = push(path,count++,arc);
+      node = arcTo[arc];
+    }
+    int[] streets = new int[16];
+    int numStreets = 0;
+    int[] stack = new int[16];
+    for (int i = 0 ; i < count ; i++) {
+      int depth = 0;
+      stack[depth++] = path[i];
+      while (depth > 0) {
+        int arc = stack[--depth];
+        if (arcOrig[arc] >= 0) {
+          streets = push(streets,numStreets++,arcOrig[arc] >> 1);
+        } else {
+          stack = push(stack,depth++,arcChild2[arc]);
+          stack = push(stack,depth++,arcChild1[arc]);
+        }
+      }
+    }
+    return (new Route(state.best,Arrays.copyOf(streets,numStreets)));
+  }
+
+  /** Store a value in an array, growing it if necessary */
+  private static int[] push (int[] array, int at, int value) {
+    if (at >= array.length) array = Arrays.copyOf(array,array.length * 2);
+    array[at] = value;
+    return (array);
+  }
+
+  /**
+   * Run a bidirectional upward search. Afterwards state.best holds
+   * the distance and state.meet the node where the best paths meet.
+   */
+  private void search (QueryState state, int from, int to) {
+    Side fwd = state.fwd;
+    Side bwd = state.bwd;
+    fwd.start(from);
+    bwd.start(to);
+    int best = UNREACHABLE;
+    int meet = -1;
+    if (from == to) {
+      best = 0;
+      meet = from;
+    }
+    /*
+     * Settle nodes from whichever side has the smaller key, until
+     * neither side can improve on the best meeting found.
+     */
+    while (true) {
+      boolean fwdOpen = !fwd.heap.isEmpty() && fwd.heap.peekKey() < best;
+      boolean bwdOpen = !bwd.heap.isEmpty() && bwd.heap.peekKey() < best;
+      if (!fwdOpen && !bwdOpen) break;
+      boolean forward = fwdOpen &&
+              (!bwdOpen || fwd.heap.peekKey() <= bwd.heap.peekKey());
+      Side side = forward ? fwd : bwd;
+      Side other = forward ? bwd : fwd;
+      int node = side.heap.pop();
+      int dist = side.dist[node];
+      if (other.reached(node) && (long) dist + other.dist[node] < best) {
+        best = dist + other.dist[node];
+        meet = node;
+      }
+      if (isStalled(side,node,dist,forward)) continue;
+      int[] start = forward ? upOutStart : upInStart;
+      int[] arcs = forward ? upOut : upIn;
+      for (int i = start[node] ; i < start[node + 1] ; i++) {
+        int arc = arcs[i];
+        int next = forward ? arcTo[arc] : arcFrom[arc];
+        side.relax(next,dist + arcWeight[arc],arc);
+      }
+    }
+    fwd.heap.clear();
+    bwd.heap.clear();
+    state.best = best;
+    state.meet = meet;
+  }
+
+  /**
+   * Check if a settled node can be reached more cheaply through a
+   * higher node that the same side has already reached. Such a node
+   * is not on a shortest path of the upward search, so its arcs need
+   * not be followed.
+   * 
+   * @param side the search side
+   * @param node the node just settled
+   * @param dist its distance on that side
+   * @param forward true for the forward side
+   */
+  private boolean isStalled (Side side, int node, int dist,
+                             boolean forward) {
+    int[] start = forward ? upInStart : upOutStart;
+    int[] arcs = forward ? upIn : upOut;
+    for (int i = start[node] ; i < start[node + 1] ; i++) {
+      int arc = arcs[i];
+      int higher = forward ? arcFrom[arc] : arcTo[arc];
+      if (side.reached(higher) &&
+              (long) side.dist[higher] + arcWeight[arc] < dist) return (true);
+    }
+    return (false);
+  }
+
+  /** Return this thread's query state */
+  private QueryState getState () {
+    QueryState state = states.get();
+    if (state == null) {
+      state = new QueryState(numNodes);
+      states.set(state);
+    }
+    return (state);
+  }
+
+  /**
+   * Sort the arcs into the upward adjacency lists used by queries.
+   */
+  private void index () {
+    upOutStart = new int[numNodes + 1];
+    upInStart = new int[numNodes + 1];
+    for (int a = 0 ; a < numArcs ; a++) {
+      if (rank[arcTo[a]] > rank[arcFrom[a]]) {
+        upOutStart[arcFrom[a] + 1]++;
+      } else {
+        upInStart[arcTo[a] + 1]++;
+      }
+    }
+    for (int n = 0 ; n < numNodes ; n++) {
+      upOutStart[n + 1] += upOutStart[n];
+      upInStart[n + 1] += upInStart[n];
+    }
+    upOut = new int[upOutStart[numNodes]];
+    upIn = new int[upInStart[numNodes]];
+    int[] nextOut = Arrays.copyOf(upOutStart,numNodes);
+    int[] nextIn = Arrays.copyOf(upInStart,numNodes);
+    for (int a = 0 ; a < numArcs ; a++) {
+      if (rank[arcTo[a]] > rank[arcFrom[a]]) {
+        upOut[nextOut[arcFrom[a]]++] = a;
+      } else {
+        upIn[nextIn[arcTo[a]]++] = a;
+      }
+    }
+  }
+
+  /**
+   * Write the hierarchy to a stream. The stream is not closed.
+   * 
+   * @param out where the hierarchy goes
+   * @throws IOException if the stream fails
+   */
+  public void writeTo (OutputStream out) throws IOException {
+    DataOutputStream data =
+            new DataOutputStream(new BufferedOutputStream(out,1 << 16));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(numNodes);
+    data.writeInt(numArcs);
+    for (int n = 0 ; n < numNodes ; n++) {
+      data.writeInt(rank[n]);
+    }
+    for (int a = 0 ; a < numArcs ; a++) {
+      data.writeInt(arcFrom[a]);
+      data.writeInt(arcTo[a]);
+      data.writeInt(arcWeight[a]);
+      data.writeInt(arcChild1[a]);
+      data.writeInt(arcChild2[a]);
+      data.writeInt(arcOrig[a]);
+    }
+    data.flush();
+  }
+
+  /**
+   * Read a hierarchy written by writeTo. The stream is not closed.
+   * 
+   * @param in where the hierarchy comes from
+   * @return the hierarchy
+   * @throws IOException if the stream fails or does not hold a
+   *           hierarchy
+   */
+  public static ContractionHierarchy readFrom (InputStream in)
+    throws IOException {
+    DataInputStream data =
+            new DataInputStream(new BufferedInputStream(in,1 << 16));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("not a contraction hierarchy");
+    }
+    int version = data.readInt();
+    if (version != VERSION) {
+      throw new IOException("unsupported hierarchy version " + version);
+    }
+    ContractionHierarchy result = new ContractionHierarchy();
+    result.numNodes = data.readInt();
+    result.numArcs = data.readInt();
+    result.rank = new int[result.numNodes];
+    for (int n = 0 ; n < result.numNodes ; n++) {
+      result.rank[n] = data.readInt();
+    }
+    int arcs = result.numArcs;
+    result.arcFrom = new int[arcs];
+    result.arcTo = new int[arcs];
+    result.arcWeight = new int[arcs];
+    result.arcChild1 = new int[arcs];
+    result.arcChild2 = new int[arcs];
+    result.arcOrig = new int[arcs];
+    for (int a = 0 ; a < arcs ; a++) {
+      result.arcFrom[a] = data.readInt();
+      result.arcTo[a] = data.readInt();
+      result.arcWeight[a] = data.readInt();
+      result.arcChild1[a] = data.readInt();
+      result.arcChild2[a] = data.readInt();
+      result.arcOrig[a] = data.readInt();
+    }
+    result.index();
+    return (result);
+  }
+
+  /** The result of a route query */
+  public static class Route {
+
+    /** Length of the route */
+    private final int distance;
+    /** Streets of the route in travel order */
+    private final int[] streets;
+
+    Route (int distance, int[] streets) {
+      this.distance = distance;
+      this.streets = streets;
+    }
+
+    /** Return the length of the route */
+    public int getDistance () {
+      return (distance);
+    }
+
+    /** Return the streets of the route in travel order */
+    public int[] getStreets () {
+      return (streets.clone());
+    }
+  }
+
+  /** One direction of a bidirectional query */
+  private static class Side {
+
+    /** Tentative distance of each node */
+    final int[] dist;
+    /** Arc used to reach each node */
+    final int[] parent;
+    /** Round in which each node was last reached */
+    final int[] seen;
+    /** Open nodes keyed by distance */
+    final NodeHeap heap;
+    /** Number of the current round */
+    private int round = 0;
+
+    Side (int nodes) {
+      dist = new int[nodes];
+      parent = new int[nodes];
+      seen = new int[nodes];
+      heap = new NodeHeap(nodes);
+    }
+
+    /** Start a new search from a node */
+    void start (int node) {
+      if (++round == 0) {
+        Arrays.fill(seen,0);
+        round = 1;
+      }
+      seen[node] = round;
+      dist[node] = 0;
+      parent[node] = -1;
+      heap.push(node,0);
+    }
+
+    /** Check if a node was reached in this search */
+    boolean reached (int node) {
+      return (seen[node] == round);
+    }
+
+    /** Offer a path to a node */
+    void relax (int node, int newDist, int arc) {
+      if (seen[node] != round || newDist < dist[node]) {
+        seen[node] = round;
+        dist[node] = newDist;
+        parent[node] = arc;
+        heap.push(node,newDist);
+      }
+    }
+  }
+
+  /** Per-thread state of a query */
+  private static class QueryState {
+
+    final Side fwd;
+    final Side bwd;
+    /** Result of the last search */
+    int best = UNREACHABLE;
+    int meet = -1;
+
+    QueryState (int nodes) {
+      fwd = new Side(nodes);
+      bwd = new Side(nodes);
+    }
+  }
+
+  /**
+   * The mutable graph used while contracting. It holds every arc
+   * ever added, with per-node lists of arcs in and out. Arcs touching
+   * a contracted node are skipped, and dropped from the lists of its
+   * neighbors at the end of the round.
+   */
+  private static class Builder {
+
+    private final int numNodes;
+    private final ForkJoinPool pool;
+
+    /** Arcs, as in the finished hierarchy */
+    int numArcs = 0;
+    int[] arcFrom = new int[16];
+    int[] arcTo = new int[16];
+    int[] arcWeight = new int[16];
+    int[] arcChild1 = new int[16];
+    int[] arcChild2 = new int[16];
+    int[] arcOrig = new int[16];
+
+    /** Arcs out of and into each node */
+    private final int[][] outArcs;
+    private final int[] outCount;
+    private final int[][] inArcs;
+    private final int[] inCount;
+
+    /** Rank of each node, -1 until contracted */
+    final int[] rank;
+    /** True for the nodes picked for the current round */
+    private final boolean[] inRound;
+    /** Contraction priority of each node; lower goes first */
+    private final int[] priority;
+    /** Number of contracted neighbors of each node */
+    private final int[] deleted;
+    /** One more than the highest level of a contracted neighbor */
+    private final int[] level;
+
+    /** Witness search state of each thread */
+    private final ThreadLocal<Witness> witnesses =
+            new ThreadLocal<Witness>();
+
+    Builder (RoadGraph graph, int[] weights, ForkJoinPool pool) {
+      this.pool = pool;
+      numNodes = graph.getNodeCount();
+      outArcs = new int[numNodes][];
+      inArcs = new int[numNodes][];
+      outCount = new int[numNodes];
+      inCount = new int[numNodes];
+      rank = new int[numNodes];
+      Arrays.fill(rank,-1);
+      inRound = new boolean[numNodes];
+      priority = new int[numNodes];
+      deleted = new int[numNodes];
+      level = new int[numNodes];
+      for (int n = 0 ; n < numNodes ; n++) {
+        outArcs[n] = new int[4];
+        inArcs[n] = new int[4];
+      }
+      for (int e = 0 ; e < graph.getEdgeCount() ; e++) {
+        if (graph.isOpen(e)) continue;
+        for (int end = 0 ; end < 2 ; end++) {
+          int arc = 2 * e + end;
+          int weight = (weights == null ? graph.getLength(e) : weights[arc]);
+          link(graph.getEdgeNode(e,end),graph.getEdgeNode(e,1 - end),
+               weight,-1,-1,arc);
+        }
+      }
+    }
+
+    /**
+     * Add an arc between two nodes unless the node lists already hold
+     * one that is no heavier. A heavier one is replaced in the lists,
+     * so they never hold two arcs from one node to another.
+     */
+    private void link (int from, int to, int weight, int child1,
+                       int child2, int orig) {
+      if (from == to) return;
+      for (int k = 0 ; k < outCount[from] ; k++) {
+        int old = outArcs[from][k];
+        if (arcTo[old] != to) continue;
+        if (arcWeight[old] <= weight) return;
+        int arc = newArc(from,to,weight,child1,child2,orig);
+        outArcs[from][k] = arc;
+        for (int j = 0 ; j < inCount[to] ; j++) {
+          if (inArcs[to][j] == old) inArcs[to][j] = arc;
+        }
+        return;
+      }
+      int arc = newArc(from,to,weight,child1,child2,orig);
+      if (outCount[from] >= outArcs[from].length) {
+        outArcs[from] = Arrays.copyOf(outArcs[from],outCount[from] * 2);
+      }
+      outArcs[from][outCount[from]++] = arc;
+      if (inCount[to] >= inArcs[to].length) {
+        inArcs[to] = Arrays.copyOf(inArcs[to],inCount[to] * 2);
+      }
+      inArcs[to][inCount[to]++] = arc;
+    }
+
+    /** Add an arc to the arc list and return its number */
+    private int newArc (int from, int to, int weight, int child1,
+                        int child2, int orig) {
+      if (numArcs >= arcFrom.length) {
+        int capacity = numArcs * 2;
+        arcFrom = Arrays.copyOf(arcFrom,capacity);
+        arcTo = Arrays.copyOf(arcTo,capacity);
+        arcWeight = Arrays.copyOf(arcWeight,capacity);
+        arcChild1 = Arrays.copyOf(arcChild1,capacity);
+        arcChild2 = Arrays.copyOf(arcChild2,capacity);
+        arcOrig = Arrays.copyOf(arcOrig,capacity);
+      }
+      int arc = numArcs++;
+      arcFrom[arc] = from;
+      arcTo[arc] = to;
+      arcWeight[arc] = weight;
+      arcChild1[arc] = child1;
+      arcChild2[arc] = child2;
+      arcOrig[arc] = orig;
+      return (arc);
+    }
+
+    /** Contract every node, assigning ranks in contraction order */
+    void contractAll () {
+      int[] remaining = new int[numNodes];
+      for (int n = 0 ; n < numNodes ; n++) {
+        remaining[n] = n;
+      }
+      int numRemaining = numNodes;
+      updatePriorities(remaining,numRemaining);
+      int nextRank = 0;
+      while (numRemaining > 0) {
+        /*
+         * Pick the nodes whose priority beats every uncontracted
+         * neighbor. No two of them are adjacent, so contracting one
+         * does not change the neighbors of another.
+         */
+        final int[] pending = remaining;
+        final int count = numRemaining;
+        ParallelRange.run(pool,0,count,ParallelRange.grainFor(pool,count),
+          (from, to) -> {
+            for (int i = from ; i < to ; i++) {
+              inRound[pending[i]] = isLocalMinimum(pending[i]);
+            }
+          });
+        /*
+         * Work out their shortcuts in parallel. The witness searches
+         * avoid every node of the round, so each witness path is still
+         * there once the whole round is contracted.
+         */
+        final int[][] cuts = new int[count][];
+        ParallelRange.run(pool,0,count,ParallelRange.grainFor(pool,count),
+          (from, to) -> {
+            Witness witness = getWitness();
+            for (int i = from ; i < to ; i++) {
+              if (inRound[pending[i]]) {
+                cuts[i] = shortcuts(witness,pending[i],WITNESS_LIMIT,true);
+              }
+            }
+          });
+        int[] touched = new int[16];
+        int numTouched = 0;
+        for (int i = 0 ; i < count ; i++) {
+          int node = pending[i];
+          if (!inRound[node]) continue;
+          inRound[node] = false;
+          for (int c = 0 ; c < cuts[i].length ; c += 2) {
+            int in = cuts[i][c];
+            int out = cuts[i][c + 1];
+            link(arcFrom[in],arcTo[out],arcWeight[in] + arcWeight[out],
+                 in,out,-1);
+          }
+          rank[node] = nextRank++;
+          for (int k = 0 ; k < outCount[node] ; k++) {
+            int next = arcTo[outArcs[node][k]];
+            if (rank[next] < 0) {
+              deleted[next]++;
+              level[next] = Math.max(level[next],level[node] + 1);
+              touched = push(touched,numTouched++,next);
+            }
+          }
+          for (int k = 0 ; k < inCount[node] ; k++) {
+            int prev = arcFrom[inArcs[node][k]];
+            if (rank[prev] < 0) {
+              deleted[prev]++;
+              level[prev] = Math.max(level[prev],level[node] + 1);
+              touched = push(touched,numTouched++,prev);
+            }
+          }
+        }
+        touched = dedupe(touched,numTouched);
+        for (int i = 0 ; i < touched.length ; i++) {
+          dropContracted(touched[i]);
+        }
+        int kept = 0;
+        for (int i = 0 ; i < numRemaining ; i++) {
+          if (rank[remaining[i]] < 0) remaining[kept++] = remaining[i];
+        }
+        numRemaining = kept;
+        updatePriorities(touched,-1);
+      }
+    }
+
+    /** Return the distinct values among the first count of an array */
+    private static int[] dedupe (int[] values, int count) {
+      int[] sorted = Arrays.copyOf(values,count);
+      Arrays.sort(sorted);
+      int kept = 0;
+      for (int i = 0 ; i < count ; i++) {
+        if (kept == 0 || sorted[kept - 1] != sorted[i]) {
+          sorted[kept++] = sorted[i];
+        }
+      }
+      return (Arrays.copyOf(sorted,kept));
+    }
+
+    /** Remove the arcs to and from contracted nodes from a node's lists */
+    private void dropContracted (int node) {
+      int kept = 0;
+      for (int k = 0 ; k < outCount[node] ; k++) {
+        int arc = outArcs[node][k];
+        if (rank[arcTo[arc]] < 0) outArcs[node][kept++] = arc;
+      }
+      outCount[node] = kept;
+      kept = 0;
+      for (int k = 0 ; k < inCount[node] ; k++) {
+        int arc = inArcs[node][k];
+        if (rank[arcFrom[arc]] < 0) inArcs[node][kept++] = arc;
+      }
+      inCount[node] = kept;
+    }
+
+    /**
+     * Recompute the priority of some nodes, in parallel.
+     * 
+     * @param nodes the nodes
+     * @param count how many of them, or -1 for all
+     */
+    private void updatePriorities (final int[] nodes, int count) {
+      final int total = (count < 0 ? nodes.length : count);
+      ParallelRange.run(pool,0,total,ParallelRange.grainFor(pool,total),
+        (from, to) -> {
+          Witness witness = getWitness();
+          for (int i = from ; i < to ; i++) {
+            int node = nodes[i];
+            int added = shortcuts(witness,node,ESTIMATE_LIMIT,false).length / 2;
+            int removed = liveDegree(node);
+            priority[node] = 2 * (added - removed) + deleted[node] + level[node];
+          }
+        });
+    }
+
+    /** Count the arcs of a node that lead to uncontracted nodes */
+    private int liveDegree (int node) {
+      int degree = 0;
+      for (int k = 0 ; k < outCount[node] ; k++) {
+        if (rank[arcTo[outArcs[node][k]]] < 0) degree++;
+      }
+      for (int k = 0 ; k < inCount[node] ; k++) {
+        if (rank[arcFrom[inArcs[node][k]]] < 0) degree++;
+      }
+      return (degree);
+    }
+
+    /**
+     * Check if a node's priority is lower than that of each of its
+     * uncontracted neighbors.
+     */
+    private boolean isLocalMinimum (int node) {
+      for (int k = 0 ; k < outCount[node] ; k++) {
+        if (!beats(node,arcTo[outArcs[node][k]])) return (false);
+      }
+      for (int k = 0 ; k < inCount[node] ; k++) {
+        if (!beats(node,arcFrom[inArcs[node][k]])) return (false);
+      }
+      return (true);
+    }
+
+    /** Check if a node goes before an uncontracted neighbor */
+    private boolean beats (int node, int other) {
+      if (other == node || rank[other] >= 0) return (true);
+      if (priority[node] != priority[other]) {
+        return (priority[node] < priority[other]);
+      }
+      /*
+       * Break ties by a hash of the index. Ties are common on grids,
+       * and going by the index itself would let only a few nodes in
+       * each round and contract the grid row by row.
+       */
+      int nodeHash = node * 0x9e3779b9;
+      int otherHash = other * 0x9e3779b9;
+      return (nodeHash < otherHash || (nodeHash == otherHash && node < other));
+    }
+
+    /**
+     * Work out the shortcuts that contracting a node would need. For
+     * each pair of an arc into the node and an arc out of it, the
+     * shortcut is needed unless a witness path of no greater length
+     * avoids the node.
+     * 
+     * @param witness this thread's search state
+     * @param node the node
+     * @param budget most nodes each witness search may settle
+     * @param avoidRound true to keep witness paths off the nodes picked
+     *          for the current round
+     * @return pairs of (arc in, arc out) needing a shortcut
+     */
+    private int[] shortcuts (Witness witness, int node, int budget,
+                             boolean avoidRound) {
+      int[] result = new int[0];
+      int count = 0;
+      for (int i = 0 ; i < inCount[node] ; i++) {
+        int in = inArcs[node][i];
+        int source = arcFrom[in];
+        if (rank[source] >= 0) {
+          continue;
+        }
+        // The longest shortcut from this source bounds the search.
+        int limit = -1;
+        for (int j = 0 ; j < outCount[node] ; j++) {
+          int out = outArcs[node][j];
+          int target = arcTo[out];
+          if (rank[target] < 0 && target != source) {
+            limit = Math.max(limit,arcWeight[in] + arcWeight[out]);
+          }
+        }
+        if (limit < 0) continue;
+        witness.search(source,node,limit,budget,avoidRound);
+        for (int j = 0 ; j < outCount[node] ; j++) {
+          int out = outArcs[node][j];
+          int target = arcTo[out];
+          if (rank[target] >= 0 || target == source) {
+            continue;
+          }
+          int via = arcWeight[in] + arcWeight[out];
+          if (witness.distanceTo(target) > via) {
+            if (count + 2 > result.length) {
+              result = Arrays.copyOf(result,result.length * 2 + 4);
+            }
+            result[count++] = in;
+            result[count++] = out;
+          }
+        }
+      }
+      return (Arrays.copyOf(result,count));
+    }
+
+    /** Return this thread's witness search state */
+    private Witness getWitness () {
+      Witness witness = witnesses.get();
+      if (witness == null) {
+        witness = new Witness(numNodes);
+        witnesses.set(witness);
+      }
+      return (witness);
+    }
+
+    /**
+     * A bounded Dijkstra search over the uncontracted nodes, used to
+     * look for witness paths.
+     */
+    private class Witness {
+
+      private final int[] dist;
+      private final int[] seen;
+      /** Round in which each node was made a target */
+      private final int[] wanted;
+      private final NodeHeap heap;
+      private int round = 0;
+
+      Witness (int nodes) {
+        dist = new int[nodes];
+        seen = new int[nodes];
+        wanted = new int[nodes];
+        heap = new NodeHeap(nodes);
+      }
+
+      /**
+       * Search from a source, avoiding one node, until every other
+       * neighbor of that node is settled, every node within the limit
+       * is settled, or the settle budget runs out. With avoidRound set
+       * it also avoids the other nodes of the current round.
+       */
+      void search (int source, int avoid, int limit, int budget,
+                   boolean avoidRound) {
+        if (++round == 0) {
+          Arrays.fill(seen,0);
+          Arrays.fill(wanted,0);
+          round = 1;
+        }
+        int targets = 0;
+        for (int k = 0 ; k < outCount[avoid] ; k++) {
+          int target = arcTo[outArcs[avoid][k]];
+          if (target != source && rank[target] < 0 &&
+                  wanted[target] != round) {
+            wanted[target] = round;
+            targets++;
+          }
+        }
+        seen[source] = round;
+        dist[source] = 0;
+        heap.push(source,0);
+        int settled = 0;
+        while (!heap.isEmpty() && heap.peekKey() <= limit &&
+                settled < budget) {
+          int node = heap.pop();
+          settled++;
+          if (wanted[node] == round && --targets == 0) break;
+          for (int k = 0 ; k < outCount[node] ; k++) {
+            int arc = outArcs[node][k];
+            int next = arcTo[arc];
+            if (next == avoid || rank[next] >= 0) continue;
+            if (avoidRound && inRound[next]) continue;
+            int nextDist = dist[node] + arcWeight[arc];
+            if (seen[next] != round || nextDist < dist[next]) {
+              seen[next] = round;
+              dist[next] = nextDist;
+              heap.push(next,nextDist);
+            }
+          }
+        }
+        heap.clear();
+      }
+
+      /** Distance found to a node, or UNREACHABLE */
+      int distanceTo (int node) {
+        return (seen[node] == round ? dist[node] : UNREACHABLE);
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package trafficdriver;
+
+/**
+ * Directions as two-bit codes, for the hot paths of traversal.
+ * 
+ * The code of a direction is its ordinal, so codes index the street
+ * slots of an intersection and the columns of RoadGraph directly.
+ * The east/west pair and the north/south pair differ only in bit 0,
+ * which makes opposite, right and left turns a couple of bit
+ * operations with no table loads and no calls through the enum.
+ * Direction remains the type of the public API; these are for loops
+ * that step from intersection to intersection.
+ */
+public final class DirectionCode {
+
+  /** Codes of the four directions, equal to their ordinals */
+  public static final int WEST = 0;
+  public static final int EAST = 1;
+  public static final int NORTH = 2;
+  public static final int SOUTH = 3;
+
+  /** Every direction, indexed by code */
+  private static final Direction[] DIRS = Direction.values();
+
+  static {
+    if (Direction.west.ordinal() != WEST || Direction.east.ordinal() != EAST ||
+            Direction.north.ordinal() != NORTH ||
+            Direction.south.ordinal() != SOUTH) {
+      throw new AssertionError("direction codes do not match ordinals");
+    }
+  }
+
+  private DirectionCode () {}
+
+  /** Return the code of a direction */
+  public static int of (Direction dir) {
+    return (dir.ordinal());
+  }
+
+  /** Return the direction with a code */
+  public static Direction toDirection (int code) {
+    return (DIRS[code]);
+  }
+
+  /** Return the code of the opposite direction */
+  public static int opposite (int code) {
+    return (code ^ 1);
+  }
+
+  /**
+   * Return the code of the direction after a right turn. West and
+   * east turn into the north/south pair by flipping bit 1; north and
+   * south also flip bit 0 to land on east and west.
+   */
+  public static int rightTurn (int code) {
+    return (code ^ (2 | (code >> 1)));
+  }
+
+  /** Return the code of the direction after a left turn */
+  public static int leftTurn (int code) {
+    return (code ^ (3 ^ (code >> 1)));
+  }
+
+  /** Check if a code is north or south */
+  public static boolean isVertical (int code) {
+    return ((code & 2) != 0);
+  }
+}
@@ -0,0 +1,30 @@
+package trafficdriver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events that any number of threads can add to without
+ * contending on one memory location.
+ */
+public class EventCounter implements EventCounterMBean {
+
+  /** The count */
+  private final LongAdder count = new LongAdder();
+
+  /** Default constructor for a zero count */
+  public EventCounter () {}
+
+  /** Count one event, if metrics are enabled */
+  public void increment () {
+    if (!Metrics.ENABLED) return;
+    count.increment();
+  }
+
+  public long getCount () {
+    return (count.sum());
+  }
+
+  public void reset () {
+    count.reset();
+  }
+}
@@ -0,0 +1,11 @@
+package trafficdriver;
+
+/** Management interface of an EventCounter */
+public interface EventCounterMBean {
+
+  /** Return the number of events counted */
+  public long getCount ();
+
+  /** Set the count back to zero */
+  public void reset ();
+}
@@ -0,0 +1,426 @@
+package trafficdriver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * A view of a SimpleMap that paints every street and intersection by
+ * a value, such as flow, occupancy or speed, so the map shows where
+ * the traffic is.
+ * 
+ * The values come from a Metric, which fills one primitive array for
+ * the streets and one for the intersections. Streets and
+ * intersections are numbered as RoadGraph.fromMap numbers them, so the
+ * values of a Simulation or TrafficAssignment over that graph line up
+ * directly. An intersection the metric leaves at NaN takes the largest
+ * value of its streets; a street left at NaN is drawn plain.
+ * 
+ * Each render turns the values into shades in one pass over the
+ * arrays, and then draws the map in registration order, as the map
+ * itself does, picking each object's glyph from a ramp by its shade.
+ * In color mode the shade also picks an ANSI color. The frame and
+ * rulers are those of the map, so a plain render with single-character
+ * ramps "*" and "+" is the same text as the map's toString.
+ */
+public class Heatmap {
+
+  /** Default glyphs of the streets, lowest value first */
+  public static final String STREET_RAMP = ".:-=*#%";
+  /** Default glyphs of the intersections, lowest value first */
+  public static final String INTERSECTION_RAMP = "+oO@";
+  /** Default colors, as SGR parameters: blue, cyan, green, yellow, red */
+  private static final String[] COLORS = {"34", "36", "32", "33", "31"};
+
+  /** Number of shades values are divided into */
+  private static final int SHADES = 256;
+
+  /**
+   * A source of values to paint. Sources fill the values they know
+   * into arrays that start out as NaN.
+   */
+  public interface Metric {
+
+    /**
+     * Fill in values.
+     * 
+     * @param streets value of each street, by fromMap number
+     * @param intersections value of each intersection, by fromMap
+     *          number
+     */
+    void fill (double[] streets, double[] intersections);
+  }
+
+  /** The map drawn */
+  private final SimpleMap roadMap;
+  /** Street glyphs, lowest value first */
+  private char[] streetRamp = STREET_RAMP.toCharArray();
+  /** Intersection glyphs, lowest value first */
+  private char[] intersectionRamp = INTERSECTION_RAMP.toCharArray();
+  /** Colors as SGR parameters, or null to draw without color */
+  private String[] colors = null;
+  /** Value drawn in the lowest shade, NaN to use the smallest value */
+  private double low = Double.NaN;
+  /** Value drawn in the highest shade, NaN to use the largest value */
+  private double high = Double.NaN;
+
+  /** Number of each intersection of the map */
+  private final IdentityHashMap<RoadInterface,Integer> nodeIds =
+          new IdentityHashMap<RoadInterface,Integer>();
+  /** Registry places of the map already numbered */
+  private int seen = 0;
+  /** Street number of each registry place, NONE if not a drawn street */
+  private int[] streetAt = new int[0];
+  /** Intersection number of each registry place, NONE if not one */
+  private int[] nodeAt = new int[0];
+  /** Number of streets numbered */
+  private int numStreets = 0;
+  /** Registry places of the streets not yet attached at both ends */
+  private int[] loose = new int[0];
+  private int numLoose = 0;
+  /** Intersections at the ends of each street, two entries each */
+  private int[] streetEnds = new int[0];
+
+  /** Values of the last render */
+  private double[] streetValue = new double[0];
+  private double[] nodeValue = new double[0];
+  /** Shades of the last render, NONE for no value */
+  private int[] streetShade = new int[0];
+  private int[] nodeShade = new int[0];
+
+  /** Scratch arrays for copying a street */
+  private final RoadInterface[] ends = new RoadInterface[2];
+  private final int[] shape = new int[8];
+
+  /**
+   * Construct a heatmap of a map.
+   * 
+   * @param roadMap the map
+   */
+  public Heatmap (SimpleMap roadMap) {
+    this.roadMap = roadMap;
+  }
+
+  /**
+   * Set the glyphs, lowest value first. A single glyph draws every
+   * value alike, which suits color mode.
+   * 
+   * @param streets glyphs of the streets
+   * @param intersections glyphs of the intersections
+   */
+  public void setRamps (String streets, String intersections) {
+    if (streets.isEmpty() || intersections.isEmpty()) {
+      throw new IllegalArgumentException("empty ramp");
+    }
+    streetRamp = streets.toCharArray();
+    intersectionRamp = intersections.toCharArray();
+  }
+
+  /** Turn the default ANSI colors on or off */
+  public void setColor (boolean color) {
+    colors = (color ? COLORS.clone() : null);
+  }
+
+  /**
+   * Use some other colors.
+   * 
+   * @param sgr the SGR parameters of each color, lowest value first,
+   *          such as "32" or "38;5;196"
+   */
+  public void setColors (String... sgr) {
+    if (sgr.length == 0) throw new IllegalArgumentException("no colors");
+    colors = sgr.clone();
+  }
+
+  /**
+   * Fix the values of the lowest and highest shades, so frames can be
+   * compared. Values outside are drawn in the end shades.
+   */
+  public void setRange (double low, double high) {
+    if (!(low < high)) throw new IllegalArgumentException("empty range");
+    this.low = low;
+    this.high = high;
+  }
+
+  /** Scale every render to its own smallest and largest value */
+  public void setAutoRange () {
+    low = Double.NaN;
+    high = Double.NaN;
+  }
+
+  /**
+   * Render the map painted by a metric.
+   * 
+   * @param metric the source of the values
+   */
+  public String render (Metric metric) {
+    StringBuilder result = new StringBuilder((roadMap.getyDim() + 5) *
+                                             (roadMap.getxDim() + 4));
+    try {
+      writeTo(result,metric);
+    } catch (IOException ex) {
+      // A StringBuilder never throws.
+      throw new IllegalStateException(ex);
+    }
+    return (result.toString());
+  }
+
+  /**
+   * Write the map painted by a metric to a character sink.
+   * 
+   * @param out where the text goes
+   * @param metric the source of the values
+   * @throws IOException if out fails
+   */
+  public void writeTo (Appendable out, Metric metric) throws IOException {
+    int streets = number();
+    int nodes = nodeIds.size();
+    if (streetValue.length != streets) {
+      streetValue = new double[streets];
+      streetShade = new int[streets];
+    }
+    if (nodeValue.length != nodes) {
+      nodeValue = new double[nodes];
+      nodeShade = new int[nodes];
+    }
+    Arrays.fill(streetValue,Double.NaN);
+    Arrays.fill(nodeValue,Double.NaN);
+    metric.fill(streetValue,nodeValue);
+    shade();
+
+    int width = roadMap.getxDim();
+    int height = roadMap.getyDim();
+    char[][] cells = new char[height][width];
+    char[][] tone = (colors == null ? null : new char[height][width]);
+    for (int y = 0 ; y < height ; y++) {
+      Arrays.fill(cells[y],' ');
+    }
+    // Only the objects number() saw have numbers.
+    RoadInterface[] objects = roadMap.roadObjects;
+    for (int i = 0 ; i < seen ; i++) {
+      if (objects[i] instanceof Intersection) {
+        Intersection inter = (Intersection) objects[i];
+        int level = nodeShade[nodeAt[i]];
+        Intersection.drawIntersection(cells,inter.getXPos(),inter.getYPos(),
+                                      glyph(intersectionRamp,level,'+'));
+        if (tone != null) {
+          Intersection.drawIntersection(tone,inter.getXPos(),inter.getYPos(),
+                                        toneOf(level));
+        }
+      } else if (streetAt[i] != RoadGraph.NONE) {
+        int level = streetShade[streetAt[i]];
+        ((Street) objects[i]).copyState(ends,shape);
+        Street.drawStreet(cells,0,0,shape[0],shape[1],shape[2],shape[3],
+                          shape[4],shape[5],glyph(streetRamp,level,'*'));
+        if (tone != null) {
+          Street.drawStreet(tone,0,0,shape[0],shape[1],shape[2],shape[3],
+                            shape[4],shape[5],toneOf(level));
+        }
+      } else {
+        // Streets off the graph are drawn plain, as the map draws them.
+        objects[i].drawOnMap(cells);
+      }
+    }
+    if (tone == null) {
+      SimpleMap.writeGrid(out,cells,width,height);
+    } else {
+      SimpleMap.writeGrid(out,cells,tone,colors,width,height);
+    }
+  }
+
+  /**
+   * Number the intersections registered since the last render, and
+   * every street attached at both ends to registered intersections,
+   * in registration order. When nothing was registered and no loose
+   * street was attached since, the last numbers still hold.
+   * 
+   * @return the number of streets
+   */
+  private int number () {
+    roadMap.settle();
+    int total = roadMap.numObjects;
+    RoadInterface[] objects = roadMap.roadObjects;
+    if (total == seen && !attachedSince(objects)) return (numStreets);
+    if (nodeAt.length < total) {
+      nodeAt = Arrays.copyOf(nodeAt,total);
+      streetAt = new int[total];
+    }
+    for (int i = seen ; i < total ; i++) {
+      nodeAt[i] = RoadGraph.NONE;
+      if (!(objects[i] instanceof Intersection)) continue;
+      Integer id = nodeIds.get(objects[i]);
+      if (id == null) {
+        id = nodeIds.size();
+        nodeIds.put(objects[i],id);
+      }
+      nodeAt[i] = id;
+    }
+    seen = total;
+    int streets = 0;
+    numLoose = 0;
+    for (int i = 0 ; i < total ; i++) {
+      streetAt[i] = RoadGraph.NONE;
+      if (!(objects[i] instanceof Street)) continue;
+      ((Street) objects[i]).copyState(ends,shape);
+      Integer start = nodeIds.get(ends[0]);
+      Integer end = nodeIds.get(ends[1]);
+      if (start == null || end == null) {
+        if (numLoose == loose.length) {
+          loose = Arrays.copyOf(loose,2 * numLoose + 16);
+        }
+        loose[numLoose++] = i;
+        continue;
+      }
+      if (2 * streets + 2 > streetEnds.length) {
+        streetEnds = Arrays.copyOf(streetEnds,2 * streetEnds.length + 16);
+      }
+      streetEnds[2 * streets] = start;
+      streetEnds[2 * streets + 1] = end;
+      streetAt[i] = streets++;
+    }
+    numStreets = streets;
+    return (streets);
+  }
+
+  /** Check if a loose street is now attached to numbered intersections */
+  private boolean attachedSince (RoadInterface[] objects) {
+    for (int k = 0 ; k < numLoose ; k++) {
+      ((Street) objects[loose[k]]).copyState(ends,shape);
+      if (nodeIds.containsKey(ends[0]) && nodeIds.containsKey(ends[1])) {
+        return (true);
+      }
+    }
+    return (false);
+  }
+
+  /**
+   * Turn the values into shades. Intersections without a value first
+   * take the largest value of their streets.
+   */
+  private void shade () {
+    int streets = streetValue.length;
+    int nodes = nodeValue.length;
+    double[] fromStreets = new double[nodes];
+    Arrays.fill(fromStreets,Double.NaN);
+    for (int e = 0 ; e < streets ; e++) {
+      double value = streetValue[e];
+      if (value != value) continue;
+      for (int k = 2 * e ; k < 2 * e + 2 ; k++) {
+        int node = streetEnds[k];
+        if (!(fromStreets[node] >= value)) fromStreets[node] = value;
+      }
+    }
+    for (int n = 0 ; n < nodes ; n++) {
+      if (nodeValue[n] != nodeValue[n]) nodeValue[n] = fromStreets[n];
+    }
+
+    double min = low;
+    double max = high;
+    if (min != min) {
+      min = Double.POSITIVE_INFINITY;
+      max = Double.NEGATIVE_INFINITY;
+      for (int e = 0 ; e < streets ; e++) {
+        if (streetValue[e] < min) min = streetValue[e];
+        if (streetValue[e] > max) max = streetValue[e];
+      }
+      for (int n = 0 ; n < nodes ; n++) {
+        if (nodeValue[n] < min) min = nodeValue[n];
+        if (nodeValue[n] > max) max = nodeValue[n];
+      }
+    }
+    double scale = (max > min ? SHADES / (max - min) : 0);
+    toShades(streetValue,streetShade,min,scale);
+    toShades(nodeValue,nodeShade,min,scale);
+  }
+
+  /**
+   * Turn values into shades from 0 to SHADES - 1, and NaN into NONE.
+   */
+  private static void toShades (double[] values, int[] shades, double min,
+                                double scale) {
+    for (int i = 0 ; i < values.length ; i++) {
+      double value = values[i];
+      int level = (int) ((value - min) * scale);
+      level = Math.max(0,Math.min(SHADES - 1,level));
+      shades[i] = (value == value ? level : RoadGraph.NONE);
+    }
+  }
+
+  /** Return the glyph of a shade, or the plain glyph for NONE */
+  private static char glyph (char[] ramp, int level, char plain) {
+    if (level == RoadGraph.NONE) return (plain);
+    return (ramp[level * ramp.length / SHADES]);
+  }
+
+  /** Return the tone of a shade: its color plus one, or 0 for none */
+  private char toneOf (int level) {
+    if (level == RoadGraph.NONE) return ((char) 0);
+    return ((char) (level * colors.length / SHADES + 1));
+  }
+
+  /**
+   * A metric painting fixed street values, for instance ones computed
+   * elsewhere.
+   * 
+   * @param values value of each street, by fromMap number
+   */
+  public static Metric streets (final double[] values) {
+    return ((streets, intersections) ->
+            System.arraycopy(values,0,streets,0,
+                             Math.min(values.length,streets.length)));
+  }
+
+  /**
+   * A metric painting the flow of an assignment, both directions of a
+   * street together.
+   */
+  public static Metric flow (final TrafficAssignment assignment) {
+    return ((streets, intersections) -> {
+        double[] flows = assignment.getFlows();
+        int count = Math.min(streets.length,flows.length / 2);
+        for (int e = 0 ; e < count ; e++) {
+          streets[e] = flows[2 * e] + flows[2 * e + 1];
+        }
+      });
+  }
+
+  /**
+   * A metric painting the share of the cells of each street that hold
+   * a vehicle, from 0 to 1. Pair it with setRange(0,1) to compare
+   * frames.
+   */
+  public static Metric occupancy (final Simulation sim) {
+    return ((streets, intersections) -> {
+        int count = Math.min(streets.length,sim.getGraph().getEdgeCount());
+        for (int e = 0 ; e < count ; e++) {
+          int cells = sim.getCells(2 * e) + sim.getCells(2 * e + 1);
+          if (cells > 0) {
+            streets[e] = (double) (sim.getVehicleCount(2 * e) +
+                                   sim.getVehicleCount(2 * e + 1)) / cells;
+          }
+        }
+      });
+  }
+
+  /**
+   * A metric painting the mean speed of the vehicles on each street.
+   * Streets without vehicles are drawn plain.
+   */
+  public static Metric speed (final Simulation sim) {
+    return ((streets, intersections) -> {
+        int count = Math.min(streets.length,sim.getGraph().getEdgeCount());
+        for (int e = 0 ; e < count ; e++) {
+          int vehicles = 0;
+          long total = 0;
+          for (int arc = 2 * e ; arc < 2 * e + 2 ; arc++) {
+            int n = sim.getVehicleCount(arc);
+            for (int i = 0 ; i < n ; i++) {
+              total += sim.getSpeed(arc,i);
+            }
+            vehicles += n;
+          }
+          if (vehicles > 0) streets[e] = (double) total / vehicles;
+        }
+      });
+  }
+}
@@ -1,30 +1,38 @@
 package trafficdriver;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * A class to model an intersection with up to four streets, one at
  * each compass point.
  * 
  * An intersection is represented as a set of (x,y) coordinates. It
  * keeps references to any connected streets.
+ * 
+ * A street takes a slot with a compare-and-set, so when several
+ * threads connect streets to the same intersection at once, each slot
+ * goes to exactly one of them and the others fail as if the slot had
+ * been taken beforehand.
  */
-public class Intersection implements RoadInterface {
+public class Intersection extends NetworkObject implements RoadInterface {
 
   /** X and Y coordinates of the intersection */
   private int xPos = -1;
   private int yPos = -1;
 
   /** An array to hold the references to connected roads in 4 directions. */
-  private RoadInterface[] streets = new RoadInterface[4];
+  private final AtomicReferenceArray<RoadInterface> streets =
+          new AtomicReferenceArray<RoadInterface>(4);
   
-  /** The assigned name of the intersection */
-  private String interName = "" ;
+  /** Id of the assigned name in the shared NameDictionary */
+  private int interName = 0 ;
 
   /** Default constructor; creates an empty, unplaced intersection */
   public Intersection () {
     yPos = -1;
     xPos = -1;
     for (Direction dir : Direction.values())
-      streets[dir.ordinal()] = null;
+      streets.set(dir.ordinal(),null);
   };
 
   /**
@@ -37,7 +45,7 @@ public class Intersection implements RoadInterface {
     this.yPos = yPos;
     this.xPos = xPos;
     for (Direction dir : Direction.values())
-      streets[dir.ordinal()] = null;
+      streets.set(dir.ordinal(),null);
   }
 
   /**
@@ -53,7 +61,7 @@ public class Intersection implements RoadInterface {
     this.yPos = yPos;
     this.xPos = xPos;
     for (Direction dir : Direction.values())
-      streets[dir.ordinal()] = null;
+      streets.set(dir.ordinal(),null);
     if (roadMap != null) {
       roadMap.addToMap(this);
     }
@@ -69,21 +77,61 @@ public class Intersection implements RoadInterface {
    * @param roadMap a character array to draw on
    */
   public void drawOnMap (char[][] roadMap) {
-    int yDim = -1;
-    int xDim = -1;
+    drawOnMap(roadMap,0,0);
+  }
+
+  /**
+   * Draw the intersection on a window of the map.
+   * 
+   * @param roadMap a character array to draw on
+   * @param xOff map x coordinate of the first column of the array
+   * @param yOff map y coordinate of the first row of the array
+   */
+  public void drawOnMap (char[][] roadMap, int xOff, int yOff) {
+    drawIntersection(roadMap,xPos - xOff,yPos - yOff);
+  }
+
+  /**
+   * Paint an intersection at the given array position, provided it's
+   * inside the array. Shared by every representation of an
+   * intersection.
+   * 
+   * @param roadMap a character array to draw on
+   * @param col array column of the intersection
+   * @param row array row of the intersection
+   */
+  static void drawIntersection (char[][] roadMap, int col, int row) {
+    drawIntersection(roadMap,col,row,'+');
+  }
+
+  /**
+   * Paint an intersection in some other character, as a heatmap does.
+   * 
+   * @param mark the character to paint
+   */
+  static void drawIntersection (char[][] roadMap, int col, int row,
+                                char mark) {
     if (roadMap == null) return;
-    
-    // Check if map is big enough
-    yDim = roadMap.length;
-    xDim = roadMap[0].length;
-    if (xDim <= 0 || yDim <= 0) return;
-    
-    // Add the intersection, provided it's on the map
-    if (xPos >= 0 && xPos < xDim && yPos >= 0 && yPos < yDim) {
-      roadMap[yPos][xPos] = '+';
+    if (row >= 0 && row < roadMap.length && col >= 0 &&
+            col < roadMap[row].length) {
+      roadMap[row][col] = mark;
     }
   }
 
+  /**
+   * The intersection occupies the single cell at its coordinates.
+   * 
+   * @param bounds receives the smallest and largest x and y
+   * @return always true
+   */
+  public boolean getBounds (int[] bounds) {
+    bounds[0] = xPos;
+    bounds[1] = yPos;
+    bounds[2] = xPos;
+    bounds[3] = yPos;
+    return (true);
+  }
+
   /**
    * Return the X coordinate of this intersection
    * 
@@ -110,18 +158,45 @@ public class Intersection implements RoadInterface {
    */
   private boolean isOpen (Direction attachAt) {
     if (attachAt == null) return (false);
-    boolean result = (streets[attachAt.ordinal()] == null);
+    boolean result = (streets.get(attachAt.ordinal()) == null);
     return (result);
   }
 
   /**
-   * Store the specified reference in the specified direction.
+   * Store the specified reference in the specified direction, if the
+   * slot is still empty.
    * 
    * @param me reference to the street to be attached
    * @param attachAt direction where the street should be attached
+   * @return true if the slot was empty and now holds the street
+   */
+  private boolean attachMe (RoadInterface me, Direction attachAt) {
+    if (!streets.compareAndSet(attachAt.ordinal(),null,me)) return (false);
+    edited();
+    return (true);
+  }
+
+  /**
+   * Empty the slot in the specified direction, if it holds the
+   * specified street.
+   * 
+   * @param me reference to the street to be removed
+   * @param attachAt direction where the street is attached
+   */
+  private void detachMe (RoadInterface me, Direction attachAt) {
+    if (streets.compareAndSet(attachAt.ordinal(),me,null)) edited();
+  }
+
+  /**
+   * Install a street in a slot without the checks of connectTo. Used
+   * by NetworkBuilder, which has already checked the slot.
+   * 
+   * @param street the street
+   * @param attachAt direction the street leaves the intersection
    */
-  private void attachMe (RoadInterface me, Direction attachAt) {
-    streets[attachAt.ordinal()] = me;
+  void setStreet (Street street, Direction attachAt) {
+    streets.set(attachAt.ordinal(),street);
+    edited();
   }
 
   /**
@@ -134,7 +209,7 @@ public class Intersection implements RoadInterface {
    *         direction, false otherwise.
    */
   private boolean isAttached (RoadInterface newObj, Direction attachedAt) {
-    boolean result = (streets[attachedAt.ordinal()] == newObj);
+    boolean result = (streets.get(attachedAt.ordinal()) == newObj);
     return (result);
   }
 
@@ -163,7 +238,7 @@ public class Intersection implements RoadInterface {
   public RoadInterface getConnectedRoad (Direction dir) {
     RoadInterface retval = null;
     if (dir != null) {
-      retval = streets[dir.ordinal()];
+      retval = streets.get(dir.ordinal());
     }
     return (retval);
   }
@@ -181,6 +256,18 @@ public class Intersection implements RoadInterface {
    *           connection
    */
   public boolean connectTo (RoadInterface newObj, Direction attachAt)
+    throws ClassCastException {
+    boolean result = link(newObj,attachAt);
+    if (!result) Metrics.CONNECT_FAILURES.increment();
+    return (result);
+  }
+
+  /**
+   * Connect as connectTo does, without counting a failure. The far
+   * end of a connection under way is linked this way, so a failed
+   * connection is counted once, by the call that started it.
+   */
+  boolean link (RoadInterface newObj, Direction attachAt)
     throws ClassCastException {
     boolean result = false;
     /*
@@ -216,10 +303,12 @@ public class Intersection implements RoadInterface {
    */
   private boolean connectTo (Street newStreet, Direction attachAt) {
     boolean result = false;
-    // Install a reference to the road.
-    attachMe(newStreet,attachAt);
-    // Install a back reference to this intersection in the road.
-    result = newStreet.connectTo(this,attachAt.opposite());
+    // Install a reference to the road, unless another got there first.
+    if (attachMe(newStreet,attachAt)) {
+      // Install a back reference to this intersection in the road.
+      result = newStreet.link(this,attachAt.opposite());
+      if (!result) detachMe(newStreet,attachAt);
+    }
     return (result);
   }
 
@@ -234,48 +323,15 @@ public class Intersection implements RoadInterface {
    * @return true if the road is successfully built, false otherwise
    */
   public boolean buildStreetTo (Intersection otherInter, SimpleMap roadMap) {
+    long start = Metrics.start();
     boolean result = true;
 
-    int otherX = otherInter.getXPos();
-    int otherY = otherInter.getYPos();
-    int deltaX = xPos - otherX;
-    int deltaY = yPos - otherY;
-    Direction thisDir = Direction.north;
-    Direction otherDir = Direction.south;
-    if (deltaX == 0 && deltaY == 0) {
+    int deltaX = xPos - otherInter.getXPos();
+    int deltaY = yPos - otherInter.getYPos();
+    Direction thisDir = streetStart(deltaX,deltaY);
+    Direction otherDir = streetEnd(deltaX,deltaY);
+    if (thisDir == null) {
       result = false;
-    } else if (deltaX == 0) {
-      if (deltaY < 0) {
-        thisDir = Direction.south;
-        otherDir = Direction.north;
-      } else {
-        thisDir = Direction.north;
-        otherDir = Direction.south;
-      }
-    } else if (deltaY == 0) {
-      if (deltaX < 0) {
-        thisDir = Direction.east;
-        otherDir = Direction.west;
-      } else {
-        thisDir = Direction.west;
-        otherDir = Direction.east;
-      }
-    } else if (deltaX > 0) {
-      if (deltaY < 0) {
-        thisDir = Direction.south;
-        otherDir = Direction.east;
-      } else {
-        thisDir = Direction.west;
-        otherDir = Direction.south;
-      }
-    } else if (deltaX < 0) {
-      if (deltaY < 0) {
-        thisDir = Direction.east;
-        otherDir = Direction.north;
-      } else {
-        thisDir = Direction.north;
-        otherDir = Direction.west;
-      }
     }
 
     if (result == true) {
@@ -285,25 +341,84 @@ public class Intersection implements RoadInterface {
         if (otherInter.connectTo(newStreet,otherDir)) {
           roadMap.addToMap(newStreet);
           result = true;
+        } else {
+          // The far slot is taken; take the street off this end again.
+          detachMe(newStreet,thisDir);
+          newStreet.detach(this);
         }
       }
     }
+    if (!result) Metrics.CONNECT_FAILURES.increment();
+    Metrics.BUILD_STREET.recordSince(start);
     return (result);
   }
   
   /**
-   * Assigns a name to the intersection.
+   * Directions in which a street leaves the near and the far
+   * intersection, indexed by the signs of the position deltas as
+   * {@code (signum(deltaX) + 1) * 3 + signum(deltaY) + 1}.
+   * 
+   * An L-shaped street always turns right when traveling from the
+   * near intersection to the far intersection. Coincident
+   * intersections have no entry.
+   */
+  private static final Direction[] START_DIRS = {
+    Direction.east, Direction.east, Direction.north,
+    Direction.south, null, Direction.north,
+    Direction.south, Direction.west, Direction.west
+  };
+  private static final Direction[] END_DIRS = {
+    Direction.north, Direction.west, Direction.west,
+    Direction.north, null, Direction.south,
+    Direction.east, Direction.east, Direction.south
+  };
+
+  /**
+   * Return the direction in which a street built from the near
+   * intersection to the far intersection leaves the near one.
+   * 
+   * @param deltaX near x coordinate minus far x coordinate
+   * @param deltaY near y coordinate minus far y coordinate
+   * @return the direction, or null if the intersections coincide
+   */
+  static Direction streetStart (int deltaX, int deltaY) {
+    return (START_DIRS[(Integer.signum(deltaX) + 1) * 3 +
+                      Integer.signum(deltaY) + 1]);
+  }
+
+  /**
+   * Return the direction in which a street built from the near
+   * intersection to the far intersection leaves the far one.
+   * 
+   * @param deltaX near x coordinate minus far x coordinate
+   * @param deltaY near y coordinate minus far y coordinate
+   * @return the direction, or null if the intersections coincide
+   */
+  static Direction streetEnd (int deltaX, int deltaY) {
+    return (END_DIRS[(Integer.signum(deltaX) + 1) * 3 +
+                    Integer.signum(deltaY) + 1]);
+  }
+
+  /**
+   * Assigns a name to the intersection. The name is interned, so
+   * intersections with the same name share it.
    * 
    * @param name that you want to assign to the intersection
    */
   public void setName (String name) {
-    this.interName = name ;
+    this.interName = NameDictionary.shared().intern(name) ;
+    edited();
   }
   
   /**
    * Retrieves the name of the intersection.
    */
   public String getName () {
+    return (NameDictionary.shared().getName(interName)) ;
+  }
+
+  /** Return the id of the name in the shared NameDictionary */
+  int getNameId () {
     return (interName) ;
   }
   
@@ -0,0 +1,191 @@
+package trafficdriver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds that any number of threads
+ * can record into without locking.
+ * 
+ * Buckets are laid out as in HdrHistogram: values below 128 get a
+ * bucket each, and every doubling above that is split into 64 equal
+ * buckets, so a percentile read back is within about 1.6% of the true
+ * value over the whole range of a long. Recording a value is one
+ * atomic increment of its bucket, plus updates of the count, sum and
+ * maximum, and never allocates.
+ * 
+ * A snapshot copies the buckets without stopping recorders, so it can
+ * miss values recorded while it is taken, but never sees a value
+ * twice.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+  /** log2 of the number of buckets per doubling */
+  private static final int SUB_BITS = 6;
+  /** Number of buckets */
+  private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+  /** Count of values in each bucket */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  /** Number of values recorded */
+  private final LongAdder count = new LongAdder();
+  /** Sum of the values recorded */
+  private final LongAdder sum = new LongAdder();
+  /** Largest value recorded */
+  private final AtomicLong max = new AtomicLong();
+
+  /** Default constructor for an empty histogram */
+  public LatencyHistogram () {}
+
+  /**
+   * Record a value, if metrics are enabled.
+   * 
+   * @param nanos the value; negative values count as 0
+   */
+  public void record (long nanos) {
+    if (!Metrics.ENABLED) return;
+    long value = Math.max(nanos,0);
+    buckets.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    long seen = max.get();
+    while (value > seen && !max.compareAndSet(seen,value)) {
+      seen = max.get();
+    }
+  }
+
+  /**
+   * Record the time since a start taken from Metrics.start, if
+   * metrics are enabled.
+   * 
+   * @param start the start time
+   */
+  public void recordSince (long start) {
+    if (!Metrics.ENABLED) return;
+    record(System.nanoTime() - start);
+  }
+
+  /** Return the bucket holding a value */
+  static int bucketOf (long value) {
+    int shift = Math.max(0,63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+    return ((shift << SUB_BITS) + (int) (value >>> shift));
+  }
+
+  /** Return the smallest value held by a bucket */
+  static long lowestIn (int bucket) {
+    if (bucket < 2 << SUB_BITS) return (bucket);
+    int shift = (bucket >> SUB_BITS) - 1;
+    return ((long) ((bucket & ((1 << SUB_BITS) - 1)) + (1 << SUB_BITS)) <<
+            shift);
+  }
+
+  /** Return the largest value held by a bucket */
+  static long highestIn (int bucket) {
+    if (bucket + 1 == BUCKETS) return (Long.MAX_VALUE);
+    return (lowestIn(bucket + 1) - 1);
+  }
+
+  /** Return a copy of the current state */
+  public Snapshot snapshot () {
+    long[] copy = new long[BUCKETS];
+    long total = 0;
+    for (int b = 0 ; b < BUCKETS ; b++) {
+      copy[b] = buckets.get(b);
+      total += copy[b];
+    }
+    return (new Snapshot(copy,total,sum.sum(),max.get()));
+  }
+
+  /** Forget everything recorded so far */
+  public void reset () {
+    for (int b = 0 ; b < BUCKETS ; b++) {
+      buckets.set(b,0);
+    }
+    count.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+  public long getCount () {
+    return (count.sum());
+  }
+
+  public double getMean () {
+    return (snapshot().getMean());
+  }
+
+  public long getMax () {
+    return (max.get());
+  }
+
+  public long getMedian () {
+    return (snapshot().getValueAtPercentile(50));
+  }
+
+  public long get99thPercentile () {
+    return (snapshot().getValueAtPercentile(99));
+  }
+
+  public long get999thPercentile () {
+    return (snapshot().getValueAtPercentile(99.9));
+  }
+
+  /**
+   * The state of a histogram at one moment. The count is that of the
+   * buckets copied, so percentiles and count always agree.
+   */
+  public static class Snapshot {
+
+    private final long[] buckets;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot (long[] buckets, long count, long sum, long max) {
+      this.buckets = buckets;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /** Return the number of values */
+    public long getCount () {
+      return (count);
+    }
+
+    /** Return the mean value in nanoseconds, 0 if there are none */
+    public double getMean () {
+      return (count == 0 ? 0 : (double) sum / count);
+    }
+
+    /** Return the largest value in nanoseconds */
+    public long getMax () {
+      return (max);
+    }
+
+    /**
+     * Return a value that the given percentage of values do not
+     * exceed, to the precision of the buckets.
+     * 
+     * @param percent from 0 to 100
+     * @return the value in nanoseconds, 0 if there are none
+     */
+    public long getValueAtPercentile (double percent) {
+      if (count == 0) return (0);
+      long rank = Math.max(1,(long) Math.ceil(percent / 100 * count));
+      long seen = 0;
+      for (int b = 0 ; b < buckets.length ; b++) {
+        seen += buckets[b];
+        if (seen >= rank) return (Math.min(highestIn(b),max));
+      }
+      return (max);
+    }
+
+    public String toString () {
+      return ("count=" + count + " mean=" + (long) getMean() + "ns p50=" +
+              getValueAtPercentile(50) + "ns p99=" +
+              getValueAtPercentile(99) + "ns max=" + max + "ns");
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package trafficdriver;
+
+/**
+ * Management interface of a LatencyHistogram. All times are in
+ * nanoseconds.
+ */
+public interface LatencyHistogramMBean {
+
+  /** Return the number of values recorded */
+  public long getCount ();
+
+  /** Return the mean value */
+  public double getMean ();
+
+  /** Return the largest value */
+  public long getMax ();
+
+  /** Return the 50th percentile */
+  public long getMedian ();
+
+  /** Return the 99th percentile */
+  public long get99thPercentile ();
+
+  /** Return the 99.9th percentile */
+  public long get999thPercentile ();
+
+  /** Forget everything recorded so far */
+  public void reset ();
+}
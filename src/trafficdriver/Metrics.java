@@ -0,0 +1,168 @@
+package trafficdriver;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the hot paths of the road
+ * network.
+ * 
+ * Metrics are off unless the system property trafficdriver.metrics is
+ * true when this class is loaded. The switch is a constant, so with
+ * metrics off the JIT drops the timing calls and the recording
+ * altogether and the instrumented methods cost what they did before.
+ * 
+ * The figures can be pulled as a snapshot, or published as MBeans
+ * under the domain trafficdriver with registerMBeans.
+ */
+public final class Metrics {
+
+  /** True if metrics are recorded */
+  public static final boolean ENABLED =
+          Boolean.getBoolean("trafficdriver.metrics");
+
+  /** Time taken by SimpleMap.toString */
+  public static final LatencyHistogram RENDER = new LatencyHistogram();
+  /** Time taken by SimpleMap.addToMap */
+  public static final LatencyHistogram ADD_TO_MAP = new LatencyHistogram();
+  /** Time taken by Intersection.buildStreetTo */
+  public static final LatencyHistogram BUILD_STREET =
+          new LatencyHistogram();
+  /**
+   * Connections that failed: calls of Intersection.connectTo,
+   * Street.connectTo and Intersection.buildStreetTo that returned
+   * false, each counted once however many objects it touched. Calls
+   * that throw are not counted.
+   */
+  public static final EventCounter CONNECT_FAILURES = new EventCounter();
+
+  private Metrics () {}
+
+  /**
+   * Return a start time for LatencyHistogram.recordSince, or 0 if
+   * metrics are off.
+   */
+  public static long start () {
+    return (ENABLED ? System.nanoTime() : 0);
+  }
+
+  /** Return every histogram by name */
+  private static Map<String, LatencyHistogram> histograms () {
+    Map<String, LatencyHistogram> result =
+            new LinkedHashMap<String, LatencyHistogram>();
+    result.put("render",RENDER);
+    result.put("addToMap",ADD_TO_MAP);
+    result.put("buildStreetTo",BUILD_STREET);
+    return (result);
+  }
+
+  /** Return every counter by name */
+  private static Map<String, EventCounter> counters () {
+    Map<String, EventCounter> result =
+            new LinkedHashMap<String, EventCounter>();
+    result.put("connectFailures",CONNECT_FAILURES);
+    return (result);
+  }
+
+  /** Return a copy of every metric as it stands now */
+  public static Snapshot snapshot () {
+    return (new Snapshot());
+  }
+
+  /** Forget everything recorded so far */
+  public static void reset () {
+    for (LatencyHistogram histogram : histograms().values()) {
+      histogram.reset();
+    }
+    for (EventCounter counter : counters().values()) {
+      counter.reset();
+    }
+  }
+
+  /**
+   * Register every metric with the platform MBean server, as
+   * trafficdriver:type=Histogram,name=... and
+   * trafficdriver:type=Counter,name=... Metrics already registered are
+   * left alone.
+   * 
+   * @throws JMException if the server refuses a bean
+   */
+  public static void registerMBeans () throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms().entrySet()) {
+      register(server,"Histogram",entry.getKey(),entry.getValue());
+    }
+    for (Map.Entry<String, EventCounter> entry : counters().entrySet()) {
+      register(server,"Counter",entry.getKey(),entry.getValue());
+    }
+  }
+
+  /** Register one bean unless its name is taken */
+  private static void register (MBeanServer server, String type,
+                                String name, Object bean)
+    throws JMException {
+    ObjectName objectName =
+            new ObjectName("trafficdriver:type=" + type + ",name=" + name);
+    if (!server.isRegistered(objectName)) {
+      server.registerMBean(bean,objectName);
+    }
+  }
+
+  /** Every metric at one moment, by name */
+  public static class Snapshot {
+
+    private final Map<String, LatencyHistogram.Snapshot> histograms =
+            new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+    private final Map<String, Long> counters =
+            new LinkedHashMap<String, Long>();
+
+    Snapshot () {
+      for (Map.Entry<String, LatencyHistogram> entry :
+              histograms().entrySet()) {
+        histograms.put(entry.getKey(),entry.getValue().snapshot());
+      }
+      for (Map.Entry<String, EventCounter> entry : counters().entrySet()) {
+        counters.put(entry.getKey(),entry.getValue().getCount());
+      }
+    }
+
+    /**
+     * Return a histogram by name.
+     * 
+     * @param name render, addToMap or buildStreetTo
+     * @return the histogram, or null if there is none by that name
+     */
+    public LatencyHistogram.Snapshot getHistogram (String name) {
+      return (histograms.get(name));
+    }
+
+    /**
+     * Return a counter by name.
+     * 
+     * @param name connectFailures
+     * @return the count, or 0 if there is no counter by that name
+     */
+    public long getCounter (String name) {
+      Long count = counters.get(name);
+      return (count == null ? 0 : count);
+    }
+
+    public String toString () {
+      StringBuilder result = new StringBuilder();
+      for (Map.Entry<String, LatencyHistogram.Snapshot> entry :
+              histograms.entrySet()) {
+        result.append(entry.getKey()).append(": ").append(entry.getValue())
+                .append('\n');
+      }
+      for (Map.Entry<String, Long> entry : counters.entrySet()) {
+        result.append(entry.getKey()).append(": ").append(entry.getValue())
+                .append('\n');
+      }
+      return (result.toString());
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package trafficdriver;
+
+import java.util.Arrays;
+
+/**
+ * A dictionary that interns names into dense integer ids.
+ * 
+ * Every distinct name is stored once, however many intersections and
+ * street segments carry it, and is known by its id from then on. Ids
+ * count up from 0, which is always the empty name, so they can index
+ * arrays directly. Names are never removed.
+ * 
+ * Adding a name takes a lock; looking up a name or an id does not,
+ * and neither does interning a name already there. The names and the
+ * hash table are kept in arrays that are only written at the entries
+ * of a new id, or replaced by larger copies filled before they are
+ * published. A new id is published by the volatile count, so a reader
+ * sees every name with an id below the count it read, and skips the
+ * entries of the table for ids added since.
+ * 
+ * Intersection and Street intern their names in the shared dictionary
+ * and keep only the id. The dictionary is shared, rather than owned
+ * by a map, because an object carries its name before it is
+ * registered and may be registered with several maps, and its id must
+ * mean the same name in all of them.
+ */
+public class NameDictionary {
+
+  /** Id of a null name, and of a name not in the dictionary */
+  public static final int NONE = RoadGraph.NONE;
+
+  /** The dictionary of the names of intersections and streets */
+  private static final NameDictionary SHARED = new NameDictionary();
+
+  /** Name of each id */
+  private volatile String[] names = new String[16];
+  /** Number of ids handed out */
+  private volatile int size = 0;
+  /**
+   * Open-addressed hash table of id + 1 by name, 0 for an empty
+   * entry; at most half full
+   */
+  private volatile int[] table = new int[32];
+
+  /** Construct a dictionary holding only the empty name */
+  public NameDictionary () {
+    intern("");
+  }
+
+  /** Return the dictionary shared by intersections and streets */
+  public static NameDictionary shared () {
+    return (SHARED);
+  }
+
+  /**
+   * Return the id of a name, adding the name if it is new.
+   * 
+   * @param name the name
+   * @return its id, or NONE for null
+   */
+  public int intern (String name) {
+    if (name == null) return (NONE);
+    int id = getId(name);
+    return (id != NONE ? id : add(name));
+  }
+
+  /** Add a name unless another thread just did, and return its id */
+  private synchronized int add (String name) {
+    int found = getId(name);
+    if (found != NONE) return (found);
+    int id = size;
+    String[] array = names;
+    if (id == array.length) array = Arrays.copyOf(array,2 * id);
+    array[id] = name;
+    names = array;
+    if (2 * (id + 1) > table.length) rehash(2 * table.length);
+    place(table,name,id);
+    size = id + 1;
+    return (id);
+  }
+
+  /**
+   * Return the id of a name without adding it.
+   * 
+   * @return the id, or NONE if the name is null or not in the
+   *         dictionary
+   */
+  public int getId (String name) {
+    if (name == null) return (NONE);
+    // Read the count first: the table and names read after it hold
+    // every id below it.
+    int known = size;
+    int[] slots = table;
+    String[] array = names;
+    int mask = slots.length - 1;
+    for (int slot = hash(name) & mask ; ; slot = (slot + 1) & mask) {
+      int id = slots[slot] - 1;
+      if (id == NONE) return (NONE);
+      if (id < known && array[id].equals(name)) return (id);
+    }
+  }
+
+  /**
+   * Return the name of an id.
+   * 
+   * @return the name, or null for NONE
+   */
+  public String getName (int id) {
+    if (id == NONE) return (null);
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException("name id " + id);
+    }
+    return (names[id]);
+  }
+
+  /** Return the number of names, the empty one included */
+  public int size () {
+    return (size);
+  }
+
+  /**
+   * Grow the hash table and enter every name again, in a new table
+   * that readers only see once it is full
+   */
+  private void rehash (int capacity) {
+    int[] slots = new int[capacity];
+    for (int id = 0 ; id < size ; id++) {
+      place(slots,names[id],id);
+    }
+    table = slots;
+  }
+
+  /** Enter a name in the first free slot of its chain */
+  private static void place (int[] slots, String name, int id) {
+    int mask = slots.length - 1;
+    int slot = hash(name) & mask;
+    while (slots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = id + 1;
+  }
+
+  /** Spread the hash code of a name over the low bits */
+  private static int hash (String name) {
+    int h = name.hashCode() * 0x9e3779b9;
+    return (h ^ (h >>> 16));
+  }
+}
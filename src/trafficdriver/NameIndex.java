@@ -0,0 +1,198 @@
+package trafficdriver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An index of the intersections and streets of a map by name, for
+ * finding "Main St" without looking at every object.
+ * 
+ * The index reads the name ids that Intersection and Street keep from
+ * the shared NameDictionary, and groups the places of the objects in
+ * the registry by name, the names in sorted order. An exact lookup is
+ * one probe of the dictionary; a prefix lookup is a binary search for
+ * the first and last names with the prefix, whose objects then lie
+ * together. Objects with no name, or an empty one, are not indexed.
+ * 
+ * The index is built when it is constructed and again on refresh.
+ * Objects registered or renamed after that are not seen until the
+ * next refresh. The arrays returned give places in the map's
+ * registry, which getObject turns into the objects.
+ */
+public class NameIndex {
+
+  /** The map indexed */
+  private final SimpleMap roadMap;
+  /** The dictionary the names are interned in */
+  private final NameDictionary names = NameDictionary.shared();
+
+  /** The registered objects as of the last refresh */
+  private RoadInterface[] objects = new RoadInterface[0];
+  /** The names indexed, sorted */
+  private String[] sorted = new String[0];
+  /** Rank in sorted of each name id, NONE if not indexed */
+  private int[] rank = new int[0];
+  /**
+   * Places of the objects of every name, grouped by name in the order
+   * of sorted, and by place within a name
+   */
+  private int[] places = new int[0];
+  /** Start of the places of each rank, plus the end of the last */
+  private int[] first = new int[1];
+
+  /**
+   * Construct the index of a map.
+   * 
+   * @param roadMap the map
+   */
+  public NameIndex (SimpleMap roadMap) {
+    this.roadMap = roadMap;
+    refresh();
+  }
+
+  /** Index the objects of the map again, as they are named now */
+  public void refresh () {
+    roadMap.settle();
+    int total = roadMap.numObjects;
+    objects = Arrays.copyOf(roadMap.roadObjects,total);
+    int[] ids = new int[total];
+    int most = 0;
+    for (int p = 0 ; p < total ; p++) {
+      ids[p] = nameId(objects[p]);
+      most = Math.max(most,ids[p]);
+    }
+    // Count the objects of each id, and sort the ids that have any.
+    int[] count = new int[most + 1];
+    int distinct = 0;
+    for (int p = 0 ; p < total ; p++) {
+      if (ids[p] > 0 && count[ids[p]]++ == 0) distinct++;
+    }
+    sorted = new String[distinct];
+    distinct = 0;
+    for (int id = 1 ; id <= most ; id++) {
+      if (count[id] > 0) sorted[distinct++] = names.getName(id);
+    }
+    Arrays.sort(sorted);
+    rank = new int[most + 1];
+    Arrays.fill(rank,NameDictionary.NONE);
+    first = new int[distinct + 1];
+    for (int r = 0 ; r < distinct ; r++) {
+      int id = names.getId(sorted[r]);
+      rank[id] = r;
+      first[r + 1] = first[r] + count[id];
+    }
+    // Lay the places out by rank, in place order within a rank.
+    int[] next = Arrays.copyOf(first,distinct);
+    places = new int[first[distinct]];
+    for (int p = 0 ; p < total ; p++) {
+      if (ids[p] > 0) places[next[rank[ids[p]]]++] = p;
+    }
+  }
+
+  /** Return the name id of an intersection or street, or NONE */
+  private static int nameId (RoadInterface object) {
+    if (object instanceof Intersection) {
+      return (((Intersection) object).getNameId());
+    } else if (object instanceof Street) {
+      return (((Street) object).getNameId());
+    }
+    return (NameDictionary.NONE);
+  }
+
+  /** Return the number of distinct names indexed */
+  public int getNameCount () {
+    return (sorted.length);
+  }
+
+  /**
+   * Return the places of the objects with a name.
+   * 
+   * @param name the name
+   * @return the places, in increasing order
+   */
+  public int[] find (String name) {
+    int id = names.getId(name);
+    if (id <= 0 || id >= rank.length || rank[id] == NameDictionary.NONE) {
+      return (new int[0]);
+    }
+    return (Arrays.copyOfRange(places,first[rank[id]],first[rank[id] + 1]));
+  }
+
+  /**
+   * Return the places of the objects whose name starts with a prefix.
+   * 
+   * @param prefix the prefix; an empty one matches every named object
+   * @return the places, by name and then in increasing order
+   */
+  public int[] findPrefix (String prefix) {
+    int from = lowerBound(prefix);
+    // The names with the prefix follow one another from there.
+    int low = from;
+    int high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid].startsWith(prefix)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return (Arrays.copyOfRange(places,first[from],first[low]));
+  }
+
+  /**
+   * Return the names indexed that start with a prefix, in order.
+   * 
+   * @param prefix the prefix
+   * @param max most names returned
+   */
+  public List<String> getNames (String prefix, int max) {
+    List<String> result = new ArrayList<String>();
+    for (int r = lowerBound(prefix) ; r < sorted.length &&
+             result.size() < max && sorted[r].startsWith(prefix) ; r++) {
+      result.add(sorted[r]);
+    }
+    return (result);
+  }
+
+  /** Return the intersections with a name, in registry order */
+  public List<Intersection> getIntersections (String name) {
+    List<Intersection> result = new ArrayList<Intersection>();
+    for (int p : find(name)) {
+      if (objects[p] instanceof Intersection) {
+        result.add((Intersection) objects[p]);
+      }
+    }
+    return (result);
+  }
+
+  /** Return the streets with a name, in registry order */
+  public List<Street> getStreets (String name) {
+    List<Street> result = new ArrayList<Street>();
+    for (int p : find(name)) {
+      if (objects[p] instanceof Street) result.add((Street) objects[p]);
+    }
+    return (result);
+  }
+
+  /** Return the object at a place, as of the last refresh */
+  public RoadInterface getObject (int place) {
+    return (objects[place]);
+  }
+
+  /** Return the rank of the first name not below a string */
+  private int lowerBound (String key) {
+    int low = 0;
+    int high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid].compareTo(key) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return (low);
+  }
+}
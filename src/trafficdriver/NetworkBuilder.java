@@ -0,0 +1,297 @@
+package trafficdriver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Builds a whole road network from batches of intersections and
+ * streets.
+ * 
+ * Intersections are given as arrays of coordinates and streets as
+ * arrays of intersection index pairs; a street runs from its first
+ * intersection to its second and is shaped as by
+ * Intersection.buildStreetTo. Nothing is built until build or
+ * buildMap, which check every street in one pass, size the result
+ * once, and then wire it up.
+ * 
+ * Building the objects this way skips the connectTo round trips of
+ * buildStreetTo and registers everything with the map in one step.
+ * 
+ * A street is rejected if its intersections coincide, or if either of
+ * the slots it needs is taken by an earlier street of its batch or by
+ * a street of another batch. The batches are checked in parallel, the
+ * streets of a batch in order. When the batches touch disjoint sets of
+ * intersections, as for separate regions, the result is the same as
+ * building every street in order. When they share intersections the
+ * links are still consistent, but which of two conflicting streets of
+ * different batches wins depends on timing.
+ */
+public class NetworkBuilder {
+
+  /** Marker for a rejected street or an empty slot */
+  public static final int NONE = RoadGraph.NONE;
+
+  /** Batches of intersection coordinates */
+  private final List<int[]> nodeXs = new ArrayList<int[]>();
+  private final List<int[]> nodeYs = new ArrayList<int[]>();
+  /** number of intersections added */
+  private int numNodes = 0;
+
+  /** Batches of streets */
+  private final List<int[]> edgeFroms = new ArrayList<int[]>();
+  private final List<int[]> edgeTos = new ArrayList<int[]>();
+  /** number of streets added */
+  private int numSpecs = 0;
+
+  /**
+   * Result of the last check: the ends of every street added, the
+   * index of the first street of each batch, the street added in each
+   * slot of each intersection, and the built street of each street
+   * added.
+   */
+  private int[] specFrom = null;
+  private int[] specTo = null;
+  private int[] batchFirst = null;
+  private int[] slots = null;
+  private int[] built = null;
+  /** number of streets accepted */
+  private int numEdges = 0;
+
+  /** Default constructor for an empty builder */
+  public NetworkBuilder () {}
+
+  /** Return the number of intersections added */
+  public int getNodeCount () {
+    return (numNodes);
+  }
+
+  /**
+   * Add a batch of intersections. The arrays are used, not copied, and
+   * must not change before building.
+   * 
+   * @param xPos X coordinate of each intersection
+   * @param yPos Y coordinate of each intersection
+   * @return the index of the first intersection of the batch
+   */
+  public int addIntersections (int[] xPos, int[] yPos) {
+    if (xPos.length != yPos.length) {
+      throw new IllegalArgumentException("coordinate arrays differ in length");
+    }
+    nodeXs.add(xPos);
+    nodeYs.add(yPos);
+    int first = numNodes;
+    numNodes += xPos.length;
+    return (first);
+  }
+
+  /**
+   * Add a batch of streets. The arrays are used, not copied, and must
+   * not change before building.
+   * 
+   * @param from intersection where construction of each street starts
+   * @param to intersection where construction of each street ends
+   * @return the number of the batch
+   */
+  public int addStreets (int[] from, int[] to) {
+    if (from.length != to.length) {
+      throw new IllegalArgumentException("index arrays differ in length");
+    }
+    edgeFroms.add(from);
+    edgeTos.add(to);
+    numSpecs += from.length;
+    return (edgeFroms.size() - 1);
+  }
+
+  /**
+   * Return the street built for a street of a batch, as numbered in
+   * the result of the last build.
+   * 
+   * @param batch the batch
+   * @param i the street within the batch
+   * @return the street index, or NONE if the street was rejected
+   */
+  public int getStreet (int batch, int i) {
+    return (built[batchFirst[batch] + i]);
+  }
+
+  /** Return the number of streets accepted by the last build */
+  public int getEdgeCount () {
+    return (numEdges);
+  }
+
+  /** Build a RoadGraph, using the common pool */
+  public RoadGraph build () {
+    return (build(ForkJoinPool.commonPool()));
+  }
+
+  /**
+   * Build a RoadGraph holding the network.
+   * 
+   * @param pool the pool that runs the build
+   * @return the graph
+   */
+  public RoadGraph build (ForkJoinPool pool) {
+    final int[] x = concat(nodeXs);
+    final int[] y = concat(nodeYs);
+    check(pool,x,y);
+    final int[] edgeNode = new int[2 * numEdges];
+    final byte[] edgeDir = new byte[2 * numEdges];
+    // Each street owns its two slots, so they can be filled in parallel.
+    ParallelRange.run(pool,0,4 * numNodes,
+                      ParallelRange.grainFor(pool,4 * numNodes),
+      (from, to) -> {
+        for (int slot = from ; slot < to ; slot++) {
+          int spec = slots[slot];
+          if (spec == NONE) continue;
+          int edge = built[spec];
+          int end = (slot >> 2 == specFrom[spec] ? 0 : 1);
+          edgeNode[2 * edge + end] = slot >> 2;
+          edgeDir[2 * edge + end] = (byte) (slot & 3);
+          slots[slot] = edge;
+        }
+      });
+    return (new RoadGraph(x,y,slots,edgeNode,edgeDir));
+  }
+
+  /** Build Intersection and Street objects, using the common pool */
+  public Intersection[] buildMap (SimpleMap roadMap) {
+    return (buildMap(roadMap,ForkJoinPool.commonPool()));
+  }
+
+  /**
+   * Build the network as Intersection and Street objects and register
+   * them with a map, intersections first, in one batch.
+   * 
+   * @param roadMap map where the objects should register, or null
+   * @param pool the pool that runs the build
+   * @return the intersections, by index
+   */
+  public Intersection[] buildMap (SimpleMap roadMap, ForkJoinPool pool) {
+    final int[] x = concat(nodeXs);
+    final int[] y = concat(nodeYs);
+    check(pool,x,y);
+    final RoadInterface[] objects = new RoadInterface[numNodes + numEdges];
+    ParallelRange.run(pool,0,numNodes,ParallelRange.grainFor(pool,numNodes),
+      (from, to) -> {
+        for (int n = from ; n < to ; n++) {
+          objects[n] = new Intersection(x[n],y[n]);
+        }
+      });
+    ParallelRange.run(pool,0,numSpecs,ParallelRange.grainFor(pool,numSpecs),
+      (from, to) -> {
+        for (int spec = from ; spec < to ; spec++) {
+          if (built[spec] == NONE) continue;
+          Intersection start = (Intersection) objects[specFrom[spec]];
+          Intersection end = (Intersection) objects[specTo[spec]];
+          int deltaX = x[specFrom[spec]] - x[specTo[spec]];
+          int deltaY = y[specFrom[spec]] - y[specTo[spec]];
+          Direction startDir = Intersection.streetStart(deltaX,deltaY);
+          Direction endDir = Intersection.streetEnd(deltaX,deltaY);
+          Street street = new Street();
+          street.attachEnds(start,startDir.opposite(),end,endDir.opposite());
+          start.setStreet(street,startDir);
+          end.setStreet(street,endDir);
+          objects[numNodes + built[spec]] = street;
+        }
+      });
+    if (roadMap != null) roadMap.addAllToMap(objects,0,objects.length);
+    Intersection[] result = new Intersection[numNodes];
+    System.arraycopy(objects,0,result,0,numNodes);
+    return (result);
+  }
+
+  /**
+   * Check every street and number the accepted ones. Afterwards slots
+   * holds the street added that took each slot, and built the index of
+   * each accepted street.
+   */
+  private void check (ForkJoinPool pool, final int[] x, final int[] y) {
+    specFrom = concat(edgeFroms);
+    specTo = concat(edgeTos);
+    final int batches = edgeFroms.size();
+    batchFirst = new int[batches + 1];
+    for (int b = 0 ; b < batches ; b++) {
+      batchFirst[b + 1] = batchFirst[b] + edgeFroms.get(b).length;
+    }
+    slots = new int[4 * numNodes];
+    Arrays.fill(slots,NONE);
+    built = new int[numSpecs];
+    if (batches > 1 && pool.getParallelism() > 1) {
+      // Batches may share intersections, so slots are claimed by CAS.
+      final AtomicIntegerArray claims = new AtomicIntegerArray(slots);
+      ParallelRange.run(pool,0,batches,1,
+        (from, to) -> {
+          for (int b = from ; b < to ; b++) {
+            claimBatch(null,claims,b,x,y);
+          }
+        });
+      for (int slot = 0 ; slot < slots.length ; slot++) {
+        slots[slot] = claims.get(slot);
+      }
+    } else {
+      for (int b = 0 ; b < batches ; b++) {
+        claimBatch(slots,null,b,x,y);
+      }
+    }
+    // Number the accepted streets in the order they were added.
+    numEdges = 0;
+    for (int spec = 0 ; spec < numSpecs ; spec++) {
+      built[spec] = (built[spec] != NONE ? numEdges++ : NONE);
+    }
+  }
+
+  /**
+   * Claim the slots of the streets of one batch, in order. Both slots
+   * of a street are claimed or neither is, and a street that has both
+   * keeps them, so it is marked accepted in built right away.
+   * 
+   * @param plain the slots, when no other batch runs at the same time
+   * @param claims the slots, when batches run in parallel
+   */
+  private void claimBatch (int[] plain, AtomicIntegerArray claims,
+                           int batch, int[] x, int[] y) {
+    for (int spec = batchFirst[batch] ; spec < batchFirst[batch + 1] ;
+            spec++) {
+      int from = specFrom[spec];
+      int to = specTo[spec];
+      int deltaX = x[from] - x[to];
+      int deltaY = y[from] - y[to];
+      Direction startDir = Intersection.streetStart(deltaX,deltaY);
+      built[spec] = NONE;
+      if (startDir == null) continue;
+      Direction endDir = Intersection.streetEnd(deltaX,deltaY);
+      int startSlot = 4 * from + startDir.ordinal();
+      int endSlot = 4 * to + endDir.ordinal();
+      if (plain != null) {
+        if (plain[startSlot] != NONE || plain[endSlot] != NONE) continue;
+        plain[startSlot] = spec;
+        plain[endSlot] = spec;
+      } else {
+        if (!claims.compareAndSet(startSlot,NONE,spec)) continue;
+        if (!claims.compareAndSet(endSlot,NONE,spec)) {
+          claims.set(startSlot,NONE);
+          continue;
+        }
+      }
+      built[spec] = 0;
+    }
+  }
+
+  /** Concatenate batches of ints */
+  private static int[] concat (List<int[]> batches) {
+    int total = 0;
+    for (int[] batch : batches) {
+      total += batch.length;
+    }
+    int[] result = new int[total];
+    int at = 0;
+    for (int[] batch : batches) {
+      System.arraycopy(batch,0,result,at,batch.length);
+      at += batch.length;
+    }
+    return (result);
+  }
+}
@@ -0,0 +1,464 @@
+package trafficdriver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A road network stored in a compact binary file.
+ * 
+ * The file holds the columns of a RoadGraph as they are in memory,
+ * plus the turn point of every street and the names of intersections
+ * and streets. All values are little-endian and every section starts
+ * on a four-byte boundary:
+ * 
+ * <pre>
+ *   header      magic "TDNF", version, intersections n, streets m,
+ *               name bytes, three reserved ints
+ *   nodeX       n ints
+ *   nodeY       n ints
+ *   nodeEdge    4n ints, street in each direction slot or -1
+ *   edgeNode    2m ints, start and end intersection of each street
+ *   edgeTurn    2m ints, turn x and y of each street, -1 if none
+ *   edgeDir     2m bytes, direction ordinal leaving each end, padded
+ *   nodeName    n + 1 ints, offset of each name in the name bytes
+ *   edgeName    m + 1 ints, continuing after the intersection names
+ *   names       UTF-8 bytes of every name
+ * </pre>
+ * 
+ * Opening a file maps it read-only with FileChannel.map and checks
+ * the sizes, the name offsets and the direction bytes, so that no
+ * name or direction read later can fall outside the file. The
+ * intersection and street numbers in the other columns are not
+ * checked. The accessors read the mapped columns directly, and a name
+ * is only decoded when it is asked for. toGraph copies the columns
+ * into a RoadGraph with bulk transfers. A single mapping limits a
+ * file to 2 GB.
+ */
+public class NetworkFile {
+
+  /** Tag at the start of a network file, "TDNF" */
+  private static final int MAGIC = 0x464e4454;
+  /** Version of the format */
+  private static final int VERSION = 1;
+  /** Size of the header in bytes */
+  private static final int HEADER_SIZE = 32;
+  /** Size of the buffer used when writing */
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  /** The mapped file */
+  private final MappedByteBuffer data;
+  /** number of intersections and streets */
+  private final int numNodes;
+  private final int numEdges;
+
+  /** Views of the int columns */
+  private final IntBuffer nodeX;
+  private final IntBuffer nodeY;
+  private final IntBuffer nodeEdge;
+  private final IntBuffer edgeNode;
+  private final IntBuffer edgeTurn;
+  private final IntBuffer nodeName;
+  private final IntBuffer edgeName;
+  /** Byte offsets of the direction column and the names */
+  private final int edgeDirAt;
+  private final int namesAt;
+
+  /** Instances come from open */
+  private NetworkFile (MappedByteBuffer data, int numNodes, int numEdges) {
+    this.data = data;
+    this.numNodes = numNodes;
+    this.numEdges = numEdges;
+    int at = HEADER_SIZE;
+    nodeX = ints(at,numNodes);
+    at += 4 * numNodes;
+    nodeY = ints(at,numNodes);
+    at += 4 * numNodes;
+    nodeEdge = ints(at,4 * numNodes);
+    at += 16 * numNodes;
+    edgeNode = ints(at,2 * numEdges);
+    at += 8 * numEdges;
+    edgeTurn = ints(at,2 * numEdges);
+    at += 8 * numEdges;
+    edgeDirAt = at;
+    at += pad(2 * numEdges);
+    nodeName = ints(at,numNodes + 1);
+    at += 4 * (numNodes + 1);
+    edgeName = ints(at,numEdges + 1);
+    at += 4 * (numEdges + 1);
+    namesAt = at;
+  }
+
+  /** Return an int view of part of the mapped file */
+  private IntBuffer ints (int at, int count) {
+    ByteBuffer slice = data.duplicate();
+    slice.position(at);
+    slice.limit(at + 4 * count);
+    return (slice.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+  }
+
+  /** Round a byte count up to a multiple of four */
+  private static int pad (long bytes) {
+    return ((int) ((bytes + 3) & ~3L));
+  }
+
+  /** Return the file size for the given counts and name bytes */
+  private static long fileSize (long nodes, long edges, long nameBytes) {
+    return (HEADER_SIZE + 24 * nodes + 16 * edges + pad(2 * edges) +
+            4 * (nodes + 1) + 4 * (edges + 1) + nameBytes);
+  }
+
+  /**
+   * Map a network file.
+   * 
+   * @param file the file
+   * @return a view of the network in the file
+   * @throws IOException if the file cannot be read or is not a
+   *           network file
+   */
+  public static NetworkFile open (Path file) throws IOException {
+    MappedByteBuffer data;
+    try (FileChannel channel = FileChannel.open(file,StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("network file larger than 2 GB");
+      }
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("not a network file");
+      }
+      data = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    if (data.getInt(0) != MAGIC) throw new IOException("not a network file");
+    int version = data.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("unsupported network file version " + version);
+    }
+    int nodes = data.getInt(8);
+    int edges = data.getInt(12);
+    int nameBytes = data.getInt(16);
+    if (nodes < 0 || edges < 0 || nameBytes < 0 ||
+            fileSize(nodes,edges,nameBytes) != data.capacity()) {
+      throw new IOException("network file is truncated or corrupt");
+    }
+    NetworkFile network = new NetworkFile(data,nodes,edges);
+    network.check(nameBytes);
+    return (network);
+  }
+
+  /**
+   * Check that the name offsets never decrease and stay within the
+   * name bytes, and that every direction byte is a DirectionCode.
+   */
+  private void check (int nameBytes) throws IOException {
+    if (nodeName.get(0) != 0 || edgeName.get(0) != nodeName.get(numNodes) ||
+            edgeName.get(numEdges) != nameBytes) {
+      throw new IOException("network file has corrupt name offsets");
+    }
+    checkOffsets(nodeName);
+    checkOffsets(edgeName);
+    for (int i = 0 ; i < 2 * numEdges ; i++) {
+      int code = data.get(edgeDirAt + i);
+      if (code < DirectionCode.WEST || code > DirectionCode.SOUTH) {
+        throw new IOException("network file has a corrupt direction");
+      }
+    }
+  }
+
+  /** Check that a column of name offsets never decreases */
+  private static void checkOffsets (IntBuffer offsets) throws IOException {
+    for (int i = 1 ; i < offsets.limit() ; i++) {
+      if (offsets.get(i) < offsets.get(i - 1)) {
+        throw new IOException("network file has corrupt name offsets");
+      }
+    }
+  }
+
+  /** Return the number of intersections */
+  public int getNodeCount () {
+    return (numNodes);
+  }
+
+  /** Return the number of streets */
+  public int getEdgeCount () {
+    return (numEdges);
+  }
+
+  /** Return the X coordinate of an intersection */
+  public int getXPos (int node) {
+    return (nodeX.get(node));
+  }
+
+  /** Return the Y coordinate of an intersection */
+  public int getYPos (int node) {
+    return (nodeY.get(node));
+  }
+
+  /**
+   * Return the street leaving an intersection in the specified
+   * direction, or RoadGraph.NONE.
+   */
+  public int getEdge (int node, Direction dir) {
+    return (nodeEdge.get(4 * node + dir.ordinal()));
+  }
+
+  /**
+   * Return the street leaving an intersection in the direction with
+   * the specified DirectionCode, or RoadGraph.NONE.
+   */
+  public int getEdge (int node, int dir) {
+    return (nodeEdge.get(4 * node + dir));
+  }
+
+  /**
+   * Return an end of a street.
+   * 
+   * @param edge the street
+   * @param end 0 for the start intersection, 1 for the end
+   */
+  public int getEdgeNode (int edge, int end) {
+    return (edgeNode.get(2 * edge + end));
+  }
+
+  /**
+   * Return the direction in which a street leaves one of its
+   * intersections.
+   * 
+   * @param edge the street
+   * @param end 0 for the start intersection, 1 for the end
+   */
+  public Direction getEdgeDirection (int edge, int end) {
+    return (DirectionCode.toDirection(data.get(edgeDirAt + 2 * edge + end)));
+  }
+
+  /**
+   * Return the DirectionCode of the direction in which a street
+   * leaves one of its intersections.
+   * 
+   * @param edge the street
+   * @param end 0 for the start intersection, 1 for the end
+   */
+  public int getEdgeCode (int edge, int end) {
+    return (data.get(edgeDirAt + 2 * edge + end));
+  }
+
+  /** Return the X coordinate of the turn in a street, or -1 */
+  public int getTurnX (int edge) {
+    return (edgeTurn.get(2 * edge));
+  }
+
+  /** Return the Y coordinate of the turn in a street, or -1 */
+  public int getTurnY (int edge) {
+    return (edgeTurn.get(2 * edge + 1));
+  }
+
+  /** Return the name of an intersection */
+  public String getNodeName (int node) {
+    return (name(nodeName.get(node),nodeName.get(node + 1)));
+  }
+
+  /** Return the name of a street */
+  public String getStreetName (int edge) {
+    return (name(edgeName.get(edge),edgeName.get(edge + 1)));
+  }
+
+  /** Decode part of the name bytes */
+  private String name (int from, int to) {
+    byte[] bytes = new byte[to - from];
+    ByteBuffer names = data.duplicate();
+    names.position(namesAt + from);
+    names.get(bytes);
+    return (new String(bytes,StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Copy the network into a RoadGraph. The columns are moved with bulk
+   * transfers; no per-element objects are made.
+   */
+  public RoadGraph toGraph () {
+    int[] x = new int[numNodes];
+    int[] y = new int[numNodes];
+    int[] slots = new int[4 * numNodes];
+    int[] ends = new int[2 * numEdges];
+    byte[] dirs = new byte[2 * numEdges];
+    nodeX.duplicate().get(x);
+    nodeY.duplicate().get(y);
+    nodeEdge.duplicate().get(slots);
+    edgeNode.duplicate().get(ends);
+    ByteBuffer dirData = data.duplicate();
+    dirData.position(edgeDirAt);
+    dirData.get(dirs);
+    return (new RoadGraph(x,y,slots,ends,dirs));
+  }
+
+  /**
+   * Write the objects registered with a map to a network file, in the
+   * form RoadGraph.fromMap gives them.
+   * 
+   * @param roadMap the map
+   * @param file the file, replaced if it exists
+   * @throws IOException if the file cannot be written
+   */
+  public static void write (SimpleMap roadMap, Path file) throws IOException {
+    List<String> nodeNames = new ArrayList<String>();
+    List<String> edgeNames = new ArrayList<String>();
+    RoadGraph graph = RoadGraph.fromMap(roadMap,nodeNames,edgeNames);
+    write(graph,nodeNames.toArray(new String[0]),
+          edgeNames.toArray(new String[0]),file);
+  }
+
+  /**
+   * Write a graph to a network file. Every street must be attached at
+   * both ends.
+   * 
+   * @param graph the graph
+   * @param nodeNames name of each intersection, or null for none
+   * @param edgeNames name of each street, or null for none
+   * @param file the file, replaced if it exists
+   * @throws IOException if the file cannot be written
+   */
+  public static void write (RoadGraph graph, String[] nodeNames,
+                            String[] edgeNames, Path file)
+    throws IOException {
+    int nodes = graph.getNodeCount();
+    int edges = graph.getEdgeCount();
+    byte[][] nodeBytes = encode(nodeNames,nodes);
+    byte[][] edgeBytes = encode(edgeNames,edges);
+    long nameBytes = sum(nodeBytes) + sum(edgeBytes);
+    if (fileSize(nodes,edges,nameBytes) > Integer.MAX_VALUE) {
+      throw new IOException("network too large for one file");
+    }
+    try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      Out out = new Out(channel);
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(nodes);
+      out.putInt(edges);
+      out.putInt((int) nameBytes);
+      out.putInt(0);
+      out.putInt(0);
+      out.putInt(0);
+      for (int n = 0 ; n < nodes ; n++) {
+        out.putInt(graph.getXPos(n));
+      }
+      for (int n = 0 ; n < nodes ; n++) {
+        out.putInt(graph.getYPos(n));
+      }
+      for (int n = 0 ; n < nodes ; n++) {
+        for (int d = 0 ; d < 4 ; d++) {
+          out.putInt(graph.getEdge(n,d));
+        }
+      }
+      for (int e = 0 ; e < edges ; e++) {
+        checkClosed(graph,e);
+        out.putInt(graph.getEdgeNode(e,0));
+        out.putInt(graph.getEdgeNode(e,1));
+      }
+      for (int e = 0 ; e < edges ; e++) {
+        out.putInt(graph.getTurnX(e));
+        out.putInt(graph.getTurnY(e));
+      }
+      for (int e = 0 ; e < edges ; e++) {
+        out.put((byte) graph.getEdgeCode(e,0));
+        out.put((byte) graph.getEdgeCode(e,1));
+      }
+      for (int i = 2 * edges ; i < pad(2 * edges) ; i++) {
+        out.put((byte) 0);
+      }
+      int offset = 0;
+      for (byte[] name : nodeBytes) {
+        out.putInt(offset);
+        offset += name.length;
+      }
+      out.putInt(offset);
+      for (byte[] name : edgeBytes) {
+        out.putInt(offset);
+        offset += name.length;
+      }
+      out.putInt(offset);
+      for (byte[] name : nodeBytes) {
+        out.put(name);
+      }
+      for (byte[] name : edgeBytes) {
+        out.put(name);
+      }
+      out.flush();
+    }
+  }
+
+  /** Refuse to write a street that is not attached at both ends */
+  private static void checkClosed (RoadGraph graph, int edge)
+    throws IOException {
+    if (graph.isOpen(edge)) {
+      throw new IOException("street " + edge + " is not attached at both ends");
+    }
+  }
+
+  /** Encode names as UTF-8, an empty name where there is none */
+  private static byte[][] encode (String[] names, int count) {
+    byte[][] result = new byte[count][];
+    for (int i = 0 ; i < count ; i++) {
+      String name = (names == null || names[i] == null ? "" : names[i]);
+      result[i] = name.getBytes(StandardCharsets.UTF_8);
+    }
+    return (result);
+  }
+
+  /** Return the total length of some byte arrays */
+  private static long sum (byte[][] arrays) {
+    long total = 0;
+    for (byte[] array : arrays) {
+      total += array.length;
+    }
+    return (total);
+  }
+
+  /** Buffered little-endian output to a channel */
+  private static class Out {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer =
+            ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    Out (FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void putInt (int value) throws IOException {
+      if (buffer.remaining() < 4) flush();
+      buffer.putInt(value);
+    }
+
+    void put (byte value) throws IOException {
+      if (!buffer.hasRemaining()) flush();
+      buffer.put(value);
+    }
+
+    void put (byte[] bytes) throws IOException {
+      for (int at = 0 ; at < bytes.length ; ) {
+        if (!buffer.hasRemaining()) flush();
+        int count = Math.min(buffer.remaining(),bytes.length - at);
+        buffer.put(bytes,at,count);
+        at += count;
+      }
+    }
+
+    /** Write out everything buffered */
+    void flush () throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package trafficdriver;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Generates large synthetic road networks for load tests and
+ * benchmarks.
+ * 
+ * The intersections sit on a lattice of columns and rows, column c and
+ * row r at (c * spacing, r * spacing), numbered row by row. Each
+ * intersection starts at most two streets, and the layout decides
+ * where they go:
+ * 
+ * manhattan: to the neighbors east and south, so every street is
+ * straight.
+ * 
+ * irregular: as manhattan, but each street is left out with a set
+ * probability.
+ * 
+ * lShaped: to the intersection one column east and one row south,
+ * and to the one two columns west and one row north. Every street is
+ * L-shaped and every slot away from the edges is used. All but the
+ * northeast and southwest corners are connected.
+ * 
+ * The network is written straight into the columns of a RoadGraph, in
+ * parallel and without creating an object per road element. Streets
+ * are numbered in the order their intersections are, so the result
+ * does not depend on the pool, and the same seed always gives the
+ * same network.
+ */
+public class NetworkGenerator {
+
+  /** Marker for a street that is not there */
+  public static final int NONE = RoadGraph.NONE;
+
+  /** Intersections handled per piece of a parallel pass */
+  private static final int CHUNK = 1 << 14;
+
+  /** The kinds of network generated */
+  public enum Layout {
+    manhattan, irregular, lShaped
+  }
+
+  /** Size of the lattice */
+  private final int columns;
+  private final int rows;
+  /** Distance between neighboring columns and rows */
+  private final int spacing;
+
+  /** Kind of network */
+  private Layout layout = Layout.manhattan;
+  /** Probability that an irregular street is left out */
+  private double missing = 0.1;
+  /** Seed of the random choices */
+  private long seed = 0;
+
+  /**
+   * Describe a network. Nothing is generated until generate or addTo.
+   * 
+   * @param columns intersections per row
+   * @param rows intersections per column
+   * @param spacing distance between neighboring columns and rows
+   */
+  public NetworkGenerator (int columns, int rows, int spacing) {
+    if (columns < 1 || rows < 1 || spacing < 1) {
+      throw new IllegalArgumentException("size and spacing must be positive");
+    }
+    if (4L * columns * rows > Integer.MAX_VALUE ||
+            (long) Math.max(columns,rows) * spacing > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("network too large");
+    }
+    this.columns = columns;
+    this.rows = rows;
+    this.spacing = spacing;
+  }
+
+  /** Set the kind of network */
+  public void setLayout (Layout layout) {
+    this.layout = layout;
+  }
+
+  /** Return the kind of network */
+  public Layout getLayout () {
+    return (layout);
+  }
+
+  /**
+   * Set the probability that a street of an irregular network is left
+   * out.
+   * 
+   * @param fraction probability from 0 to 1
+   */
+  public void setMissingLinks (double fraction) {
+    if (fraction < 0 || fraction > 1) {
+      throw new IllegalArgumentException("fraction outside 0..1");
+    }
+    missing = fraction;
+  }
+
+  /** Set the seed of the random choices */
+  public void setSeed (long seed) {
+    this.seed = seed;
+  }
+
+  /** Return the number of intersections */
+  public int getNodeCount () {
+    return (columns * rows);
+  }
+
+  /** Return the size of a map that holds the whole network */
+  public int getxDim () {
+    return ((columns - 1) * spacing + 1);
+  }
+
+  /** Return the size of a map that holds the whole network */
+  public int getyDim () {
+    return ((rows - 1) * spacing + 1);
+  }
+
+  /** Generate the network, using the common pool */
+  public RoadGraph generate () {
+    return (generate(ForkJoinPool.commonPool()));
+  }
+
+  /**
+   * Generate the network as a RoadGraph.
+   * 
+   * A first pass places the intersections and counts the streets each
+   * piece of them starts; a second pass numbers the streets from the
+   * running totals and attaches them. No two streets share a slot, so
+   * the pieces never write to the same place.
+   * 
+   * @param pool the pool that runs the passes
+   * @return the graph
+   */
+  public RoadGraph generate (ForkJoinPool pool) {
+    final int nodes = columns * rows;
+    final int chunks = (nodes + CHUNK - 1) / CHUNK;
+    final int[] x = new int[nodes];
+    final int[] y = new int[nodes];
+    final int[] nodeEdge = new int[4 * nodes];
+    final int[] first = new int[chunks + 1];
+    ParallelRange.run(pool,0,chunks,1,
+      (from, to) -> {
+        for (int chunk = from ; chunk < to ; chunk++) {
+          int end = Math.min((chunk + 1) * CHUNK,nodes);
+          int count = 0;
+          for (int node = chunk * CHUNK ; node < end ; node++) {
+            x[node] = (node % columns) * spacing;
+            y[node] = (node / columns) * spacing;
+            if (target(node,0) != NONE) count++;
+            if (target(node,1) != NONE) count++;
+          }
+          first[chunk + 1] = count;
+          Arrays.fill(nodeEdge,4 * chunk * CHUNK,4 * end,NONE);
+        }
+      });
+    for (int chunk = 0 ; chunk < chunks ; chunk++) {
+      first[chunk + 1] += first[chunk];
+    }
+    final int[] edgeNode = new int[2 * first[chunks]];
+    final byte[] edgeDir = new byte[2 * first[chunks]];
+    final int[] fromDir = new int[2];
+    final int[] toDir = new int[2];
+    for (int kind = 0 ; kind < 2 ; kind++) {
+      int deltaX = -offsetX(kind) * spacing;
+      int deltaY = -offsetY(kind) * spacing;
+      fromDir[kind] = Intersection.streetStart(deltaX,deltaY).ordinal();
+      toDir[kind] = Intersection.streetEnd(deltaX,deltaY).ordinal();
+    }
+    ParallelRange.run(pool,0,chunks,1,
+      (from, to) -> {
+        for (int chunk = from ; chunk < to ; chunk++) {
+          int end = Math.min((chunk + 1) * CHUNK,nodes);
+          int edge = first[chunk];
+          for (int node = chunk * CHUNK ; node < end ; node++) {
+            for (int kind = 0 ; kind < 2 ; kind++) {
+              int other = target(node,kind);
+              if (other == NONE) continue;
+              edgeNode[2 * edge] = node;
+              edgeNode[2 * edge + 1] = other;
+              edgeDir[2 * edge] = (byte) fromDir[kind];
+              edgeDir[2 * edge + 1] = (byte) toDir[kind];
+              nodeEdge[4 * node + fromDir[kind]] = edge;
+              nodeEdge[4 * other + toDir[kind]] = edge;
+              edge++;
+            }
+          }
+        }
+      });
+    return (new RoadGraph(x,y,nodeEdge,edgeNode,edgeDir));
+  }
+
+  /**
+   * Add the network to a NetworkBuilder, as one batch of intersections
+   * and one of streets in the order generate numbers them. Building it
+   * with buildMap gives the network as Intersection and Street objects.
+   * 
+   * @param builder the builder
+   * @return the number of the batch of streets
+   */
+  public int addTo (NetworkBuilder builder) {
+    int nodes = columns * rows;
+    int[] x = new int[nodes];
+    int[] y = new int[nodes];
+    int count = 0;
+    for (int node = 0 ; node < nodes ; node++) {
+      x[node] = (node % columns) * spacing;
+      y[node] = (node / columns) * spacing;
+      if (target(node,0) != NONE) count++;
+      if (target(node,1) != NONE) count++;
+    }
+    int[] from = new int[count];
+    int[] to = new int[count];
+    int edge = 0;
+    for (int node = 0 ; node < nodes ; node++) {
+      for (int kind = 0 ; kind < 2 ; kind++) {
+        int other = target(node,kind);
+        if (other == NONE) continue;
+        from[edge] = node;
+        to[edge++] = other;
+      }
+    }
+    builder.addIntersections(x,y);
+    return (builder.addStreets(from,to));
+  }
+
+  /**
+   * Return the intersection reached by one of the two streets an
+   * intersection starts.
+   * 
+   * @param node the intersection
+   * @param kind which of its streets, 0 or 1
+   * @return the far intersection, or NONE if the street is not there
+   */
+  private int target (int node, int kind) {
+    int col = node % columns + offsetX(kind);
+    int row = node / columns + offsetY(kind);
+    if (col < 0 || col >= columns || row < 0 || row >= rows) return (NONE);
+    if (layout == Layout.irregular &&
+            RandomBits.uniform(RandomBits.hash(seed,node,kind,0)) < missing) {
+      return (NONE);
+    }
+    return (row * columns + col);
+  }
+
+  /** Return the column offset of the far end of a kind of street */
+  private int offsetX (int kind) {
+    if (layout == Layout.lShaped) return (kind == 0 ? 1 : -2);
+    return (kind == 0 ? 1 : 0);
+  }
+
+  /** Return the row offset of the far end of a kind of street */
+  private int offsetY (int kind) {
+    if (layout == Layout.lShaped) return (kind == 0 ? 1 : -1);
+    return (kind == 0 ? 0 : 1);
+  }
+}
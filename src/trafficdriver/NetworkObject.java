@@ -0,0 +1,57 @@
+package trafficdriver;
+
+/**
+ * What an intersection or street keeps so that publishing a map only
+ * reads the objects edited since the last publish.
+ * 
+ * The first map to publish an object adopts it, noting its place in
+ * that map's registry. From then on each edit of the object reports
+ * the place to the map, once until the next publish reads the object
+ * again. An object that is not adopted, because no map published it
+ * yet or it is registered at a second place, reports nothing.
+ */
+abstract class NetworkObject {
+
+  /** The map that adopted this object, or null */
+  private volatile SimpleMap home = null;
+  /** Place of this object in the registry of home */
+  private int homePlace = NetworkSnapshot.NONE;
+  /** True if an edit was reported since home last read this object */
+  private volatile boolean reported = false;
+
+  /**
+   * Adopt this object for a map, unless another place has it already.
+   * Only called by the map while it publishes.
+   * 
+   * @return true if the object is adopted at the place
+   */
+  final synchronized boolean adopt (SimpleMap roadMap, int place) {
+    if (home == null) {
+      homePlace = place;
+      home = roadMap;
+    }
+    return (home == roadMap && homePlace == place);
+  }
+
+  /** Return the place of this object in a map that adopted it, or NONE */
+  final int placeIn (SimpleMap roadMap) {
+    return (home == roadMap ? homePlace : NetworkSnapshot.NONE);
+  }
+
+  /**
+   * Note that the map is about to read this object, so the next edit
+   * is reported again.
+   */
+  final void read () {
+    reported = false;
+  }
+
+  /** Report an edit to the map that adopted this object, if any */
+  final void edited () {
+    SimpleMap roadMap = home;
+    if (roadMap != null && !reported) {
+      reported = true;
+      roadMap.edited(homePlace);
+    }
+  }
+}
@@ -0,0 +1,530 @@
+package trafficdriver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * An immutable view of the network registered with a SimpleMap, as it
+ * stood when the view was published.
+ * 
+ * Every registered object has a record of fixed size under its place
+ * in the registry. An intersection records its position and the place
+ * of the street in each of its slots; a street records its ends, the
+ * directions to enter them and its shape. Other kinds of object are
+ * kept by reference only and are not drawn. Places in the registry
+ * are given as plain ints, with NONE for an empty slot or an end that
+ * is open or not registered.
+ * 
+ * The records are kept in chunks. A new version is made from the last
+ * one by copying only the chunks in which a record changed, and
+ * shares all others. The map reads only the objects that reported an
+ * edit or were registered since, so publishing after a small edit
+ * costs the objects edited plus the chunks touched. If the map cannot
+ * track its objects that way, publishing costs one pass over all the
+ * records instead. A snapshot is never
+ * changed once published, so any number of threads can read it without
+ * locking and without seeing an edit half done.
+ */
+public class NetworkSnapshot {
+
+  /** Marker for an empty slot or a missing intersection or street */
+  public static final int NONE = -1;
+
+  /** log2 of the number of records in a chunk */
+  private static final int CHUNK_BITS = 10;
+  /** Number of records in a chunk */
+  private static final int CHUNK = 1 << CHUNK_BITS;
+  /** Number of ints in a record */
+  private static final int STRIDE = 10;
+
+  /** Kinds of record */
+  private static final int OTHER = 0;
+  private static final int NODE = 1;
+  private static final int STREET = 2;
+
+  /** Offsets of the fields of a record; KIND is common to all */
+  private static final int KIND = 0;
+  /** Intersection: position, and the street in each slot */
+  private static final int X = 1;
+  private static final int Y = 2;
+  private static final int SLOTS = 3;
+  /** Street: coordinates of the ends and of the turn */
+  private static final int X_ONE = 1;
+  private static final int Y_ONE = 2;
+  private static final int X_TWO = 3;
+  private static final int Y_TWO = 4;
+  private static final int X_TURN = 5;
+  private static final int Y_TURN = 6;
+  /** Street: places of intersection one and two */
+  private static final int ONE = 7;
+  private static final int TWO = 8;
+  /**
+   * Street: bit 0 is set if both ends are attached, bits 1-2 and 3-4
+   * hold the direction to enter intersection one and two
+   */
+  private static final int FLAGS = 9;
+
+  /** Number of publications this version is from an empty map */
+  private final long version;
+  /** Number of registered objects */
+  private final int count;
+  /** Dimensions of the map */
+  private final int xDim;
+  private final int yDim;
+  /** Records, in chunks of CHUNK records */
+  private final int[][] records;
+  /** Registered objects, in chunks */
+  private final RoadInterface[][] objects;
+  /** Names of the objects, in chunks; null for other kinds */
+  private final String[][] names;
+
+  private NetworkSnapshot (long version, int count, int xDim, int yDim,
+                           int[][] records, RoadInterface[][] objects,
+                           String[][] names) {
+    this.version = version;
+    this.count = count;
+    this.xDim = xDim;
+    this.yDim = yDim;
+    this.records = records;
+    this.objects = objects;
+    this.names = names;
+  }
+
+  /**
+   * Return version 0 of a map with nothing registered.
+   * 
+   * @param xDim x dimension of the map
+   * @param yDim y dimension of the map
+   */
+  static NetworkSnapshot empty (int xDim, int yDim) {
+    return (new NetworkSnapshot(0,0,xDim,yDim,new int[0][],
+                                new RoadInterface[0][],new String[0][]));
+  }
+
+  /**
+   * Make the next version from the registry of a map. The registry
+   * may only have grown since this version was made.
+   * 
+   * Without ids, only the places edited, the places added, and the
+   * neighbors of the objects added are read; every intersection and
+   * street of the registry must then have been adopted by the map at
+   * its place. With ids, every place is read.
+   * 
+   * @param registry the registered objects
+   * @param total number of registered objects
+   * @param roadMap the map that owns the registry
+   * @param ids place of each object in the registry, kept between
+   *          calls by the caller, or null; the objects added since this
+   *          version are entered here
+   * @param edited places reported edited since this version, in any
+   *          order and possibly repeated; ignored with ids
+   * @param numEdited number of places in edited
+   * @return the next version, or this one if nothing changed
+   */
+  NetworkSnapshot next (RoadInterface[] registry, int total,
+                        SimpleMap roadMap,
+                        IdentityHashMap<RoadInterface,Integer> ids,
+                        int[] edited, int numEdited) {
+    Successor next = new Successor(registry,total,roadMap,ids);
+    if (ids != null) {
+      // Enter every place the first time, the new ones after that.
+      for (int i = (ids.isEmpty() ? 0 : count) ; i < total ; i++) {
+        ids.put(registry[i],i);
+      }
+      for (int i = 0 ; i < total ; i++) {
+        next.read(i);
+      }
+    } else {
+      // The objects added may fill in references of older ones.
+      int[] neighbors = new int[16];
+      int numNeighbors = 0;
+      for (int i = count ; i < total ; i++) {
+        int[] record = next.read(i);
+        int from = (record[KIND] == NODE ? SLOTS :
+                    record[KIND] == STREET ? ONE : 0);
+        int to = (record[KIND] == NODE ? SLOTS + 4 :
+                  record[KIND] == STREET ? TWO + 1 : 0);
+        for (int f = from ; f < to ; f++) {
+          if (record[f] == NONE || record[f] >= count) continue;
+          if (numNeighbors == neighbors.length) {
+            neighbors = Arrays.copyOf(neighbors,2 * numNeighbors);
+          }
+          neighbors[numNeighbors++] = record[f];
+        }
+      }
+      for (int e = 0 ; e < numEdited ; e++) {
+        if (edited[e] < count) next.read(edited[e]);
+      }
+      for (int n = 0 ; n < numNeighbors ; n++) {
+        next.read(neighbors[n]);
+      }
+    }
+    if (!next.changed && total == count) return (this);
+    return (new NetworkSnapshot(version + 1,total,xDim,yDim,next.records,
+                                next.objects,next.names));
+  }
+
+  /**
+   * The next version as it is put together: the chunks of this one,
+   * copied the first time a record in them changes.
+   */
+  private class Successor {
+
+    final RoadInterface[] registry;
+    final SimpleMap roadMap;
+    final IdentityHashMap<RoadInterface,Integer> ids;
+    final int[][] records;
+    final RoadInterface[][] objects;
+    final String[][] names;
+    /** Chunks already copied for the next version, by array */
+    final boolean[] ownRecords;
+    final boolean[] ownObjects;
+    final boolean[] ownNames;
+    /** True once a record, object or name differs */
+    boolean changed = false;
+    /** Scratch space for reading an object */
+    final int[] record = new int[STRIDE];
+    final RoadInterface[] ends = new RoadInterface[2];
+    final int[] shape = new int[8];
+
+    Successor (RoadInterface[] registry, int total, SimpleMap roadMap,
+               IdentityHashMap<RoadInterface,Integer> ids) {
+      this.registry = registry;
+      this.roadMap = roadMap;
+      this.ids = ids;
+      int chunks = (total + CHUNK - 1) >>> CHUNK_BITS;
+      records = Arrays.copyOf(NetworkSnapshot.this.records,chunks);
+      objects = Arrays.copyOf(NetworkSnapshot.this.objects,chunks);
+      names = Arrays.copyOf(NetworkSnapshot.this.names,chunks);
+      ownRecords = new boolean[chunks];
+      ownObjects = new boolean[chunks];
+      ownNames = new boolean[chunks];
+    }
+
+    /**
+     * Read the object at a place and store its record, object and name
+     * where they differ.
+     * 
+     * @return the record read, valid until the next call
+     */
+    int[] read (int i) {
+      int c = i >>> CHUNK_BITS;
+      int at = i & (CHUNK - 1);
+      boolean added = (i >= count);
+      RoadInterface object = registry[i];
+      String name = null;
+      Arrays.fill(record,0);
+      if (ids == null && object instanceof NetworkObject) {
+        // Edits from here on are reported again.
+        ((NetworkObject) object).read();
+      }
+      if (object instanceof Intersection) {
+        Intersection inter = (Intersection) object;
+        record[KIND] = NODE;
+        record[X] = inter.getXPos();
+        record[Y] = inter.getYPos();
+        for (int d = 0 ; d < 4 ; d++) {
+          Direction dir = DirectionCode.toDirection(d);
+          record[SLOTS + d] = placeOf(inter.getConnectedRoad(dir));
+        }
+        name = inter.getName();
+      } else if (object instanceof Street) {
+        Street street = (Street) object;
+        street.copyState(ends,shape);
+        record[KIND] = STREET;
+        System.arraycopy(shape,0,record,X_ONE,6);
+        record[ONE] = placeOf(ends[0]);
+        record[TWO] = placeOf(ends[1]);
+        record[FLAGS] = (ends[0] != null && ends[1] != null ? 1 : 0) |
+                (shape[6] << 1) | (shape[7] << 3);
+        name = street.getName();
+      }
+      if (added || !sameRecord(records[c],at * STRIDE,record)) {
+        if (!ownRecords[c]) {
+          records[c] = (records[c] == null ? new int[CHUNK * STRIDE] :
+                  records[c].clone());
+          ownRecords[c] = true;
+        }
+        System.arraycopy(record,0,records[c],at * STRIDE,STRIDE);
+        changed = true;
+      }
+      if (added || objects[c][at] != object) {
+        if (!ownObjects[c]) {
+          objects[c] = (objects[c] == null ? new RoadInterface[CHUNK] :
+                  objects[c].clone());
+          ownObjects[c] = true;
+        }
+        objects[c][at] = object;
+        changed = true;
+      }
+      if (added || names[c][at] != name) {
+        if (!ownNames[c]) {
+          names[c] = (names[c] == null ? new String[CHUNK] :
+                  names[c].clone());
+          ownNames[c] = true;
+        }
+        names[c][at] = name;
+        changed = true;
+      }
+      return (record);
+    }
+
+    /** Return the place of a registered object, or NONE */
+    private int placeOf (RoadInterface object) {
+      if (object == null) return (NONE);
+      if (ids == null) {
+        return (object instanceof NetworkObject ?
+                ((NetworkObject) object).placeIn(roadMap) : NONE);
+      }
+      Integer place = ids.get(object);
+      return (place == null ? NONE : place);
+    }
+  }
+
+  /**
+   * Return the first place at or after a given one whose record or
+   * name may differ from an older version of the same map. Chunks this
+   * version shares with the older one are skipped whole.
+   *
+   * @param older an earlier version published by the same map
+   * @param from the place to start at
+   * @return the place, or the object count if there is none
+   */
+  int nextChanged (NetworkSnapshot older, int from) {
+    while (from < count) {
+      int c = from >>> CHUNK_BITS;
+      if (c >= older.records.length || records[c] != older.records[c] ||
+              names[c] != older.names[c]) {
+        return (from);
+      }
+      from = (c + 1) << CHUNK_BITS;
+    }
+    return (count);
+  }
+
+  /** Test if a stored record equals a new one */
+  private static boolean sameRecord (int[] chunk, int from, int[] record) {
+    for (int f = 0 ; f < STRIDE ; f++) {
+      if (chunk[from + f] != record[f]) return (false);
+    }
+    return (true);
+  }
+
+  /** Return field f of the record at a place */
+  private int field (int place, int f) {
+    if (place < 0 || place >= count) {
+      throw new IndexOutOfBoundsException("place " + place);
+    }
+    return (records[place >>> CHUNK_BITS][(place & (CHUNK - 1)) * STRIDE +
+            f]);
+  }
+
+  /** Return the version, which grows by one with each publication */
+  public long getVersion () {
+    return (version);
+  }
+
+  /** Return the number of registered objects */
+  public int getObjectCount () {
+    return (count);
+  }
+
+  /** Return grid x dimension */
+  public int getxDim () {
+    return (xDim);
+  }
+
+  /** Return grid y dimension */
+  public int getyDim () {
+    return (yDim);
+  }
+
+  /** Test if the object at a place is an intersection */
+  public boolean isIntersection (int place) {
+    return (field(place,KIND) == NODE);
+  }
+
+  /** Test if the object at a place is a street */
+  public boolean isStreet (int place) {
+    return (field(place,KIND) == STREET);
+  }
+
+  /**
+   * Return the object registered at a place. The object itself is
+   * live, and may have changed since the snapshot was published.
+   */
+  public RoadInterface getObject (int place) {
+    field(place,KIND);
+    return (objects[place >>> CHUNK_BITS][place & (CHUNK - 1)]);
+  }
+
+  /**
+   * Return the name of the intersection or street at a place, as it
+   * was when the snapshot was published.
+   */
+  public String getName (int place) {
+    field(place,KIND);
+    return (names[place >>> CHUNK_BITS][place & (CHUNK - 1)]);
+  }
+
+  /** Return the X coordinate of an intersection */
+  public int getXPos (int node) {
+    return (field(node,X));
+  }
+
+  /** Return the Y coordinate of an intersection */
+  public int getYPos (int node) {
+    return (field(node,Y));
+  }
+
+  /**
+   * Return the street in a slot of an intersection.
+   * 
+   * @param node the place of the intersection
+   * @param dir the direction of the slot
+   * @return the place of the street, or NONE if the slot is empty or
+   *         the place is not an intersection
+   */
+  public int getStreet (int node, Direction dir) {
+    if (field(node,KIND) != NODE) return (NONE);
+    return (field(node,SLOTS + dir.ordinal()));
+  }
+
+  /**
+   * Return the intersection at the far end of the street in a slot of
+   * an intersection.
+   * 
+   * @param node the place of the intersection
+   * @param dir the direction of the slot
+   * @return the place of the neighbor, or NONE if there is none
+   */
+  public int getNeighbor (int node, Direction dir) {
+    int street = getStreet(node,dir);
+    if (street == NONE || field(street,KIND) != STREET) return (NONE);
+    int one = field(street,ONE);
+    int two = field(street,TWO);
+    if (one == node) return (two);
+    if (two == node) return (one);
+    return (NONE);
+  }
+
+  /** Test if a street is attached at both ends */
+  public boolean isAttached (int street) {
+    return (field(street,KIND) == STREET && (field(street,FLAGS) & 1) != 0);
+  }
+
+  /**
+   * Return intersection one of a street, where construction started.
+   * 
+   * @return the place of the intersection, or NONE if that end is open
+   *         or its intersection is not registered
+   */
+  public int getStart (int street) {
+    return (field(street,KIND) == STREET ? field(street,ONE) : NONE);
+  }
+
+  /**
+   * Return intersection two of a street, where construction ended.
+   * 
+   * @return the place of the intersection, or NONE if that end is open
+   *         or its intersection is not registered
+   */
+  public int getEnd (int street) {
+    return (field(street,KIND) == STREET ? field(street,TWO) : NONE);
+  }
+
+  /** Return the direction to travel to enter intersection one */
+  public Direction getStartDirection (int street) {
+    return (DirectionCode.toDirection((field(street,FLAGS) >> 1) & 3));
+  }
+
+  /** Return the direction to travel to enter intersection two */
+  public Direction getEndDirection (int street) {
+    return (DirectionCode.toDirection((field(street,FLAGS) >> 3) & 3));
+  }
+
+  /**
+   * Build a graph holding the network of the snapshot, in the same way
+   * as RoadGraph.fromMap builds one from the map: intersections in
+   * registry order, then the streets attached at both ends to
+   * registered intersections.
+   */
+  public RoadGraph toGraph () {
+    int[] nodeOf = new int[count];
+    int nodes = 0;
+    int edges = 0;
+    for (int i = 0 ; i < count ; i++) {
+      nodeOf[i] = (field(i,KIND) == NODE ? nodes++ : NONE);
+    }
+    for (int i = 0 ; i < count ; i++) {
+      if (joinsNodes(i,nodeOf)) edges++;
+    }
+    int[] nodeX = new int[nodes];
+    int[] nodeY = new int[nodes];
+    int[] nodeEdge = new int[4 * nodes];
+    int[] edgeNode = new int[2 * edges];
+    byte[] edgeDir = new byte[2 * edges];
+    Arrays.fill(nodeEdge,NONE);
+    for (int i = 0 ; i < count ; i++) {
+      if (nodeOf[i] == NONE) continue;
+      nodeX[nodeOf[i]] = field(i,X);
+      nodeY[nodeOf[i]] = field(i,Y);
+    }
+    int edge = 0;
+    for (int i = 0 ; i < count ; i++) {
+      if (!joinsNodes(i,nodeOf)) continue;
+      int from = nodeOf[field(i,ONE)];
+      int to = nodeOf[field(i,TWO)];
+      int fromDir = getStartDirection(i).opposite().ordinal();
+      int toDir = getEndDirection(i).opposite().ordinal();
+      edgeNode[2 * edge] = from;
+      edgeNode[2 * edge + 1] = to;
+      edgeDir[2 * edge] = (byte) fromDir;
+      edgeDir[2 * edge + 1] = (byte) toDir;
+      nodeEdge[4 * from + fromDir] = edge;
+      nodeEdge[4 * to + toDir] = edge;
+      edge++;
+    }
+    return (new RoadGraph(nodeX,nodeY,nodeEdge,edgeNode,edgeDir));
+  }
+
+  /** Test if a place holds a street with an intersection at each end */
+  private boolean joinsNodes (int place, int[] nodeOf) {
+    if (field(place,KIND) != STREET) return (false);
+    int one = field(place,ONE);
+    int two = field(place,TWO);
+    return (one != NONE && two != NONE && nodeOf[one] != NONE &&
+            nodeOf[two] != NONE);
+  }
+
+  /**
+   * Generate the same text as SimpleMap.toString gave when the
+   * snapshot was published, provided only intersections and streets
+   * are registered.
+   */
+  public String toString () {
+    char[][] grid = new char[yDim][xDim];
+    for (int y = 0 ; y < yDim ; y++) {
+      Arrays.fill(grid[y],' ');
+    }
+    for (int i = 0 ; i < count ; i++) {
+      int kind = field(i,KIND);
+      if (kind == NODE) {
+        Intersection.drawIntersection(grid,field(i,X),field(i,Y));
+      } else if (kind == STREET && isAttached(i)) {
+        Street.drawStreet(grid,0,0,field(i,X_ONE),field(i,Y_ONE),
+                          field(i,X_TWO),field(i,Y_TWO),field(i,X_TURN),
+                          field(i,Y_TURN));
+      }
+    }
+    StringBuilder result = new StringBuilder((yDim + 5) * (xDim + 4));
+    try {
+      SimpleMap.writeGrid(result,grid,xDim,yDim);
+    } catch (IOException ex) {
+      // A StringBuilder never throws.
+      throw new IllegalStateException(ex);
+    }
+    return (result.toString());
+  }
+}
@@ -0,0 +1,126 @@
+package trafficdriver;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of node indices keyed by long priorities, for
+ * graph searches. Long keys leave room to pack a tie-breaker below
+ * the distance.
+ * 
+ * Each node can be in the heap once; pushing a node that is already
+ * there lowers its key instead. The heap keeps the position of every
+ * node it holds, so it is sized for the whole graph, but it never
+ * allocates once constructed: a search that leaves nodes behind
+ * empties the heap with clear, which costs only the nodes still in
+ * it.
+ */
+final class NodeHeap {
+
+  /** Nodes in heap order, and their keys */
+  private int[] nodes = null;
+  private long[] keys = null;
+  /** Heap position of each node, -1 if it is not in the heap */
+  private int[] pos = null;
+  /** current number of nodes in the heap */
+  private int size = 0;
+
+  /**
+   * Construct an empty heap for nodes 0 to capacity - 1.
+   * 
+   * @param capacity number of nodes in the graph
+   */
+  NodeHeap (int capacity) {
+    nodes = new int[capacity];
+    keys = new long[capacity];
+    pos = new int[capacity];
+    Arrays.fill(pos,-1);
+  }
+
+  /** Return the number of nodes the heap can hold */
+  int capacity () {
+    return (pos.length);
+  }
+
+  /** Check if the heap is empty */
+  boolean isEmpty () {
+    return (size == 0);
+  }
+
+  /** Check if a node is in the heap */
+  boolean contains (int node) {
+    return (pos[node] >= 0);
+  }
+
+  /** Return the smallest key in the heap; the heap must not be empty */
+  long peekKey () {
+    return (keys[0]);
+  }
+
+  /**
+   * Add a node, or lower its key if it is already in the heap. A key
+   * that is not lower than the current one is ignored.
+   * 
+   * @param node the node
+   * @param key its key
+   */
+  void push (int node, long key) {
+    int at = pos[node];
+    if (at < 0) {
+      at = size++;
+    } else if (key >= keys[at]) {
+      return;
+    }
+    // Sift up from the new or lowered position.
+    while (at > 0) {
+      int parent = (at - 1) >>> 1;
+      if (keys[parent] <= key) break;
+      nodes[at] = nodes[parent];
+      keys[at] = keys[parent];
+      pos[nodes[at]] = at;
+      at = parent;
+    }
+    nodes[at] = node;
+    keys[at] = key;
+    pos[node] = at;
+  }
+
+  /**
+   * Remove the node with the smallest key; the heap must not be
+   * empty.
+   * 
+   * @return the node removed
+   */
+  int pop () {
+    int top = nodes[0];
+    pos[top] = -1;
+    size--;
+    if (size > 0) {
+      int node = nodes[size];
+      long key = keys[size];
+      // Sift the last node down from the root.
+      int at = 0;
+      while (true) {
+        int child = 2 * at + 1;
+        if (child >= size) break;
+        if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+        if (keys[child] >= key) break;
+        nodes[at] = nodes[child];
+        keys[at] = keys[child];
+        pos[nodes[at]] = at;
+        at = child;
+      }
+      nodes[at] = node;
+      keys[at] = key;
+      pos[node] = at;
+    }
+    return (top);
+  }
+
+  /** Remove every node from the heap */
+  void clear () {
+    for (int i = 0 ; i < size ; i++) {
+      pos[nodes[i]] = -1;
+    }
+    size = 0;
+  }
+}
@@ -0,0 +1,83 @@
+package trafficdriver;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop body over a range of indices on a ForkJoinPool.
+ * 
+ * The range is split in halves until the pieces are no larger than
+ * the grain, and the pieces run in parallel. The call returns once
+ * every piece is done, so everything the body wrote is visible to the
+ * caller afterwards. An exception thrown by the body is rethrown to
+ * the caller.
+ */
+final class ParallelRange {
+
+  /** A loop body over part of a range */
+  interface Body {
+
+    /**
+     * Process indices from (inclusive) to to (exclusive).
+     * 
+     * @param from first index
+     * @param to one past the last index
+     */
+    void run (int from, int to);
+  }
+
+  private ParallelRange () {}
+
+  /**
+   * Run a body over a range of indices.
+   * 
+   * @param pool the pool to run on; a pool with parallelism 1 runs
+   *          the body in the calling thread
+   * @param from first index
+   * @param to one past the last index
+   * @param grain largest piece handed to one call of the body
+   * @param body the loop body
+   */
+  static void run (ForkJoinPool pool, int from, int to, int grain,
+                   Body body) {
+    if (from >= to) return;
+    if (to - from <= grain || pool.getParallelism() <= 1) {
+      body.run(from,to);
+    } else {
+      pool.invoke(new Piece(from,to,Math.max(grain,1),body));
+    }
+  }
+
+  /** Return a grain that gives each worker of a pool a few pieces */
+  static int grainFor (ForkJoinPool pool, int count) {
+    return (Math.max(1,count / (4 * pool.getParallelism())));
+  }
+
+  /** One piece of the range, split further while it is too large */
+  private static class Piece extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final int grain;
+    private final Body body;
+
+    Piece (int from, int to, int grain, Body body) {
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+      this.body = body;
+    }
+
+    protected void compute () {
+      if (to - from <= grain) {
+        body.run(from,to);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new Piece(from,middle,grain,body),
+                new Piece(middle,to,grain,body));
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package trafficdriver;
+
+/**
+ * Random bits computed from a seed and a few values instead of drawn
+ * from a generator.
+ * 
+ * The same seed and values always give the same bits, whatever thread
+ * asks and in whatever order, so a parallel pass makes the same random
+ * choices as a serial one. The values are spread by multiplication
+ * and the result finished with the SplitMix64 mixer.
+ */
+final class RandomBits {
+
+  private RandomBits () {}
+
+  /**
+   * Mix a seed with three values into 64 random bits.
+   * 
+   * @param seed the seed
+   * @param a first value
+   * @param b second value
+   * @param c third value, 0 if only two are needed
+   * @return the bits
+   */
+  static long hash (long seed, int a, int b, int c) {
+    long h = seed ^ ((long) a * 0x9e3779b97f4a7c15L) ^
+            ((long) b * 0xc2b2ae3d27d4eb4fL) ^ ((long) c * 0x165667b19e3779f9L);
+    h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+    h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+    return (h ^ (h >>> 31));
+  }
+
+  /** Turn 64 random bits into a double from 0 (inclusive) to 1 */
+  static double uniform (long bits) {
+    return ((bits >>> 11) * 0x1.0p-53);
+  }
+}
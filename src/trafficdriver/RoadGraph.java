@@ -0,0 +1,672 @@
+package trafficdriver;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A compact store for a road network.
+ * 
+ * Intersections and streets are kept in primitive columns instead of
+ * one object per road element. Intersection i has its coordinates at
+ * nodeX[i] and nodeY[i] and the streets leaving it at nodeEdge[4 * i
+ * + dir.ordinal()]. Street e has its start intersection at
+ * edgeNode[2 * e] and its end intersection at edgeNode[2 * e + 1];
+ * edgeDir holds the direction in which the street leaves each of
+ * them. Unused slots hold NONE.
+ * 
+ * The geometry rules are the same as for Intersection and Street: a
+ * street may have one turn, and it must be to the right when
+ * traveling from the start to the end.
+ * 
+ * IntersectionView and StreetView are flyweights over the columns so
+ * that the graph can be used wherever a RoadInterface is expected.
+ * They hold nothing but an index and can be created and discarded
+ * freely.
+ */
+public class RoadGraph {
+
+  /** Marker for an empty slot or a missing intersection or street */
+  public static final int NONE = -1;
+
+  /** X and Y coordinates of the intersections */
+  private int[] nodeX = null;
+  private int[] nodeY = null;
+  /** Streets leaving each intersection, four slots per intersection */
+  private int[] nodeEdge = null;
+  /** current number of intersections */
+  private int numNodes = 0;
+
+  /** Start and end intersection of each street */
+  private int[] edgeNode = null;
+  /** Direction each street leaves its start and end intersection */
+  private byte[] edgeDir = null;
+  /** current number of streets */
+  private int numEdges = 0;
+
+  /** Default constructor for an empty graph */
+  public RoadGraph () {
+    this(0,0);
+  }
+
+  /**
+   * Construct an empty graph with room for the specified number of
+   * intersections and streets.
+   * 
+   * @param nodeCapacity expected number of intersections
+   * @param edgeCapacity expected number of streets
+   */
+  public RoadGraph (int nodeCapacity, int edgeCapacity) {
+    nodeX = new int[nodeCapacity];
+    nodeY = new int[nodeCapacity];
+    nodeEdge = new int[4 * nodeCapacity];
+    edgeNode = new int[2 * edgeCapacity];
+    edgeDir = new byte[2 * edgeCapacity];
+  }
+
+  /**
+   * Construct a graph over existing columns, which are used, not
+   * copied. Every slot must be in use.
+   * 
+   * @param nodeX X coordinate of each intersection
+   * @param nodeY Y coordinate of each intersection
+   * @param nodeEdge four street slots per intersection
+   * @param edgeNode start and end intersection of each street
+   * @param edgeDir direction ordinal each street leaves its ends
+   */
+  RoadGraph (int[] nodeX, int[] nodeY, int[] nodeEdge, int[] edgeNode,
+             byte[] edgeDir) {
+    this.nodeX = nodeX;
+    this.nodeY = nodeY;
+    this.nodeEdge = nodeEdge;
+    this.edgeNode = edgeNode;
+    this.edgeDir = edgeDir;
+    numNodes = nodeX.length;
+    numEdges = edgeNode.length / 2;
+  }
+
+  /**
+   * Build a graph holding the same network as the objects registered
+   * with a map. Streets that are not attached at both ends, or that
+   * are attached to an intersection not registered with the map, are
+   * left out.
+   * 
+   * @param roadMap the map to copy
+   * @return a new graph
+   */
+  public static RoadGraph fromMap (SimpleMap roadMap) {
+    return (fromMap(roadMap,null,null));
+  }
+
+  /**
+   * Build a graph from a map, also collecting the names of the
+   * intersections and streets copied, in index order.
+   * 
+   * @param roadMap the map to copy
+   * @param nodeNames receives the intersection names, or null
+   * @param edgeNames receives the street names, or null
+   * @return a new graph
+   */
+  static RoadGraph fromMap (SimpleMap roadMap, List<String> nodeNames,
+                            List<String> edgeNames) {
+    roadMap.settle();
+    int total = roadMap.numObjects;
+    RoadInterface[] objects = roadMap.roadObjects;
+    int inters = 0;
+    int streets = 0;
+    for (int i = 0 ; i < total ; i++) {
+      if (objects[i] instanceof Intersection) inters++;
+      if (objects[i] instanceof Street) streets++;
+    }
+    RoadGraph graph = new RoadGraph(inters,streets);
+    IdentityHashMap<Intersection,Integer> ids =
+            new IdentityHashMap<Intersection,Integer>(inters);
+    for (int i = 0 ; i < total ; i++) {
+      if (objects[i] instanceof Intersection) {
+        Intersection inter = (Intersection) objects[i];
+        ids.put(inter,graph.addIntersection(inter.getXPos(),inter.getYPos()));
+        if (nodeNames != null) nodeNames.add(inter.getName());
+      }
+    }
+    for (int i = 0 ; i < total ; i++) {
+      if (objects[i] instanceof Street) {
+        Street street = (Street) objects[i];
+        Integer start = ids.get(street.getStart());
+        Integer end = ids.get(street.getEnd());
+        if (start != null && end != null) {
+          graph.addStreet(start,street.getStartDirection().opposite(),end,
+                          street.getEndDirection().opposite());
+          if (edgeNames != null) edgeNames.add(street.getName());
+        }
+      }
+    }
+    return (graph);
+  }
+
+  /** Return the number of intersections */
+  public int getNodeCount () {
+    return (numNodes);
+  }
+
+  /** Return the number of streets */
+  public int getEdgeCount () {
+    return (numEdges);
+  }
+
+  /**
+   * Add an unconnected intersection at the specified location.
+   * 
+   * @param xPos X coordinate of the intersection
+   * @param yPos Y coordinate of the intersection
+   * @return the index of the new intersection
+   */
+  public int addIntersection (int xPos, int yPos) {
+    if (numNodes >= nodeX.length) {
+      int capacity = numNodes * 2 + 1;
+      nodeX = Arrays.copyOf(nodeX,capacity);
+      nodeY = Arrays.copyOf(nodeY,capacity);
+      nodeEdge = Arrays.copyOf(nodeEdge,4 * capacity);
+    }
+    nodeX[numNodes] = xPos;
+    nodeY[numNodes] = yPos;
+    Arrays.fill(nodeEdge,4 * numNodes,4 * numNodes + 4,NONE);
+    return (numNodes++);
+  }
+
+  /**
+   * Add a street that is not yet attached to any intersection. Its
+   * ends are filled in by connecting it through the views.
+   * 
+   * @return the index of the new street
+   */
+  public int addStreet () {
+    if (numEdges * 2 >= edgeNode.length) {
+      int capacity = numEdges * 2 + 1;
+      edgeNode = Arrays.copyOf(edgeNode,2 * capacity);
+      edgeDir = Arrays.copyOf(edgeDir,2 * capacity);
+    }
+    edgeNode[2 * numEdges] = NONE;
+    edgeNode[2 * numEdges + 1] = NONE;
+    return (numEdges++);
+  }
+
+  /**
+   * Build a street between two intersections, in the same way as
+   * Intersection.buildStreetTo. Both attachment points are checked
+   * before anything is changed, so a failed build leaves the graph
+   * untouched.
+   * 
+   * @param from the intersection where construction starts
+   * @param to the intersection where construction ends
+   * @return the index of the new street, or NONE if the intersections
+   *         coincide or either attachment point is taken
+   */
+  public int buildStreet (int from, int to) {
+    int deltaX = nodeX[from] - nodeX[to];
+    int deltaY = nodeY[from] - nodeY[to];
+    Direction fromDir = Intersection.streetStart(deltaX,deltaY);
+    Direction toDir = Intersection.streetEnd(deltaX,deltaY);
+    if (fromDir == null) return (NONE);
+    if (nodeEdge[4 * from + fromDir.ordinal()] != NONE ||
+            nodeEdge[4 * to + toDir.ordinal()] != NONE) return (NONE);
+    return (addStreet(from,fromDir,to,toDir));
+  }
+
+  /**
+   * Add a street and attach it at the given slots without checking
+   * them.
+   */
+  private int addStreet (int from, Direction fromDir, int to,
+                         Direction toDir) {
+    int edge = addStreet();
+    edgeNode[2 * edge] = from;
+    edgeNode[2 * edge + 1] = to;
+    edgeDir[2 * edge] = (byte) fromDir.ordinal();
+    edgeDir[2 * edge + 1] = (byte) toDir.ordinal();
+    nodeEdge[4 * from + fromDir.ordinal()] = edge;
+    nodeEdge[4 * to + toDir.ordinal()] = edge;
+    return (edge);
+  }
+
+  /** Return the X coordinate of an intersection */
+  public int getXPos (int node) {
+    return (nodeX[node]);
+  }
+
+  /** Return the Y coordinate of an intersection */
+  public int getYPos (int node) {
+    return (nodeY[node]);
+  }
+
+  /**
+   * Return the street leaving an intersection in the specified
+   * direction.
+   * 
+   * @param node the intersection
+   * @param dir the direction
+   * @return the street, or NONE if no street is connected
+   */
+  public int getEdge (int node, Direction dir) {
+    return (nodeEdge[4 * node + dir.ordinal()]);
+  }
+
+  /**
+   * Return the street leaving an intersection in the direction with
+   * the specified DirectionCode.
+   * 
+   * @param node the intersection
+   * @param dir the code of the direction
+   * @return the street, or NONE if no street is connected
+   */
+  public int getEdge (int node, int dir) {
+    return (nodeEdge[4 * node + dir]);
+  }
+
+  /**
+   * Return the intersection reached by leaving an intersection in the
+   * specified direction.
+   * 
+   * @param node the intersection
+   * @param dir the direction
+   * @return the neighboring intersection, or NONE if there is none
+   */
+  public int getNeighbor (int node, Direction dir) {
+    return (getNeighbor(node,dir.ordinal()));
+  }
+
+  /**
+   * Return the intersection reached by leaving an intersection in the
+   * direction with the specified DirectionCode.
+   * 
+   * @param node the intersection
+   * @param dir the code of the direction
+   * @return the neighboring intersection, or NONE if there is none
+   */
+  public int getNeighbor (int node, int dir) {
+    int edge = nodeEdge[4 * node + dir];
+    if (edge == NONE) return (NONE);
+    return (getOtherNode(edge,node));
+  }
+
+  /**
+   * Return an end of a street.
+   * 
+   * @param edge the street
+   * @param end 0 for the start intersection, 1 for the end
+   * @return the intersection, or NONE if that end is not attached
+   */
+  public int getEdgeNode (int edge, int end) {
+    return (edgeNode[2 * edge + end]);
+  }
+
+  /**
+   * Return the direction in which a street leaves one of its
+   * intersections.
+   * 
+   * @param edge the street
+   * @param end 0 for the start intersection, 1 for the end
+   * @return the direction, or null if that end is not attached
+   */
+  public Direction getEdgeDirection (int edge, int end) {
+    if (edgeNode[2 * edge + end] == NONE) return (null);
+    return (DirectionCode.toDirection(edgeDir[2 * edge + end]));
+  }
+
+  /**
+   * Return the DirectionCode of the direction in which a street leaves
+   * one of its intersections.
+   * 
+   * @param edge the street
+   * @param end 0 for the start intersection, 1 for the end
+   * @return the code, or NONE if that end is not attached
+   */
+  public int getEdgeCode (int edge, int end) {
+    if (edgeNode[2 * edge + end] == NONE) return (NONE);
+    return (edgeDir[2 * edge + end]);
+  }
+
+  /**
+   * Return the intersection at the other end of a street.
+   * 
+   * @param edge the street
+   * @param node one end of the street
+   * @return the other end
+   */
+  public int getOtherNode (int edge, int node) {
+    int start = edgeNode[2 * edge];
+    return (start == node ? edgeNode[2 * edge + 1] : start);
+  }
+
+  /** Check if a street still has an unattached end */
+  public boolean isOpen (int edge) {
+    return (edgeNode[2 * edge] == NONE || edgeNode[2 * edge + 1] == NONE);
+  }
+
+  /**
+   * Return the length of a street in grid cells, measured along the
+   * street through its turn point.
+   */
+  public int getLength (int edge) {
+    int start = edgeNode[2 * edge];
+    int end = edgeNode[2 * edge + 1];
+    return (Math.abs(nodeX[start] - nodeX[end]) +
+            Math.abs(nodeY[start] - nodeY[end]));
+  }
+
+  /**
+   * Return the X coordinate of the turn in a street, computed the
+   * same way as in Street: the x coordinate of the north/south leg.
+   * 
+   * @return the coordinate, or -1 if the street has no turn
+   */
+  public int getTurnX (int edge) {
+    if (!hasTurn(edge)) return (-1);
+    int vertical = DirectionCode.isVertical(edgeDir[2 * edge]) ? 0 : 1;
+    return (nodeX[edgeNode[2 * edge + vertical]]);
+  }
+
+  /**
+   * Return the Y coordinate of the turn in a street: the y coordinate
+   * of the east/west leg.
+   * 
+   * @return the coordinate, or -1 if the street has no turn
+   */
+  public int getTurnY (int edge) {
+    if (!hasTurn(edge)) return (-1);
+    int horizontal = DirectionCode.isVertical(edgeDir[2 * edge]) ? 1 : 0;
+    return (nodeY[edgeNode[2 * edge + horizontal]]);
+  }
+
+  /** Check if a complete street bends at a turn point */
+  private boolean hasTurn (int edge) {
+    if (isOpen(edge)) return (false);
+    return (DirectionCode.opposite(edgeDir[2 * edge]) !=
+            edgeDir[2 * edge + 1]);
+  }
+
+  /** Shrink all columns to the current number of elements */
+  public void trimToSize () {
+    nodeX = Arrays.copyOf(nodeX,numNodes);
+    nodeY = Arrays.copyOf(nodeY,numNodes);
+    nodeEdge = Arrays.copyOf(nodeEdge,4 * numNodes);
+    edgeNode = Arrays.copyOf(edgeNode,2 * numEdges);
+    edgeDir = Arrays.copyOf(edgeDir,2 * numEdges);
+  }
+
+  /** Return a view of an intersection */
+  public IntersectionView getIntersection (int node) {
+    return (new IntersectionView(node));
+  }
+
+  /** Return a view of a street */
+  public StreetView getStreet (int edge) {
+    return (new StreetView(edge));
+  }
+
+  /**
+   * A flyweight view of one intersection in the graph.
+   * 
+   * Two views are equal when they refer to the same intersection of
+   * the same graph.
+   */
+  public class IntersectionView implements RoadInterface {
+
+    /** Index of the intersection in the graph */
+    private final int node;
+
+    private IntersectionView (int node) {
+      this.node = node;
+    }
+
+    /** Return the index of the intersection in the graph */
+    public int getIndex () {
+      return (node);
+    }
+
+    /** Return the X coordinate of this intersection */
+    public int getXPos () {
+      return (nodeX[node]);
+    }
+
+    /** Return the Y coordinate of this intersection */
+    public int getYPos () {
+      return (nodeY[node]);
+    }
+
+    /**
+     * Draw the intersection on the map as a single `+', if it is on
+     * the map.
+     * 
+     * @param roadMap a character array to draw on
+     */
+    public void drawOnMap (char[][] roadMap) {
+      drawOnMap(roadMap,0,0);
+    }
+
+    /**
+     * Draw the intersection on a window of the map.
+     * 
+     * @param roadMap a character array to draw on
+     * @param xOff map x coordinate of the first column of the array
+     * @param yOff map y coordinate of the first row of the array
+     */
+    public void drawOnMap (char[][] roadMap, int xOff, int yOff) {
+      Intersection.drawIntersection(roadMap,nodeX[node] - xOff,
+                                    nodeY[node] - yOff);
+    }
+
+    /**
+     * The intersection occupies the single cell at its coordinates.
+     * 
+     * @param bounds receives the smallest and largest x and y
+     * @return always true
+     */
+    public boolean getBounds (int[] bounds) {
+      bounds[0] = nodeX[node];
+      bounds[1] = nodeY[node];
+      bounds[2] = nodeX[node];
+      bounds[3] = nodeY[node];
+      return (true);
+    }
+
+    /**
+     * Return the street connected in the specified direction
+     * 
+     * @param dir the specified direction
+     * @return the connected street, or null if no street is connected.
+     */
+    public RoadInterface getConnectedRoad (Direction dir) {
+      if (dir == null) return (null);
+      int edge = nodeEdge[4 * node + dir.ordinal()];
+      return (edge == NONE ? null : new StreetView(edge));
+    }
+
+    /**
+     * Connect this intersection to a street of the same graph. The
+     * street also points back to the intersection.
+     * 
+     * @param newObj the street to be connected
+     * @param attachAt the direction where newObj should be connected
+     * @return true if the connection succeeds, false otherwise
+     * @throws ClassCastException if newObj is not a street of this
+     *           graph
+     */
+    public boolean connectTo (RoadInterface newObj, Direction attachAt)
+      throws ClassCastException {
+      StreetView street = asStreet(newObj);
+      if (attachAt == null) return (false);
+      return (street.attach(node,attachAt));
+    }
+
+    public boolean equals (Object other) {
+      return (other instanceof IntersectionView &&
+              ((IntersectionView) other).node == node &&
+              ((IntersectionView) other).graph() == RoadGraph.this);
+    }
+
+    public int hashCode () {
+      return (node);
+    }
+
+    /** Return the graph this view belongs to */
+    private RoadGraph graph () {
+      return (RoadGraph.this);
+    }
+  }
+
+  /**
+   * A flyweight view of one street in the graph.
+   * 
+   * Two views are equal when they refer to the same street of the
+   * same graph.
+   */
+  public class StreetView implements RoadInterface {
+
+    /** Index of the street in the graph */
+    private final int edge;
+
+    private StreetView (int edge) {
+      this.edge = edge;
+    }
+
+    /** Return the index of the street in the graph */
+    public int getIndex () {
+      return (edge);
+    }
+
+    /**
+     * Paint the street onto the grid. An open street has no geometry
+     * and is not drawn.
+     * 
+     * @param roadMap a character array to draw on
+     */
+    public void drawOnMap (char[][] roadMap) {
+      drawOnMap(roadMap,0,0);
+    }
+
+    /**
+     * Paint the street onto a window of the map.
+     * 
+     * @param roadMap a character array to draw on
+     * @param xOff map x coordinate of the first column of the array
+     * @param yOff map y coordinate of the first row of the array
+     */
+    public void drawOnMap (char[][] roadMap, int xOff, int yOff) {
+      if (isOpen(edge)) return;
+      int start = edgeNode[2 * edge];
+      int end = edgeNode[2 * edge + 1];
+      Street.drawStreet(roadMap,xOff,yOff,nodeX[start],nodeY[start],
+                        nodeX[end],nodeY[end],getTurnX(edge),
+                        getTurnY(edge));
+    }
+
+    /**
+     * The street lies within the rectangle spanned by its two
+     * intersections.
+     * 
+     * @param bounds receives the smallest and largest x and y
+     * @return false if the street is open
+     */
+    public boolean getBounds (int[] bounds) {
+      if (isOpen(edge)) return (false);
+      int start = edgeNode[2 * edge];
+      int end = edgeNode[2 * edge + 1];
+      bounds[0] = Math.min(nodeX[start],nodeX[end]);
+      bounds[1] = Math.min(nodeY[start],nodeY[end]);
+      bounds[2] = Math.max(nodeX[start],nodeX[end]);
+      bounds[3] = Math.max(nodeY[start],nodeY[end]);
+      return (true);
+    }
+
+    /**
+     * Return the intersection connected in the specified direction
+     * 
+     * @param dir the direction to travel from the street
+     * @return the connected intersection, or null if no intersection
+     *         is connected.
+     */
+    public RoadInterface getConnectedRoad (Direction dir) {
+      if (dir == null) return (null);
+      for (int end = 0 ; end < 2 ; end++) {
+        if (edgeNode[2 * edge + end] != NONE &&
+                edgeDir[2 * edge + end] == dir.opposite().ordinal()) {
+          return (new IntersectionView(edgeNode[2 * edge + end]));
+        }
+      }
+      return (null);
+    }
+
+    /**
+     * Connect this street to an intersection of the same graph. The
+     * intersection also points back to the street.
+     * 
+     * @param newObj the intersection to connect to
+     * @param attachAt direction to travel to enter the intersection
+     * @return true if the connection succeeds, false otherwise
+     * @throws ClassCastException if newObj is not an intersection of
+     *           this graph
+     */
+    public boolean connectTo (RoadInterface newObj, Direction attachAt)
+      throws ClassCastException {
+      if (!(newObj instanceof IntersectionView) ||
+              ((IntersectionView) newObj).graph() != RoadGraph.this) {
+        throw new ClassCastException();
+      }
+      if (attachAt == null) return (false);
+      return (attach(((IntersectionView) newObj).node,attachAt.opposite()));
+    }
+
+    /**
+     * Attach an end of this street to an intersection slot. The first
+     * intersection attached becomes the start, the second the end.
+     * Attaching an end that is already attached succeeds quietly.
+     * 
+     * @param node the intersection
+     * @param dir the direction the street leaves the intersection
+     * @return true if the street is attached at that slot
+     */
+    private boolean attach (int node, Direction dir) {
+      int slot = 4 * node + dir.ordinal();
+      if (nodeEdge[slot] == edge) return (true);
+      if (nodeEdge[slot] != NONE) return (false);
+      int end = 0;
+      if (edgeNode[2 * edge] != NONE) {
+        if (edgeNode[2 * edge] == node) return (false);
+        end = 1;
+        if (edgeNode[2 * edge + 1] != NONE) return (false);
+      }
+      edgeNode[2 * edge + end] = node;
+      edgeDir[2 * edge + end] = (byte) dir.ordinal();
+      nodeEdge[slot] = edge;
+      return (true);
+    }
+
+    public boolean equals (Object other) {
+      return (other instanceof StreetView &&
+              ((StreetView) other).edge == edge &&
+              ((StreetView) other).graph() == RoadGraph.this);
+    }
+
+    public int hashCode () {
+      return (edge);
+    }
+
+    /** Return the graph this view belongs to */
+    private RoadGraph graph () {
+      return (RoadGraph.this);
+    }
+  }
+
+  /**
+   * Check that an object is a street view of this graph.
+   * 
+   * @throws ClassCastException if it is not
+   */
+  private StreetView asStreet (RoadInterface newObj) {
+    if (!(newObj instanceof StreetView) ||
+            ((StreetView) newObj).graph() != this) {
+      throw new ClassCastException();
+    }
+    return ((StreetView) newObj);
+  }
+}
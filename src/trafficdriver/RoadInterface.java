@@ -1,5 +1,7 @@
 package trafficdriver;
 
+import java.util.Arrays;
+
 /**
  * An interface for objects that exist in a road network.
  * 
@@ -22,6 +24,69 @@ public interface RoadInterface {
    */
   public void drawOnMap (char[][] roadMap);
 
+  /**
+   * Draw this object onto a window of the map. Map cell (x,y) is
+   * stored in roadMap[y - yOff][x - xOff]; cells that fall outside
+   * the array are skipped.
+   * 
+   * Drawing the whole map with offsets of zero must give the same
+   * result as drawOnMap(roadMap).
+   * 
+   * By default the object draws itself with drawOnMap(char[][]) on a
+   * scratch grid reaching from the origin of the map to the far
+   * corner of the window, holding the window and blanks elsewhere,
+   * and the window is copied back out. An object that draws past the
+   * far corner of the window must override this.
+   * 
+   * @param roadMap character grid for the window
+   * @param xOff map x coordinate of the first column of the window
+   * @param yOff map y coordinate of the first row of the window
+   */
+  public default void drawOnMap (char[][] roadMap, int xOff, int yOff) {
+    if (xOff == 0 && yOff == 0) {
+      drawOnMap(roadMap);
+      return;
+    }
+    int yEnd = yOff + roadMap.length;
+    int xEnd = xOff + (roadMap.length == 0 ? 0 : roadMap[0].length);
+    if (xEnd <= 0 || yEnd <= 0) return;
+    char[][] whole = new char[yEnd][xEnd];
+    for (int y = 0 ; y < yEnd ; y++) {
+      Arrays.fill(whole[y],' ');
+    }
+    int xFrom = Math.max(xOff,0);
+    for (int y = Math.max(yOff,0) ; y < yEnd ; y++) {
+      System.arraycopy(roadMap[y - yOff],xFrom - xOff,whole[y],xFrom,
+                       xEnd - xFrom);
+    }
+    drawOnMap(whole);
+    for (int y = Math.max(yOff,0) ; y < yEnd ; y++) {
+      System.arraycopy(whole[y],xFrom,roadMap[y - yOff],xFrom - xOff,
+                       xEnd - xFrom);
+    }
+  }
+
+  /**
+   * Report the rectangle of map cells that drawOnMap may touch.
+   * 
+   * By default an object does not know its bounds, and reports bounds
+   * that reach past every edge of any map, so that it is always
+   * drawn.
+   * 
+   * @param bounds array of at least four elements that receives the
+   *          smallest x, smallest y, largest x and largest y, all
+   *          inclusive
+   * @return true if the object draws anything, false if it has
+   *         nothing to draw (in which case bounds is untouched)
+   */
+  public default boolean getBounds (int[] bounds) {
+    bounds[0] = Integer.MIN_VALUE;
+    bounds[1] = Integer.MIN_VALUE;
+    bounds[2] = Integer.MAX_VALUE;
+    bounds[3] = Integer.MAX_VALUE;
+    return (true);
+  }
+
   /**
    * Connect this object to the object supplied as a parameter, at the
    * indicated compass point of this object.
@@ -0,0 +1,256 @@
+package trafficdriver;
+
+import java.util.Arrays;
+
+/**
+ * Shortest-path routing over a RoadGraph.
+ * 
+ * Streets can be traveled in both directions. Travel is weighted per
+ * arc, where arc 2 * e + end is street e left from its start (end 0)
+ * or its end (end 1). By default the weight of both arcs is the
+ * street length, measured through the turn point, which for these
+ * streets is the Manhattan distance between the two intersections.
+ * 
+ * Queries use Dijkstra's algorithm or A* with a Manhattan-distance
+ * heuristic scaled by the smallest weight per unit length, which
+ * keeps it admissible for any weights. Each thread gets its own
+ * search state, sized for the graph once and reused by every later
+ * query, so a distance query does not allocate. The graph and weights
+ * are only read, so a Router can be shared between threads.
+ */
+public class Router {
+
+  /** Distance returned when there is no route */
+  public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  /** The graph being searched */
+  private final RoadGraph graph;
+  /** Weight of each arc, or null to use street lengths */
+  private final int[] weights;
+  /** Lower bound on arc weight per unit of street length */
+  private final double minWeightPerUnit;
+
+  /** Search state of each thread */
+  private final ThreadLocal<SearchState> states =
+          new ThreadLocal<SearchState>();
+
+  /**
+   * Construct a router that weights each street by its length.
+   * 
+   * @param graph the graph to route on
+   */
+  public Router (RoadGraph graph) {
+    this.graph = graph;
+    this.weights = null;
+    this.minWeightPerUnit = 1.0;
+  }
+
+  /**
+   * Construct a router with explicit arc weights.
+   * 
+   * @param graph the graph to route on
+   * @param weights non-negative weight of each arc, indexed 2 * street
+   *          + end; the array is used, not copied
+   */
+  public Router (RoadGraph graph, int[] weights) {
+    this.graph = graph;
+    this.weights = weights;
+    double min = Double.POSITIVE_INFINITY;
+    for (int e = 0 ; e < graph.getEdgeCount() ; e++) {
+      if (graph.isOpen(e)) continue;
+      int length = graph.getLength(e);
+      min = Math.min(min,(double) weights[2 * e] / length);
+      min = Math.min(min,(double) weights[2 * e + 1] / length);
+    }
+    this.minWeightPerUnit = (min == Double.POSITIVE_INFINITY ? 0 : min);
+  }
+
+  /** Return the graph this router searches */
+  public RoadGraph getGraph () {
+    return (graph);
+  }
+
+  /**
+   * Return the weight of an arc.
+   * 
+   * @param arc 2 * street + the end the arc leaves from
+   */
+  public int getWeight (int arc) {
+    return (weights == null ? graph.getLength(arc >> 1) : weights[arc]);
+  }
+
+  /**
+   * Find the shortest distance between two intersections with A*.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the distance, or UNREACHABLE if there is no route
+   */
+  public int distance (int from, int to) {
+    return (search(from,to,true));
+  }
+
+  /**
+   * Find the shortest distance between two intersections with
+   * Dijkstra's algorithm.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the distance, or UNREACHABLE if there is no route
+   */
+  public int dijkstraDistance (int from, int to) {
+    return (search(from,to,false));
+  }
+
+  /**
+   * Find a shortest route between two intersections with A*.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the streets of the route in travel order (empty if from
+   *         equals to), or null if there is no route
+   */
+  public int[] route (int from, int to) {
+    if (search(from,to,true) == UNREACHABLE) return (null);
+    SearchState state = states.get();
+    int count = 0;
+    for (int node = to ; node != from ; count++) {
+      int arc = state.parent[node];
+      node = graph.getEdgeNode(arc >> 1,arc & 1);
+    }
+    int[] streets = new int[count];
+    for (int node = to ; node != from ; ) {
+      int arc = state.parent[node];
+      streets[--count] = arc >> 1;
+      node = graph.getEdgeNode(arc >> 1,arc & 1);
+    }
+    return (streets);
+  }
+
+  /**
+   * Run one search. Afterwards the thread's state holds the distances
+   * and parent arcs of every node reached.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @param aStar true to guide the search with the heuristic
+   * @return the distance, or UNREACHABLE if there is no route
+   */
+  private int search (int from, int to, boolean aStar) {
+    SearchState state = getState();
+    NodeHeap heap = state.heap;
+    int[] dist = state.dist;
+    int[] parent = state.parent;
+    int[] seen = state.seen;
+    int round = state.nextRound();
+    int toX = graph.getXPos(to);
+    int toY = graph.getYPos(to);
+
+    dist[from] = 0;
+    parent[from] = RoadGraph.NONE;
+    seen[from] = round;
+    heap.push(from,0);
+    int result = UNREACHABLE;
+    while (!heap.isEmpty()) {
+      int node = heap.pop();
+      if (node == to) {
+        result = dist[node];
+        break;
+      }
+      relax(state,node,aStar,toX,toY);
+    }
+    heap.clear();
+    return (result);
+  }
+
+  /**
+   * Relax the arcs leaving a settled node: every neighbour reached
+   * sooner than before gets the new distance and parent arc and goes
+   * on the heap. The search of TravelTimeMatrix uses this too.
+   * 
+   * @param state this thread's search arrays, in the current round
+   * @param node the node just settled
+   * @param aStar true to key the heap by distance plus heuristic
+   * @param toX X coordinate of the destination, for the heuristic
+   * @param toY Y coordinate of the destination, for the heuristic
+   */
+  void relax (SearchState state, int node, boolean aStar, int toX,
+              int toY) {
+    int[] dist = state.dist;
+    int[] seen = state.seen;
+    int round = state.round;
+    for (int d = 0 ; d < 4 ; d++) {
+      int edge = graph.getEdge(node,d);
+      if (edge == RoadGraph.NONE) continue;
+      int end = (graph.getEdgeNode(edge,0) == node ? 0 : 1);
+      int next = graph.getEdgeNode(edge,1 - end);
+      if (next == RoadGraph.NONE) continue;
+      int nextDist = dist[node] + getWeight(2 * edge + end);
+      if (seen[next] != round || nextDist < dist[next]) {
+        seen[next] = round;
+        dist[next] = nextDist;
+        state.parent[next] = 2 * edge + end;
+        long key = nextDist;
+        if (aStar) {
+          /*
+           * Order by distance plus heuristic, and among equal
+           * estimates prefer the node farthest along. On a grid many
+           * nodes tie, and this keeps the search on one path instead
+           * of filling the rectangle between the ends.
+           */
+          long estimate = nextDist + (long) (minWeightPerUnit *
+                  (Math.abs(graph.getXPos(next) - toX) +
+                   Math.abs(graph.getYPos(next) - toY)));
+          key = (estimate << 32) | (~nextDist & 0xffffffffL);
+        }
+        state.heap.push(next,key);
+      }
+    }
+  }
+
+  /** Return this thread's search state, sized for the graph */
+  SearchState getState () {
+    SearchState state = states.get();
+    if (state == null || state.dist.length < graph.getNodeCount()) {
+      state = new SearchState(graph.getNodeCount());
+      states.set(state);
+    }
+    return (state);
+  }
+
+  /**
+   * Per-thread arrays for a search. Rather than clearing the arrays
+   * before each search, every search gets a new round number and a
+   * node's entries only count if seen holds the current round.
+   */
+  static class SearchState {
+
+    /** Tentative distance of each node */
+    final int[] dist;
+    /** Arc used to reach each node */
+    final int[] parent;
+    /** Round in which each node was last reached */
+    final int[] seen;
+    /** Open nodes keyed by distance plus heuristic */
+    final NodeHeap heap;
+    /** Number of the current round */
+    int round = 0;
+
+    SearchState (int nodes) {
+      dist = new int[nodes];
+      parent = new int[nodes];
+      seen = new int[nodes];
+      heap = new NodeHeap(nodes);
+    }
+
+    /** Start a new round */
+    int nextRound () {
+      if (++round == 0) {
+        // The counter wrapped; old marks could look current.
+        Arrays.fill(seen,0);
+        round = 1;
+      }
+      return (round);
+    }
+  }
+}
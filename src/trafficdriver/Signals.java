@@ -0,0 +1,254 @@
+package trafficdriver;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Traffic-signal controllers for the intersections of a network.
+ * 
+ * Every intersection has a controller, by default none at all. Which
+ * approaches may enter an intersection is a four-bit mask indexed by
+ * the ordinal of the slot the approaching street is attached at, so
+ * the north bit covers vehicles arriving from the north.
+ * 
+ * Fixed-time and actuated signals cycle through four phases: north
+ * and south green, all red, east and west green, all red. A
+ * fixed-time signal gives each green phase a set number of ticks. An
+ * actuated signal holds a green for at least its minimum, extends it
+ * while vehicles wait on the green approaches, and ends it when they
+ * stop coming and the cross street has demand, or at its maximum. An
+ * all-way stop lets one approach go per tick, taking the approaches
+ * with waiting vehicles in turn.
+ * 
+ * Controllers are stored as parallel primitive arrays indexed by
+ * intersection, and advance moves all of them one tick in a single
+ * pass. Without a pool, on a pool of one thread, or for fewer than
+ * SERIAL_NODES intersections, the pass runs on the calling thread and
+ * does not allocate; otherwise it is split into tasks on the pool.
+ */
+public class Signals {
+
+  /** Controller kinds */
+  public static final int UNCONTROLLED = 0;
+  public static final int FIXED_TIME = 1;
+  public static final int ACTUATED = 2;
+  public static final int ALL_WAY_STOP = 3;
+
+  /** Approach bits of the two green phases */
+  private static final int NORTH_SOUTH = (1 << Direction.north.ordinal()) |
+          (1 << Direction.south.ordinal());
+  private static final int EAST_WEST = (1 << Direction.east.ordinal()) |
+          (1 << Direction.west.ordinal());
+  /** Approaches open in each phase of a signal cycle */
+  private static final int[] PHASE_MASK = { NORTH_SOUTH, 0, EAST_WEST, 0 };
+
+  /** Number of intersections below which advance does not use a pool */
+  public static final int SERIAL_NODES = 4096;
+
+  /** Kind of controller at each intersection */
+  private final byte[] kind;
+  /** Current phase; for an all-way stop, the approach last served */
+  private final byte[] phase;
+  /** Ticks spent in the current phase */
+  private final int[] elapsed;
+  /** Green ticks, or minimum green ticks when actuated */
+  private final int[] green;
+  /** Maximum green ticks when actuated */
+  private final int[] maxGreen;
+  /** All-red ticks between greens */
+  private final int[] clearance;
+  /** Approaches that may enter each intersection this tick */
+  private final byte[] open;
+
+  /**
+   * Construct controllers for a number of intersections, none of them
+   * controlled.
+   * 
+   * @param nodes number of intersections
+   */
+  public Signals (int nodes) {
+    kind = new byte[nodes];
+    phase = new byte[nodes];
+    elapsed = new int[nodes];
+    green = new int[nodes];
+    maxGreen = new int[nodes];
+    clearance = new int[nodes];
+    open = new byte[nodes];
+    for (int node = 0 ; node < nodes ; node++) {
+      open[node] = (byte) (NORTH_SOUTH | EAST_WEST);
+    }
+  }
+
+  /** Return the number of intersections */
+  public int getNodeCount () {
+    return (kind.length);
+  }
+
+  /** Let every approach of an intersection enter freely */
+  public void setUncontrolled (int node) {
+    set(node,UNCONTROLLED,0,0,0);
+    open[node] = (byte) (NORTH_SOUTH | EAST_WEST);
+  }
+
+  /**
+   * Put a fixed-time signal at an intersection.
+   * 
+   * @param node the intersection
+   * @param greenTicks ticks of each green phase, at least 1
+   * @param clearTicks all-red ticks after each green
+   * @param offset ticks into its cycle the signal starts at
+   */
+  public void setFixedTime (int node, int greenTicks, int clearTicks,
+                            int offset) {
+    if (greenTicks < 1) throw new IllegalArgumentException("green < 1");
+    set(node,FIXED_TIME,greenTicks,greenTicks,clearTicks);
+    int cycle = 2 * (greenTicks + clearTicks);
+    for (int t = offset % cycle ; t > 0 ; t--) {
+      advance(node,0);
+    }
+  }
+
+  /**
+   * Put an actuated signal at an intersection.
+   * 
+   * @param node the intersection
+   * @param minTicks shortest green, at least 1
+   * @param maxTicks longest green while the cross street waits
+   * @param clearTicks all-red ticks after each green
+   */
+  public void setActuated (int node, int minTicks, int maxTicks,
+                           int clearTicks) {
+    if (minTicks < 1 || maxTicks < minTicks) {
+      throw new IllegalArgumentException("bad green range");
+    }
+    set(node,ACTUATED,minTicks,maxTicks,clearTicks);
+  }
+
+  /** Put an all-way stop at an intersection */
+  public void setAllWayStop (int node) {
+    set(node,ALL_WAY_STOP,0,0,0);
+    open[node] = 0;
+  }
+
+  /** Install a controller starting at its first phase */
+  private void set (int node, int type, int greenTicks, int maxTicks,
+                    int clearTicks) {
+    kind[node] = (byte) type;
+    phase[node] = 0;
+    elapsed[node] = 0;
+    green[node] = greenTicks;
+    maxGreen[node] = maxTicks;
+    clearance[node] = clearTicks;
+    open[node] = (byte) PHASE_MASK[0];
+  }
+
+  /** Return the kind of controller at an intersection */
+  public int getKind (int node) {
+    return (kind[node]);
+  }
+
+  /** Return the current phase of an intersection's controller */
+  public int getPhase (int node) {
+    return (phase[node]);
+  }
+
+  /**
+   * Check if vehicles on an approach may enter an intersection this
+   * tick.
+   * 
+   * @param node the intersection
+   * @param from the slot the approaching street is attached at
+   */
+  public boolean mayEnter (int node, Direction from) {
+    return (mayEnter(node,from.ordinal()));
+  }
+
+  /**
+   * Check if vehicles on an approach may enter an intersection this
+   * tick.
+   * 
+   * @param node the intersection
+   * @param from the DirectionCode of the slot
+   */
+  public boolean mayEnter (int node, int from) {
+    return ((open[node] & (1 << from)) != 0);
+  }
+
+  /**
+   * Advance every controller one tick, using the common pool.
+   * 
+   * @param demand per intersection, bits of the approaches with a
+   *          vehicle waiting at the stop line, or null for none
+   */
+  public void advance (byte[] demand) {
+    advance(ForkJoinPool.commonPool(),demand);
+  }
+
+  /**
+   * Advance every controller one tick.
+   * 
+   * @param pool the pool that runs the pass, or null to run it on the
+   *          calling thread
+   * @param demand per intersection, bits of the approaches with a
+   *          vehicle waiting at the stop line, or null for none
+   */
+  public void advance (ForkJoinPool pool, final byte[] demand) {
+    int nodes = kind.length;
+    if (pool == null || pool.getParallelism() <= 1 ||
+            nodes < SERIAL_NODES) {
+      for (int node = 0 ; node < nodes ; node++) {
+        advance(node,demand == null ? 0 : demand[node]);
+      }
+      return;
+    }
+    ParallelRange.run(pool,0,nodes,ParallelRange.grainFor(pool,nodes),
+      (from, to) -> {
+        for (int node = from ; node < to ; node++) {
+          advance(node,demand == null ? 0 : demand[node]);
+        }
+      });
+  }
+
+  /** Advance one controller one tick */
+  private void advance (int node, int waiting) {
+    switch (kind[node]) {
+    case FIXED_TIME:
+    case ACTUATED:
+      elapsed[node]++;
+      if (phaseOver(node,waiting)) {
+        phase[node] = (byte) ((phase[node] + 1) & 3);
+        elapsed[node] = 0;
+        // Skip an all-red phase of no length.
+        if ((phase[node] & 1) != 0 && clearance[node] == 0) {
+          phase[node] = (byte) ((phase[node] + 1) & 3);
+        }
+      }
+      open[node] = (byte) PHASE_MASK[phase[node]];
+      break;
+    case ALL_WAY_STOP:
+      // Serve the next waiting approach after the last one served.
+      int next = -1;
+      for (int k = 1 ; k <= 4 && next < 0 ; k++) {
+        int dir = (phase[node] + k) & 3;
+        if ((waiting & (1 << dir)) != 0) next = dir;
+      }
+      if (next >= 0) phase[node] = (byte) next;
+      open[node] = (byte) (next < 0 ? 0 : 1 << next);
+      break;
+    default:
+      break;
+    }
+  }
+
+  /** Check if the current phase of a signal has run its course */
+  private boolean phaseOver (int node, int waiting) {
+    int p = phase[node];
+    int time = elapsed[node];
+    if ((p & 1) != 0) return (time >= clearance[node]);
+    if (kind[node] == FIXED_TIME) return (time >= green[node]);
+    if (time < green[node]) return (false);
+    // Actuated: give way only if the cross street is waiting.
+    int cross = PHASE_MASK[p ^ 2];
+    if ((waiting & cross) == 0) return (false);
+    return ((waiting & PHASE_MASK[p]) == 0 || time >= maxGreen[node]);
+  }
+}
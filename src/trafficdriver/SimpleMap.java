@@ -1,6 +1,15 @@
 package trafficdriver;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A simple ascii character-based visualization of the road network.
@@ -10,19 +19,68 @@ import java.util.Arrays;
  * invoked. The origin is assumed to be the northwest corner. X
  * increases to the east, Y increases to the south. The print
  * representation automatically draws a border around the actual grid.
+ * 
+ * A map can be tiled, in which case the grid is split into square
+ * tiles that are only allocated where something is drawn, and a
+ * viewport of any map can be rendered on its own.
+ * 
+ * A plain map can also be rendered in parallel, in horizontal bands
+ * of rows that are drawn and transcribed on their own and then joined
+ * in order. The text is the same as a render on one thread.
+ * 
+ * Objects can be registered from many threads at once. Each addition
+ * takes the next place in the registry with one atomic increment and
+ * stores the object in a chunk of the registry that only it writes
+ * to, so adders do not wait for each other. The additions are folded
+ * into the registry proper, and into the index of intersections, the
+ * next time the map is read. A read while other threads are still
+ * adding sees the objects up to the first place that is taken but not
+ * yet filled; the rest are folded in by a later read, in place order.
+ * Any number of threads may look up intersections and walk the
+ * registry at once: lookups hold the registry lock, which folding
+ * also takes, and a walk reads the count and then the registry, which
+ * folding never changes below the count. Renders share the grid, so
+ * one thread at a time renders a map.
+ * 
+ * Threads that read while another thread edits use snapshots instead.
+ * The editor publishes the network whenever it is in a consistent
+ * state, and readers take the last published snapshot, which never
+ * changes under them, without waiting.
  */
 public class SimpleMap {
 
   /**
    * Array of objects to be included in the map. The objects must
    * satisfy the RoadInterface; in particular, they must provide a
-   * drawOnMap method.
+   * drawOnMap method. Only up to date after settle.
+   * 
+   * Another thread's settle may replace the array by a longer copy,
+   * but never changes the entries below numObjects. A reader reads
+   * numObjects first and then this array, once each, and walks the
+   * entries below the count it read.
    */
-  RoadInterface[] roadObjects = null;
+  volatile RoadInterface[] roadObjects = null;
   /** capacity of roadObjects */
   int maxObjects = 0;
   /** current number of objects */
-  int numObjects = 0;
+  volatile int numObjects = 0;
+
+  /** log2 of the number of objects in a chunk of added objects */
+  private static final int CHUNK_BITS = 12;
+  /** Number of objects in a chunk */
+  private static final int CHUNK = 1 << CHUNK_BITS;
+  /** Number of registry places handed out to adders */
+  private final AtomicInteger claimed = new AtomicInteger();
+  /**
+   * Objects added and not yet settled, in chunks by place. A place is
+   * null until its adder has filled it. A chunk is dropped once every
+   * place in it is settled.
+   */
+  private volatile AtomicReferenceArray<AtomicReferenceArray<RoadInterface>>
+          chunks =
+          new AtomicReferenceArray<AtomicReferenceArray<RoadInterface>>(16);
+  /** Guards new chunks and settling */
+  private final Object registryLock = new Object();
   /**
    * 2-D character array for the simple map.
    * 
@@ -33,6 +91,72 @@ public class SimpleMap {
   private int xDim = 0;
   /** Y dimension (one greater than maximum y coordinate) */
   private int yDim = 0;
+  /**
+   * Index of the registered intersections by position; settle grows
+   * it in place, so it is only read under registryLock
+   */
+  private SpatialIndex intersections = new SpatialIndex();
+
+  /** Most dirty rectangles kept before they are merged into one */
+  private static final int MAX_DIRTY = 32;
+  /** True if toString should only redraw what changed */
+  private boolean incremental = false;
+  /**
+   * Bounds of each registered object as of the last render, four
+   * entries per object. An object that drew nothing has its largest
+   * coordinates below its smallest.
+   */
+  private int[] drawnBounds = new int[0];
+  /** number of objects with recorded bounds */
+  private int numDrawn = 0;
+  /** Rectangles to redraw at the next render, four entries each */
+  private int[] dirty = new int[4 * MAX_DIRTY];
+  /** current number of dirty rectangles */
+  private int numDirty = 0;
+  /** Text of the last incremental render, null if there is none */
+  private char[] output = null;
+  /** Position in output of the first cell of each grid row */
+  private int[] rowStart = null;
+  /** Scratch array for object bounds */
+  private int[] box = new int[4];
+
+  /** Side of a tile, or 0 if the map is not tiled */
+  private int tileSize = 0;
+  /** Number of tiles across and down */
+  private int tilesX = 0;
+  private int tilesY = 0;
+  /**
+   * Tiles of a tiled map in row-major order, each stored as
+   * tile[y][x]. A tile with nothing drawn on it is null.
+   */
+  private char[][][] tiles = null;
+  /** A row of blanks as wide as a tile */
+  private char[] blankRow = null;
+
+  /** Last published snapshot, or null before the first publish */
+  private volatile NetworkSnapshot published = null;
+  /**
+   * Place of each object in the registry, as of the last publish, once
+   * an object could not be adopted; until then null, and only the
+   * places edited are read
+   */
+  private IdentityHashMap<RoadInterface,Integer> publishedIds = null;
+  /** Places reported edited since the last publish */
+  private int[] edits = new int[16];
+  /** Number of places in edits */
+  private int numEdits = 0;
+  /** Guards edits */
+  private final Object editLock = new Object();
+  /** Guards publishing */
+  private final Object publishLock = new Object();
+
+  /** Pool that renders a plain map in bands, or null for none */
+  private ForkJoinPool renderPool = null;
+
+  /** Size of the buffer used to write the map to a channel */
+  private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+  /** Buffer used to write the map to a channel, reused between calls */
+  private ByteBuffer channelBuffer = null;
 
   /** Default constructor for null grid */
   public SimpleMap () {
@@ -59,6 +183,45 @@ public class SimpleMap {
     grid = new char[yDim][xDim];
   }
 
+  /**
+   * Constructor for a tiled grid of the specified size. No grid
+   * storage is allocated up front; a tile is only kept once something
+   * is drawn on it.
+   * 
+   * @param xDim x dimension for grid
+   * @param yDim y dimension for grid
+   * @param tileSize side of a tile, at least 1
+   * @throws IllegalArgumentException if tileSize is less than 1
+   */
+  public SimpleMap (int xDim, int yDim, int tileSize) {
+    if (tileSize < 1) throw new IllegalArgumentException("tileSize < 1");
+    roadObjects = new RoadInterface[0];
+    maxObjects = 0;
+    numObjects = 0;
+    this.xDim = xDim;
+    this.yDim = yDim;
+    this.tileSize = tileSize;
+    tilesX = (xDim + tileSize - 1) / tileSize;
+    tilesY = (yDim + tileSize - 1) / tileSize;
+    tiles = new char[tilesX * tilesY][][];
+    blankRow = new char[tileSize];
+    Arrays.fill(blankRow,' ');
+  }
+
+  /** Return the side of a tile, or 0 if the map is not tiled */
+  public int getTileSize () {
+    return (tileSize);
+  }
+
+  /** Return the number of tiles holding part of the last render */
+  public int getAllocatedTiles () {
+    int count = 0;
+    for (int t = 0 ; tiles != null && t < tiles.length ; t++) {
+      if (tiles[t] != null) count++;
+    }
+    return (count);
+  }
+
   /** Return grid x dimension */
   public int getxDim () {
     return (xDim);
@@ -76,14 +239,336 @@ public class SimpleMap {
    * @param roadObject the object to be registered
    */
   public void addToMap (RoadInterface roadObject) {
-    // Expand the size of the array, if necessary
-    if (numObjects >= maxObjects) {
-      maxObjects = numObjects * 2 + 1;
-      roadObjects = Arrays.copyOf(roadObjects,maxObjects);
+    if (roadObject == null) throw new NullPointerException("road object");
+    long start = Metrics.start();
+    // Take the next place and fill it.
+    int place = claimed.getAndIncrement();
+    chunk(place).set(place & (CHUNK - 1),roadObject);
+    Metrics.ADD_TO_MAP.recordSince(start);
+  }
+
+  /**
+   * Register a batch of objects, growing the registry at most once.
+   * 
+   * @param objects the objects to be registered
+   * @param from index of the first object in the array
+   * @param count number of objects
+   */
+  public void addAllToMap (RoadInterface[] objects, int from, int count) {
+    for (int i = from ; i < from + count ; i++) {
+      if (objects[i] == null) throw new NullPointerException("road object");
+    }
+    int first = claimed.getAndAdd(count);
+    for (int done = 0 ; done < count ; ) {
+      int place = first + done;
+      int at = place & (CHUNK - 1);
+      int length = Math.min(CHUNK - at,count - done);
+      AtomicReferenceArray<RoadInterface> chunk = chunk(place);
+      for (int i = 0 ; i < length ; i++) {
+        chunk.set(at + i,objects[from + done + i]);
+      }
+      done += length;
+    }
+  }
+
+  /**
+   * Return the chunk holding a place in the registry, creating it if
+   * needed. Only creating a chunk takes the lock, once per CHUNK
+   * places.
+   */
+  private AtomicReferenceArray<RoadInterface> chunk (int place) {
+    int index = place >>> CHUNK_BITS;
+    AtomicReferenceArray<AtomicReferenceArray<RoadInterface>> table = chunks;
+    if (index < table.length()) {
+      AtomicReferenceArray<RoadInterface> chunk = table.get(index);
+      if (chunk != null) return (chunk);
+    }
+    synchronized (registryLock) {
+      table = chunks;
+      if (index >= table.length()) {
+        AtomicReferenceArray<AtomicReferenceArray<RoadInterface>> larger =
+                new AtomicReferenceArray<AtomicReferenceArray<RoadInterface>>(
+                        Math.max(2 * table.length(),index + 1));
+        for (int c = 0 ; c < table.length() ; c++) {
+          larger.set(c,table.get(c));
+        }
+        chunks = larger;
+        table = larger;
+      }
+      AtomicReferenceArray<RoadInterface> chunk = table.get(index);
+      if (chunk == null) {
+        chunk = new AtomicReferenceArray<RoadInterface>(CHUNK);
+        table.set(index,chunk);
+      }
+      return (chunk);
+    }
+  }
+
+  /**
+   * Fold the objects added since the last call into roadObjects and
+   * the index of intersections, in the order of their places. Every
+   * method that reads the registry calls this first.
+   * 
+   * Only the filled places before the first one still being added are
+   * folded. A chunk is dropped after its last place is folded, so a
+   * place that is not folded yet can always still be found. The new
+   * count is published last, after the objects below it.
+   */
+  void settle () {
+    if (claimed.get() == numObjects) return;
+    synchronized (registryLock) {
+      int total = claimed.get();
+      if (total == numObjects) return;
+      RoadInterface[] objects = roadObjects;
+      if (total > maxObjects) {
+        maxObjects = Math.max(total,numObjects * 2 + 1);
+        objects = Arrays.copyOf(objects,maxObjects);
+        roadObjects = objects;
+      }
+      AtomicReferenceArray<AtomicReferenceArray<RoadInterface>> table =
+              chunks;
+      int place = numObjects;
+      while (place < total) {
+        int index = place >>> CHUNK_BITS;
+        // The adder of a place may not have created its chunk yet.
+        if (index >= table.length() || table.get(index) == null) break;
+        AtomicReferenceArray<RoadInterface> chunk = table.get(index);
+        int end = Math.min((index + 1) << CHUNK_BITS,total);
+        for ( ; place < end ; place++) {
+          RoadInterface object = chunk.get(place & (CHUNK - 1));
+          if (object == null) break;
+          objects[place] = object;
+          if (object instanceof Intersection) {
+            intersections.add((Intersection) object);
+          }
+        }
+        if (place == (index + 1) << CHUNK_BITS) table.set(index,null);
+        if (place < end) break;
+      }
+      numObjects = place;
+    }
+  }
+
+  /**
+   * Return the registered intersection at a position.
+   * 
+   * @param xPos X coordinate
+   * @param yPos Y coordinate
+   * @return the intersection, or null if there is none
+   */
+  public Intersection getIntersectionAt (int xPos, int yPos) {
+    settle();
+    synchronized (registryLock) {
+      return (intersections.get(xPos,yPos));
+    }
+  }
+
+  /**
+   * Return the registered intersections inside a rectangle, edges
+   * included.
+   * 
+   * @param xMin smallest X coordinate
+   * @param yMin smallest Y coordinate
+   * @param xMax largest X coordinate
+   * @param yMax largest Y coordinate
+   * @return the intersections found, in no particular order
+   */
+  public Intersection[] getIntersectionsWithin (int xMin, int yMin, int xMax,
+                                                int yMax) {
+    settle();
+    synchronized (registryLock) {
+      return (intersections.within(xMin,yMin,xMax,yMax));
+    }
+  }
+
+  /**
+   * Return the registered intersection closest to a position by
+   * straight-line distance.
+   * 
+   * @param xPos X coordinate
+   * @param yPos Y coordinate
+   * @return one of the closest intersections, or null if none are
+   *         registered
+   */
+  public Intersection getNearestIntersection (int xPos, int yPos) {
+    settle();
+    synchronized (registryLock) {
+      return (intersections.nearest(xPos,yPos));
+    }
+  }
+
+  /**
+   * Publish a snapshot of the network as it stands now, for getSnapshot
+   * to hand out.
+   * 
+   * Only the objects registered or edited since the last publish are
+   * read, and only the parts of the last snapshot that changed are
+   * copied; the rest is shared. Once an object is registered at a
+   * second place, or in a second map that publishes, every object is
+   * read on every publish instead. Each object is copied whole, a
+   * street under its lock, but edits that touch several objects, such
+   * as buildStreetTo, must be finished when this is called for the
+   * snapshot to be consistent; the thread making the edits is the
+   * natural caller.
+   * 
+   * @return the snapshot published, which is the previous one if
+   *         nothing changed
+   */
+  public NetworkSnapshot publish () {
+    synchronized (publishLock) {
+      settle();
+      int total = numObjects;
+      RoadInterface[] objects = roadObjects;
+      NetworkSnapshot last = published;
+      if (last == null) last = NetworkSnapshot.empty(xDim,yDim);
+      int[] edited = null;
+      int count = 0;
+      if (publishedIds == null) {
+        // Adopt the new objects, or read every object from now on if
+        // one of them belongs to another place.
+        for (int i = last.getObjectCount() ; i < total ; i++) {
+          if (objects[i] instanceof NetworkObject &&
+                  !((NetworkObject) objects[i]).adopt(this,i)) {
+            publishedIds = new IdentityHashMap<RoadInterface,Integer>();
+            break;
+          }
+        }
+      }
+      synchronized (editLock) {
+        edited = edits;
+        count = numEdits;
+        edits = new int[Math.max(16,count)];
+        numEdits = 0;
+      }
+      if (publishedIds != null) edited = null;
+      published = last.next(objects,total,this,publishedIds,edited,count);
+      return (published);
+    }
+  }
+
+  /**
+   * Note that the object at a place was edited, so the next publish
+   * reads it again. Called by the objects the map adopted.
+   */
+  void edited (int place) {
+    synchronized (editLock) {
+      if (numEdits == edits.length) {
+        edits = Arrays.copyOf(edits,2 * numEdits);
+      }
+      edits[numEdits++] = place;
+    }
+  }
+
+  /**
+   * Return the last snapshot published, without locking. Before the
+   * first publish this is an empty snapshot of version 0.
+   */
+  public NetworkSnapshot getSnapshot () {
+    NetworkSnapshot snapshot = published;
+    return (snapshot != null ? snapshot : NetworkSnapshot.empty(xDim,yDim));
+  }
+
+  /**
+   * Turn incremental rendering on or off.
+   * 
+   * In incremental mode toString keeps the grid and its text between
+   * calls, and redraws only the parts of the map that changed since
+   * the previous call. A change in the bounds of a registered object
+   * (for instance a street that gets its second intersection) is
+   * noticed automatically; any other change in appearance must be
+   * reported through invalidate.
+   * 
+   * A tiled map always renders its tiles afresh, so the setting has
+   * no effect there.
+   * 
+   * @param incremental true to render incrementally
+   */
+  public void setIncremental (boolean incremental) {
+    this.incremental = incremental;
+    output = null;
+    rowStart = null;
+  }
+
+  /** Return true if toString renders incrementally */
+  public boolean isIncremental () {
+    return (incremental);
+  }
+
+  /**
+   * Render a plain map in parallel, or stop doing so.
+   * 
+   * With a pool set, a full render of a map that is neither tiled nor
+   * incremental splits the grid into bands of rows. Each band clears
+   * its rows, is drawn by the objects whose bounds reach into it, in
+   * registration order, and is transcribed into its own piece of text.
+   * The pieces are then passed to the sink in order. Drawing is
+   * clipped to the band, so every cell ends up as a render on one
+   * thread would leave it.
+   * 
+   * The objects are only read during a render, so they must not be
+   * changed while it runs.
+   * 
+   * @param pool the pool that renders the bands, or null to render on
+   *          the calling thread
+   */
+  public void setRenderPool (ForkJoinPool pool) {
+    renderPool = pool;
+  }
+
+  /** Return the pool that renders bands, or null if there is none */
+  public ForkJoinPool getRenderPool () {
+    return (renderPool);
+  }
+
+  /**
+   * Ask for the area covered by an object to be redrawn at the next
+   * incremental render.
+   * 
+   * @param roadObject the object whose appearance changed
+   */
+  public void invalidate (RoadInterface roadObject) {
+    if (roadObject.getBounds(box)) {
+      invalidate(box[0],box[1],box[2],box[3]);
+    }
+  }
+
+  /**
+   * Ask for a rectangle of the map to be redrawn at the next
+   * incremental render.
+   * 
+   * @param xMin smallest X coordinate
+   * @param yMin smallest Y coordinate
+   * @param xMax largest X coordinate
+   * @param yMax largest Y coordinate
+   */
+  public void invalidate (int xMin, int yMin, int xMax, int yMax) {
+    if (xMin > xMax || yMin > yMax) return;
+    if (numDirty >= MAX_DIRTY) {
+      // Too many pieces; merge everything into one rectangle.
+      for (int i = 1 ; i < numDirty ; i++) {
+        dirty[0] = Math.min(dirty[0],dirty[4 * i]);
+        dirty[1] = Math.min(dirty[1],dirty[4 * i + 1]);
+        dirty[2] = Math.max(dirty[2],dirty[4 * i + 2]);
+        dirty[3] = Math.max(dirty[3],dirty[4 * i + 3]);
+      }
+      dirty[0] = Math.min(dirty[0],xMin);
+      dirty[1] = Math.min(dirty[1],yMin);
+      dirty[2] = Math.max(dirty[2],xMax);
+      dirty[3] = Math.max(dirty[3],yMax);
+      numDirty = 1;
+      return;
     }
-    // Register the object.
-    roadObjects[numObjects] = roadObject;
-    numObjects++;
+    dirty[4 * numDirty] = xMin;
+    dirty[4 * numDirty + 1] = yMin;
+    dirty[4 * numDirty + 2] = xMax;
+    dirty[4 * numDirty + 3] = yMax;
+    numDirty++;
+  }
+
+  /** Ask for the whole map to be redrawn at the next render */
+  public void invalidateAll () {
+    output = null;
+    rowStart = null;
   }
 
   /**
@@ -91,54 +576,732 @@ public class SimpleMap {
    * automatically added.
    */
   public String toString () {
-    /*
-     * Clear the grid and ask the registered objects to draw
-     * themselves.
-     */
+    long start = Metrics.start();
+    settle();
+    String text;
+    if (tiles == null && incremental) {
+      drawIncremental();
+      text = new String(output);
+    } else {
+      StringBuilder result = new StringBuilder((yDim + 5) * (xDim + 4));
+      try {
+        writeTo(result);
+      } catch (IOException ex) {
+        // A StringBuilder never throws.
+        throw new IllegalStateException(ex);
+      }
+      text = result.toString();
+    }
+    Metrics.RENDER.recordSince(start);
+    return (text);
+  }
+
+  /**
+   * Write the same text as toString to a character sink, one row at a
+   * time, without building the whole text in memory first.
+   * 
+   * @param out where the text goes
+   * @throws IOException if out fails
+   */
+  public void writeTo (Appendable out) throws IOException {
+    settle();
+    if (tiles != null) {
+      drawTiles();
+      transcribe(out,null,0,0,xDim,yDim);
+    } else if (incremental) {
+      drawIncremental();
+      // Pass the cached text along in slices of about one row.
+      int slice = xDim + 4;
+      for (int pos = 0 ; pos < output.length ; pos += slice) {
+        appendCells(out,output,pos,Math.min(slice,output.length - pos));
+      }
+    } else if (renderPool != null && renderPool.getParallelism() > 1) {
+      writeBands(out);
+    } else {
+      drawAll();
+      transcribe(out,grid,0,0,xDim,yDim);
+    }
+  }
+
+  /**
+   * Write the same text as toString to a channel, as US-ASCII bytes,
+   * one row at a time. The text is staged in a fixed-size buffer that
+   * is kept for later calls, so the extra memory needed does not grow
+   * with the map.
+   * 
+   * @param channel where the bytes go
+   * @throws IOException if the channel fails
+   */
+  public void writeTo (WritableByteChannel channel) throws IOException {
+    if (channelBuffer == null) {
+      channelBuffer = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+    }
+    ChannelWriter out = new ChannelWriter(channel,channelBuffer);
+    writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * Clear the grid and ask the registered objects to draw
+   * themselves.
+   */
+  private void drawAll () {
+    int count = numObjects;
+    RoadInterface[] objects = roadObjects;
     for (int y = 0 ; y < yDim ; y++) {
       for (int x = 0 ; x < xDim ; x++) {
         grid[y][x] = ' ';
       }
     }
-    for (int i = 0 ; i < numObjects ; i++) {
-      roadObjects[i].drawOnMap(grid);
+    for (int i = 0 ; i < count ; i++) {
+      objects[i].drawOnMap(grid);
+    }
+  }
+
+  /**
+   * Bring the text kept for incremental rendering up to date, drawing
+   * everything if there is no text yet.
+   */
+  private void drawIncremental () {
+    if (output != null) {
+      redrawDirty();
+      return;
+    }
+    drawAll();
+    /*
+     * Keep the text and the bounds of everything drawn, so the next
+     * call can start from here.
+     */
+    StringBuilder result = new StringBuilder((yDim + 5) * (xDim + 4));
+    try {
+      transcribe(result,grid,0,0,xDim,yDim);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
     }
+    output = new char[result.length()];
+    result.getChars(0,output.length,output,0);
     /*
-     * Now transcribe the map grid into a string, adding a border and
-     * newlines as we go. Use the StringBuffer class, which allows
-     * modification to the string.
+     * The text opens with an empty line, the ruler and the top
+     * border; after that, each row's cells follow its first '|'.
      */
-    StringBuffer result = new StringBuffer((yDim + 2) * (xDim + 2));
-    result.append("\n  ");
+    rowStart = new int[yDim];
+    int pos = 0;
+    for (int line = 0 ; line < 3 ; line++) {
+      while (output[pos] != '\n') pos++;
+      pos++;
+    }
+    for (int y = 0 ; y < yDim ; y++) {
+      while (output[pos] != '|') pos++;
+      rowStart[y] = pos + 1;
+      pos += xDim + 3;
+    }
+    recordBounds();
+    numDirty = 0;
+  }
+
+  /**
+   * Generate a string representation of a window of the map, with a
+   * border and rulers numbered in map coordinates. Only the objects
+   * that overlap the window are drawn. The window is clipped to the
+   * map, so the window covering the whole map gives the same text as
+   * toString.
+   * 
+   * @param xMin map x coordinate of the west edge of the window
+   * @param yMin map y coordinate of the north edge of the window
+   * @param width width of the window
+   * @param height height of the window
+   */
+  public String render (int xMin, int yMin, int width, int height) {
+    settle();
+    int count = numObjects;
+    RoadInterface[] objects = roadObjects;
+    int xMax = Math.min(xMin + width,xDim);
+    int yMax = Math.min(yMin + height,yDim);
+    xMin = Math.max(xMin,0);
+    yMin = Math.max(yMin,0);
+    width = Math.max(xMax - xMin,0);
+    height = Math.max(yMax - yMin,0);
+    char[][] window = new char[height][width];
+    for (int y = 0 ; y < height ; y++) {
+      Arrays.fill(window[y],' ');
+    }
+    for (int i = 0 ; i < count ; i++) {
+      if (objects[i].getBounds(box) && box[0] < xMax &&
+              box[2] >= xMin && box[1] < yMax && box[3] >= yMin) {
+        if (coversMap(box)) {
+          copyDrawn(drawAlone(objects[i]),window,xMin,yMin);
+        } else {
+          objects[i].drawOnMap(window,xMin,yMin);
+        }
+      }
+    }
+    StringBuilder result = new StringBuilder((height + 5) * (width + 4));
+    try {
+      transcribe(result,window,xMin,yMin,width,height);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    return (result.toString());
+  }
+
+  /**
+   * Transcribe a window of the map into text, adding a border and
+   * newlines as we go. The text is passed to the sink a row at a
+   * time.
+   * 
+   * @param out where the text goes
+   * @param cells the cells of the window, or null to read them from
+   *          the tiles
+   * @param xOff map x coordinate of the first column
+   * @param yOff map y coordinate of the first row
+   * @param width number of columns
+   * @param height number of rows
+   * @throws IOException if out fails
+   */
+  private void transcribe (Appendable out, char[][] cells, int xOff,
+                           int yOff, int width, int height)
+    throws IOException {
+    appendTop(out,xOff,width);
+    for (int y = yOff ; y < yOff + height ; y++) {
+      if (cells != null) {
+        appendRow(out,cells[y - yOff],y,width);
+      } else {
+        appendMark(out,y);
+        appendTileRow(out,y);
+        out.append("|\n");
+      }
+    }
+    appendBottom(out,width);
+  }
+
+  /**
+   * Transcribe a whole grid into the text toString gives for it. Used
+   * by other views of the network to look the same as the map.
+   * 
+   * @param out where the text goes
+   * @param cells the grid, as cells[y][x]
+   * @param width number of columns
+   * @param height number of rows
+   * @throws IOException if out fails
+   */
+  static void writeGrid (Appendable out, char[][] cells, int width,
+                         int height) throws IOException {
+    appendTop(out,0,width);
+    for (int y = 0 ; y < height ; y++) {
+      appendRow(out,cells[y],y,width);
+    }
+    appendBottom(out,width);
+  }
+
+  /**
+   * Transcribe a whole grid in color. Each cell is written in the
+   * ANSI color its tone picks, so the text is the same as writeGrid
+   * gives apart from the escape sequences.
+   * 
+   * @param out where the text goes
+   * @param cells the grid, as cells[y][x]
+   * @param tone color of each cell plus one, or 0 for none
+   * @param colors the SGR parameters of each color, such as "31"
+   * @param width number of columns
+   * @param height number of rows
+   * @throws IOException if out fails
+   */
+  static void writeGrid (Appendable out, char[][] cells, char[][] tone,
+                         String[] colors, int width, int height)
+    throws IOException {
+    appendTop(out,0,width);
+    for (int y = 0 ; y < height ; y++) {
+      appendMark(out,y);
+      int current = 0;
+      for (int x = 0 ; x < width ; x++) {
+        if (tone[y][x] != current) {
+          current = tone[y][x];
+          out.append(current == 0 ? "\u001b[0m" :
+                     "\u001b[" + colors[current - 1] + "m");
+        }
+        out.append(cells[y][x]);
+      }
+      if (current != 0) out.append("\u001b[0m");
+      out.append("|\n");
+    }
+    appendBottom(out,width);
+  }
+
+  /** Append the ruler and the top border */
+  private static void appendTop (Appendable out, int xOff, int width)
+    throws IOException {
+    out.append("\n  ");
 
-    for (int x = 0 ; x < xDim ; x++) {
+    for (int x = xOff ; x < xOff + width ; x++) {
       if (x % 10 == 0) {
-        result.append(x / 10);
+        out.append(String.valueOf(x / 10));
       } else {
-        result.append(' ');
+        out.append(' ');
       }
     }
-    result.append("\n ");
-    for (int x = 0 ; x < xDim + 2 ; x++)
-      result.append('=');
-    result.append('\n');
-    for (int y = 0 ; y < yDim ; y++) {
-      if (y % 10 == 0) {
-        result.append(y / 10);
+    out.append("\n ");
+    for (int x = 0 ; x < width + 2 ; x++)
+      out.append('=');
+    out.append('\n');
+  }
+
+  /**
+   * Append one row with its ruler mark and border.
+   * 
+   * @param row the cells of the row
+   * @param y map y coordinate of the row
+   * @param width number of columns
+   */
+  private static void appendRow (Appendable out, char[] row, int y,
+                                 int width) throws IOException {
+    appendMark(out,y);
+    appendCells(out,row,0,width);
+    out.append("|\n");
+  }
+
+  /** Append the ruler mark and left border of a row */
+  private static void appendMark (Appendable out, int y) throws IOException {
+    if (y % 10 == 0) {
+      out.append(String.valueOf(y / 10));
+    } else {
+      out.append(' ');
+    }
+    out.append('|');
+  }
+
+  /** Append the bottom border */
+  private static void appendBottom (Appendable out, int width)
+    throws IOException {
+    out.append(' ');
+    for (int x = 0 ; x < width + 2 ; x++)
+      out.append('=');
+  }
+
+  /**
+   * Draw the whole grid in bands of rows on the render pool, and write
+   * the text of the bands in order.
+   * 
+   * The registered objects are first sorted into the bands their
+   * bounds overlap, as drawTiles sorts them into tiles. A band is a
+   * slice of the grid's own rows, so the grid holds the full map
+   * afterwards, as after drawAll.
+   */
+  private void writeBands (Appendable out) throws IOException {
+    final ForkJoinPool pool = renderPool;
+    int most = Math.max(1,Math.min(yDim,4 * pool.getParallelism()));
+    final int rows = Math.max(1,(yDim + most - 1) / most);
+    final int bands = Math.max(1,(yDim + rows - 1) / rows);
+    final int count = numObjects;
+    final RoadInterface[] objects = roadObjects;
+    // First and last band each object reaches, or -1 for none.
+    final int[] reach = new int[2 * count];
+    final boolean[] unbounded = new boolean[count];
+    ParallelRange.run(pool,0,count,ParallelRange.grainFor(pool,count),
+      (from, to) -> {
+        int[] bounds = new int[4];
+        for (int i = from ; i < to ; i++) {
+          if (!objects[i].getBounds(bounds) || bounds[0] >= xDim ||
+                  bounds[2] < 0 || bounds[1] >= yDim || bounds[3] < 0) {
+            reach[2 * i] = -1;
+            continue;
+          }
+          unbounded[i] = coversMap(bounds);
+          reach[2 * i] = Math.max(bounds[1],0) / rows;
+          reach[2 * i + 1] = Math.min(bounds[3],yDim - 1) / rows;
+        }
+      });
+    // Objects that do not know their bounds are drawn whole first.
+    char[][][] drawn = null;
+    for (int i = 0 ; i < count ; i++) {
+      if (!unbounded[i]) continue;
+      if (drawn == null) drawn = new char[count][][];
+      drawn[i] = drawAlone(objects[i]);
+    }
+    final char[][][] alone = drawn;
+    final int[] first = new int[bands + 1];
+    for (int i = 0 ; i < count ; i++) {
+      if (reach[2 * i] < 0) continue;
+      for (int b = reach[2 * i] ; b <= reach[2 * i + 1] ; b++) {
+        first[b + 1]++;
+      }
+    }
+    for (int b = 0 ; b < bands ; b++) {
+      first[b + 1] += first[b];
+    }
+    // List the objects of each band, in registration order.
+    final int[] members = new int[first[bands]];
+    int[] next = Arrays.copyOf(first,bands);
+    for (int i = 0 ; i < count ; i++) {
+      if (reach[2 * i] < 0) continue;
+      for (int b = reach[2 * i] ; b <= reach[2 * i + 1] ; b++) {
+        members[next[b]++] = i;
+      }
+    }
+    final char[][] text = new char[bands][];
+    ParallelRange.run(pool,0,bands,1,
+      (from, to) -> {
+        for (int b = from ; b < to ; b++) {
+          int yMin = b * rows;
+          int yMax = Math.min(yMin + rows,yDim);
+          text[b] = drawBand(yMin,yMax,objects,alone,members,first[b],
+                             first[b + 1]);
+        }
+      });
+    appendTop(out,0,xDim);
+    for (int b = 0 ; b < bands ; b++) {
+      appendCells(out,text[b],0,text[b].length);
+    }
+    appendBottom(out,xDim);
+  }
+
+  /**
+   * Clear and draw the rows of one band, and return their text.
+   * 
+   * @param yMin first row of the band
+   * @param yMax one past the last row
+   * @param objects the registered objects
+   * @param alone the drawing of each object from drawAlone, null where
+   *          the object draws itself clipped; or null for none
+   * @param members indices of the objects, by band
+   * @param from first entry of members for this band
+   * @param to one past the last entry
+   */
+  private char[] drawBand (int yMin, int yMax, RoadInterface[] objects,
+                           char[][][] alone, int[] members, int from,
+                           int to) {
+    char[][] rows = Arrays.copyOfRange(grid,yMin,yMax);
+    for (int y = 0 ; y < rows.length ; y++) {
+      Arrays.fill(rows[y],' ');
+    }
+    for (int m = from ; m < to ; m++) {
+      int i = members[m];
+      if (alone != null && alone[i] != null) {
+        copyDrawn(alone[i],rows,0,yMin);
       } else {
-        result.append(' ');
+        objects[i].drawOnMap(rows,0,yMin);
       }
-      result.append('|');
-      for (int x = 0 ; x < xDim ; x++) {
-        result.append(grid[y][x]);
+    }
+    StringBuilder result = new StringBuilder(rows.length * (xDim + 8));
+    try {
+      for (int y = yMin ; y < yMax ; y++) {
+        appendRow(result,grid[y],y,xDim);
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    char[] chars = new char[result.length()];
+    result.getChars(0,chars.length,chars,0);
+    return (chars);
+  }
+
+  /** Append one full row of a tiled map, taken from its tiles */
+  private void appendTileRow (Appendable out, int y) throws IOException {
+    int tileRow = y / tileSize;
+    for (int tileCol = 0 ; tileCol < tilesX ; tileCol++) {
+      char[][] tile = tiles[tileRow * tilesX + tileCol];
+      int width = Math.min(tileSize,xDim - tileCol * tileSize);
+      if (tile == null) {
+        appendCells(out,blankRow,0,width);
+      } else {
+        appendCells(out,tile[y % tileSize],0,width);
+      }
+    }
+  }
+
+  /**
+   * Append a run of characters to a sink, using the bulk methods of
+   * the common sinks so the run is not copied on the way.
+   */
+  private static void appendCells (Appendable out, char[] cells, int from,
+                                   int count) throws IOException {
+    if (out instanceof StringBuilder) {
+      ((StringBuilder) out).append(cells,from,count);
+    } else if (out instanceof Writer) {
+      ((Writer) out).write(cells,from,count);
+    } else {
+      out.append(CharBuffer.wrap(cells,from,count));
+    }
+  }
+
+  /**
+   * Redraw every tile of a tiled map.
+   * 
+   * The registered objects are first sorted into the tiles their
+   * bounds overlap. Each tile is then cleared and drawn by its
+   * objects in registration order, with the offset of the tile. A
+   * tile that ends up blank is released, so storage is only held
+   * where roads are.
+   */
+  private void drawTiles () {
+    int count = numObjects;
+    RoadInterface[] objects = roadObjects;
+    int numTiles = tiles.length;
+    int[] bounds = new int[4 * count];
+    int[] first = new int[numTiles + 1];
+    char[][][] alone = null;
+    // Count the objects overlapping each tile.
+    for (int i = 0 ; i < count ; i++) {
+      int at = 4 * i;
+      if (!objects[i].getBounds(box) || box[0] >= xDim ||
+              box[2] < 0 || box[1] >= yDim || box[3] < 0) {
+        bounds[at + 2] = -1;
+        continue;
+      }
+      if (coversMap(box)) {
+        if (alone == null) alone = new char[count][][];
+        alone[i] = drawAlone(objects[i]);
+      }
+      bounds[at] = Math.max(box[0],0) / tileSize;
+      bounds[at + 1] = Math.max(box[1],0) / tileSize;
+      bounds[at + 2] = Math.min(box[2],xDim - 1) / tileSize;
+      bounds[at + 3] = Math.min(box[3],yDim - 1) / tileSize;
+      for (int ty = bounds[at + 1] ; ty <= bounds[at + 3] ; ty++) {
+        for (int tx = bounds[at] ; tx <= bounds[at + 2] ; tx++) {
+          first[ty * tilesX + tx + 1]++;
+        }
+      }
+    }
+    for (int t = 0 ; t < numTiles ; t++) {
+      first[t + 1] += first[t];
+    }
+    // List the objects of each tile, in registration order.
+    int[] members = new int[first[numTiles]];
+    int[] next = Arrays.copyOf(first,numTiles);
+    for (int i = 0 ; i < count ; i++) {
+      int at = 4 * i;
+      if (bounds[at + 2] < 0) continue;
+      for (int ty = bounds[at + 1] ; ty <= bounds[at + 3] ; ty++) {
+        for (int tx = bounds[at] ; tx <= bounds[at + 2] ; tx++) {
+          members[next[ty * tilesX + tx]++] = i;
+        }
+      }
+    }
+    char[][] spare = null;
+    for (int t = 0 ; t < numTiles ; t++) {
+      if (first[t] == first[t + 1]) {
+        tiles[t] = null;
+        continue;
+      }
+      char[][] tile = tiles[t];
+      if (tile == null) {
+        if (spare == null) spare = new char[tileSize][tileSize];
+        tile = spare;
+      }
+      for (int y = 0 ; y < tileSize ; y++) {
+        System.arraycopy(blankRow,0,tile[y],0,tileSize);
+      }
+      int xOff = (t % tilesX) * tileSize;
+      int yOff = (t / tilesX) * tileSize;
+      for (int m = first[t] ; m < first[t + 1] ; m++) {
+        int i = members[m];
+        if (alone != null && alone[i] != null) {
+          copyDrawn(alone[i],tile,xOff,yOff);
+        } else {
+          objects[i].drawOnMap(tile,xOff,yOff);
+        }
+      }
+      boolean blank = true;
+      for (int y = 0 ; y < tileSize && blank ; y++) {
+        for (int x = 0 ; x < tileSize && blank ; x++) {
+          blank = (tile[y][x] == ' ');
+        }
+      }
+      if (blank) {
+        tiles[t] = null;
+        spare = tile;
+      } else {
+        tiles[t] = tile;
+        if (tile == spare) spare = null;
+      }
+    }
+  }
+
+  /**
+   * Test if bounds reach past every edge of the map, as those of an
+   * object that does not know its bounds do. Renders that draw a part
+   * of the map draw such an object alone on a grid of the whole map
+   * and copy what it drew, rather than ask it to draw itself clipped.
+   */
+  private boolean coversMap (int[] bounds) {
+    return (bounds[0] < 0 && bounds[1] < 0 && bounds[2] >= xDim &&
+            bounds[3] >= yDim);
+  }
+
+  /**
+   * Draw an object alone on a grid of the whole map, in which the
+   * cells it does not draw hold 0.
+   */
+  private char[][] drawAlone (RoadInterface roadObject) {
+    char[][] cells = new char[yDim][xDim];
+    roadObject.drawOnMap(cells);
+    return (cells);
+  }
+
+  /**
+   * Copy the cells an object drew alone into a window of the map.
+   * 
+   * @param drawn the grid from drawAlone
+   * @param window character grid for the window
+   * @param xOff map x coordinate of the first column of the window
+   * @param yOff map y coordinate of the first row of the window
+   */
+  private void copyDrawn (char[][] drawn, char[][] window, int xOff,
+                          int yOff) {
+    int yEnd = Math.min(yOff + window.length,yDim);
+    for (int y = Math.max(yOff,0) ; y < yEnd ; y++) {
+      char[] from = drawn[y];
+      char[] to = window[y - yOff];
+      int xEnd = Math.min(xOff + to.length,xDim);
+      for (int x = Math.max(xOff,0) ; x < xEnd ; x++) {
+        if (from[x] != 0) to[x - xOff] = from[x];
+      }
+    }
+  }
+
+  /**
+   * Note the current bounds of every registered object as the bounds
+   * last drawn.
+   */
+  private void recordBounds () {
+    int count = numObjects;
+    RoadInterface[] objects = roadObjects;
+    if (drawnBounds.length < 4 * count) {
+      drawnBounds = new int[4 * objects.length];
+    }
+    for (int i = 0 ; i < count ; i++) {
+      if (!objects[i].getBounds(box)) {
+        box[0] = 0;
+        box[1] = 0;
+        box[2] = -1;
+        box[3] = -1;
+      }
+      System.arraycopy(box,0,drawnBounds,4 * i,4);
+    }
+    numDrawn = count;
+  }
+
+  /**
+   * Bring the grid and the text of the last render up to date.
+   * 
+   * Objects whose bounds moved since the last render dirty both their
+   * old and new area. Each dirty rectangle is then cleared and every
+   * object overlapping it is drawn again, in registration order and
+   * clipped to the rectangle, which gives exactly the cells a full
+   * render would.
+   */
+  private void redrawDirty () {
+    int count = numObjects;
+    RoadInterface[] objects = roadObjects;
+    if (drawnBounds.length < 4 * count) {
+      drawnBounds = Arrays.copyOf(drawnBounds,4 * objects.length);
+    }
+    for (int i = 0 ; i < count ; i++) {
+      int at = 4 * i;
+      if (i >= numDrawn) {
+        drawnBounds[at] = 0;
+        drawnBounds[at + 1] = 0;
+        drawnBounds[at + 2] = -1;
+        drawnBounds[at + 3] = -1;
+      }
+      if (!objects[i].getBounds(box)) {
+        box[0] = 0;
+        box[1] = 0;
+        box[2] = -1;
+        box[3] = -1;
+      }
+      if (box[0] != drawnBounds[at] || box[1] != drawnBounds[at + 1] ||
+              box[2] != drawnBounds[at + 2] ||
+              box[3] != drawnBounds[at + 3]) {
+        invalidate(drawnBounds[at],drawnBounds[at + 1],drawnBounds[at + 2],
+                   drawnBounds[at + 3]);
+        invalidate(box[0],box[1],box[2],box[3]);
+        System.arraycopy(box,0,drawnBounds,at,4);
       }
-      result.append("|\n");
     }
-    result.append(' ');
-    for (int x = 0 ; x < xDim + 2 ; x++)
-      result.append('=');
-    String temp = new String(result);
-    return (temp);
+    numDrawn = count;
+    char[][][] alone = null;
+    for (int r = 0 ; r < numDirty ; r++) {
+      int xMin = Math.max(dirty[4 * r],0);
+      int yMin = Math.max(dirty[4 * r + 1],0);
+      int xMax = Math.min(dirty[4 * r + 2],xDim - 1);
+      int yMax = Math.min(dirty[4 * r + 3],yDim - 1);
+      if (xMin > xMax || yMin > yMax) continue;
+      char[][] window = new char[yMax - yMin + 1][xMax - xMin + 1];
+      for (int y = 0 ; y < window.length ; y++) {
+        Arrays.fill(window[y],' ');
+      }
+      for (int i = 0 ; i < count ; i++) {
+        int at = 4 * i;
+        if (drawnBounds[at] <= xMax && drawnBounds[at + 2] >= xMin &&
+                drawnBounds[at + 1] <= yMax && drawnBounds[at + 3] >= yMin) {
+          System.arraycopy(drawnBounds,at,box,0,4);
+          if (!coversMap(box)) {
+            objects[i].drawOnMap(window,xMin,yMin);
+            continue;
+          }
+          if (alone == null) alone = new char[count][][];
+          if (alone[i] == null) alone[i] = drawAlone(objects[i]);
+          copyDrawn(alone[i],window,xMin,yMin);
+        }
+      }
+      for (int y = yMin ; y <= yMax ; y++) {
+        char[] row = window[y - yMin];
+        System.arraycopy(row,0,grid[y],xMin,row.length);
+        System.arraycopy(row,0,output,rowStart[y] + xMin,row.length);
+      }
+    }
+    numDirty = 0;
+  }
+
+  /**
+   * A Writer that encodes characters as US-ASCII into a buffer and
+   * empties the buffer into a channel whenever it fills. Characters
+   * outside US-ASCII are written as '?'.
+   */
+  private static class ChannelWriter extends Writer {
+
+    /** Where the bytes go */
+    private final WritableByteChannel channel;
+    /** Staging buffer */
+    private final ByteBuffer buffer;
+
+    ChannelWriter (WritableByteChannel channel, ByteBuffer buffer) {
+      this.channel = channel;
+      this.buffer = buffer;
+      buffer.clear();
+    }
+
+    public void write (char[] cbuf, int off, int len) throws IOException {
+      for (int i = off ; i < off + len ; i++) {
+        if (!buffer.hasRemaining()) flush();
+        char c = cbuf[i];
+        buffer.put((byte) (c < 0x80 ? c : '?'));
+      }
+    }
+
+    public void write (int c) throws IOException {
+      if (!buffer.hasRemaining()) flush();
+      buffer.put((byte) (c < 0x80 ? c : '?'));
+    }
+
+    public void write (String str, int off, int len) throws IOException {
+      for (int i = off ; i < off + len ; i++) {
+        write(str.charAt(i));
+      }
+    }
+
+    public void flush () throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    /** Flushes; the channel is left open for the caller */
+    public void close () throws IOException {
+      flush();
+    }
   }
 
 }
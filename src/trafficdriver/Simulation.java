@@ -0,0 +1,377 @@
+package trafficdriver;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A time-stepped microscopic simulation of vehicles on a RoadGraph.
+ * 
+ * Each arc of the graph (arc 2 * e + end is street e traveled from
+ * its start, end 0, or its end, end 1) is a single lane divided into
+ * cells, one per unit of street length. Position 0 is the cell just
+ * after the intersection the arc leaves, and the last cell is the stop
+ * line at the intersection it enters. A cell holds at most one
+ * vehicle.
+ * 
+ * Vehicles follow the Nagel-Schreckenberg rules: each step a vehicle
+ * speeds up by one cell per step up to the speed limit, slows to the
+ * free cells ahead of it, slows by one more with a fixed probability,
+ * and then moves. All vehicles move from the positions of the previous
+ * step. A vehicle at the stop line may enter the intersection if the
+ * first cell of the street it wants is free and no other vehicle at
+ * that intersection is granted the same cell; it crosses in one step
+ * and starts the new street at speed 1. The approaches of an
+ * intersection are served in an order that rotates every step. A
+ * vehicle picks one of the streets ahead of it at random, and only
+ * turns back at a dead end.
+ * 
+ * The vehicles of each arc are kept front first in a ring in a slice
+ * of primitive arrays, so a step touches only the vehicles and never
+ * the empty cells. A step runs in two passes on a ForkJoinPool: the
+ * intersections decide who enters, then every arc moves its vehicles.
+ * Random choices come from a hash of the seed, the vehicle and the
+ * step rather than from a shared generator, so the result of a step
+ * depends only on the seed and never on the number of threads.
+ * 
+ * Intersections can be gated by Signals, which only let some
+ * approaches enter at a time.
+ */
+public class Simulation {
+
+  /** Marker for no vehicle */
+  private static final int NONE = -1;
+
+  /** The graph being simulated; it must not change */
+  private final RoadGraph graph;
+  /** Speed limit in cells per step */
+  private final int maxSpeed;
+  /** Probability of a random slowdown each step */
+  private final double slowdown;
+  /** Seed of every random choice */
+  private final long seed;
+
+  /** Number of cells of each arc, and the first slot of its ring */
+  private final int[] cells;
+  private final int[] base;
+  /** Ring index of the front vehicle, and vehicle count, per arc */
+  private final int[] first;
+  private final int[] count;
+
+  /** Vehicle id, position and speed in each slot */
+  private final int[] vehicle;
+  private final int[] position;
+  private final int[] speed;
+
+  /** True if the front vehicle of an arc leaves it this step */
+  private final boolean[] exiting;
+  /** Vehicle entering each arc this step, or NONE */
+  private final int[] entering;
+
+  /** Signal controllers, or null if every intersection is open */
+  private Signals signals = null;
+  /** Approaches with a vehicle at the stop line, per intersection */
+  private final byte[] waiting;
+
+  /** number of steps taken */
+  private long steps = 0;
+  /** number of vehicles added; also the next vehicle id */
+  private int numVehicles = 0;
+
+  /**
+   * Construct a simulation with no vehicles.
+   * 
+   * @param graph the road network; it must not change afterwards
+   * @param maxSpeed speed limit in cells per step, at least 1
+   * @param slowdown probability of a random slowdown, 0 to 1
+   * @param seed seed of every random choice
+   */
+  public Simulation (RoadGraph graph, int maxSpeed, double slowdown,
+                     long seed) {
+    if (maxSpeed < 1) throw new IllegalArgumentException("maxSpeed < 1");
+    this.graph = graph;
+    this.maxSpeed = maxSpeed;
+    this.slowdown = slowdown;
+    this.seed = seed;
+    int arcs = 2 * graph.getEdgeCount();
+    cells = new int[arcs];
+    base = new int[arcs];
+    int slots = 0;
+    for (int arc = 0 ; arc < arcs ; arc++) {
+      base[arc] = slots;
+      if (!graph.isOpen(arc >> 1)) cells[arc] = graph.getLength(arc >> 1);
+      slots += cells[arc];
+    }
+    first = new int[arcs];
+    count = new int[arcs];
+    vehicle = new int[slots];
+    position = new int[slots];
+    speed = new int[slots];
+    exiting = new boolean[arcs];
+    entering = new int[arcs];
+    Arrays.fill(entering,NONE);
+    waiting = new byte[graph.getNodeCount()];
+  }
+
+  /**
+   * Gate the intersections with signal controllers. They are advanced
+   * once at the end of every step, with the approaches that had a
+   * vehicle waiting during it.
+   * 
+   * @param signals controllers for every intersection, or null to
+   *          remove them
+   */
+  public void setSignals (Signals signals) {
+    if (signals != null && signals.getNodeCount() != waiting.length) {
+      throw new IllegalArgumentException("signals sized for another graph");
+    }
+    this.signals = signals;
+  }
+
+  /** Return the graph being simulated */
+  public RoadGraph getGraph () {
+    return (graph);
+  }
+
+  /** Return the number of steps taken */
+  public long getStepCount () {
+    return (steps);
+  }
+
+  /** Return the number of vehicles on the network */
+  public int getVehicleCount () {
+    return (numVehicles);
+  }
+
+  /** Return the number of cells of an arc */
+  public int getCells (int arc) {
+    return (cells[arc]);
+  }
+
+  /** Return the number of vehicles on an arc */
+  public int getVehicleCount (int arc) {
+    return (count[arc]);
+  }
+
+  /**
+   * Return the id of a vehicle on an arc.
+   * 
+   * @param arc the arc
+   * @param i 0 for the front vehicle, counting backward
+   */
+  public int getVehicle (int arc, int i) {
+    return (vehicle[slot(arc,i)]);
+  }
+
+  /**
+   * Return the position of a vehicle on an arc.
+   * 
+   * @param arc the arc
+   * @param i 0 for the front vehicle, counting backward
+   */
+  public int getPosition (int arc, int i) {
+    return (position[slot(arc,i)]);
+  }
+
+  /**
+   * Return the speed of a vehicle on an arc.
+   * 
+   * @param arc the arc
+   * @param i 0 for the front vehicle, counting backward
+   */
+  public int getSpeed (int arc, int i) {
+    return (speed[slot(arc,i)]);
+  }
+
+  /** Return the slot of the i'th vehicle from the front of an arc */
+  private int slot (int arc, int i) {
+    int ring = first[arc] + i;
+    if (ring >= cells[arc]) ring -= cells[arc];
+    return (base[arc] + ring);
+  }
+
+  /**
+   * Place a vehicle, standing still, in a free cell.
+   * 
+   * @param arc the arc
+   * @param pos the cell
+   * @return the id of the vehicle, or -1 if the cell is taken or does
+   *         not exist
+   */
+  public int addVehicle (int arc, int pos) {
+    if (pos < 0 || pos >= cells[arc]) return (NONE);
+    int n = count[arc];
+    /*
+     * Find the place in the front-first order, then shift the rest
+     * back. Adding behind the last vehicle is the common case.
+     */
+    int at = 0;
+    if (n > 0 && position[slot(arc,n - 1)] > pos) at = n;
+    while (at < n && position[slot(arc,at)] > pos) {
+      at++;
+    }
+    if (at < n && position[slot(arc,at)] == pos) return (NONE);
+    for (int i = n ; i > at ; i--) {
+      int to = slot(arc,i);
+      int from = slot(arc,i - 1);
+      vehicle[to] = vehicle[from];
+      position[to] = position[from];
+      speed[to] = speed[from];
+    }
+    int to = slot(arc,at);
+    vehicle[to] = numVehicles;
+    position[to] = pos;
+    speed[to] = 0;
+    count[arc]++;
+    return (numVehicles++);
+  }
+
+  /**
+   * Fill each cell of the network with a standing vehicle with the
+   * given probability. The choice depends only on the seed.
+   * 
+   * @param density probability of a vehicle in each free cell
+   * @return the number of vehicles added
+   */
+  public int populate (double density) {
+    int added = 0;
+    for (int arc = 0 ; arc < cells.length ; arc++) {
+      for (int pos = cells[arc] - 1 ; pos >= 0 ; pos--) {
+        if (RandomBits.uniform(RandomBits.hash(seed,arc,pos,-1)) < density &&
+                addVehicle(arc,pos) != NONE) added++;
+      }
+    }
+    return (added);
+  }
+
+  /** Advance the simulation one step, using the common pool */
+  public void step () {
+    step(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Advance the simulation one step.
+   * 
+   * @param pool the pool that runs the step
+   */
+  public void step (ForkJoinPool pool) {
+    int nodes = graph.getNodeCount();
+    ParallelRange.run(pool,0,nodes,ParallelRange.grainFor(pool,nodes),
+      (from, to) -> {
+        for (int node = from ; node < to ; node++) {
+          serve(node);
+        }
+      });
+    int arcs = cells.length;
+    ParallelRange.run(pool,0,arcs,ParallelRange.grainFor(pool,arcs),
+      (from, to) -> {
+        for (int arc = from ; arc < to ; arc++) {
+          move(arc);
+        }
+      });
+    if (signals != null) signals.advance(pool,waiting);
+    steps++;
+  }
+
+  /**
+   * Decide which vehicles waiting at the stop lines of an
+   * intersection cross it this step, and note the approaches where
+   * one waits. Writes only the entries for this intersection and the
+   * arcs entering and leaving it.
+   */
+  private void serve (int node) {
+    int turn = (int) (steps & 3);
+    int queued = 0;
+    for (int k = 0 ; k < 4 ; k++) {
+      int from = (k + turn) & 3;
+      int edge = graph.getEdge(node,from);
+      if (edge == RoadGraph.NONE || graph.isOpen(edge)) continue;
+      // The arc entering this intersection leaves the other end.
+      int in = 2 * edge + (graph.getEdgeNode(edge,0) == node ? 1 : 0);
+      if (count[in] == 0) continue;
+      int front = slot(in,0);
+      if (position[front] != cells[in] - 1) continue;
+      queued |= 1 << from;
+      if (signals != null && !signals.mayEnter(node,from)) continue;
+      int out = chooseExit(node,from,vehicle[front]);
+      if (out < 0 || entering[out] != NONE) continue;
+      if (count[out] > 0 && position[slot(out,count[out] - 1)] == 0) continue;
+      entering[out] = vehicle[front];
+      exiting[in] = true;
+    }
+    waiting[node] = (byte) queued;
+  }
+
+  /**
+   * Pick the arc a vehicle takes out of an intersection. Every street
+   * except the one it came on is equally likely; the choice stays the
+   * same while the vehicle waits.
+   * 
+   * @param node the intersection
+   * @param from the DirectionCode of the slot of the street the
+   *          vehicle arrives on
+   * @param id the vehicle
+   * @return the arc, or -1 if there is none
+   */
+  private int chooseExit (int node, int from, int id) {
+    int options = 0;
+    for (int d = 0 ; d < 4 ; d++) {
+      if (d != from && isExit(node,d)) options++;
+    }
+    int pick = from;
+    if (options > 0) {
+      int chosen = (int) ((RandomBits.hash(seed,id,node,-2) >>> 33) % options);
+      for (int d = 0 ; d < 4 ; d++) {
+        if (d != from && isExit(node,d) && chosen-- == 0) {
+          pick = d;
+          break;
+        }
+      }
+    }
+    int edge = graph.getEdge(node,pick);
+    return (2 * edge + (graph.getEdgeNode(edge,0) == node ? 0 : 1));
+  }
+
+  /** Check if a vehicle can leave an intersection in a direction */
+  private boolean isExit (int node, int dir) {
+    int edge = graph.getEdge(node,dir);
+    return (edge != RoadGraph.NONE && !graph.isOpen(edge));
+  }
+
+  /**
+   * Move the vehicles of one arc: drop the front vehicle if it crosses
+   * the intersection, advance the rest, and take in the vehicle
+   * entering the arc, if any.
+   */
+  private void move (int arc) {
+    int n = count[arc];
+    int cap = cells[arc];
+    int i = 0;
+    int aheadOld = cap;
+    if (exiting[arc]) {
+      exiting[arc] = false;
+      aheadOld = position[slot(arc,0)];
+      first[arc] = (first[arc] + 1 == cap ? 0 : first[arc] + 1);
+      n--;
+    }
+    for ( ; i < n ; i++) {
+      int s = slot(arc,i);
+      int pos = position[s];
+      int v = Math.min(speed[s] + 1,maxSpeed);
+      v = Math.min(v,aheadOld - pos - 1);
+      if (v > 0 && RandomBits.uniform(RandomBits.hash(seed,vehicle[s],
+              (int) steps,arc)) < slowdown) v--;
+      aheadOld = pos;
+      position[s] = pos + v;
+      speed[s] = v;
+    }
+    int id = entering[arc];
+    if (id != NONE) {
+      entering[arc] = NONE;
+      int s = slot(arc,n++);
+      vehicle[s] = id;
+      position[s] = 0;
+      speed[s] = 1;
+    }
+    count[arc] = n;
+  }
+}
@@ -0,0 +1,329 @@
+package trafficdriver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A grid-bucket index of intersections by position.
+ * 
+ * The plane is divided into square cells with a side of a power of
+ * two. Each occupied cell has a bucket holding the intersections
+ * inside it; empty cells cost nothing. Buckets are found through an
+ * open-addressing hash table keyed on the packed cell coordinates, so
+ * no boxed keys are created.
+ * 
+ * Point lookups touch one bucket, rectangle queries touch the cells
+ * overlapping the rectangle, and nearest-intersection queries search
+ * rings of cells outward from the query point until no closer
+ * intersection can exist.
+ */
+public class SpatialIndex {
+
+  /** log2 of the cell side */
+  private final int shift;
+
+  /**
+   * Hash table from packed cell key to bucket number. An unused slot
+   * holds bucket number -1.
+   */
+  private long[] keys = null;
+  private int[] slots = null;
+
+  /** Buckets of intersections, and the number used in each */
+  private Intersection[][] buckets = null;
+  private int[] bucketSize = null;
+  /** Cell coordinates of each bucket */
+  private int[] bucketX = null;
+  private int[] bucketY = null;
+  /** current number of buckets */
+  private int numBuckets = 0;
+
+  /** Range of occupied cells */
+  private int minCellX = Integer.MAX_VALUE;
+  private int minCellY = Integer.MAX_VALUE;
+  private int maxCellX = Integer.MIN_VALUE;
+  private int maxCellY = Integer.MIN_VALUE;
+
+  /** current number of intersections */
+  private int numInters = 0;
+
+  /** Default constructor; cells are 16 units on a side */
+  public SpatialIndex () {
+    this(4);
+  }
+
+  /**
+   * Construct an empty index.
+   * 
+   * @param shift log2 of the cell side, between 0 and 30
+   */
+  public SpatialIndex (int shift) {
+    this.shift = shift;
+    keys = new long[16];
+    slots = new int[16];
+    Arrays.fill(slots,-1);
+    buckets = new Intersection[8][];
+    bucketSize = new int[8];
+    bucketX = new int[8];
+    bucketY = new int[8];
+  }
+
+  /** Return the number of intersections in the index */
+  public int size () {
+    return (numInters);
+  }
+
+  /**
+   * Add an intersection at its current position. Intersections do
+   * not move, so the entry stays valid.
+   * 
+   * @param inter the intersection to be added
+   */
+  public void add (Intersection inter) {
+    int cellX = inter.getXPos() >> shift;
+    int cellY = inter.getYPos() >> shift;
+    int bucket = findBucket(cellX,cellY);
+    if (bucket < 0) bucket = newBucket(cellX,cellY);
+    Intersection[] members = buckets[bucket];
+    if (bucketSize[bucket] >= members.length) {
+      members = Arrays.copyOf(members,members.length * 2);
+      buckets[bucket] = members;
+    }
+    members[bucketSize[bucket]++] = inter;
+    numInters++;
+  }
+
+  /**
+   * Return the intersection at a position.
+   * 
+   * @param xPos X coordinate
+   * @param yPos Y coordinate
+   * @return the first intersection added at that position, or null if
+   *         there is none
+   */
+  public Intersection get (int xPos, int yPos) {
+    int bucket = findBucket(xPos >> shift,yPos >> shift);
+    if (bucket < 0) return (null);
+    Intersection[] members = buckets[bucket];
+    for (int i = 0 ; i < bucketSize[bucket] ; i++) {
+      if (members[i].getXPos() == xPos && members[i].getYPos() == yPos) {
+        return (members[i]);
+      }
+    }
+    return (null);
+  }
+
+  /**
+   * Return the intersections inside a rectangle, edges included.
+   * 
+   * @param xMin smallest X coordinate
+   * @param yMin smallest Y coordinate
+   * @param xMax largest X coordinate
+   * @param yMax largest Y coordinate
+   * @return the intersections found, in no particular order
+   */
+  public Intersection[] within (int xMin, int yMin, int xMax, int yMax) {
+    ArrayList<Intersection> result = new ArrayList<Intersection>();
+    int cellX0 = Math.max(xMin >> shift,minCellX);
+    int cellY0 = Math.max(yMin >> shift,minCellY);
+    int cellX1 = Math.min(xMax >> shift,maxCellX);
+    int cellY1 = Math.min(yMax >> shift,maxCellY);
+    if (cellX0 > cellX1 || cellY0 > cellY1) return (new Intersection[0]);
+    /*
+     * Walk the cells of the rectangle, unless there are fewer
+     * occupied buckets than cells, in which case walk the buckets.
+     */
+    long cells = (long) (cellX1 - cellX0 + 1) * (cellY1 - cellY0 + 1);
+    if (cells <= numBuckets) {
+      for (int cellY = cellY0 ; cellY <= cellY1 ; cellY++) {
+        for (int cellX = cellX0 ; cellX <= cellX1 ; cellX++) {
+          collect(findBucket(cellX,cellY),xMin,yMin,xMax,yMax,result);
+        }
+      }
+    } else {
+      for (int bucket = 0 ; bucket < numBuckets ; bucket++) {
+        if (bucketX[bucket] >= cellX0 && bucketX[bucket] <= cellX1 &&
+                bucketY[bucket] >= cellY0 && bucketY[bucket] <= cellY1) {
+          collect(bucket,xMin,yMin,xMax,yMax,result);
+        }
+      }
+    }
+    return (result.toArray(new Intersection[result.size()]));
+  }
+
+  /**
+   * Add the members of a bucket that lie inside a rectangle to a
+   * result list. A negative bucket is ignored.
+   */
+  private void collect (int bucket, int xMin, int yMin, int xMax, int yMax,
+                        ArrayList<Intersection> result) {
+    if (bucket < 0) return;
+    Intersection[] members = buckets[bucket];
+    for (int i = 0 ; i < bucketSize[bucket] ; i++) {
+      int xPos = members[i].getXPos();
+      int yPos = members[i].getYPos();
+      if (xPos >= xMin && xPos <= xMax && yPos >= yMin && yPos <= yMax) {
+        result.add(members[i]);
+      }
+    }
+  }
+
+  /**
+   * Return the intersection closest to a position by straight-line
+   * distance.
+   * 
+   * @param xPos X coordinate
+   * @param yPos Y coordinate
+   * @return one of the closest intersections, or null if the index is
+   *         empty
+   */
+  public Intersection nearest (int xPos, int yPos) {
+    if (numInters == 0) return (null);
+    int cellX = xPos >> shift;
+    int cellY = yPos >> shift;
+    double side = 1L << shift;
+    /*
+     * The rings needed to cover every occupied cell. Past that there
+     * is nothing more to find.
+     */
+    long lastRing = Math.max(Math.max((long) cellX - minCellX,
+                                      (long) maxCellX - cellX),
+                             Math.max((long) cellY - minCellY,
+                                      (long) maxCellY - cellY));
+    Nearest best = new Nearest(xPos,yPos);
+    for (long ring = 0 ; ring <= lastRing ; ring++) {
+      /*
+       * Once the rings searched so far cover more cells than there are
+       * buckets, it is cheaper to finish by scanning the buckets.
+       */
+      if ((2 * ring + 1) * (2 * ring + 1) > numBuckets) {
+        for (int bucket = 0 ; bucket < numBuckets ; bucket++) {
+          long ringX = Math.abs((long) bucketX[bucket] - cellX);
+          long ringY = Math.abs((long) bucketY[bucket] - cellY);
+          if (Math.max(ringX,ringY) >= ring) best.check(bucket);
+        }
+        break;
+      }
+      if (ring == 0) {
+        best.check(findBucket(cellX,cellY));
+      } else {
+        for (long i = -ring ; i <= ring ; i++) {
+          best.check(findBucket(cellX + i,cellY - ring));
+          best.check(findBucket(cellX + i,cellY + ring));
+          if (i != -ring && i != ring) {
+            best.check(findBucket(cellX - ring,cellY + i));
+            best.check(findBucket(cellX + ring,cellY + i));
+          }
+        }
+      }
+      /*
+       * Every cell in the next ring is at least ring * side away from
+       * the query point.
+       */
+      if (best.inter != null && ring * side * ring * side >= best.dist) break;
+    }
+    return (best.inter);
+  }
+
+  /** The best candidate so far in a nearest-intersection query */
+  private class Nearest {
+
+    /** The query point */
+    private final int xPos;
+    private final int yPos;
+    /** The closest intersection so far, and its squared distance */
+    private Intersection inter = null;
+    private double dist = Double.POSITIVE_INFINITY;
+
+    private Nearest (int xPos, int yPos) {
+      this.xPos = xPos;
+      this.yPos = yPos;
+    }
+
+    /**
+     * Check the members of a bucket against the best candidate. A
+     * negative bucket is ignored.
+     */
+    private void check (int bucket) {
+      if (bucket < 0) return;
+      Intersection[] members = buckets[bucket];
+      for (int i = 0 ; i < bucketSize[bucket] ; i++) {
+        double deltaX = (double) members[i].getXPos() - xPos;
+        double deltaY = (double) members[i].getYPos() - yPos;
+        double memberDist = deltaX * deltaX + deltaY * deltaY;
+        if (memberDist < dist) {
+          dist = memberDist;
+          inter = members[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the bucket for a cell.
+   * 
+   * @return the bucket number, or -1 if the cell is empty or outside
+   *         the int range
+   */
+  private int findBucket (long cellX, long cellY) {
+    if (cellX != (int) cellX || cellY != (int) cellY) return (-1);
+    long key = cellKey((int) cellX,(int) cellY);
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask ; slots[i] >= 0 ; i = (i + 1) & mask) {
+      if (keys[i] == key) return (slots[i]);
+    }
+    return (-1);
+  }
+
+  /** Create the bucket for an empty cell */
+  private int newBucket (int cellX, int cellY) {
+    if (numBuckets >= buckets.length) {
+      int capacity = numBuckets * 2;
+      buckets = Arrays.copyOf(buckets,capacity);
+      bucketSize = Arrays.copyOf(bucketSize,capacity);
+      bucketX = Arrays.copyOf(bucketX,capacity);
+      bucketY = Arrays.copyOf(bucketY,capacity);
+    }
+    int bucket = numBuckets++;
+    buckets[bucket] = new Intersection[4];
+    bucketX[bucket] = cellX;
+    bucketY[bucket] = cellY;
+    minCellX = Math.min(minCellX,cellX);
+    minCellY = Math.min(minCellY,cellY);
+    maxCellX = Math.max(maxCellX,cellX);
+    maxCellY = Math.max(maxCellY,cellY);
+    // Keep the hash table at most half full.
+    if (numBuckets * 2 > keys.length) {
+      keys = new long[keys.length * 2];
+      slots = new int[keys.length];
+      Arrays.fill(slots,-1);
+      for (int i = 0 ; i < numBuckets ; i++) {
+        insertKey(cellKey(bucketX[i],bucketY[i]),i);
+      }
+    } else {
+      insertKey(cellKey(cellX,cellY),bucket);
+    }
+    return (bucket);
+  }
+
+  /** Store a key known to be absent in the hash table */
+  private void insertKey (long key, int bucket) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (slots[i] >= 0) {
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    slots[i] = bucket;
+  }
+
+  /** Pack cell coordinates into a hash key */
+  private static long cellKey (int cellX, int cellY) {
+    return (((long) cellX << 32) | (cellY & 0xffffffffL));
+  }
+
+  /** Spread the bits of a key over the low end of an int */
+  private static int hash (long key) {
+    return ((int) ((key * 0x9E3779B97F4A7C15L) >>> 32));
+  }
+}
@@ -9,8 +9,11 @@ package trafficdriver;
  * A street may have no turns or one turn. If there is a turn, it must
  * be to the right if you are traveling from the intersection where
  * construction starts to the intersection where construction ends.
+ * 
+ * Ends are attached and detached while holding the street's lock, so
+ * threads connecting the same street at once cannot mix up its ends.
  */
-public class Street implements RoadInterface {
+public class Street extends NetworkObject implements RoadInterface {
 
   /** Intersection 1: the intersection where construction starts. */
   private RoadInterface interOne = null;
@@ -22,8 +25,8 @@ public class Street implements RoadInterface {
   private int xOne = -1;
   private int yOne = -1;
   
-  /** The assigned name of the intersection */
-  private String streetName = "" ;
+  /** Id of the assigned name in the shared NameDictionary */
+  private int streetName = 0 ;
 
   /** Intersection 2: the intersection where construction ends. */
   private RoadInterface interTwo = null;
@@ -107,7 +110,8 @@ public class Street implements RoadInterface {
    * @param me the intersection to be attached
    * @param attachAt the direction to enter the intersection
    */
-  private boolean attachMe (RoadInterface me, Direction attachAt) {
+  private synchronized boolean attachMe (RoadInterface me,
+                                         Direction attachAt) {
 
     // Can't do anything if the intersection or direction is null.
     if (me == null || attachAt == null) return (false);
@@ -134,9 +138,102 @@ public class Street implements RoadInterface {
     } else {
       retval = false;
     }
+    /*
+     * If this is the final connection, calculate the coordinates of
+     * the turn, if any.
+     */
+    if (retval && !isOpen()) calculateTurn();
+    if (retval) edited();
     return (retval);
   }
 
+  /**
+   * Remove an attached intersection again, leaving that end open.
+   * 
+   * @param me the intersection to be removed
+   */
+  synchronized void detach (RoadInterface me) {
+    if (interTwo == me) {
+      interTwo = null;
+      dirTwo = Direction.south;
+      xTwo = -1;
+      yTwo = -1;
+    } else if (interOne == me) {
+      interOne = null;
+      dirOne = Direction.east;
+      xOne = -1;
+      yOne = -1;
+    }
+    xTurn = -1;
+    yTurn = -1;
+    edited();
+  }
+
+  /**
+   * Attach both ends at once, without the checks and back references
+   * of connectTo. Used by NetworkBuilder, which has already checked
+   * the slots and links the intersections itself.
+   * 
+   * @param start the intersection where construction starts
+   * @param startDir the direction to travel to enter it
+   * @param end the intersection where construction ends
+   * @param endDir the direction to travel to enter it
+   */
+  void attachEnds (Intersection start, Direction startDir, Intersection end,
+                   Direction endDir) {
+    interOne = start;
+    dirOne = startDir;
+    xOne = start.getXPos();
+    yOne = start.getYPos();
+    interTwo = end;
+    dirTwo = endDir;
+    xTwo = end.getXPos();
+    yTwo = end.getYPos();
+    calculateTurn();
+    edited();
+  }
+
+  /** Return intersection one, or null if not yet attached */
+  Intersection getStart () {
+    return ((Intersection) interOne);
+  }
+
+  /** Return intersection two, or null if not yet attached */
+  Intersection getEnd () {
+    return ((Intersection) interTwo);
+  }
+
+  /** Return the direction to travel to enter intersection one */
+  Direction getStartDirection () {
+    return (dirOne);
+  }
+
+  /** Return the direction to travel to enter intersection two */
+  Direction getEndDirection () {
+    return (dirTwo);
+  }
+
+  /**
+   * Copy the ends and the shape of the street under its lock, so a
+   * street being connected is never seen half done.
+   * 
+   * @param ends receives intersection one and two, null where open
+   * @param shape receives xOne, yOne, xTwo, yTwo, xTurn and yTurn,
+   *          then the ordinals of dirOne and dirTwo
+   */
+  synchronized void copyState (RoadInterface[] ends, int[] shape) {
+    ends[0] = interOne;
+    ends[1] = interTwo;
+    shape[0] = xOne;
+    shape[1] = yOne;
+    shape[2] = xTwo;
+    shape[3] = yTwo;
+    shape[4] = xTurn;
+    shape[5] = yTurn;
+    shape[6] = dirOne.ordinal();
+    shape[7] = dirTwo.ordinal();
+  }
+
   /**
    * Return the intersection connected in the specified direction
    * 
@@ -164,6 +261,17 @@ public class Street implements RoadInterface {
    * @param attachAt direction to travel to enter the attached object
    */
   public boolean connectTo (RoadInterface newObj, Direction attachAt)
+    throws ClassCastException {
+    boolean result = link(newObj,attachAt);
+    if (!result) Metrics.CONNECT_FAILURES.increment();
+    return (result);
+  }
+
+  /**
+   * Connect as connectTo does, without counting a failure; see
+   * Intersection.link.
+   */
+  boolean link (RoadInterface newObj, Direction attachAt)
     throws ClassCastException {
     boolean result = false;
     // Check for compatible type; null newObj will also throw an exception.
@@ -201,13 +309,13 @@ public class Street implements RoadInterface {
      * intersection already has a connected street in the specified
      * direction.
      */
-    if (attachMe(newInter,attachAt) &&
-            newInter.connectTo(this,attachAt.opposite())) result = true;
-    /*
-     * If this is the final connection, calculate the coordinates of
-     * the turn, if any.
-     */
-    if (result == true && !isOpen()) calculateTurn();
+    if (attachMe(newInter,attachAt)) {
+      if (newInter.link(this,attachAt.opposite())) {
+        result = true;
+      } else {
+        detach(newInter);
+      }
+    }
     return (result);
   }
 
@@ -244,6 +352,68 @@ public class Street implements RoadInterface {
    * @param roadMap a character array to draw on
    */
   public void drawOnMap (char[][] roadMap) {
+    drawOnMap(roadMap,0,0);
+  }
+
+  /**
+   * Paint the road onto a window of the map. A street that is not
+   * attached at both ends has no shape yet and is not drawn.
+   * 
+   * @param roadMap a character array to draw on
+   * @param xOff map x coordinate of the first column of the array
+   * @param yOff map y coordinate of the first row of the array
+   */
+  public void drawOnMap (char[][] roadMap, int xOff, int yOff) {
+    if (isOpen()) return;
+    drawStreet(roadMap,xOff,yOff,xOne,yOne,xTwo,yTwo,xTurn,yTurn);
+  }
+
+  /**
+   * The street lies within the rectangle spanned by its two
+   * intersections, turn included.
+   * 
+   * @param bounds receives the smallest and largest x and y
+   * @return false if the street is not attached at both ends
+   */
+  public boolean getBounds (int[] bounds) {
+    if (isOpen()) return (false);
+    bounds[0] = Math.min(xOne,xTwo);
+    bounds[1] = Math.min(yOne,yTwo);
+    bounds[2] = Math.max(xOne,xTwo);
+    bounds[3] = Math.max(yOne,yTwo);
+    return (true);
+  }
+
+  /**
+   * Paint a street with the given geometry onto a window of the
+   * grid. Shared by every representation of a street so they all
+   * look the same.
+   * 
+   * @param roadMap a character array to draw on
+   * @param xOff map x coordinate of the first column of the array
+   * @param yOff map y coordinate of the first row of the array
+   * @param xOne X coordinate of intersection one
+   * @param yOne Y coordinate of intersection one
+   * @param xTwo X coordinate of intersection two
+   * @param yTwo Y coordinate of intersection two
+   * @param xTurn X coordinate of the turn, -1 if no turn
+   * @param yTurn Y coordinate of the turn, -1 if no turn
+   */
+  static void drawStreet (char[][] roadMap, int xOff, int yOff, int xOne,
+                          int yOne, int xTwo, int yTwo, int xTurn,
+                          int yTurn) {
+    drawStreet(roadMap,xOff,yOff,xOne,yOne,xTwo,yTwo,xTurn,yTurn,'*');
+  }
+
+  /**
+   * Paint a street with the given geometry onto a window of the grid
+   * in some other character, as a heatmap does.
+   * 
+   * @param mark the character every cell of the street is painted in
+   */
+  static void drawStreet (char[][] roadMap, int xOff, int yOff, int xOne,
+                          int yOne, int xTwo, int yTwo, int xTurn,
+                          int yTurn, char mark) {
     int deltaX = 0;
     int deltaY = 0;
     int startX = 0;
@@ -299,16 +469,23 @@ public class Street implements RoadInterface {
       }
     }
     /*
-     * Now we can run two loops to fill in the necessary chars.
+     * Now we can run two loops to fill in the necessary chars, clipped
+     * to the part of the map held in the array.
      */
-    if (deltaX != 0) {
-      for (int i = Math.min(deltaX,0) ; i < Math.max(deltaX,0) ; i++) {
-        roadMap[startY][startX + i] = '*';
+    int row = startY - yOff;
+    int col = startX - xOff;
+    if (deltaX != 0 && row >= 0 && row < roadMap.length) {
+      int from = Math.max(col + Math.min(deltaX,0),0);
+      int to = Math.min(col + Math.max(deltaX,0),roadMap[row].length);
+      for (int x = from ; x < to ; x++) {
+        roadMap[row][x] = mark;
       }
     }
-    if (deltaY != 0) {
-      for (int i = Math.min(deltaY,0) ; i < Math.max(deltaY,0) ; i++) {
-        roadMap[startY + i][startX] = '*';
+    if (deltaY != 0 && col >= 0) {
+      int from = Math.max(row + Math.min(deltaY,0),0);
+      int to = Math.min(row + Math.max(deltaY,0),roadMap.length);
+      for (int y = from ; y < to ; y++) {
+        if (col < roadMap[y].length) roadMap[y][col] = mark;
       }
     }
     /*
@@ -316,23 +493,31 @@ public class Street implements RoadInterface {
      * counting back toward the turn, an offset of zero, and not quite
      * getting there.
      */
-    if (deltaX < 0 && deltaY < 0) roadMap[startY][startX] = '*';
+    if (deltaX < 0 && deltaY < 0 && row >= 0 && row < roadMap.length &&
+            col >= 0 && col < roadMap[row].length) roadMap[row][col] = mark;
   }
 
   
   /**
-   * Assigns a name to the street.
+   * Assigns a name to the street. The name is interned, so the many
+   * segments of one named street share it.
    * 
    * @param name that you want to assign to the street
    */
   public void setName (String name) {
-	  streetName = name ;
+	  streetName = NameDictionary.shared().intern(name) ;
+	  edited();
   }
   
   /**
    * Retrieves the name of the street.
    */
   public String getName () {
+	  return (NameDictionary.shared().getName(streetName)) ;
+  }
+
+  /** Return the id of the name in the shared NameDictionary */
+  int getNameId () {
 	  return (streetName) ;
   }
 }
@@ -0,0 +1,465 @@
+package trafficdriver;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Static traffic assignment: loads a demand of trips between
+ * intersections onto a RoadGraph and finds the user-equilibrium flows,
+ * where no trip can save time by changing route.
+ * 
+ * The travel time of an arc grows with its flow by the BPR function
+ * t = t0 * (1 + alpha * (v / c)^beta), with free-flow time t0 and
+ * capacity c per arc. Arcs are numbered as in Router: arc 2 * e + end
+ * is street e left from its start (end 0) or its end (end 1). The
+ * default free-flow time of an arc is the length of its street.
+ * 
+ * The solver is Frank-Wolfe. Each iteration assigns every trip to its
+ * shortest route under the current times (the all-or-nothing step),
+ * then moves the flows towards that assignment by the step that
+ * minimizes the Beckmann objective, found by bisection. The
+ * all-or-nothing step grows one shortest-path tree per origin, with
+ * the origins shared out over a pool. Each piece of origins loads its
+ * trips into its own flow array by pushing demand up the tree in
+ * reverse settling order, so loading costs one pass over the tree
+ * rather than one walk per trip; the arrays are summed at the end, in
+ * a fixed order, so results do not depend on timing. Pools of other
+ * sizes cut the origins into other pieces, which changes only the
+ * rounding of the sums.
+ * 
+ * To assign over the Street objects of a map, build the graph with
+ * RoadGraph.fromMap; its street numbers follow the map.
+ */
+public class TrafficAssignment {
+
+  /** Default BPR parameters */
+  public static final double DEFAULT_ALPHA = 0.15;
+  public static final double DEFAULT_BETA = 4;
+
+  /** Number of bisection steps in the line search */
+  private static final int LINE_SEARCH_STEPS = 30;
+
+  /** The graph being loaded; it must not change */
+  private final RoadGraph graph;
+  /** Number of arcs, two per street */
+  private final int arcs;
+  /** Free-flow time and capacity of each arc */
+  private final double[] freeTime;
+  private final double[] capacity;
+  /** BPR parameters */
+  private double alpha = DEFAULT_ALPHA;
+  private double beta = DEFAULT_BETA;
+
+  /** Origins with demand, and their trips in CSR form */
+  private int[] origins = new int[0];
+  private int[] tripStart = new int[1];
+  private int[] tripTo = new int[0];
+  private double[] trips = new double[0];
+
+  /** Current flow of each arc */
+  private double[] flow;
+  /** Relative gap after the last iteration */
+  private double gap = Double.POSITIVE_INFINITY;
+  /** Trips that have no route, as of the last all-or-nothing step */
+  private double unassigned = 0;
+
+  /** Search state of each thread */
+  private final ThreadLocal<SearchState> states =
+          new ThreadLocal<SearchState>();
+
+  /**
+   * Construct a solver whose free-flow times are the street lengths.
+   * 
+   * @param graph the graph to load
+   * @param capacity capacity of each arc, indexed 2 * street + end
+   */
+  public TrafficAssignment (RoadGraph graph, double[] capacity) {
+    this(graph,lengths(graph),capacity);
+  }
+
+  /**
+   * Construct a solver.
+   * 
+   * @param graph the graph to load
+   * @param freeTime free-flow time of each arc, indexed 2 * street +
+   *          end
+   * @param capacity capacity of each arc, indexed 2 * street + end
+   */
+  public TrafficAssignment (RoadGraph graph, double[] freeTime,
+                            double[] capacity) {
+    this.graph = graph;
+    this.arcs = 2 * graph.getEdgeCount();
+    if (freeTime.length < arcs || capacity.length < arcs) {
+      throw new IllegalArgumentException("need a value for every arc");
+    }
+    this.freeTime = freeTime;
+    this.capacity = capacity;
+    this.flow = new double[arcs];
+  }
+
+  /** Return the length of every arc's street */
+  private static double[] lengths (RoadGraph graph) {
+    double[] result = new double[2 * graph.getEdgeCount()];
+    for (int e = 0 ; e < graph.getEdgeCount() ; e++) {
+      if (graph.isOpen(e)) continue;
+      result[2 * e] = graph.getLength(e);
+      result[2 * e + 1] = result[2 * e];
+    }
+    return (result);
+  }
+
+  /**
+   * Set the parameters of the BPR function.
+   * 
+   * @param alpha growth of travel time at capacity
+   * @param beta steepness of the growth
+   */
+  public void setBpr (double alpha, double beta) {
+    this.alpha = alpha;
+    this.beta = beta;
+  }
+
+  /**
+   * Set the demand as a list of origin-destination pairs. Pairs may
+   * repeat; their trips add up.
+   * 
+   * @param from the origin of each pair
+   * @param to the destination of each pair
+   * @param count the trips of each pair
+   */
+  public void setDemand (int[] from, int[] to, double[] count) {
+    int nodes = graph.getNodeCount();
+    int[] start = new int[nodes + 1];
+    for (int p = 0 ; p < from.length ; p++) {
+      start[from[p] + 1]++;
+    }
+    int numOrigins = 0;
+    for (int n = 0 ; n < nodes ; n++) {
+      if (start[n + 1] > 0) numOrigins++;
+      start[n + 1] += start[n];
+    }
+    int[] next = Arrays.copyOf(start,nodes);
+    tripTo = new int[from.length];
+    trips = new double[from.length];
+    for (int p = 0 ; p < from.length ; p++) {
+      int at = next[from[p]]++;
+      tripTo[at] = to[p];
+      trips[at] = count[p];
+    }
+    origins = new int[numOrigins];
+    tripStart = new int[numOrigins + 1];
+    numOrigins = 0;
+    for (int n = 0 ; n < nodes ; n++) {
+      if (start[n + 1] == start[n]) continue;
+      origins[numOrigins] = n;
+      tripStart[numOrigins + 1] = start[n + 1];
+      numOrigins++;
+    }
+    Arrays.fill(flow,0);
+    gap = Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Solve on the common pool.
+   * 
+   * @param maxIterations most iterations to run
+   * @param targetGap relative gap at which to stop
+   * @return the number of iterations run
+   */
+  public int solve (int maxIterations, double targetGap) {
+    return (solve(maxIterations,targetGap,ForkJoinPool.commonPool()));
+  }
+
+  /**
+   * Run Frank-Wolfe iterations from an all-or-nothing assignment at
+   * free-flow times, until the relative gap reaches the target. The
+   * relative gap is the share of the total travel time that shortest
+   * routes would save at the current times.
+   * 
+   * @param maxIterations most iterations to run
+   * @param targetGap relative gap at which to stop
+   * @param pool the pool that grows the shortest-path trees
+   * @return the number of iterations run
+   */
+  public int solve (int maxIterations, double targetGap, ForkJoinPool pool) {
+    double[] time = new double[arcs];
+    double[] target = new double[arcs];
+    System.arraycopy(freeTime,0,time,0,arcs);
+    allOrNothing(time,flow,pool);
+    int iteration = 0;
+    while (iteration < maxIterations) {
+      times(flow,time);
+      allOrNothing(time,target,pool);
+      double current = 0;
+      double shortest = 0;
+      for (int a = 0 ; a < arcs ; a++) {
+        current += flow[a] * time[a];
+        shortest += target[a] * time[a];
+      }
+      gap = (current > 0 ? (current - shortest) / current : 0);
+      iteration++;
+      if (gap <= targetGap) break;
+      double step = lineSearch(target);
+      for (int a = 0 ; a < arcs ; a++) {
+        flow[a] += step * (target[a] - flow[a]);
+      }
+    }
+    return (iteration);
+  }
+
+  /** Return the BPR travel time of an arc at a flow */
+  private double timeAt (int arc, double volume) {
+    if (capacity[arc] <= 0) return (freeTime[arc]);
+    return (freeTime[arc] *
+            (1 + alpha * Math.pow(volume / capacity[arc],beta)));
+  }
+
+  /** Compute the travel time of every arc at some flows */
+  private void times (double[] volume, double[] time) {
+    for (int a = 0 ; a < arcs ; a++) {
+      time[a] = timeAt(a,volume[a]);
+    }
+  }
+
+  /**
+   * Find the step towards a target assignment that minimizes the
+   * Beckmann objective, by bisection on its derivative.
+   */
+  private double lineSearch (double[] target) {
+    if (slope(target,1) <= 0) return (1);
+    double low = 0;
+    double high = 1;
+    for (int i = 0 ; i < LINE_SEARCH_STEPS ; i++) {
+      double middle = (low + high) / 2;
+      if (slope(target,middle) > 0) {
+        high = middle;
+      } else {
+        low = middle;
+      }
+    }
+    return ((low + high) / 2);
+  }
+
+  /** Return the derivative of the objective at a step */
+  private double slope (double[] target, double step) {
+    double result = 0;
+    for (int a = 0 ; a < arcs ; a++) {
+      double change = target[a] - flow[a];
+      if (change != 0) result += change * timeAt(a,flow[a] + step * change);
+    }
+    return (result);
+  }
+
+  /**
+   * Assign every trip to its shortest route.
+   * 
+   * @param time the travel time of each arc
+   * @param into receives the flow of each arc
+   * @param pool the pool that grows the trees
+   */
+  private void allOrNothing (final double[] time, double[] into,
+                             ForkJoinPool pool) {
+    final int count = origins.length;
+    // Flows of each piece, at the index of its first origin.
+    final double[][] partial = new double[count][];
+    final double[] lost = new double[count];
+    ParallelRange.run(pool,0,count,ParallelRange.grainFor(pool,count),
+      (from, to) -> {
+        SearchState state = getState();
+        double[] load = new double[arcs];
+        for (int o = from ; o < to ; o++) {
+          lost[o] = loadTree(state,o,time,load);
+        }
+        partial[from] = load;
+      });
+    final double[] sum = into;
+    ParallelRange.run(pool,0,arcs,ParallelRange.grainFor(pool,arcs),
+      (from, to) -> {
+        Arrays.fill(sum,from,to,0);
+        for (int p = 0 ; p < count ; p++) {
+          if (partial[p] == null) continue;
+          for (int a = from ; a < to ; a++) {
+            sum[a] += partial[p][a];
+          }
+        }
+      });
+    double total = 0;
+    for (int o = 0 ; o < count ; o++) {
+      total += lost[o];
+    }
+    unassigned = total;
+  }
+
+  /**
+   * Grow the shortest-path tree of one origin and load its trips.
+   * 
+   * @param state this thread's search arrays
+   * @param o the number of the origin
+   * @param time the travel time of each arc
+   * @param load receives the flows
+   * @return the trips that have no route
+   */
+  private double loadTree (SearchState state, int o, double[] time,
+                           double[] load) {
+    NodeHeap heap = state.heap;
+    double[] dist = state.dist;
+    double[] demand = state.demand;
+    int[] parent = state.parent;
+    int[] seen = state.seen;
+    int[] order = state.order;
+    int round = state.nextRound();
+    int origin = origins[o];
+
+    // Mark the destinations, and stop once they are all settled.
+    int left = 0;
+    double lost = 0;
+    for (int t = tripStart[o] ; t < tripStart[o + 1] ; t++) {
+      int dest = tripTo[t];
+      if (state.wanted[dest] != round) {
+        state.wanted[dest] = round;
+        demand[dest] = 0;
+        left++;
+      }
+      demand[dest] += trips[t];
+    }
+    int settled = 0;
+    dist[origin] = 0;
+    parent[origin] = RoadGraph.NONE;
+    seen[origin] = round;
+    heap.push(origin,0);
+    while (!heap.isEmpty() && left > 0) {
+      int node = heap.pop();
+      order[settled++] = node;
+      if (state.wanted[node] == round) left--;
+      for (int d = 0 ; d < 4 ; d++) {
+        int edge = graph.getEdge(node,d);
+        if (edge == RoadGraph.NONE) continue;
+        int end = (graph.getEdgeNode(edge,0) == node ? 0 : 1);
+        int next = graph.getEdgeNode(edge,1 - end);
+        if (next == RoadGraph.NONE) continue;
+        int arc = 2 * edge + end;
+        double nextDist = dist[node] + time[arc];
+        if (seen[next] != round || nextDist < dist[next]) {
+          seen[next] = round;
+          dist[next] = nextDist;
+          parent[next] = arc;
+          // Non-negative doubles order the same as their bits.
+          heap.push(next,Double.doubleToLongBits(nextDist));
+        }
+      }
+    }
+    heap.clear();
+    // Trips to destinations never settled have no route.
+    for (int t = tripStart[o] ; t < tripStart[o + 1] ; t++) {
+      int dest = tripTo[t];
+      if (seen[dest] != round) {
+        lost += trips[t];
+        state.wanted[dest] = 0;
+      }
+    }
+    /*
+     * Push the demand of each node onto the arc it was reached by and
+     * on to its parent, children before parents.
+     */
+    for (int i = settled - 1 ; i > 0 ; i--) {
+      int node = order[i];
+      if (state.wanted[node] != round) continue;
+      double volume = demand[node];
+      int arc = parent[node];
+      load[arc] += volume;
+      int up = graph.getEdgeNode(arc >> 1,arc & 1);
+      if (state.wanted[up] != round) {
+        state.wanted[up] = round;
+        demand[up] = 0;
+      }
+      demand[up] += volume;
+    }
+    return (lost);
+  }
+
+  /** Return this thread's search state, sized for the graph */
+  private SearchState getState () {
+    SearchState state = states.get();
+    if (state == null || state.dist.length < graph.getNodeCount()) {
+      state = new SearchState(graph.getNodeCount());
+      states.set(state);
+    }
+    return (state);
+  }
+
+  /** Return the flow of an arc */
+  public double getFlow (int arc) {
+    return (flow[arc]);
+  }
+
+  /** Return the flow of a street in both directions together */
+  public double getStreetFlow (int edge) {
+    return (flow[2 * edge] + flow[2 * edge + 1]);
+  }
+
+  /** Return a copy of the flow of every arc */
+  public double[] getFlows () {
+    return (flow.clone());
+  }
+
+  /** Return the travel time of an arc at its current flow */
+  public double getTime (int arc) {
+    return (timeAt(arc,flow[arc]));
+  }
+
+  /** Return the relative gap after the last iteration */
+  public double getRelativeGap () {
+    return (gap);
+  }
+
+  /** Return the trips that could not be assigned for lack of a route */
+  public double getUnassigned () {
+    return (unassigned);
+  }
+
+  /**
+   * Per-thread arrays for growing a tree. Every tree gets a new round
+   * number and a node's entries only count if seen, or for demand
+   * wanted, holds the current round.
+   */
+  private static class SearchState {
+
+    /** Tentative time to each node */
+    final double[] dist;
+    /** Arc used to reach each node */
+    final int[] parent;
+    /** Round in which each node was last reached */
+    final int[] seen;
+    /** Nodes in the order they were settled */
+    final int[] order;
+    /** Trips to or through each node */
+    final double[] demand;
+    /** Round in which each node last had demand */
+    final int[] wanted;
+    /** Open nodes keyed by time */
+    final NodeHeap heap;
+    /** Number of the current round */
+    private int round = 0;
+
+    SearchState (int nodes) {
+      dist = new double[nodes];
+      parent = new int[nodes];
+      seen = new int[nodes];
+      order = new int[nodes];
+      demand = new double[nodes];
+      wanted = new int[nodes];
+      heap = new NodeHeap(nodes);
+    }
+
+    /** Start a new round */
+    int nextRound () {
+      if (++round == 0) {
+        // The counter wrapped; old marks could look current.
+        Arrays.fill(seen,0);
+        Arrays.fill(wanted,0);
+        round = 1;
+      }
+      return (round);
+    }
+  }
+}
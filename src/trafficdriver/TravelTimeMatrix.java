@@ -0,0 +1,274 @@
+package trafficdriver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Origin-destination matrices of shortest travel times.
+ * 
+ * Each row of a matrix is one Dijkstra search from its origin that
+ * stops as soon as every destination is settled, so a row costs about
+ * as much as the single search to the farthest destination instead of
+ * one search per cell. Rows are searched in parallel on a pool. The
+ * graph and weights of the Router are shared by every worker and only
+ * read; each thread uses the Router's search arrays and its step from
+ * a settled intersection to its neighbours, and reuses them for every
+ * row it takes.
+ * 
+ * A matrix is a flat int array in row-major order: the time from
+ * origin i to destination j is at i * destinations + j, and
+ * UNREACHABLE where there is no route. A matrix too large to hold can
+ * be written to a file a block of rows at a time, as a header of magic
+ * "TDTM", version, rows and columns followed by the cells, all
+ * little-endian ints.
+ * 
+ * To work on the Intersection and Street objects of a map, build the
+ * graph with RoadGraph.fromMap or from a NetworkSnapshot.
+ */
+public class TravelTimeMatrix {
+
+  /** Time of a cell with no route */
+  public static final int UNREACHABLE = Router.UNREACHABLE;
+
+  /** Tag at the start of a matrix file, "TDTM" */
+  private static final int MAGIC = 0x4d544454;
+  /** Version of the format */
+  private static final int VERSION = 1;
+  /** Size of the header in bytes */
+  private static final int HEADER_SIZE = 16;
+  /** Size of the buffer used when writing */
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  /** The router whose graph and weights are used */
+  private final Router router;
+  /** The graph being searched */
+  private final RoadGraph graph;
+
+  /**
+   * Construct a matrix calculator over the graph and weights of a
+   * router.
+   * 
+   * @param router the router; its graph must not change
+   */
+  public TravelTimeMatrix (Router router) {
+    this.router = router;
+    this.graph = router.getGraph();
+  }
+
+  /**
+   * Compute a matrix on the common pool.
+   * 
+   * @param origins the intersection of each row
+   * @param destinations the intersection of each column
+   * @return the times, row-major
+   */
+  public int[] compute (int[] origins, int[] destinations) {
+    return (compute(origins,destinations,ForkJoinPool.commonPool()));
+  }
+
+  /**
+   * Compute a matrix.
+   * 
+   * @param origins the intersection of each row
+   * @param destinations the intersection of each column
+   * @param pool the pool that searches the rows
+   * @return the times, row-major
+   */
+  public int[] compute (int[] origins, int[] destinations,
+                        ForkJoinPool pool) {
+    long cells = (long) origins.length * destinations.length;
+    if (cells > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("matrix of " + cells +
+                                         " cells is too large; write it");
+    }
+    int[] result = new int[(int) cells];
+    computeRows(origins,0,origins.length,new Targets(destinations),result,
+                pool);
+    return (result);
+  }
+
+  /**
+   * Compute a matrix and write it to a file, a block of rows at a
+   * time, so only one block is held in memory.
+   * 
+   * @param origins the intersection of each row
+   * @param destinations the intersection of each column
+   * @param pool the pool that searches the rows
+   * @param file the file to write; an existing file is replaced
+   * @param blockRows number of rows computed between writes
+   * @throws IOException if the file cannot be written
+   */
+  public void write (int[] origins, int[] destinations, ForkJoinPool pool,
+                     Path file, int blockRows) throws IOException {
+    int columns = destinations.length;
+    blockRows = Math.max(1,Math.min(blockRows,origins.length));
+    Targets targets = new Targets(destinations);
+    int[] block = new int[blockRows * columns];
+    ByteBuffer buffer =
+            ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(origins.length)
+              .putInt(columns);
+      for (int first = 0 ; first < origins.length ; first += blockRows) {
+        int count = Math.min(blockRows,origins.length - first);
+        computeRows(origins,first,count,targets,block,pool);
+        for (int at = 0 ; at < count * columns ; ) {
+          if (buffer.remaining() < 4) drain(channel,buffer);
+          int length = Math.min(buffer.remaining() / 4,count * columns - at);
+          IntBuffer ints = buffer.asIntBuffer();
+          ints.put(block,at,length);
+          buffer.position(buffer.position() + 4 * length);
+          at += length;
+        }
+      }
+      drain(channel,buffer);
+    }
+  }
+
+  /** Write out everything in a buffer and empty it */
+  private static void drain (FileChannel channel, ByteBuffer buffer)
+    throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Read a matrix written by write.
+   * 
+   * @param file the file
+   * @return the times, row-major
+   * @throws IOException if the file cannot be read or is not a matrix
+   */
+  public static int[] read (Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file,StandardOpenOption.READ)) {
+      ByteBuffer header =
+              ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining() && channel.read(header) >= 0) {}
+      header.flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC ||
+              header.getInt() != VERSION) {
+        throw new IOException(file + " is not a travel time matrix");
+      }
+      long cells = (long) header.getInt() * header.getInt();
+      if (cells > Integer.MAX_VALUE - 8 ||
+              channel.size() != HEADER_SIZE + 4 * cells) {
+        throw new IOException(file + " has the wrong size");
+      }
+      int[] result = new int[(int) cells];
+      ByteBuffer buffer =
+              ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      for (int at = 0 ; at < result.length ; ) {
+        if (channel.read(buffer) < 0) throw new IOException("short read");
+        buffer.flip();
+        int length = buffer.remaining() / 4;
+        buffer.asIntBuffer().get(result,at,length);
+        buffer.position(4 * length);
+        buffer.compact();
+        at += length;
+      }
+      return (result);
+    }
+  }
+
+  /**
+   * Search some rows in parallel.
+   * 
+   * @param origins the intersection of each row
+   * @param first first row to search
+   * @param count number of rows
+   * @param targets the destinations
+   * @param into receives the rows, the first at index 0
+   * @param pool the pool that searches the rows
+   */
+  private void computeRows (final int[] origins, final int first, int count,
+                            final Targets targets, final int[] into,
+                            ForkJoinPool pool) {
+    final int columns = targets.columns;
+    ParallelRange.run(pool,0,count,1,
+      (from, to) -> {
+        Router.SearchState state = router.getState();
+        for (int r = from ; r < to ; r++) {
+          searchRow(state,origins[first + r],targets,into,r * columns);
+        }
+      });
+  }
+
+  /**
+   * Search from one origin until every destination is settled.
+   * 
+   * @param state this thread's search arrays
+   * @param origin the origin
+   * @param targets the destinations
+   * @param into receives the row
+   * @param at index of the first cell of the row
+   */
+  private void searchRow (Router.SearchState state, int origin,
+                          Targets targets, int[] into, int at) {
+    Arrays.fill(into,at,at + targets.columns,UNREACHABLE);
+    NodeHeap heap = state.heap;
+    int[] dist = state.dist;
+    int round = state.nextRound();
+    int left = targets.distinct;
+
+    dist[origin] = 0;
+    state.seen[origin] = round;
+    heap.push(origin,0);
+    while (!heap.isEmpty() && left > 0) {
+      int node = heap.pop();
+      // A popped node is settled; fill in every column it heads.
+      int c = targets.column[node];
+      if (c != RoadGraph.NONE) {
+        left--;
+        for ( ; c != RoadGraph.NONE ; c = targets.nextColumn[c]) {
+          into[at + c] = dist[node];
+        }
+      }
+      router.relax(state,node,false,0,0);
+    }
+    heap.clear();
+  }
+
+  /**
+   * The destinations of a matrix, indexed by intersection and shared
+   * by every search. An intersection that appears in several columns
+   * heads a chain of them.
+   */
+  private final class Targets {
+
+    /** Number of columns */
+    final int columns;
+    /** Number of different intersections among the columns */
+    final int distinct;
+    /** First column of each intersection, or NONE */
+    final int[] column;
+    /** Next column with the same intersection, or NONE */
+    final int[] nextColumn;
+
+    Targets (int[] destinations) {
+      columns = destinations.length;
+      column = new int[graph.getNodeCount()];
+      nextColumn = new int[columns];
+      Arrays.fill(column,RoadGraph.NONE);
+      int count = 0;
+      for (int c = columns - 1 ; c >= 0 ; c--) {
+        int node = destinations[c];
+        if (column[node] == RoadGraph.NONE) count++;
+        nextColumn[c] = column[node];
+        column[node] = c;
+      }
+      distinct = count;
+    }
+  }
+}
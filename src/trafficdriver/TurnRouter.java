@@ -0,0 +1,325 @@
+package trafficdriver;
+
+import java.util.Arrays;
+
+/**
+ * Turn-aware shortest-path routing over a RoadGraph.
+ * 
+ * The search runs on the edge-expanded graph: its nodes are the arcs
+ * of the road graph (arc 2 * e + end is street e left from its start,
+ * end 0, or its end, end 1) and it links an arc to every arc that
+ * leaves the intersection it arrives at. Each link is charged the
+ * weight of the next arc plus the penalty for the movement made at
+ * the intersection: straight through, a right turn, a left turn or a
+ * U-turn back along the same street. A movement can also be
+ * forbidden, in which case the link is left out.
+ * 
+ * Only movements at intersections count. The bend in an L-shaped
+ * street is part of the street and costs nothing extra.
+ * 
+ * The links are built once, in compressed form: the successors of
+ * each arc are a slice of one int array, with the cost of each link
+ * in a parallel array. Each thread gets its own search state, sized
+ * once and reused, so a distance query does not allocate. The router
+ * only reads the graph, which must not change after construction.
+ */
+public class TurnRouter {
+
+  /** Distance returned when there is no route */
+  public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  /** Turn penalty marking a movement that is not allowed */
+  public static final int FORBIDDEN = -1;
+
+  /** The movements a vehicle can make at an intersection */
+  public enum Turn {
+    straight, right, left, uTurn
+  }
+
+  /** Every movement, indexed by ordinal */
+  private static final Turn[] TURN_VALUES = Turn.values();
+
+  /**
+   * Ordinal of the Turn made by arriving with one DirectionCode and
+   * leaving with another, at TURNS[4 * heading + leave]
+   */
+  private static final byte[] TURNS = new byte[16];
+
+  static {
+    for (int heading = 0 ; heading < 4 ; heading++) {
+      for (int leave = 0 ; leave < 4 ; leave++) {
+        int turn = Turn.uTurn.ordinal();
+        if (leave == heading) {
+          turn = Turn.straight.ordinal();
+        } else if (leave == DirectionCode.rightTurn(heading)) {
+          turn = Turn.right.ordinal();
+        } else if (leave == DirectionCode.leftTurn(heading)) {
+          turn = Turn.left.ordinal();
+        }
+        TURNS[4 * heading + leave] = (byte) turn;
+      }
+    }
+  }
+
+  /** The graph being searched */
+  private final RoadGraph graph;
+  /** Weight of each arc */
+  private final int[] arcWeight;
+
+  /** Successors of each arc, CSR form, and the cost of each link */
+  private final int[] succStart;
+  private final int[] succ;
+  private final int[] succCost;
+
+  /** Search state of each thread */
+  private final ThreadLocal<SearchState> states =
+          new ThreadLocal<SearchState>();
+
+  /**
+   * Construct a router that weights each street by its length.
+   * 
+   * @param graph the graph to route on
+   * @param turnCosts non-negative penalty of each movement, indexed
+   *          by Turn.ordinal(); FORBIDDEN disallows the movement
+   */
+  public TurnRouter (RoadGraph graph, int[] turnCosts) {
+    this(graph,null,turnCosts);
+  }
+
+  /**
+   * Construct a router with explicit arc weights.
+   * 
+   * @param graph the graph to route on
+   * @param weights non-negative weight of each arc, indexed 2 * street
+   *          + end, or null to use street lengths
+   * @param turnCosts non-negative penalty of each movement, indexed
+   *          by Turn.ordinal(); FORBIDDEN disallows the movement
+   * @throws IllegalArgumentException if a penalty is negative and
+   *           not FORBIDDEN
+   */
+  public TurnRouter (RoadGraph graph, int[] weights, int[] turnCosts) {
+    if (turnCosts.length != TURN_VALUES.length) {
+      throw new IllegalArgumentException("need one cost per turn");
+    }
+    for (int cost : turnCosts) {
+      if (cost < 0 && cost != FORBIDDEN) {
+        throw new IllegalArgumentException("negative turn cost " + cost);
+      }
+    }
+    this.graph = graph;
+    int arcs = 2 * graph.getEdgeCount();
+    arcWeight = new int[arcs];
+    for (int arc = 0 ; arc < arcs ; arc++) {
+      if (graph.isOpen(arc >> 1)) continue;
+      arcWeight[arc] = (weights == null ? graph.getLength(arc >> 1) :
+                        weights[arc]);
+    }
+    /*
+     * Two passes over the movements: count the links of each arc,
+     * then fill them in.
+     */
+    succStart = new int[arcs + 1];
+    for (int arc = 0 ; arc < arcs ; arc++) {
+      succStart[arc + 1] = succStart[arc] + links(arc,turnCosts,null,null,0);
+    }
+    succ = new int[succStart[arcs]];
+    succCost = new int[succStart[arcs]];
+    for (int arc = 0 ; arc < arcs ; arc++) {
+      links(arc,turnCosts,succ,succCost,succStart[arc]);
+    }
+  }
+
+  /**
+   * List the allowed links out of an arc.
+   * 
+   * @param arc the arc
+   * @param turnCosts penalty of each movement
+   * @param next receives the next arcs, or null just to count them
+   * @param cost receives the cost of each link
+   * @param at where the first link goes
+   * @return the number of links
+   */
+  private int links (int arc, int[] turnCosts, int[] next, int[] cost,
+                     int at) {
+    int edge = arc >> 1;
+    if (graph.isOpen(edge)) return (0);
+    int end = 1 - (arc & 1);
+    int node = graph.getEdgeNode(edge,end);
+    int heading = DirectionCode.opposite(graph.getEdgeCode(edge,end));
+    int count = 0;
+    for (int d = 0 ; d < 4 ; d++) {
+      int nextEdge = graph.getEdge(node,d);
+      if (nextEdge == RoadGraph.NONE || graph.isOpen(nextEdge)) continue;
+      int penalty = turnCosts[TURNS[4 * heading + d]];
+      if (penalty == FORBIDDEN) continue;
+      if (next != null) {
+        int nextArc = 2 * nextEdge +
+                (graph.getEdgeNode(nextEdge,0) == node ? 0 : 1);
+        next[at + count] = nextArc;
+        cost[at + count] = arcWeight[nextArc] + penalty;
+      }
+      count++;
+    }
+    return (count);
+  }
+
+  /**
+   * Classify the movement of a vehicle that arrives at an
+   * intersection traveling in one direction and leaves it in another.
+   * 
+   * @param heading the direction of travel on arrival
+   * @param leave the direction of travel on departure
+   * @return the movement
+   */
+  public static Turn turn (Direction heading, Direction leave) {
+    return (TURN_VALUES[turn(heading.ordinal(),leave.ordinal())]);
+  }
+
+  /**
+   * Classify a movement given as DirectionCodes.
+   * 
+   * @param heading the code of the direction of travel on arrival
+   * @param leave the code of the direction of travel on departure
+   * @return the ordinal of the Turn
+   */
+  public static int turn (int heading, int leave) {
+    return (TURNS[4 * heading + leave]);
+  }
+
+  /** Return the graph this router searches */
+  public RoadGraph getGraph () {
+    return (graph);
+  }
+
+  /**
+   * Find the shortest distance between two intersections, turn
+   * penalties included. The first street may leave the start in any
+   * direction.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the distance, or UNREACHABLE if there is no route
+   */
+  public int distance (int from, int to) {
+    if (from == to) return (0);
+    int last = search(from,to);
+    return (last < 0 ? UNREACHABLE : states.get().dist[last]);
+  }
+
+  /**
+   * Find a shortest route between two intersections, turn penalties
+   * included.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the streets of the route in travel order (empty if from
+   *         equals to), or null if there is no route
+   */
+  public int[] route (int from, int to) {
+    if (from == to) return (new int[0]);
+    int last = search(from,to);
+    if (last < 0) return (null);
+    int[] parent = states.get().parent;
+    int count = 0;
+    for (int arc = last ; arc >= 0 ; arc = parent[arc]) {
+      count++;
+    }
+    int[] streets = new int[count];
+    for (int arc = last ; arc >= 0 ; arc = parent[arc]) {
+      streets[--count] = arc >> 1;
+    }
+    return (streets);
+  }
+
+  /**
+   * Run one search over the arcs. Afterwards the thread's state holds
+   * the distance and parent arc of every arc reached.
+   * 
+   * @param from the start intersection
+   * @param to the destination intersection
+   * @return the arc that reaches the destination, or -1 if there is
+   *         no route
+   */
+  private int search (int from, int to) {
+    SearchState state = getState();
+    NodeHeap heap = state.heap;
+    int[] dist = state.dist;
+    int[] parent = state.parent;
+    int[] seen = state.seen;
+    int round = state.nextRound();
+
+    for (int d = 0 ; d < 4 ; d++) {
+      int edge = graph.getEdge(from,d);
+      if (edge == RoadGraph.NONE || graph.isOpen(edge)) continue;
+      int arc = 2 * edge + (graph.getEdgeNode(edge,0) == from ? 0 : 1);
+      seen[arc] = round;
+      dist[arc] = arcWeight[arc];
+      parent[arc] = -1;
+      heap.push(arc,arcWeight[arc]);
+    }
+    int result = -1;
+    while (!heap.isEmpty()) {
+      int arc = heap.pop();
+      if (graph.getEdgeNode(arc >> 1,1 - (arc & 1)) == to) {
+        result = arc;
+        break;
+      }
+      for (int i = succStart[arc] ; i < succStart[arc + 1] ; i++) {
+        int next = succ[i];
+        int nextDist = dist[arc] + succCost[i];
+        if (seen[next] != round || nextDist < dist[next]) {
+          seen[next] = round;
+          dist[next] = nextDist;
+          parent[next] = arc;
+          heap.push(next,nextDist);
+        }
+      }
+    }
+    heap.clear();
+    return (result);
+  }
+
+  /** Return this thread's search state, sized for the arcs */
+  private SearchState getState () {
+    SearchState state = states.get();
+    if (state == null) {
+      state = new SearchState(arcWeight.length);
+      states.set(state);
+    }
+    return (state);
+  }
+
+  /**
+   * Per-thread arrays for a search, indexed by arc. Entries only
+   * count if seen holds the current round.
+   */
+  private static class SearchState {
+
+    /** Tentative distance at the end of each arc */
+    final int[] dist;
+    /** Arc traveled before each arc, -1 for the first */
+    final int[] parent;
+    /** Round in which each arc was last reached */
+    final int[] seen;
+    /** Open arcs keyed by distance */
+    final NodeHeap heap;
+    /** Number of the current round */
+    private int round = 0;
+
+    SearchState (int arcs) {
+      dist = new int[arcs];
+      parent = new int[arcs];
+      seen = new int[arcs];
+      heap = new NodeHeap(arcs);
+    }
+
+    /** Start a new round */
+    int nextRound () {
+      if (++round == 0) {
+        Arrays.fill(seen,0);
+        round = 1;
+      }
+      return (round);
+    }
+  }
+}
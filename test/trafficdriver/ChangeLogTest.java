@@ -0,0 +1,189 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of logging the changes to a map and recovering it, including
+ * after a crash at each step of a compaction.
+ */
+public class ChangeLogTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Return a description of a map: its text and every record */
+  private static String describe (SimpleMap roadMap) {
+    NetworkSnapshot snapshot = roadMap.publish();
+    StringBuilder text = new StringBuilder(roadMap.toString());
+    for (int p = 0 ; p < snapshot.getObjectCount() ; p++) {
+      text.append(p).append(' ').append(snapshot.getName(p));
+      if (snapshot.isStreet(p)) {
+        text.append(' ').append(snapshot.getStart(p)).append(' ')
+            .append(snapshot.getEnd(p)).append(' ')
+            .append(snapshot.getStartDirection(p)).append(' ')
+            .append(snapshot.getEndDirection(p));
+      }
+      text.append('\n');
+    }
+    return (text.toString());
+  }
+
+  /** Return a small generated network on a map with room below it */
+  private static Intersection[] generate (SimpleMap roadMap,
+                                          NetworkGenerator generator) {
+    NetworkBuilder builder = new NetworkBuilder();
+    generator.addTo(builder);
+    return (builder.buildMap(roadMap));
+  }
+
+  /** Append some bytes to a file */
+  private static void appendBytes (Path file, byte[] bytes)
+    throws IOException {
+    try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.WRITE,StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(bytes));
+    }
+  }
+
+  @Test
+  public void recoversWhatWasCommitted () throws IOException {
+    Path dir = folder.newFolder("log").toPath();
+    NetworkGenerator generator = new NetworkGenerator(20,15,4);
+    generator.setLayout(NetworkGenerator.Layout.irregular);
+    generator.setMissingLinks(0.2);
+    generator.setSeed(3);
+    int row = generator.getyDim() + 2;
+    SimpleMap roadMap =
+            new SimpleMap(generator.getxDim(),generator.getyDim() + 4);
+    Intersection[] made = generate(roadMap,generator);
+    made[0].setName("Main & 1st");
+    ChangeLog log = ChangeLog.create(roadMap,dir);
+    Intersection west = new Intersection(1,row,roadMap);
+    Intersection east = new Intersection(9,row,roadMap);
+    west.buildStreetTo(east,roadMap);
+    west.setName("Ä north");
+    new Street(roadMap).setName("stub");
+    assertFalse(log.commit() == 0);
+    made[5].setName("Fifth");
+    log.commit();
+    assertEquals(0,log.commit());
+    long batch = log.getBatch();
+    log.close();
+    // A batch torn by a crash is cut off.
+    appendBytes(dir.resolve("changes"),new byte[] {40, 0, 0, 0, 1, 2, 3});
+    ChangeLog recovered = ChangeLog.open(dir);
+    assertEquals(describe(roadMap),describe(recovered.getMap()));
+    assertEquals(batch,recovered.getBatch());
+    // Carry on from the recovered map, across a compaction.
+    SimpleMap again = recovered.getMap();
+    Intersection far = new Intersection(15,row,again);
+    again.getIntersectionAt(9,row).buildStreetTo(far,again);
+    recovered.commit();
+    recovered.compact();
+    far.setName("after");
+    recovered.commit();
+    recovered.close();
+    ChangeLog last = ChangeLog.open(dir);
+    assertEquals(describe(again),describe(last.getMap()));
+    last.close();
+  }
+
+  /** The files of a log directory, copied aside */
+  private static class LogFiles {
+    final byte[] changes;
+    final byte[] snapshot;
+
+    LogFiles (Path dir) throws IOException {
+      changes = Files.readAllBytes(dir.resolve("changes"));
+      snapshot = Files.readAllBytes(dir.resolve("snapshot"));
+    }
+  }
+
+  /**
+   * Lay out a log directory from copied files.
+   * 
+   * @param changes the log, or null for none
+   * @param snapshot the snapshot
+   * @param snapshotTemp contents of snapshot.tmp, or null for none
+   * @param changesTemp contents of changes.tmp, or null for none
+   */
+  private Path layOut (byte[] changes, byte[] snapshot, byte[] snapshotTemp,
+                       byte[] changesTemp) throws IOException {
+    Path dir = folder.newFolder().toPath();
+    if (changes != null) Files.write(dir.resolve("changes"),changes);
+    Files.write(dir.resolve("snapshot"),snapshot);
+    if (snapshotTemp != null) {
+      Files.write(dir.resolve("snapshot.tmp"),snapshotTemp);
+    }
+    if (changesTemp != null) {
+      Files.write(dir.resolve("changes.tmp"),changesTemp);
+    }
+    return (dir);
+  }
+
+  /** Open a log, check its map, and check it can be used and reopened */
+  private static void checkRecovery (Path dir, String expected)
+    throws IOException {
+    ChangeLog log = ChangeLog.open(dir);
+    SimpleMap roadMap = log.getMap();
+    assertEquals(expected,describe(roadMap));
+    new Intersection(0,roadMap.getyDim() - 1,roadMap).setName("later");
+    log.commit();
+    log.close();
+    ChangeLog reopened = ChangeLog.open(dir);
+    assertEquals(describe(roadMap),describe(reopened.getMap()));
+    reopened.close();
+  }
+
+  @Test
+  public void survivesACrashAtEveryStepOfCompaction () throws IOException {
+    Path dir = folder.newFolder("log").toPath();
+    NetworkGenerator generator = new NetworkGenerator(12,10,3);
+    generator.setSeed(5);
+    SimpleMap roadMap =
+            new SimpleMap(generator.getxDim(),generator.getyDim() + 2);
+    Intersection[] made = generate(roadMap,generator);
+    ChangeLog log = ChangeLog.create(roadMap,dir);
+    String initial = describe(roadMap);
+    LogFiles created = new LogFiles(dir);
+    for (int i = 0 ; i < 10 ; i++) {
+      made[3 * i].setName("name " + i);
+      log.commit();
+    }
+    String expected = describe(roadMap);
+    log.close();
+    LogFiles before = new LogFiles(dir);
+    log = ChangeLog.open(dir);
+    log.compact();
+    log.close();
+    LogFiles after = new LogFiles(dir);
+    byte[] torn = Arrays.copyOf(after.snapshot,after.snapshot.length / 2);
+    // While the snapshot is written
+    checkRecovery(layOut(before.changes,before.snapshot,torn,null),expected);
+    // After the snapshot is swapped in, before the new log is written
+    checkRecovery(layOut(before.changes,after.snapshot,null,
+                         new byte[] {1, 2}),expected);
+    // After the new log is written, before it is swapped in
+    checkRecovery(layOut(before.changes,after.snapshot,null,after.changes),
+                  expected);
+    // After the new log is swapped in
+    checkRecovery(layOut(after.changes,after.snapshot,null,null),expected);
+    // A log that never got its header, as when created by a crash
+    // during create or left empty by an older compaction
+    checkRecovery(layOut(null,after.snapshot,null,null),expected);
+    checkRecovery(layOut(new byte[0],after.snapshot,null,null),expected);
+    checkRecovery(layOut(new byte[0],created.snapshot,null,null),initial);
+  }
+}
@@ -0,0 +1,50 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of the incremental analysis of the components of a map.
+ */
+public class ComponentsTest {
+
+  @Test
+  public void foldsInWhatWasRegistered () {
+    SimpleMap roadMap = new SimpleMap(40,20);
+    Intersection a = new Intersection(2,2,roadMap);
+    Intersection b = new Intersection(12,2,roadMap);
+    Intersection c = new Intersection(12,12,roadMap);
+    Components components = new Components(roadMap);
+    assertEquals(3,components.getComponentCount());
+    a.buildStreetTo(b,roadMap);
+    assertEquals(2,components.getComponentCount());
+    b.buildStreetTo(c,roadMap);
+    assertEquals(1,components.getComponentCount());
+    assertArrayEquals(new int[] {3},components.getComponentSizes());
+  }
+
+  @Test
+  public void retriesOpenStreetsOnUpdate () {
+    SimpleMap roadMap = new SimpleMap(40,20);
+    Intersection a = new Intersection(2,2,roadMap);
+    Intersection b = new Intersection(12,2,roadMap);
+    Street street = new Street(roadMap);
+    Components components = new Components(roadMap);
+    assertArrayEquals(new int[] {0},components.getOpenStreets());
+    assertEquals(2,components.getComponentCount());
+    // Attaching registers nothing, so queries do not look again.
+    a.connectTo(street,Direction.east);
+    b.connectTo(street,Direction.west);
+    assertArrayEquals(new int[0],components.getOpenStreets());
+    assertEquals(2,components.getComponentCount());
+    components.update();
+    assertEquals(1,components.getComponentCount());
+    // Registering anything makes the next query look again.
+    Street other = new Street(roadMap);
+    new Intersection(30,2,roadMap).connectTo(other,Direction.west);
+    assertArrayEquals(new int[] {1},components.getOpenStreets());
+    assertEquals(2,components.getComponentCount());
+  }
+}
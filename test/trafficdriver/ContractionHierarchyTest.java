@@ -0,0 +1,102 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests that a contraction hierarchy answers as Dijkstra's algorithm
+ * does on the graph it was built from.
+ */
+public class ContractionHierarchyTest {
+
+  /** Side of the grid of intersections */
+  private static final int SIDE = 25;
+
+  /** Return a grid with about a tenth of its streets missing */
+  private static RoadGraph grid (Random random) {
+    RoadGraph graph = new RoadGraph();
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        graph.addIntersection(3 * x,3 * y);
+      }
+    }
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        int node = y * SIDE + x;
+        if (x + 1 < SIDE && random.nextInt(10) > 0) {
+          graph.buildStreet(node,node + 1);
+        }
+        if (y + 1 < SIDE && random.nextInt(10) > 0) {
+          graph.buildStreet(node,node + SIDE);
+        }
+      }
+    }
+    return (graph);
+  }
+
+  /** Check distances and routes against Dijkstra's algorithm */
+  private static void check (RoadGraph graph, int[] weights,
+                             ContractionHierarchy hierarchy, Random random) {
+    Router router =
+            weights == null ? new Router(graph) : new Router(graph,weights);
+    int nodes = graph.getNodeCount();
+    for (int q = 0 ; q < 1000 ; q++) {
+      int from = random.nextInt(nodes);
+      int to = random.nextInt(nodes);
+      int expected = router.dijkstraDistance(from,to);
+      assertEquals(expected,hierarchy.distance(from,to));
+      ContractionHierarchy.Route route = hierarchy.route(from,to);
+      if (expected == Router.UNREACHABLE) {
+        assertNull(route);
+        continue;
+      }
+      // The streets of the route lead from one end to the other and
+      // add up to the distance.
+      int node = from;
+      int length = 0;
+      for (int street : route.getStreets()) {
+        int end = graph.getEdgeNode(street,0) == node ? 0 : 1;
+        assertEquals(node,graph.getEdgeNode(street,end));
+        length += router.getWeight(2 * street + end);
+        node = graph.getEdgeNode(street,1 - end);
+      }
+      assertEquals(to,node);
+      assertEquals(expected,length);
+      assertEquals(expected,route.getDistance());
+    }
+  }
+
+  @Test
+  public void matchesDijkstraOnStreetLengths () {
+    Random random = new Random(1);
+    RoadGraph graph = grid(random);
+    check(graph,null,ContractionHierarchy.build(graph),random);
+  }
+
+  @Test
+  public void matchesDijkstraOnOneWayWeights () throws IOException {
+    Random random = new Random(2);
+    RoadGraph graph = grid(random);
+    int[] weights = new int[2 * graph.getEdgeCount()];
+    for (int arc = 0 ; arc < weights.length ; arc++) {
+      weights[arc] = 1 + random.nextInt(20);
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    ContractionHierarchy hierarchy =
+            ContractionHierarchy.build(graph,weights,pool);
+    pool.shutdown();
+    check(graph,weights,hierarchy,random);
+    // A hierarchy read back answers the same.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    hierarchy.writeTo(bytes);
+    check(graph,weights,ContractionHierarchy.readFrom(
+            new ByteArrayInputStream(bytes.toByteArray())),random);
+  }
+}
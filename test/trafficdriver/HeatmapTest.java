@@ -0,0 +1,60 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of painting a map: with one glyph per ramp a heatmap is the
+ * map's own text, and it numbers streets as RoadGraph.fromMap does as
+ * the map grows.
+ */
+public class HeatmapTest {
+
+  /** Number of streets and intersections the last metric was given */
+  private int streetCount = -1;
+  private int nodeCount = -1;
+
+  /** A metric giving each street its number as its value */
+  private Heatmap.Metric counting () {
+    return ((streets, intersections) -> {
+        streetCount = streets.length;
+        nodeCount = intersections.length;
+        for (int e = 0 ; e < streets.length ; e++) {
+          streets[e] = e;
+        }
+      });
+  }
+
+  /** Check a heatmap against its map and the graph of the map */
+  private void assertLikeTheMap (SimpleMap roadMap, Heatmap heatmap) {
+    assertEquals(roadMap.toString(),heatmap.render(counting()));
+    RoadGraph graph = RoadGraph.fromMap(roadMap);
+    assertEquals(graph.getEdgeCount(),streetCount);
+    assertEquals(graph.getNodeCount(),nodeCount);
+  }
+
+  @Test
+  public void drawsTheMapWithSingleGlyphRamps () {
+    SimpleMap roadMap = new SimpleMap(40,20);
+    Intersection a = new Intersection(2,2,roadMap);
+    Intersection b = new Intersection(14,2,roadMap);
+    Intersection c = new Intersection(14,12,roadMap);
+    a.buildStreetTo(b,roadMap);
+    b.buildStreetTo(c,roadMap);
+    Street loose = new Street(roadMap);
+    Heatmap heatmap = new Heatmap(roadMap);
+    heatmap.setRamps("*","+");
+    assertLikeTheMap(roadMap,heatmap);
+    // Nothing changed, so the numbers of the last render are used.
+    assertLikeTheMap(roadMap,heatmap);
+    // Attaching the loose street registers nothing.
+    assertTrue(a.connectTo(loose,Direction.south));
+    assertTrue(c.connectTo(loose,Direction.east));
+    assertLikeTheMap(roadMap,heatmap);
+    Intersection d = new Intersection(30,12,roadMap);
+    c.buildStreetTo(d,roadMap);
+    assertLikeTheMap(roadMap,heatmap);
+  }
+}
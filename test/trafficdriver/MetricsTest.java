@@ -0,0 +1,58 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that failed connections are counted once each. The tests run
+ * with trafficdriver.metrics set; see nbproject/project.properties.
+ */
+public class MetricsTest {
+
+  @Before
+  public void reset () {
+    assumeTrue(Metrics.ENABLED);
+    Metrics.reset();
+  }
+
+  @Test
+  public void countsAFailedBuildStreetOnce () {
+    SimpleMap roadMap = new SimpleMap(20,10);
+    Intersection west = new Intersection(0,0,roadMap);
+    Intersection east = new Intersection(10,0,roadMap);
+    Intersection far = new Intersection(15,0,roadMap);
+    assertTrue(west.buildStreetTo(east,roadMap));
+    assertEquals(0,Metrics.CONNECT_FAILURES.getCount());
+    // The west side of the far intersection is free, but the east
+    // side of the near one is taken.
+    assertFalse(west.buildStreetTo(far,roadMap));
+    assertEquals(1,Metrics.CONNECT_FAILURES.getCount());
+    // Here the near side is free and the far side is taken.
+    assertFalse(new Intersection(5,0,roadMap).buildStreetTo(east,roadMap));
+    assertEquals(2,Metrics.CONNECT_FAILURES.getCount());
+  }
+
+  @Test
+  public void countsAFailedConnectToOnce () {
+    Intersection taken = new Intersection(0,0);
+    Intersection other = new Intersection(0,5);
+    Street street = new Street();
+    assertTrue(taken.connectTo(street,Direction.south));
+    assertTrue(taken.connectTo(street,Direction.south));
+    assertEquals(0,Metrics.CONNECT_FAILURES.getCount());
+    // The street side fails inside the intersection's connectTo.
+    Street full = new Street();
+    assertTrue(full.connectTo(new Intersection(9,0),Direction.east));
+    assertTrue(full.connectTo(new Intersection(9,5),Direction.west));
+    assertFalse(other.connectTo(full,Direction.north));
+    assertEquals(1,Metrics.CONNECT_FAILURES.getCount());
+    // The intersection side fails inside the street's connectTo.
+    assertFalse(new Street().connectTo(taken,Direction.north));
+    assertEquals(2,Metrics.CONNECT_FAILURES.getCount());
+  }
+}
@@ -0,0 +1,70 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+/**
+ * Tests of interning and looking up names from many threads at once.
+ */
+public class NameDictionaryTest {
+
+  @Test
+  public void looksUpWhileInterning () throws Exception {
+    final NameDictionary names = new NameDictionary();
+    final int writers = 4;
+    final int each = 20000;
+    final int[][] ids = new int[writers][each];
+    final AtomicInteger running = new AtomicInteger(writers);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[2 * writers];
+    for (int t = 0 ; t < writers ; t++) {
+      final int column = t;
+      threads[t] = new Thread(() -> {
+        try {
+          // Every writer interns the shared names and its own.
+          for (int k = 0 ; k < each ; k++) {
+            String name = (k % 2 == 0 ? "street " + k : column + "/" + k);
+            ids[column][k] = names.intern(name);
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null,e);
+        }
+        running.decrementAndGet();
+      });
+      // A reader finds every name it saw interned, under its id.
+      threads[writers + t] = new Thread(() -> {
+        try {
+          while (running.get() > 0) {
+            int known = names.size();
+            for (int id = Math.max(0,known - 500) ; id < known ; id++) {
+              assertEquals(id,names.getId(names.getName(id)));
+            }
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null,e);
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) throw new AssertionError(failure.get());
+    assertEquals(1 + each / 2 + writers * each / 2,names.size());
+    for (int t = 0 ; t < writers ; t++) {
+      for (int k = 0 ; k < each ; k++) {
+        String name = (k % 2 == 0 ? "street " + k : t + "/" + k);
+        assertEquals(name,names.getName(ids[t][k]));
+        if (k % 2 == 0) assertEquals(ids[0][k],ids[t][k]);
+      }
+    }
+    assertEquals(0,names.getId(""));
+    assertTrue(names.getId("missing") == NameDictionary.NONE);
+  }
+}
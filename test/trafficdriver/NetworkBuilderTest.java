@@ -0,0 +1,153 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests that a network built in bulk is the one built street by
+ * street, as a graph and as a map.
+ */
+public class NetworkBuilderTest {
+
+  /** Size of the map, and the x where the right region starts */
+  private static final int WIDTH = 60;
+  private static final int HEIGHT = 30;
+  private static final int MIDDLE = WIDTH / 2;
+
+  /** Intersections, and street requests with many conflicts */
+  private final int nodes = 400;
+  private final int streets = 900;
+  private final int[] xPos = new int[nodes];
+  private final int[] yPos = new int[nodes];
+  private final int[] from = new int[streets];
+  private final int[] to = new int[streets];
+  /** Streets of the left region come first, then the right */
+  private int numLeft = 0;
+
+  public NetworkBuilderTest () {
+    Random random = new Random(5);
+    // Even intersections lie in the left region, odd ones in the right.
+    for (int i = 0 ; i < nodes ; i++) {
+      xPos[i] = random.nextInt(MIDDLE) + (i % 2 == 0 ? 0 : MIDDLE);
+      yPos[i] = random.nextInt(HEIGHT);
+    }
+    numLeft = streets / 2;
+    for (int i = 0 ; i < streets ; i++) {
+      int side = i < numLeft ? 0 : 1;
+      from[i] = 2 * random.nextInt(nodes / 2) + side;
+      to[i] = 2 * random.nextInt(nodes / 2) + side;
+    }
+  }
+
+  /** Return part of an array */
+  private static int[] part (int[] array, int start, int end) {
+    int[] result = new int[end - start];
+    System.arraycopy(array,start,result,0,end - start);
+    return (result);
+  }
+
+  /**
+   * Return a builder holding the network, with the streets in batches.
+   * 
+   * @param cuts where each batch after the first starts
+   */
+  private NetworkBuilder builder (int... cuts) {
+    NetworkBuilder builder = new NetworkBuilder();
+    builder.addIntersections(xPos,yPos);
+    int start = 0;
+    for (int b = 0 ; b <= cuts.length ; b++) {
+      int end = b < cuts.length ? cuts[b] : streets;
+      builder.addStreets(part(from,start,end),part(to,start,end));
+      start = end;
+    }
+    return (builder);
+  }
+
+  /** Check that two graphs have the same intersections and streets */
+  private static void assertSameGraph (RoadGraph expected, RoadGraph graph) {
+    assertEquals(expected.getNodeCount(),graph.getNodeCount());
+    assertEquals(expected.getEdgeCount(),graph.getEdgeCount());
+    for (int i = 0 ; i < expected.getNodeCount() ; i++) {
+      for (Direction dir : Direction.values()) {
+        assertEquals(expected.getNeighbor(i,dir),graph.getNeighbor(i,dir));
+      }
+    }
+  }
+
+  @Test
+  public void buildsTheGraphBuiltStreetByStreet () {
+    RoadGraph expected = new RoadGraph();
+    for (int i = 0 ; i < nodes ; i++) {
+      expected.addIntersection(xPos[i],yPos[i]);
+    }
+    int[] built = new int[streets];
+    for (int i = 0 ; i < streets ; i++) {
+      built[i] = expected.buildStreet(from[i],to[i]);
+    }
+    // Batches of separate regions build the same network in parallel.
+    for (int threads : new int[] {1, 3}) {
+      NetworkBuilder builder = builder(numLeft);
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      RoadGraph graph = builder.build(pool);
+      pool.shutdown();
+      assertSameGraph(expected,graph);
+      for (int e = 0 ; e < graph.getEdgeCount() ; e++) {
+        assertEquals(expected.getEdgeNode(e,0),graph.getEdgeNode(e,0));
+        assertEquals(expected.getEdgeNode(e,1),graph.getEdgeNode(e,1));
+        assertEquals(expected.getTurnX(e),graph.getTurnX(e));
+      }
+      for (int i = 0 ; i < streets ; i++) {
+        int street = i < numLeft ? builder.getStreet(0,i)
+                                 : builder.getStreet(1,i - numLeft);
+        assertEquals(built[i],street);
+      }
+    }
+  }
+
+  @Test
+  public void buildsTheMapBuiltStreetByStreet () {
+    SimpleMap expected = new SimpleMap(WIDTH,HEIGHT);
+    Intersection[] made = new Intersection[nodes];
+    for (int i = 0 ; i < nodes ; i++) {
+      made[i] = new Intersection(xPos[i],yPos[i],expected);
+    }
+    for (int i = 0 ; i < streets ; i++) {
+      made[from[i]].buildStreetTo(made[to[i]],expected);
+    }
+    SimpleMap roadMap = new SimpleMap(WIDTH,HEIGHT);
+    ForkJoinPool pool = new ForkJoinPool(3);
+    builder(numLeft).buildMap(roadMap,pool);
+    pool.shutdown();
+    assertEquals(expected.toString(),roadMap.toString());
+    assertSameGraph(RoadGraph.fromMap(expected),RoadGraph.fromMap(roadMap));
+    assertSameGraph(builder(numLeft).build(),RoadGraph.fromMap(roadMap));
+  }
+
+  @Test
+  public void keepsLinksConsistentAcrossSharedIntersections () {
+    // Batches that cut across both regions share intersections, so
+    // which street wins a slot depends on timing, but every street
+    // kept is linked at both ends.
+    ForkJoinPool pool = new ForkJoinPool(4);
+    NetworkBuilder builder = builder(100,250,400,600,750);
+    SimpleMap roadMap = new SimpleMap(WIDTH,HEIGHT);
+    Intersection[] made = builder.buildMap(roadMap,pool);
+    pool.shutdown();
+    int ends = 0;
+    for (Intersection intersection : made) {
+      for (Direction dir : Direction.values()) {
+        Street street = (Street) intersection.getConnectedRoad(dir);
+        if (street == null) continue;
+        assertSame(intersection,street.getConnectedRoad(dir.opposite()));
+        ends++;
+      }
+    }
+    assertEquals(2 * builder.getEdgeCount(),ends);
+    assertEquals(builder.getEdgeCount(),
+                 RoadGraph.fromMap(roadMap).getEdgeCount());
+  }
+}
@@ -0,0 +1,178 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of writing a network file and reading it back: the columns,
+ * turn points and names, and files that are cut short or damaged.
+ */
+public class NetworkFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Intersections and street requests of the test network */
+  private static final int NODES = 200;
+  private static final int STREETS = 400;
+
+  /** Return a network of random streets, most of them with a turn */
+  private static RoadGraph network () {
+    Random random = new Random(11);
+    int[] xPos = new int[NODES];
+    int[] yPos = new int[NODES];
+    for (int i = 0 ; i < NODES ; i++) {
+      xPos[i] = random.nextInt(80);
+      yPos[i] = random.nextInt(40);
+    }
+    int[] from = new int[STREETS];
+    int[] to = new int[STREETS];
+    for (int i = 0 ; i < STREETS ; i++) {
+      from[i] = random.nextInt(NODES);
+      to[i] = random.nextInt(NODES);
+    }
+    NetworkBuilder builder = new NetworkBuilder();
+    builder.addIntersections(xPos,yPos);
+    builder.addStreets(from,to);
+    return (builder.build());
+  }
+
+  /** Return names for some objects, with letters outside ASCII */
+  private static String[] names (String prefix, int count) {
+    String[] names = new String[count];
+    for (int i = 0 ; i < count ; i++) {
+      names[i] = i % 7 == 3 ? null : prefix + " Straße " + i + " 平和";
+    }
+    return (names);
+  }
+
+  /** Write the test network to a file and return the file */
+  private Path writeNetwork () throws IOException {
+    Path file = folder.newFile().toPath();
+    RoadGraph graph = network();
+    NetworkFile.write(graph,names("Platz",graph.getNodeCount()),
+                      names("Weg",graph.getEdgeCount()),file);
+    return (file);
+  }
+
+  /** Check that opening a file fails */
+  private static void assertRejected (Path file) {
+    try {
+      NetworkFile.open(file);
+      fail("opened a damaged network file");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /** Return the bytes of a file, little-endian */
+  private static ByteBuffer read (Path file) throws IOException {
+    return (ByteBuffer.wrap(Files.readAllBytes(file))
+            .order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /** Return where the direction bytes of a file start */
+  private static int dirsAt (ByteBuffer bytes) {
+    return (32 + 24 * bytes.getInt(8) + 16 * bytes.getInt(12));
+  }
+
+  /** Return where the name offsets of a file start */
+  private static int namesAt (ByteBuffer bytes) {
+    return (dirsAt(bytes) + (2 * bytes.getInt(12) + 3 & ~3));
+  }
+
+  @Test
+  public void readsBackWhatWasWritten () throws IOException {
+    RoadGraph graph = network();
+    String[] nodeNames = names("Platz",graph.getNodeCount());
+    String[] edgeNames = names("Weg",graph.getEdgeCount());
+    Path file = folder.newFile().toPath();
+    NetworkFile.write(graph,nodeNames,edgeNames,file);
+    NetworkFile network = NetworkFile.open(file);
+    RoadGraph copy = network.toGraph();
+    assertEquals(graph.getNodeCount(),network.getNodeCount());
+    assertEquals(graph.getEdgeCount(),network.getEdgeCount());
+    assertEquals(graph.getNodeCount(),copy.getNodeCount());
+    assertEquals(graph.getEdgeCount(),copy.getEdgeCount());
+    for (int n = 0 ; n < graph.getNodeCount() ; n++) {
+      assertEquals(graph.getXPos(n),network.getXPos(n));
+      assertEquals(graph.getYPos(n),network.getYPos(n));
+      assertEquals(graph.getXPos(n),copy.getXPos(n));
+      assertEquals(graph.getYPos(n),copy.getYPos(n));
+      for (Direction dir : Direction.values()) {
+        assertEquals(graph.getEdge(n,dir),network.getEdge(n,dir));
+        assertEquals(graph.getEdge(n,dir),copy.getEdge(n,dir));
+      }
+      String name = nodeNames[n] == null ? "" : nodeNames[n];
+      assertEquals(name,network.getNodeName(n));
+    }
+    int turns = 0;
+    for (int e = 0 ; e < graph.getEdgeCount() ; e++) {
+      for (int end = 0 ; end < 2 ; end++) {
+        assertEquals(graph.getEdgeNode(e,end),network.getEdgeNode(e,end));
+        assertEquals(graph.getEdgeNode(e,end),copy.getEdgeNode(e,end));
+        assertEquals(graph.getEdgeDirection(e,end),
+                     network.getEdgeDirection(e,end));
+        assertEquals(graph.getEdgeCode(e,end),copy.getEdgeCode(e,end));
+      }
+      assertEquals(graph.getTurnX(e),network.getTurnX(e));
+      assertEquals(graph.getTurnY(e),network.getTurnY(e));
+      assertEquals(graph.getTurnX(e),copy.getTurnX(e));
+      assertEquals(graph.getTurnY(e),copy.getTurnY(e));
+      if (graph.getTurnX(e) != -1) turns++;
+      String name = edgeNames[e] == null ? "" : edgeNames[e];
+      assertEquals(name,network.getStreetName(e));
+    }
+    assertTrue(turns > 0);
+  }
+
+  @Test
+  public void rejectsATruncatedFile () throws IOException {
+    Path file = writeNetwork();
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file,Arrays.copyOf(bytes,bytes.length - 1));
+    assertRejected(file);
+    Files.write(file,Arrays.copyOf(bytes,20));
+    assertRejected(file);
+  }
+
+  @Test
+  public void rejectsCorruptNameOffsets () throws IOException {
+    Path file = writeNetwork();
+    ByteBuffer bytes = read(file);
+    // The second name starting before the first
+    int at = namesAt(bytes);
+    bytes.putInt(at + 8,bytes.getInt(at + 4) - 1);
+    Files.write(file,bytes.array());
+    assertRejected(file);
+    file = writeNetwork();
+    bytes = read(file);
+    // The last street name running past the name bytes
+    int last = namesAt(bytes) + 4 * (bytes.getInt(8) + 1) +
+            4 * bytes.getInt(12);
+    bytes.putInt(last,bytes.getInt(last) + 1);
+    Files.write(file,bytes.array());
+    assertRejected(file);
+  }
+
+  @Test
+  public void rejectsACorruptDirection () throws IOException {
+    Path file = writeNetwork();
+    ByteBuffer bytes = read(file);
+    bytes.put(dirsAt(bytes) + 5,(byte) 4);
+    Files.write(file,bytes.array());
+    assertRejected(file);
+  }
+}
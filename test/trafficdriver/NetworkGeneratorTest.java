@@ -0,0 +1,101 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests that a generated network is the same however it is built: as a
+ * RoadGraph on any pool, through a NetworkBuilder, and read back from
+ * the map of objects.
+ */
+public class NetworkGeneratorTest {
+
+  /** Return a generator of an odd-sized network of a layout */
+  private static NetworkGenerator generator (NetworkGenerator.Layout layout) {
+    NetworkGenerator generator = new NetworkGenerator(37,23,4);
+    generator.setLayout(layout);
+    generator.setSeed(3);
+    return (generator);
+  }
+
+  /** Check that two graphs hold the same streets, numbered alike */
+  private static void assertSameGraph (RoadGraph expected, RoadGraph graph) {
+    assertEquals(expected.getNodeCount(),graph.getNodeCount());
+    assertEquals(expected.getEdgeCount(),graph.getEdgeCount());
+    for (int i = 0 ; i < expected.getNodeCount() ; i++) {
+      assertEquals(expected.getXPos(i),graph.getXPos(i));
+      assertEquals(expected.getYPos(i),graph.getYPos(i));
+      for (Direction dir : Direction.values()) {
+        assertEquals(expected.getEdge(i,dir),graph.getEdge(i,dir));
+      }
+    }
+    for (int e = 0 ; e < expected.getEdgeCount() ; e++) {
+      for (int end = 0 ; end < 2 ; end++) {
+        assertEquals(expected.getEdgeNode(e,end),graph.getEdgeNode(e,end));
+        assertEquals(expected.getEdgeDirection(e,end),
+                     graph.getEdgeDirection(e,end));
+      }
+      assertEquals(expected.getTurnX(e),graph.getTurnX(e));
+    }
+  }
+
+  @Test
+  public void generatesTheNetworkTheBuilderBuilds () {
+    for (NetworkGenerator.Layout layout : NetworkGenerator.Layout.values()) {
+      NetworkGenerator generator = generator(layout);
+      NetworkBuilder builder = new NetworkBuilder();
+      generator.addTo(builder);
+      RoadGraph expected = builder.build();
+      // Every street the generator asks for is accepted.
+      assertEquals(builder.getEdgeCount(),expected.getEdgeCount());
+      for (int threads : new int[] {1, 3}) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        assertSameGraph(expected,generator.generate(pool));
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void generatesTheNetworkOfTheMap () {
+    for (NetworkGenerator.Layout layout : NetworkGenerator.Layout.values()) {
+      NetworkGenerator generator = generator(layout);
+      SimpleMap roadMap =
+              new SimpleMap(generator.getxDim(),generator.getyDim());
+      NetworkBuilder builder = new NetworkBuilder();
+      generator.addTo(builder);
+      builder.buildMap(roadMap);
+      RoadGraph graph = generator.generate();
+      RoadGraph fromMap = RoadGraph.fromMap(roadMap);
+      assertEquals(graph.getEdgeCount(),fromMap.getEdgeCount());
+      for (int i = 0 ; i < graph.getNodeCount() ; i++) {
+        for (Direction dir : Direction.values()) {
+          assertEquals(graph.getNeighbor(i,dir),fromMap.getNeighbor(i,dir));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void leavesOutIrregularStreetsBySeed () {
+    NetworkGenerator generator = generator(NetworkGenerator.Layout.irregular);
+    generator.setMissingLinks(0.25);
+    RoadGraph first = generator.generate();
+    assertSameGraph(first,generator.generate());
+    int full = generator(NetworkGenerator.Layout.manhattan).generate()
+            .getEdgeCount();
+    double kept = (double) first.getEdgeCount() / full;
+    assertTrue(kept > 0.7 && kept < 0.8);
+    generator.setSeed(4);
+    RoadGraph other = generator.generate();
+    boolean differs = other.getEdgeCount() != first.getEdgeCount();
+    for (int i = 0 ; !differs && i < first.getNodeCount() ; i++) {
+      differs = first.getEdge(i,Direction.east) == RoadGraph.NONE !=
+              (other.getEdge(i,Direction.east) == RoadGraph.NONE);
+    }
+    assertTrue(differs);
+  }
+}
@@ -0,0 +1,138 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests of publishing snapshots of a map: the text and graph of a
+ * snapshot, and snapshots published after edits against ones read
+ * whole.
+ */
+public class NetworkSnapshotTest {
+
+  /** Return a description of every record of a snapshot */
+  private static String describe (NetworkSnapshot snapshot) {
+    StringBuilder text = new StringBuilder();
+    for (int p = 0 ; p < snapshot.getObjectCount() ; p++) {
+      text.append(p).append(' ').append(snapshot.getName(p));
+      if (snapshot.isIntersection(p)) {
+        text.append(" at ").append(snapshot.getXPos(p)).append(',')
+            .append(snapshot.getYPos(p));
+        for (Direction dir : Direction.values()) {
+          text.append(' ').append(snapshot.getStreet(p,dir));
+        }
+      } else if (snapshot.isStreet(p)) {
+        text.append(" from ").append(snapshot.getStart(p)).append(' ')
+            .append(snapshot.getStartDirection(p)).append(" to ")
+            .append(snapshot.getEnd(p)).append(' ')
+            .append(snapshot.getEndDirection(p)).append(' ')
+            .append(snapshot.isAttached(p));
+      }
+      text.append('\n');
+    }
+    return (text.toString());
+  }
+
+  /** Return a snapshot of a map read whole, through a second map */
+  private static NetworkSnapshot readWhole (SimpleMap roadMap) {
+    roadMap.settle();
+    SimpleMap copy = new SimpleMap(roadMap.getxDim(),roadMap.getyDim());
+    copy.addAllToMap(roadMap.roadObjects,0,roadMap.numObjects);
+    return (copy.publish());
+  }
+
+  /** Check two graphs hold the same network */
+  private static void assertSameGraph (RoadGraph expected, RoadGraph graph) {
+    assertEquals(expected.getNodeCount(),graph.getNodeCount());
+    assertEquals(expected.getEdgeCount(),graph.getEdgeCount());
+    for (int n = 0 ; n < expected.getNodeCount() ; n++) {
+      assertEquals(expected.getXPos(n),graph.getXPos(n));
+      assertEquals(expected.getYPos(n),graph.getYPos(n));
+      for (Direction dir : Direction.values()) {
+        assertEquals(expected.getNeighbor(n,dir),graph.getNeighbor(n,dir));
+      }
+    }
+  }
+
+  /** Return a generated network on a map with room below it */
+  private static Intersection[] generate (SimpleMap roadMap, long seed) {
+    NetworkGenerator generator = new NetworkGenerator(40,25,4);
+    generator.setLayout(NetworkGenerator.Layout.irregular);
+    generator.setMissingLinks(0.3);
+    generator.setSeed(seed);
+    NetworkBuilder builder = new NetworkBuilder();
+    generator.addTo(builder);
+    return (builder.buildMap(roadMap));
+  }
+
+  @Test
+  public void drawsAndGraphsLikeTheMap () {
+    SimpleMap roadMap = new SimpleMap(170,110);
+    generate(roadMap,1);
+    new Street(roadMap).setName("unattached");
+    NetworkSnapshot snapshot = roadMap.publish();
+    assertEquals(roadMap.toString(),snapshot.toString());
+    assertSameGraph(RoadGraph.fromMap(roadMap),snapshot.toGraph());
+  }
+
+  @Test
+  public void publishesEditsLikeAWholeRead () {
+    Random random = new Random(2);
+    SimpleMap roadMap = new SimpleMap(170,120);
+    Intersection[] made = generate(roadMap,2);
+    int row = roadMap.getyDim() - 8;
+    Intersection[] added = new Intersection[40];
+    int numAdded = 0;
+    NetworkSnapshot last = roadMap.publish();
+    for (int round = 0 ; round < 30 ; round++) {
+      for (int k = 0 ; k < 5 ; k++) {
+        // Failed connections roll back the ends they attached.
+        Intersection from = made[random.nextInt(made.length)];
+        Intersection to = made[random.nextInt(made.length)];
+        from.buildStreetTo(to,roadMap);
+        made[random.nextInt(made.length)].setName("name " + round);
+      }
+      if (round % 3 == 0 && numAdded < added.length) {
+        added[numAdded] = new Intersection(4 * numAdded + 2,
+                                           row + (numAdded & 1) * 4,
+                                           roadMap);
+        if (numAdded > 0) {
+          added[numAdded - 1].buildStreetTo(added[numAdded],roadMap);
+        }
+        numAdded++;
+      }
+      if (round % 7 == 0) {
+        Street stub = new Street(roadMap);
+        stub.setName("stub " + round);
+        made[random.nextInt(made.length)].connectTo(stub,Direction.north);
+      }
+      NetworkSnapshot snapshot = roadMap.publish();
+      assertEquals(describe(readWhole(roadMap)),describe(snapshot));
+      assertEquals(roadMap.toString(),snapshot.toString());
+      last = snapshot;
+    }
+    // Nothing edited: the same snapshot again.
+    assertSame(last,roadMap.publish());
+  }
+
+  @Test
+  public void readsWholeOnceAnObjectIsShared () {
+    SimpleMap roadMap = new SimpleMap(170,110);
+    Intersection[] made = generate(roadMap,3);
+    SimpleMap other = new SimpleMap(roadMap.getxDim(),roadMap.getyDim());
+    other.addToMap(made[0]);
+    other.publish();
+    made[0].setName("shared");
+    made[1].setName("not shared");
+    made[2].buildStreetTo(made[made.length - 1],roadMap);
+    NetworkSnapshot snapshot = roadMap.publish();
+    assertEquals("shared",snapshot.getName(0));
+    assertEquals(describe(readWhole(roadMap)),describe(snapshot));
+    made[3].setName("later");
+    snapshot = roadMap.publish();
+    assertEquals(describe(readWhole(roadMap)),describe(snapshot));
+  }
+}
@@ -0,0 +1,93 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests that A* finds the distances Dijkstra's algorithm finds, and
+ * routes of that length, with street lengths and with other weights.
+ */
+public class RouterTest {
+
+  /** Side of the grid of intersections */
+  private static final int SIDE = 30;
+
+  /** Return a grid with about a fifth of its streets missing */
+  private static RoadGraph grid (Random random) {
+    RoadGraph graph = new RoadGraph();
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        graph.addIntersection(3 * x,3 * y);
+      }
+    }
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        int node = y * SIDE + x;
+        if (x + 1 < SIDE && random.nextInt(5) > 0) {
+          graph.buildStreet(node,node + 1);
+        }
+        if (y + 1 < SIDE && random.nextInt(5) > 0) {
+          graph.buildStreet(node,node + SIDE);
+        }
+      }
+    }
+    return (graph);
+  }
+
+  /** Check A* against Dijkstra's algorithm on random pairs */
+  private static void check (RoadGraph graph, Router router,
+                             Random random) {
+    int nodes = graph.getNodeCount();
+    for (int q = 0 ; q < 1000 ; q++) {
+      int from = random.nextInt(nodes);
+      int to = random.nextInt(nodes);
+      int expected = router.dijkstraDistance(from,to);
+      assertEquals(expected,router.distance(from,to));
+      int[] route = router.route(from,to);
+      if (expected == Router.UNREACHABLE) {
+        assertNull(route);
+        continue;
+      }
+      // The streets of the route lead from one end to the other and
+      // add up to the distance.
+      int node = from;
+      int length = 0;
+      for (int street : route) {
+        int end = graph.getEdgeNode(street,0) == node ? 0 : 1;
+        assertEquals(node,graph.getEdgeNode(street,end));
+        length += router.getWeight(2 * street + end);
+        node = graph.getEdgeNode(street,1 - end);
+      }
+      assertEquals(to,node);
+      assertEquals(expected,length);
+    }
+  }
+
+  @Test
+  public void matchesDijkstraOnStreetLengths () {
+    Random random = new Random(8);
+    RoadGraph graph = grid(random);
+    check(graph,new Router(graph),random);
+  }
+
+  @Test
+  public void matchesDijkstraOnOtherWeights () {
+    Random random = new Random(9);
+    RoadGraph graph = grid(random);
+    // Weights from below to well above the street length of three,
+    // different in each direction.
+    int[] weights = new int[2 * graph.getEdgeCount()];
+    for (int arc = 0 ; arc < weights.length ; arc++) {
+      weights[arc] = 1 + random.nextInt(30);
+    }
+    check(graph,new Router(graph,weights),random);
+    // Equal weights make many routes tie.
+    for (int arc = 0 ; arc < weights.length ; arc++) {
+      weights[arc] = 7;
+    }
+    check(graph,new Router(graph,weights),random);
+  }
+}
@@ -0,0 +1,172 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests of signal controllers: the phases of fixed-time and actuated
+ * signals, the turns of an all-way stop, and advancing on the calling
+ * thread and on a pool.
+ */
+public class SignalsTest {
+
+  /** Return controllers of every kind, set up the same way by a seed */
+  private static Signals mixed (int nodes, long seed) {
+    Random random = new Random(seed);
+    Signals signals = new Signals(nodes);
+    for (int n = 0 ; n < nodes ; n++) {
+      switch (random.nextInt(4)) {
+      case 1:
+        signals.setFixedTime(n,1 + random.nextInt(9),random.nextInt(3),
+                             random.nextInt(30));
+        break;
+      case 2:
+        signals.setActuated(n,2,8 + random.nextInt(8),random.nextInt(3));
+        break;
+      case 3:
+        signals.setAllWayStop(n);
+        break;
+      default:
+        break;
+      }
+    }
+    return (signals);
+  }
+
+  /** Direction bits of waiting vehicles */
+  private static final int NS = (1 << DirectionCode.NORTH) |
+          (1 << DirectionCode.SOUTH);
+  private static final int EW = (1 << DirectionCode.EAST) |
+          (1 << DirectionCode.WEST);
+
+  /**
+   * Return the phase of the one controller of some signals before the
+   * first tick and after each tick, as digits.
+   * 
+   * @param signals the signals
+   * @param waiting the approaches waiting at every tick
+   * @param ticks number of ticks
+   */
+  private static String phases (Signals signals, int waiting, int ticks) {
+    StringBuilder result = new StringBuilder();
+    byte[] demand = {(byte) waiting};
+    result.append(signals.getPhase(0));
+    for (int t = 0 ; t < ticks ; t++) {
+      signals.advance(null,demand);
+      result.append(signals.getPhase(0));
+    }
+    return (result.toString());
+  }
+
+  /** Return the approaches the one controller of some signals opens */
+  private static int open (Signals signals) {
+    int mask = 0;
+    for (int dir = 0 ; dir < 4 ; dir++) {
+      if (signals.mayEnter(0,dir)) mask |= 1 << dir;
+    }
+    return (mask);
+  }
+
+  @Test
+  public void cyclesAFixedTimeSignal () {
+    Signals signals = new Signals(1);
+    signals.setFixedTime(0,3,1,0);
+    assertEquals(NS,open(signals));
+    assertEquals("0001222300012223",phases(signals,0,15));
+    // Each phase opens its approaches whatever is waiting.
+    signals.setFixedTime(0,3,1,0);
+    phases(signals,NS,4);
+    assertEquals(EW,open(signals));
+    phases(signals,NS,3);
+    assertEquals(0,open(signals));
+  }
+
+  @Test
+  public void startsAFixedTimeSignalAtItsOffset () {
+    Signals signals = new Signals(1);
+    signals.setFixedTime(0,3,1,5);
+    assertEquals("2230001222300012",phases(signals,0,15));
+    // The offset counts around the cycle of eight ticks.
+    signals.setFixedTime(0,3,1,13);
+    assertEquals("2230001222300012",phases(signals,0,15));
+  }
+
+  @Test
+  public void skipsAnAllRedPhaseOfNoLength () {
+    Signals signals = new Signals(1);
+    signals.setFixedTime(0,2,0,0);
+    assertEquals("0022002200",phases(signals,0,9));
+    signals.setActuated(0,1,4,0);
+    assertEquals("02",phases(signals,EW,1));
+  }
+
+  @Test
+  public void holdsAnActuatedGreenUntilTheCrossStreetWaits () {
+    Signals signals = new Signals(1);
+    signals.setActuated(0,2,5,1);
+    // Nobody waiting, or only the green approaches: stay green.
+    assertEquals("0000000000",phases(signals,0,9));
+    assertEquals("0000000000",phases(signals,NS,9));
+    // Only the cross street waiting: change after the minimum.
+    signals.setActuated(0,2,5,1);
+    assertEquals("0012",phases(signals,EW,3));
+    // Both waiting: change at the maximum.
+    signals.setActuated(0,2,5,1);
+    assertEquals("00000122",phases(signals,NS | EW,7));
+    // The east/west green holds the same way.
+    assertEquals("2222222",phases(signals,EW,6));
+    assertEquals("23000",phases(signals,NS,4));
+  }
+
+  @Test
+  public void takesWaitingApproachesInTurnAtAnAllWayStop () {
+    Signals signals = new Signals(1);
+    signals.setAllWayStop(0);
+    assertEquals(0,open(signals));
+    byte[] none = {0};
+    signals.advance(null,none);
+    assertEquals(0,open(signals));
+    // Everyone waiting: each approach in turn after the last served.
+    byte[] all = {(byte) (NS | EW)};
+    int[] order = {DirectionCode.EAST, DirectionCode.NORTH,
+                   DirectionCode.SOUTH, DirectionCode.WEST,
+                   DirectionCode.EAST};
+    for (int dir : order) {
+      signals.advance(null,all);
+      assertEquals(1 << dir,open(signals));
+    }
+    // Only west and north waiting: they take turns.
+    byte[] two = {(byte) ((1 << DirectionCode.WEST) |
+                          (1 << DirectionCode.NORTH))};
+    for (int dir : new int[] {DirectionCode.NORTH, DirectionCode.WEST,
+                              DirectionCode.NORTH}) {
+      signals.advance(null,two);
+      assertEquals(1 << dir,open(signals));
+    }
+  }
+
+  @Test
+  public void advancesTheSameWithAndWithoutAPool () {
+    int nodes = 3 * Signals.SERIAL_NODES;
+    Signals serial = mixed(nodes,1);
+    Signals pooled = mixed(nodes,1);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Random random = new Random(2);
+    byte[] demand = new byte[nodes];
+    for (int tick = 0 ; tick < 50 ; tick++) {
+      random.nextBytes(demand);
+      serial.advance(null,demand);
+      pooled.advance(pool,demand);
+      for (int n = 0 ; n < nodes ; n++) {
+        assertEquals(serial.getPhase(n),pooled.getPhase(n));
+        for (int dir = 0 ; dir < 4 ; dir++) {
+          assertEquals(serial.mayEnter(n,dir),pooled.mayEnter(n,dir));
+        }
+      }
+    }
+    pool.shutdown();
+  }
+}
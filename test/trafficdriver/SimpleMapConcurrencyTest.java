@@ -0,0 +1,288 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+/**
+ * Tests of registering objects and building streets on a map from
+ * many threads at once.
+ */
+public class SimpleMapConcurrencyTest {
+
+  /** Run tasks on threads of their own and wait for all of them */
+  private static void runAll (Runnable... tasks) throws Exception {
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[tasks.length];
+    for (int t = 0 ; t < tasks.length ; t++) {
+      final Runnable task = tasks[t];
+      threads[t] = new Thread(new Runnable() {
+        public void run () {
+          try {
+            task.run();
+          } catch (Throwable e) {
+            failure.compareAndSet(null,e);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) throw new AssertionError(failure.get());
+  }
+
+  /** Return the objects of the registry of a map, which must be distinct */
+  private static Set<RoadInterface> registered (SimpleMap roadMap) {
+    roadMap.settle();
+    Set<RoadInterface> all = Collections.newSetFromMap(
+            new IdentityHashMap<RoadInterface,Boolean>());
+    for (int i = 0 ; i < roadMap.numObjects ; i++) {
+      assertTrue(all.add(roadMap.roadObjects[i]));
+    }
+    return (all);
+  }
+
+  @Test
+  public void readsWhileAdding () throws Exception {
+    final SimpleMap roadMap = new SimpleMap();
+    final int adders = 4;
+    final int each = 30000;
+    final Intersection[][] made = new Intersection[adders][each];
+    final AtomicInteger running = new AtomicInteger(adders);
+    Runnable[] tasks = new Runnable[adders + 1];
+    for (int t = 0 ; t < adders ; t++) {
+      final int column = t;
+      tasks[t] = new Runnable() {
+        public void run () {
+          for (int k = 0 ; k < each ; k++) {
+            made[column][k] = new Intersection(column,k);
+            roadMap.addToMap(made[column][k]);
+          }
+          running.decrementAndGet();
+        }
+      };
+    }
+    tasks[adders] = new Runnable() {
+      public void run () {
+        Random random = new Random(1);
+        while (running.get() > 0) {
+          Intersection found = roadMap.getIntersectionAt(
+                  random.nextInt(adders),random.nextInt(each));
+          if (found != null) assertTrue(found.getXPos() < adders);
+        }
+      }
+    };
+    runAll(tasks);
+    assertEquals(adders * each,registered(roadMap).size());
+    for (int t = 0 ; t < adders ; t++) {
+      for (int k = 0 ; k < each ; k += 997) {
+        assertSame(made[t][k],roadMap.getIntersectionAt(t,k));
+      }
+    }
+    assertNull(roadMap.getIntersectionAt(adders,0));
+  }
+
+  @Test
+  public void readsFromManyThreadsWhileAdding () throws Exception {
+    // Spread over many cells, so the index of intersections keeps
+    // growing while it is read.
+    final int side = 2000;
+    final SimpleMap roadMap = new SimpleMap(side,side);
+    final int adders = 4;
+    final int each = 100000;
+    final AtomicInteger running = new AtomicInteger(adders);
+    Runnable[] tasks = new Runnable[2 * adders];
+    for (int t = 0 ; t < adders ; t++) {
+      final long seed = t;
+      tasks[t] = new Runnable() {
+        public void run () {
+          Random random = new Random(seed);
+          for (int k = 0 ; k < each ; k++) {
+            new Intersection(random.nextInt(side),random.nextInt(side),
+                             roadMap);
+          }
+          running.decrementAndGet();
+        }
+      };
+      // Every reader settles in turn while the others look things up.
+      tasks[adders + t] = new Runnable() {
+        public void run () {
+          Random random = new Random(seed + adders);
+          for (int k = 0 ; running.get() > 0 ; k++) {
+            int x = random.nextInt(side);
+            int y = random.nextInt(side);
+            Intersection found = roadMap.getIntersectionAt(x,y);
+            if (found != null) assertEquals(x,found.getXPos());
+            for (Intersection near :
+                     roadMap.getIntersectionsWithin(x,y,x + 40,y + 40)) {
+              assertTrue(near.getXPos() >= x && near.getXPos() <= x + 40);
+            }
+            assertTrue(roadMap.getNearestIntersection(x,y) != null);
+            if (k % 1000 == 0) {
+              int nodes = RoadGraph.fromMap(roadMap).getNodeCount();
+              assertTrue(nodes <= adders * each);
+            }
+          }
+        }
+      };
+    }
+    runAll(tasks);
+    assertEquals(adders * each,registered(roadMap).size());
+    assertEquals(adders * each,
+                 roadMap.getIntersectionsWithin(0,0,side,side).length);
+  }
+
+  @Test
+  public void registersFromManyThreads () throws Exception {
+    final SimpleMap roadMap = new SimpleMap();
+    final int threads = 8;
+    final int each = 20000;
+    Runnable[] tasks = new Runnable[threads];
+    for (int t = 0 ; t < threads ; t++) {
+      final int column = t;
+      tasks[t] = new Runnable() {
+        public void run () {
+          // Half one at a time, half in uneven batches.
+          for (int k = 0 ; k < each / 2 ; k++) {
+            new Intersection(column,k,roadMap);
+          }
+          RoadInterface[] batch = new RoadInterface[each / 2];
+          for (int k = 0 ; k < batch.length ; k++) {
+            batch[k] = new Intersection(column,each / 2 + k);
+          }
+          for (int k = 0 ; k < batch.length ; ) {
+            int count = Math.min(1 + 37 * column,batch.length - k);
+            roadMap.addAllToMap(batch,k,count);
+            k += count;
+          }
+        }
+      };
+    }
+    runAll(tasks);
+    assertEquals(threads * each,registered(roadMap).size());
+    for (int t = 0 ; t < threads ; t++) {
+      assertEquals(t,roadMap.getIntersectionAt(t,each - 1).getXPos());
+    }
+  }
+
+  /** Return intersections at random positions, registered on a map */
+  private static Intersection[] scatter (SimpleMap roadMap, int count,
+                                         long seed) {
+    Random random = new Random(seed);
+    Intersection[] made = new Intersection[count];
+    for (int i = 0 ; i < count ; i++) {
+      made[i] = new Intersection(random.nextInt(roadMap.getxDim()),
+                                 random.nextInt(roadMap.getyDim()),roadMap);
+    }
+    return (made);
+  }
+
+  @Test
+  public void buildsStreetsFromManyThreads () throws Exception {
+    final SimpleMap roadMap = new SimpleMap(120,60);
+    final Intersection[] made = scatter(roadMap,3000,2);
+    final int threads = 8;
+    final AtomicInteger built = new AtomicInteger();
+    Runnable[] tasks = new Runnable[threads];
+    for (int t = 0 ; t < threads ; t++) {
+      final long seed = 31 * t + 7;
+      tasks[t] = new Runnable() {
+        public void run () {
+          Random random = new Random(seed);
+          for (int k = 0 ; k < 4000 ; k++) {
+            Intersection from = made[random.nextInt(made.length)];
+            Intersection to = made[random.nextInt(made.length)];
+            if (from.buildStreetTo(to,roadMap)) built.incrementAndGet();
+          }
+        }
+      };
+    }
+    runAll(tasks);
+    // Both ends of every street point back at it, and every street
+    // built is registered exactly once.
+    Set<RoadInterface> streets = Collections.newSetFromMap(
+            new IdentityHashMap<RoadInterface,Boolean>());
+    for (Intersection intersection : made) {
+      for (Direction dir : Direction.values()) {
+        RoadInterface street = intersection.getConnectedRoad(dir);
+        if (street == null) continue;
+        streets.add(street);
+        assertSame(intersection,
+                   ((Street) street).getConnectedRoad(dir.opposite()));
+      }
+    }
+    assertEquals(built.get(),streets.size());
+    assertEquals(made.length + built.get(),registered(roadMap).size());
+    assertEquals(built.get(),RoadGraph.fromMap(roadMap).getEdgeCount());
+  }
+
+  @Test
+  public void rendersTheSameInBands () throws Exception {
+    final SimpleMap roadMap = new SimpleMap(150,90);
+    final Intersection[] made = scatter(roadMap,400,3);
+    Runnable[] tasks = new Runnable[4];
+    for (int t = 0 ; t < tasks.length ; t++) {
+      final long seed = t;
+      tasks[t] = new Runnable() {
+        public void run () {
+          Random random = new Random(seed);
+          for (int k = 0 ; k < 300 ; k++) {
+            made[random.nextInt(made.length)].buildStreetTo(
+                    made[random.nextInt(made.length)],roadMap);
+          }
+        }
+      };
+    }
+    runAll(tasks);
+    // An object that does not know its bounds is drawn in every band.
+    roadMap.addToMap(new SimpleMapTest.Marker());
+    String serial = roadMap.toString();
+    assertTrue(serial.contains("S"));
+    for (int threads : new int[] {2, 3, 8}) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      roadMap.setRenderPool(pool);
+      assertEquals(serial,roadMap.toString());
+      pool.shutdown();
+    }
+    roadMap.setRenderPool(null);
+  }
+
+  @Test
+  public void agreesWithGraphBuiltStreetByStreet () {
+    Random random = new Random(4);
+    int count = 2000;
+    SimpleMap roadMap = new SimpleMap(100,50);
+    RoadGraph expected = new RoadGraph();
+    Intersection[] made = new Intersection[count];
+    for (int i = 0 ; i < count ; i++) {
+      made[i] = new Intersection(random.nextInt(100),random.nextInt(50),
+                                 roadMap);
+      expected.addIntersection(made[i].getXPos(),made[i].getYPos());
+    }
+    for (int k = 0 ; k < 5000 ; k++) {
+      int from = random.nextInt(count);
+      int to = random.nextInt(count);
+      assertEquals(expected.buildStreet(from,to) != RoadGraph.NONE,
+                   made[from].buildStreetTo(made[to],roadMap));
+    }
+    RoadGraph graph = RoadGraph.fromMap(roadMap);
+    assertEquals(expected.getEdgeCount(),graph.getEdgeCount());
+    for (int i = 0 ; i < count ; i++) {
+      for (Direction dir : Direction.values()) {
+        assertEquals(expected.getNeighbor(i,dir),graph.getNeighbor(i,dir));
+      }
+    }
+  }
+}
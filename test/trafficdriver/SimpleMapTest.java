@@ -0,0 +1,89 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests of the tiled grid of a map, and of drawing objects that only
+ * draw themselves whole.
+ */
+public class SimpleMapTest {
+
+  @Test
+  public void drawsTiledLikePlain () {
+    for (int tileSize : new int[] {1, 7, 64}) {
+      SimpleMap plain = new SimpleMap(90,50);
+      SimpleMap tiled = new SimpleMap(90,50,tileSize);
+      Random random = new Random(tileSize);
+      Intersection[] made = new Intersection[60];
+      for (int i = 0 ; i < made.length ; i++) {
+        made[i] = new Intersection(random.nextInt(90),random.nextInt(50));
+        plain.addToMap(made[i]);
+        tiled.addToMap(made[i]);
+      }
+      for (int k = 0 ; k < 80 ; k++) {
+        Street street = new Street();
+        if (made[random.nextInt(made.length)].connectTo(street,
+                Direction.values()[random.nextInt(4)])) {
+          plain.addToMap(street);
+          tiled.addToMap(street);
+        }
+      }
+      assertEquals(plain.toString(),tiled.toString());
+    }
+  }
+
+  /** A marker that only knows how to draw itself on the whole map */
+  static class Marker implements RoadInterface {
+    public void drawOnMap (char[][] roadMap) {
+      roadMap[3][3] = 'S';
+    }
+
+    public boolean connectTo (RoadInterface newObj, Direction attachAt) {
+      return (false);
+    }
+
+    public RoadInterface getConnectedRoad (Direction dir) {
+      return (null);
+    }
+  }
+
+  /** Register a few roads and a marker, which comes last */
+  private static void fill (SimpleMap roadMap) {
+    Intersection west = new Intersection(1,1,roadMap);
+    Intersection east = new Intersection(8,1,roadMap);
+    west.buildStreetTo(east,roadMap);
+    new Intersection(6,6,roadMap);
+    roadMap.addToMap(new Marker());
+  }
+
+  @Test
+  public void drawsObjectsWithoutBoundsInEveryRender () {
+    char[][] window = { "   ".toCharArray(), "   ".toCharArray() };
+    new Marker().drawOnMap(window,2,2);
+    assertEquals(" S ",new String(window[1]));
+    SimpleMap plain = new SimpleMap(10,8);
+    fill(plain);
+    String expected = plain.toString();
+    assertTrue(expected.contains("S"));
+    assertEquals(expected,plain.render(0,0,10,8));
+    assertTrue(plain.render(2,2,4,4).contains("S"));
+    SimpleMap tiled = new SimpleMap(10,8,3);
+    fill(tiled);
+    assertEquals(expected,tiled.toString());
+    SimpleMap incremental = new SimpleMap(10,8);
+    fill(incremental);
+    incremental.setIncremental(true);
+    assertEquals(expected,incremental.toString());
+    incremental.invalidate(0,0,9,7);
+    assertEquals(expected,incremental.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptyTiles () {
+    new SimpleMap(10,10,0);
+  }
+}
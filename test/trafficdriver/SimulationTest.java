@@ -0,0 +1,140 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests of the simulation: that a seed gives the same run on any
+ * number of threads, and the step rules on small networks.
+ */
+public class SimulationTest {
+
+  /** Return a simulation of a generated network with signals */
+  private static Simulation simulate (long seed) {
+    NetworkGenerator generator = new NetworkGenerator(30,30,4);
+    generator.setLayout(NetworkGenerator.Layout.irregular);
+    generator.setMissingLinks(0.15);
+    generator.setSeed(seed);
+    RoadGraph graph = generator.generate();
+    Simulation sim = new Simulation(graph,3,0.2,seed);
+    Signals signals = new Signals(graph.getNodeCount());
+    for (int n = 0 ; n < graph.getNodeCount() ; n += 3) {
+      if (n % 2 == 0) {
+        signals.setFixedTime(n,4,1,n);
+      } else {
+        signals.setActuated(n,2,6,1);
+      }
+    }
+    sim.setSignals(signals);
+    sim.populate(0.3);
+    return (sim);
+  }
+
+  /** Return the number of vehicles on the arcs of a simulation */
+  private static int countVehicles (Simulation sim) {
+    int total = 0;
+    for (int arc = 0 ; arc < 2 * sim.getGraph().getEdgeCount() ; arc++) {
+      total += sim.getVehicleCount(arc);
+    }
+    return (total);
+  }
+
+  @Test
+  public void runsTheSameOnAnyNumberOfThreads () {
+    ForkJoinPool one = new ForkJoinPool(1);
+    ForkJoinPool four = new ForkJoinPool(4);
+    Simulation serial = simulate(7);
+    Simulation parallel = simulate(7);
+    int vehicles = serial.getVehicleCount();
+    assertTrue(vehicles > 0);
+    for (int step = 0 ; step < 60 ; step++) {
+      serial.step(one);
+      parallel.step(four);
+    }
+    int arcs = 2 * serial.getGraph().getEdgeCount();
+    for (int arc = 0 ; arc < arcs ; arc++) {
+      assertEquals(serial.getVehicleCount(arc),parallel.getVehicleCount(arc));
+      for (int i = 0 ; i < serial.getVehicleCount(arc) ; i++) {
+        assertEquals(serial.getVehicle(arc,i),parallel.getVehicle(arc,i));
+        assertEquals(serial.getPosition(arc,i),parallel.getPosition(arc,i));
+        assertEquals(serial.getSpeed(arc,i),parallel.getSpeed(arc,i));
+      }
+    }
+    assertEquals(vehicles,countVehicles(serial));
+    assertEquals(vehicles,countVehicles(parallel));
+    one.shutdown();
+    four.shutdown();
+  }
+
+  @Test
+  public void entersTheNextStreetFromTheStopLine () {
+    RoadGraph graph = new RoadGraph();
+    int west = graph.addIntersection(0,0);
+    int middle = graph.addIntersection(5,0);
+    int east = graph.addIntersection(12,0);
+    int first = graph.buildStreet(west,middle);
+    int second = graph.buildStreet(middle,east);
+    Simulation sim = new Simulation(graph,2,0,1);
+    int in = 2 * first;
+    int out = 2 * second;
+    int id = sim.addVehicle(in,sim.getCells(in) - 1);
+    sim.step();
+    assertEquals(0,sim.getVehicleCount(in));
+    assertEquals(1,sim.getVehicleCount(out));
+    assertEquals(id,sim.getVehicle(out,0));
+    assertEquals(0,sim.getPosition(out,0));
+    assertEquals(1,sim.getSpeed(out,0));
+    // Then it speeds up to the limit.
+    sim.step();
+    assertEquals(2,sim.getPosition(out,0));
+    assertEquals(2,sim.getSpeed(out,0));
+  }
+
+  @Test
+  public void turnsBackAtADeadEnd () {
+    RoadGraph graph = new RoadGraph();
+    int west = graph.addIntersection(0,0);
+    int east = graph.addIntersection(4,0);
+    int street = graph.buildStreet(west,east);
+    Simulation sim = new Simulation(graph,1,0,1);
+    int id = sim.addVehicle(2 * street,sim.getCells(2 * street) - 1);
+    sim.step();
+    assertEquals(0,sim.getVehicleCount(2 * street));
+    assertEquals(id,sim.getVehicle(2 * street + 1,0));
+    assertEquals(0,sim.getPosition(2 * street + 1,0));
+  }
+
+  @Test
+  public void waitsAtARedSignal () {
+    RoadGraph graph = new RoadGraph();
+    int west = graph.addIntersection(0,0);
+    int middle = graph.addIntersection(5,0);
+    int east = graph.addIntersection(12,0);
+    int in = 2 * graph.buildStreet(west,middle);
+    int out = 2 * graph.buildStreet(middle,east);
+    Simulation sim = new Simulation(graph,1,0,1);
+    Signals signals = new Signals(graph.getNodeCount());
+    // North and south are green first, for three ticks.
+    signals.setFixedTime(middle,3,1,0);
+    sim.setSignals(signals);
+    int stopLine = sim.getCells(in) - 1;
+    sim.addVehicle(in,stopLine);
+    int steps = 0;
+    while (!signals.mayEnter(middle,Direction.west)) {
+      sim.step();
+      steps++;
+      assertEquals(1,sim.getVehicleCount(in));
+      assertEquals(stopLine,sim.getPosition(in,0));
+      assertEquals(0,sim.getVehicleCount(out));
+    }
+    assertEquals(4,steps);
+    sim.step();
+    assertEquals(0,sim.getVehicleCount(in));
+    assertEquals(1,sim.getVehicleCount(out));
+    assertFalse(signals.mayEnter(middle,Direction.north));
+  }
+}
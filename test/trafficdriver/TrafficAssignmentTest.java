@@ -0,0 +1,143 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests of traffic assignment: the equilibrium of two routes that can
+ * be worked out by hand, trips without a route, and solving on pools
+ * of different sizes.
+ */
+public class TrafficAssignmentTest {
+
+  /** Intersections of the two-route network */
+  private static final int ORIGIN = 0;
+  private static final int MIDDLE = 1;
+  private static final int DEST = 2;
+  private static final int ISLAND = 3;
+  /** Streets of the two-route network */
+  private static final int DIRECT = 0;
+  private static final int FIRST = 1;
+  private static final int SECOND = 2;
+
+  /**
+   * Return a network with a direct street from the origin to the
+   * destination, a route of two streets through the middle, and an
+   * intersection with no streets.
+   */
+  private static RoadGraph twoRoutes () {
+    RoadGraph graph = new RoadGraph();
+    graph.addIntersection(0,0);
+    graph.addIntersection(0,20);
+    graph.addIntersection(20,0);
+    graph.addIntersection(30,30);
+    assertEquals(DIRECT,graph.buildStreet(ORIGIN,DEST));
+    assertEquals(FIRST,graph.buildStreet(ORIGIN,MIDDLE));
+    // Built from the destination, so the second arc is the way there.
+    assertEquals(SECOND,graph.buildStreet(DEST,MIDDLE));
+    return (graph);
+  }
+
+  /**
+   * Return a solver for the two-route network with linear travel
+   * times: 20 + v on the direct street and 5 + v on each street of the
+   * other route.
+   */
+  private static TrafficAssignment linear (RoadGraph graph) {
+    double[] freeTime = {20, 20, 5, 5, 5, 5};
+    double[] capacity = {20, 20, 5, 5, 5, 5};
+    TrafficAssignment assignment =
+            new TrafficAssignment(graph,freeTime,capacity);
+    assignment.setBpr(1,1);
+    return (assignment);
+  }
+
+  @Test
+  public void findsTheEquilibriumOfTwoRoutes () {
+    RoadGraph graph = twoRoutes();
+    TrafficAssignment assignment = linear(graph);
+    assignment.setDemand(new int[] {ORIGIN},new int[] {DEST},
+                         new double[] {40});
+    assignment.solve(1000,1e-7,new ForkJoinPool(1));
+    /*
+     * Both routes take the same time when 20 + a = 10 + 2b and
+     * a + b = 40: a = 70/3 on the direct street, b = 50/3 on the other
+     * route, and 130/3 either way.
+     */
+    assertTrue(assignment.getRelativeGap() <= 1e-7);
+    assertEquals(70.0 / 3,assignment.getFlow(2 * DIRECT),1e-3);
+    assertEquals(50.0 / 3,assignment.getFlow(2 * FIRST),1e-3);
+    assertEquals(50.0 / 3,assignment.getFlow(2 * SECOND + 1),1e-3);
+    assertEquals(0,assignment.getFlow(2 * DIRECT + 1),0);
+    double viaMiddle = assignment.getTime(2 * FIRST) +
+            assignment.getTime(2 * SECOND + 1);
+    assertEquals(130.0 / 3,assignment.getTime(2 * DIRECT),1e-2);
+    assertEquals(130.0 / 3,viaMiddle,1e-2);
+    assertEquals(0,assignment.getUnassigned(),0);
+  }
+
+  @Test
+  public void countsTripsWithoutARoute () {
+    RoadGraph graph = twoRoutes();
+    TrafficAssignment assignment = linear(graph);
+    assignment.setDemand(new int[] {ORIGIN, ORIGIN, MIDDLE},
+                         new int[] {DEST, ISLAND, ISLAND},
+                         new double[] {40, 5, 2});
+    assignment.solve(1000,1e-7,new ForkJoinPool(1));
+    assertEquals(7,assignment.getUnassigned(),1e-12);
+    // The trips that have a route load as if the others were not there.
+    assertEquals(70.0 / 3,assignment.getFlow(2 * DIRECT),1e-3);
+    assertEquals(50.0 / 3,assignment.getFlow(2 * FIRST),1e-3);
+  }
+
+  @Test
+  public void solvesAlikeOnPoolsOfAnySize () {
+    Random random = new Random(4);
+    NetworkGenerator generator = new NetworkGenerator(25,25,3);
+    generator.setLayout(NetworkGenerator.Layout.irregular);
+    generator.setMissingLinks(0.1);
+    generator.setSeed(4);
+    NetworkBuilder builder = new NetworkBuilder();
+    generator.addTo(builder);
+    RoadGraph graph = builder.build();
+    int nodes = graph.getNodeCount();
+    double[] capacity = new double[2 * graph.getEdgeCount()];
+    for (int arc = 0 ; arc < capacity.length ; arc++) {
+      capacity[arc] = 5 + random.nextInt(20);
+    }
+    int pairs = 2000;
+    int[] from = new int[pairs];
+    int[] to = new int[pairs];
+    double[] count = new double[pairs];
+    for (int p = 0 ; p < pairs ; p++) {
+      from[p] = random.nextInt(nodes);
+      to[p] = random.nextInt(nodes);
+      count[p] = 1 + random.nextInt(5);
+    }
+    double[][] flows = new double[2][];
+    double[] gaps = new double[2];
+    int[] threads = {1, 4};
+    for (int run = 0 ; run < 2 ; run++) {
+      TrafficAssignment assignment = new TrafficAssignment(graph,capacity);
+      assignment.setDemand(from,to,count);
+      ForkJoinPool pool = new ForkJoinPool(threads[run]);
+      assertEquals(20,assignment.solve(20,0,pool));
+      pool.shutdown();
+      flows[run] = assignment.getFlows();
+      gaps[run] = assignment.getRelativeGap();
+    }
+    // Pools of other sizes add the same flows in another grouping.
+    double total = 0;
+    for (int arc = 0 ; arc < flows[0].length ; arc++) {
+      total += flows[0][arc];
+      assertEquals(flows[0][arc],flows[1][arc],
+                   1e-9 * Math.max(1,flows[0][arc]));
+    }
+    assertTrue(total > 0);
+    assertEquals(gaps[0],gaps[1],1e-9);
+  }
+}
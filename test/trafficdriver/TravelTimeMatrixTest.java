@@ -0,0 +1,110 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that every cell of a travel time matrix is the distance
+ * Dijkstra's algorithm finds, and that a matrix written a block of
+ * rows at a time reads back whole.
+ */
+public class TravelTimeMatrixTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Side of the grid of intersections */
+  private static final int SIDE = 20;
+
+  /**
+   * Return a grid with about a tenth of its streets missing, and one
+   * more intersection with no streets at all.
+   */
+  private static RoadGraph grid (Random random) {
+    RoadGraph graph = new RoadGraph();
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        graph.addIntersection(3 * x,3 * y);
+      }
+    }
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        int node = y * SIDE + x;
+        if (x + 1 < SIDE && random.nextInt(10) > 0) {
+          graph.buildStreet(node,node + 1);
+        }
+        if (y + 1 < SIDE && random.nextInt(10) > 0) {
+          graph.buildStreet(node,node + SIDE);
+        }
+      }
+    }
+    graph.addIntersection(3 * SIDE,3 * SIDE);
+    return (graph);
+  }
+
+  /** Return some intersections, with repeats and the lone one */
+  private static int[] pick (RoadGraph graph, int count, Random random) {
+    int nodes = graph.getNodeCount();
+    int[] result = new int[count];
+    for (int i = 0 ; i < count ; i++) {
+      result[i] = random.nextInt(nodes);
+    }
+    result[count / 2] = result[0];
+    result[count - 1] = nodes - 1;
+    return (result);
+  }
+
+  @Test
+  public void matchesDijkstraInEveryCell () {
+    Random random = new Random(6);
+    RoadGraph graph = grid(random);
+    int[] weights = new int[2 * graph.getEdgeCount()];
+    for (int arc = 0 ; arc < weights.length ; arc++) {
+      weights[arc] = 1 + random.nextInt(20);
+    }
+    int[] origins = pick(graph,30,random);
+    int[] destinations = pick(graph,40,random);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    for (Router router : new Router[] {new Router(graph),
+                                       new Router(graph,weights)}) {
+      int[] matrix = new TravelTimeMatrix(router).compute(origins,
+                                                          destinations,pool);
+      int unreachable = 0;
+      for (int i = 0 ; i < origins.length ; i++) {
+        for (int j = 0 ; j < destinations.length ; j++) {
+          int expected = router.dijkstraDistance(origins[i],destinations[j]);
+          assertEquals(expected,matrix[i * destinations.length + j]);
+          if (expected == TravelTimeMatrix.UNREACHABLE) unreachable++;
+        }
+      }
+      // At least the row and column of the lone intersection.
+      assertTrue(unreachable >= origins.length);
+    }
+    pool.shutdown();
+  }
+
+  @Test
+  public void readsBackAMatrixWrittenInBlocks () throws IOException {
+    Random random = new Random(7);
+    RoadGraph graph = grid(random);
+    int[] origins = pick(graph,30,random);
+    int[] destinations = pick(graph,25,random);
+    TravelTimeMatrix matrix = new TravelTimeMatrix(new Router(graph));
+    ForkJoinPool pool = new ForkJoinPool(4);
+    int[] expected = matrix.compute(origins,destinations,pool);
+    // Seven does not divide the thirty rows, so the last block is short.
+    Path file = folder.newFile().toPath();
+    matrix.write(origins,destinations,pool,file,7);
+    assertArrayEquals(expected,TravelTimeMatrix.read(file));
+    pool.shutdown();
+  }
+}
@@ -0,0 +1,133 @@
+package trafficdriver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests of turn-aware routing: free turns route as Router does, and a
+ * forbidden movement sends the route around the block.
+ */
+public class TurnRouterTest {
+
+  /** Side of the grid of intersections */
+  private static final int SIDE = 20;
+
+  /** Penalties that make every movement free */
+  private static final int[] FREE = {0, 0, 0, 0};
+
+  /** Return a grid with about a tenth of its streets missing */
+  private static RoadGraph grid (Random random) {
+    RoadGraph graph = new RoadGraph();
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        graph.addIntersection(3 * x,3 * y);
+      }
+    }
+    for (int y = 0 ; y < SIDE ; y++) {
+      for (int x = 0 ; x < SIDE ; x++) {
+        int node = y * SIDE + x;
+        if (x + 1 < SIDE && random.nextInt(10) > 0) {
+          graph.buildStreet(node,node + 1);
+        }
+        if (y + 1 < SIDE && random.nextInt(10) > 0) {
+          graph.buildStreet(node,node + SIDE);
+        }
+      }
+    }
+    return (graph);
+  }
+
+  /**
+   * Return a three by three grid, ten cells apart, without the street
+   * from the middle of the west side north to the corner:
+   * 
+   * <pre>
+   *   0 - 1 - 2
+   *       |   |
+   *   3 - 4 - 5
+   *   |   |   |
+   *   6 - 7 - 8
+   * </pre>
+   */
+  private static RoadGraph block () {
+    RoadGraph graph = new RoadGraph();
+    for (int y = 0 ; y < 3 ; y++) {
+      for (int x = 0 ; x < 3 ; x++) {
+        graph.addIntersection(10 * x,10 * y);
+      }
+    }
+    for (int node = 0 ; node < 9 ; node++) {
+      if (node % 3 < 2) graph.buildStreet(node,node + 1);
+      if (node < 6 && node != 0) graph.buildStreet(node,node + 3);
+    }
+    return (graph);
+  }
+
+  /** Return the intersections a route passes, starting at from */
+  private static int[] passes (RoadGraph graph, int from, int[] route) {
+    int[] nodes = new int[route.length + 1];
+    nodes[0] = from;
+    for (int i = 0 ; i < route.length ; i++) {
+      nodes[i + 1] = graph.getOtherNode(route[i],nodes[i]);
+    }
+    return (nodes);
+  }
+
+  /** Check free turns against Dijkstra's algorithm on random pairs */
+  private static void checkFree (RoadGraph graph, int[] weights,
+                                 Random random) {
+    Router router =
+            weights == null ? new Router(graph) : new Router(graph,weights);
+    TurnRouter turnRouter = new TurnRouter(graph,weights,FREE);
+    int nodes = graph.getNodeCount();
+    for (int q = 0 ; q < 500 ; q++) {
+      int from = random.nextInt(nodes);
+      int to = random.nextInt(nodes);
+      assertEquals(router.dijkstraDistance(from,to),
+                   turnRouter.distance(from,to));
+    }
+  }
+
+  @Test
+  public void routesAsRouterWhenTurnsAreFree () {
+    Random random = new Random(3);
+    RoadGraph graph = grid(random);
+    checkFree(graph,null,random);
+    int[] weights = new int[2 * graph.getEdgeCount()];
+    for (int arc = 0 ; arc < weights.length ; arc++) {
+      weights[arc] = 1 + random.nextInt(20);
+    }
+    checkFree(graph,weights,random);
+  }
+
+  @Test
+  public void goesAroundAForbiddenLeftTurn () {
+    RoadGraph graph = block();
+    TurnRouter free = new TurnRouter(graph,FREE);
+    assertEquals(20,free.distance(3,1));
+    assertArrayEquals(new int[] {3, 4, 1},passes(graph,3,free.route(3,1)));
+    // Without the left turn at 4, a U-turn at 5 or 7 comes back to 4
+    // heading a way from which 1 is not a left turn.
+    int[] noLeft = {0, 0, TurnRouter.FORBIDDEN, 0};
+    TurnRouter uTurn = new TurnRouter(graph,noLeft);
+    assertEquals(40,uTurn.distance(3,1));
+    int[] nodes = passes(graph,3,uTurn.route(3,1));
+    assertEquals(5,nodes.length);
+    assertEquals(4,nodes[3]);
+    assertEquals(1,nodes[4]);
+    // Without U-turns either, the route goes right around the block.
+    int[] rightOnly = {0, 0, TurnRouter.FORBIDDEN, TurnRouter.FORBIDDEN};
+    TurnRouter around = new TurnRouter(graph,rightOnly);
+    assertEquals(60,around.distance(3,1));
+    assertArrayEquals(new int[] {3, 4, 5, 8, 7, 4, 1},
+                      passes(graph,3,around.route(3,1)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsANegativePenalty () {
+    new TurnRouter(block(),new int[] {0, 0, -2, 0});
+  }
+}